@@ -0,0 +1,100 @@
+package org.fdroid.fdroid.benchmark;
+
+import android.database.Cursor;
+import android.net.Uri;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long the {@link AppProvider} queries behind the search and category
+ * screens take against a large index, including reading every row.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class AppProviderBenchmark extends FDroidProviderTest {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("AppProvider");
+
+    private static final String[] PROJECTION = {
+            Cols._ID, Cols.NAME, Cols.SUMMARY, Cols.ICON, Cols.IS_COMPATIBLE, Cols.Package.PACKAGE_NAME,
+    };
+
+    @Before
+    public void setup() throws Exception {
+        Preferences.setupForTests(context);
+        Repo repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+        RepoDetails details = IndexData.parse(IndexData.readResource("largeRepo.xml"));
+        IndexData.persist(context, repo, details, IndexData.groupApks(details, repo.getId()));
+    }
+
+    @Test
+    public void searchCommonKeyword() throws Exception {
+        query("searchCommonKeyword", AppProvider.getSearchUri("open", null));
+    }
+
+    @Test
+    public void searchRareKeyword() throws Exception {
+        query("searchRareKeyword", AppProvider.getSearchUri("keyboard", null));
+    }
+
+    @Test
+    public void searchInCategory() throws Exception {
+        query("searchInCategory", AppProvider.getSearchUri("open", "Internet"));
+    }
+
+    @Test
+    public void category() throws Exception {
+        query("category", AppProvider.getCategoryUri("Internet"));
+    }
+
+    @Test
+    public void topFromCategory() throws Exception {
+        query("topFromCategory", AppProvider.getTopFromCategoryUri("Games", 20));
+    }
+
+    @Test
+    public void all() throws Exception {
+        query("all", AppProvider.getContentUri());
+    }
+
+    private void query(String name, final Uri uri) throws Exception {
+        int rows = readAll(uri);
+        assertTrue(name + " should find some apps", rows > 0);
+
+        RUNNER.run(name, rows, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                readAll(uri);
+            }
+        });
+    }
+
+    private int readAll(Uri uri) {
+        Cursor cursor = context.getContentResolver().query(uri, PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        int rows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,70 @@
+package org.fdroid.fdroid.benchmark;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.AppSearchQueries;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * How long searching for a keyword takes with the search index, compared with
+ * the {@code LIKE '%keyword%'} search it replaced.  That the search index finds
+ * the right apps is checked by {@code AppSearchTest}.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class AppSearchBenchmark extends FDroidProviderTest {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("AppSearch");
+
+    private static final String[] KEYWORDS = {
+            "a", "fdroid", "open", "map", "game", "browser", "keyboard", "wifi", "k9", "zzzzzz",
+    };
+
+    private Repo repo;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+    }
+
+    @Test
+    public void mediumRepo() throws Exception {
+        compareWithLikeSearch("mediumRepo", "mediumRepo.xml");
+    }
+
+    @Test
+    public void largeRepo() throws Exception {
+        compareWithLikeSearch("largeRepo", "largeRepo.xml");
+    }
+
+    private void compareWithLikeSearch(String name, String indexName) throws Exception {
+        RepoDetails details = IndexData.parse(IndexData.readResource(indexName));
+        IndexData.persist(context, repo, details, IndexData.groupApks(details, repo.getId()));
+
+        RUNNER.run(name + ".like", KEYWORDS.length, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                for (String keyword : KEYWORDS) {
+                    AppSearchQueries.searchWithLike(context, keyword);
+                }
+            }
+        });
+        RUNNER.run(name + ".fts", KEYWORDS.length, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                for (String keyword : KEYWORDS) {
+                    AppSearchQueries.searchWithFts(context, keyword);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package org.fdroid.fdroid.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.fdroid.fdroid.BuildConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small microbenchmark harness in the style of JMH, which runs inside of
+ * Robolectric so that the real index parsing and database code can be
+ * measured on a plain JVM.  Each benchmark is run a number of times to warm
+ * up the JIT, then timed over a number of measured iterations.  On JVMs that
+ * support it, the bytes allocated by each iteration are counted too.  The results
+ * of each suite are written as JSON to {@code <suite>.json} in the directory
+ * given by the {@link #OUTPUT_DIR_PROPERTY} system property, so they can be
+ * compared between releases.
+ * <p>
+ * These are run with {@code ./gradlew testFullDebugUnitTest -Pbenchmark}, the
+ * normal unit test runs skip them.
+ */
+public final class BenchmarkRunner {
+
+    public static final String OUTPUT_DIR_PROPERTY = "fdroid.benchmark.dir";
+    public static final String WARMUP_PROPERTY = "fdroid.benchmark.warmupIterations";
+    public static final String MEASURE_PROPERTY = "fdroid.benchmark.measureIterations";
+
+    private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+    private static final int DEFAULT_MEASURE_ITERATIONS = 10;
+
+    private final String suite;
+    private final int warmupIterations;
+    private final int measureIterations;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+
+    public BenchmarkRunner(String suite) {
+        this.suite = suite;
+        warmupIterations = Integer.getInteger(WARMUP_PROPERTY, DEFAULT_WARMUP_ITERATIONS);
+        measureIterations = Math.max(1, Integer.getInteger(MEASURE_PROPERTY, DEFAULT_MEASURE_ITERATIONS));
+    }
+
+    /**
+     * One benchmark.  {@link #setUp()} is called before every iteration, but
+     * is not included in the time.
+     */
+    public abstract static class Benchmark {
+        public void setUp() throws Exception {
+        }
+
+        public abstract void run() throws Exception;
+    }
+
+    /**
+     * Time {@code benchmark}, and write out the results of this suite so far.
+     *
+     * @param operations how many operations one run of {@code benchmark} does,
+     *                   e.g. how many apps it saves, to give the time per operation
+     * @return the median time of one iteration, in nanoseconds
+     */
+    public long run(String name, int operations, Benchmark benchmark) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            benchmark.setUp();
+            benchmark.run();
+        }
+
+        long[] times = new long[measureIterations];
+        long[] allocated = new long[measureIterations];
+        for (int i = 0; i < measureIterations; i++) {
+            benchmark.setUp();
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            benchmark.run();
+            times[i] = System.nanoTime() - start;
+            allocated[i] = allocatedBefore < 0 ? -1 : getAllocatedBytes() - allocatedBefore;
+        }
+        Arrays.sort(times);
+        Arrays.sort(allocated);
+
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        long median = times[times.length / 2];
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", name);
+        result.put("warmupIterations", warmupIterations);
+        result.put("measureIterations", measureIterations);
+        result.put("operationsPerIteration", operations);
+        result.put("minNanos", times[0]);
+        result.put("medianNanos", median);
+        result.put("meanNanos", total / times.length);
+        result.put("p90Nanos", times[(int) Math.ceil(times.length * 0.9) - 1]);
+        result.put("maxNanos", times[times.length - 1]);
+        result.put("medianNanosPerOperation", median / Math.max(1, operations));
+        long medianAllocated = allocated[allocated.length / 2];
+        if (medianAllocated >= 0) {
+            result.put("medianAllocatedBytes", medianAllocated);
+            result.put("medianAllocatedBytesPerOperation", medianAllocated / Math.max(1, operations));
+        }
+        results.add(result);
+
+        System.out.println(suite + "." + name + ": " + median / 1000 + "us median over "
+                + measureIterations + " iterations of " + operations + " operations"
+                + (medianAllocated >= 0 ? ", " + medianAllocated / 1024 + "KiB allocated" : ""));
+        writeJson();
+        return median;
+    }
+
+    /**
+     * The bytes allocated by the current thread so far, or {@code -1} if this JVM
+     * cannot count them.  This is only available on HotSpot based JVMs.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private void writeJson() throws IOException {
+        File dir = new File(System.getProperty(OUTPUT_DIR_PROPERTY, "build/benchmark-results"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("suite", suite);
+        json.put("versionName", BuildConfig.VERSION_NAME);
+        json.put("versionCode", BuildConfig.VERSION_CODE);
+        json.put("flavor", BuildConfig.FLAVOR);
+        json.put("javaVersion", System.getProperty("java.version"));
+        json.put("javaVm", System.getProperty("java.vm.name"));
+        json.put("osArch", System.getProperty("os.arch"));
+        json.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        json.put("timestamp", System.currentTimeMillis());
+        json.put("results", results);
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        mapper.writeValue(new File(dir, suite + ".json"), json);
+    }
+}
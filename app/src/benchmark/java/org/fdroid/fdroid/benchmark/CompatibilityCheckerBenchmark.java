@@ -0,0 +1,93 @@
+package org.fdroid.fdroid.benchmark;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.CompatibilityChecker;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long {@link CompatibilityChecker#getIncompatibleReasons(Apk)} takes for
+ * every package in a large index, which is done for each of them on every
+ * index update.  The checker remembers the reasons for each combination of
+ * requirements, so {@link #newCheckerPerUpdate()} is what an update pays,
+ * while {@link #getIncompatibleReasons()} only measures cache hits.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class CompatibilityCheckerBenchmark {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("CompatibilityChecker");
+
+    private List<Apk> apks;
+
+    @Before
+    public void setup() throws Exception {
+        Preferences.setupForTests(RuntimeEnvironment.application);
+        RepoDetails details = IndexData.parse(IndexData.readResource("largeRepo.xml"));
+        apks = details.apks;
+        assertTrue(apks.size() > 0);
+    }
+
+    @Test
+    public void getIncompatibleReasons() throws Exception {
+        final CompatibilityChecker checker = new CompatibilityChecker(RuntimeEnvironment.application);
+        RUNNER.run("getIncompatibleReasons", apks.size(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                for (Apk apk : apks) {
+                    checker.getIncompatibleReasons(apk);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void getIncompatibleReasonsArray() throws Exception {
+        RUNNER.run("getIncompatibleReasonsArray", apks.size(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                CompatibilityChecker checker = new CompatibilityChecker(RuntimeEnvironment.application);
+                for (Apk apk : apks) {
+                    checker.getIncompatibleReasonsArray(apk);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void isCompatible() throws Exception {
+        RUNNER.run("isCompatible", apks.size(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                CompatibilityChecker checker = new CompatibilityChecker(RuntimeEnvironment.application);
+                for (Apk apk : apks) {
+                    checker.isCompatible(apk);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void newCheckerPerUpdate() throws Exception {
+        RUNNER.run("newCheckerPerUpdate", apks.size(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                CompatibilityChecker checker = new CompatibilityChecker(RuntimeEnvironment.application);
+                for (Apk apk : apks) {
+                    checker.getIncompatibleReasons(apk);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,84 @@
+package org.fdroid.fdroid.benchmark;
+
+import android.content.ContentValues;
+import android.content.Context;
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoPersister;
+import org.fdroid.fdroid.mock.RepoDetails;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the test indexes that the benchmarks run against.
+ */
+final class IndexData {
+
+    private IndexData() {
+    }
+
+    /**
+     * Read a whole test resource into memory, so reading it from disk is not
+     * part of what is measured.
+     */
+    static byte[] readResource(String resourceName) throws IOException {
+        InputStream input = IndexData.class.getClassLoader().getResourceAsStream(resourceName);
+        if (input == null) {
+            throw new IOException("Missing test resource " + resourceName);
+        }
+        try {
+            return IOUtils.toByteArray(input);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    static RepoDetails parse(byte[] indexXml) {
+        return RepoDetails.getFromFile(new ByteArrayInputStream(indexXml), Repo.PUSH_REQUEST_IGNORE);
+    }
+
+    static RepoDetails parseWithPullParser(byte[] indexXml) {
+        return RepoDetails.getFromFileWithPullParser(new ByteArrayInputStream(indexXml), Repo.PUSH_REQUEST_IGNORE);
+    }
+
+    /**
+     * The packages of each app in {@code details}, all marked as coming from {@code repoId}.
+     */
+    static Map<String, List<Apk>> groupApks(RepoDetails details, long repoId) {
+        Map<String, List<Apk>> apks = new HashMap<>();
+        for (Apk apk : details.apks) {
+            apk.repoId = repoId;
+            List<Apk> apksForApp = apks.get(apk.packageName);
+            if (apksForApp == null) {
+                apksForApp = new ArrayList<>();
+                apks.put(apk.packageName, apksForApp);
+            }
+            apksForApp.add(apk);
+        }
+        return apks;
+    }
+
+    /**
+     * Save all of {@code details} to the database, the same way an index update does.
+     */
+    static void persist(Context context, Repo repo, RepoDetails details, Map<String, List<Apk>> apks)
+            throws IndexUpdater.UpdateException {
+        RepoPersister persister = new RepoPersister(context, repo);
+        for (App app : details.apps) {
+            app.repoId = repo.getId();
+            List<Apk> apksForApp = apks.get(app.packageName);
+            persister.saveToDb(app, apksForApp == null ? Collections.<Apk>emptyList() : apksForApp);
+        }
+        persister.commit(new ContentValues(), repo.getId());
+    }
+}
@@ -0,0 +1,104 @@
+package org.fdroid.fdroid.benchmark;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProviderTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * How long {@link IndexV1Updater#processIndexV1(InputStream, JarEntry, String)}
+ * takes to verify, parse and save a whole {@code index-v1.jar}, from opening
+ * the jar until the new index is committed to the database.  Each iteration
+ * replaces the index that the one before it saved, like a real update does.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class IndexV1UpdaterBenchmark extends FDroidProviderTest {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("IndexV1Updater");
+
+    private JarFile jarFile;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (jarFile != null) {
+            jarFile.close();
+        }
+    }
+
+    @Test
+    public void processTestyIndex() throws Exception {
+        process("testy.at.or.at_index-v1.jar", "http://testy.at.or.at/fdroid/repo", 63);
+    }
+
+    @Test
+    public void processFDroidIndex() throws Exception {
+        process("index-v1.fdroid.2017-07-07.jar", "https://f-droid.org/repo", 0);
+    }
+
+    /**
+     * @param expectedApps how many apps should be saved, or {@code 0} to not check
+     */
+    private void process(String jarName, String address, int expectedApps) throws Exception {
+        final File jar = TestUtils.copyResourceToTempFile(jarName);
+        final Repo repo = RepoProviderTest.insertRepo(context, address, "", null, "Benchmark");
+        final IndexV1Updater updater = new IndexV1Updater(context, repo);
+
+        BenchmarkRunner.Benchmark benchmark = new BenchmarkRunner.Benchmark() {
+            private JarEntry indexEntry;
+            private InputStream indexInputStream;
+
+            @Override
+            public void setUp() throws IOException {
+                if (jarFile != null) {
+                    jarFile.close();
+                }
+                repo.timestamp = 0; // so the same index can be processed again
+                jarFile = new JarFile(jar, true);
+                indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+                indexInputStream = jarFile.getInputStream(indexEntry);
+            }
+
+            @Override
+            public void run() throws Exception {
+                updater.processIndexV1(indexInputStream, indexEntry, "benchmark");
+            }
+        };
+
+        benchmark.setUp();
+        benchmark.run();
+        int apps = AppProvider.Helper.all(context.getContentResolver()).size();
+        if (expectedApps > 0) {
+            assertEquals(expectedApps, apps);
+        }
+
+        try {
+            RUNNER.run(jarName, apps, benchmark);
+        } finally {
+            jar.delete();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.fdroid.fdroid.benchmark;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.InjectableValues;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.LocaleChain;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long it takes, and how much is allocated, to deserialize every {@link App}
+ * in the {@code apps} array of the bundled {@code index-v1.jar}s, once reading
+ * the {@code localized} block of every locale, and once skipping the locales
+ * that the {@link LocaleChain} can never choose.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class LocalizedParsingBenchmark {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("LocalizedParsing");
+
+    private static final long REPO_ID = 1;
+
+    @Test
+    public void testyIndex() throws Exception {
+        parse("testy.at.or.at_index-v1.jar");
+    }
+
+    @Test
+    public void fdroidIndex() throws Exception {
+        parse("index-v1.fdroid.2017-07-07.jar");
+    }
+
+    private void parse(String jarName) throws Exception {
+        final byte[] index = readIndex(jarName);
+        final ObjectMapper allLocales = getObjectMapper(LocaleChain.fromDevice(false));
+        final ObjectMapper prunedLocales = getObjectMapper(LocaleChain.fromDevice());
+
+        int apps = parseApps(allLocales, index);
+        assertTrue(apps > 0);
+
+        RUNNER.run(jarName + ".allLocales", apps, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() throws Exception {
+                parseApps(allLocales, index);
+            }
+        });
+        RUNNER.run(jarName + ".prunedLocales", apps, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() throws Exception {
+                parseApps(prunedLocales, index);
+            }
+        });
+    }
+
+    private static ObjectMapper getObjectMapper(LocaleChain localeChain) {
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(REPO_ID);
+        mapper.setInjectableValues(new InjectableValues.Std()
+                .addValue("repoId", REPO_ID)
+                .addValue(LocaleChain.INJECT_ID, localeChain));
+        return mapper;
+    }
+
+    private static byte[] readIndex(String jarName) throws IOException {
+        File jar = TestUtils.copyResourceToTempFile(jarName);
+        JarFile jarFile = new JarFile(jar);
+        try {
+            return IOUtils.toByteArray(jarFile.getInputStream(jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME)));
+        } finally {
+            jarFile.close();
+            jar.delete();
+        }
+    }
+
+    /**
+     * Stream the {@code apps} array one {@link App} at a time, like the real import does.
+     *
+     * @return the number of apps
+     */
+    private static int parseApps(ObjectMapper mapper, byte[] index) throws IOException {
+        JsonParser parser = mapper.getFactory().createParser(index);
+        try {
+            parser.nextToken();
+            while (!"apps".equals(parser.nextFieldName())) {
+                parser.nextToken();
+                parser.skipChildren();
+            }
+            parser.nextToken();
+            int apps = 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                mapper.readValue(parser, App.class);
+                apps++;
+            }
+            return apps;
+        } finally {
+            parser.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.fdroid.fdroid.benchmark;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoPersister;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * How long {@link RepoPersister} takes to write a whole parsed index to the
+ * temporary tables and then commit it, replacing what was there before.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class RepoPersisterBenchmark extends FDroidProviderTest {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("RepoPersister");
+
+    private Repo repo;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+    }
+
+    @Test
+    public void persistMediumRepo() throws Exception {
+        persist("mediumRepo.xml");
+    }
+
+    @Test
+    public void persistLargeRepo() throws Exception {
+        persist("largeRepo.xml");
+    }
+
+    private void persist(String resourceName) throws Exception {
+        final RepoDetails details = IndexData.parse(IndexData.readResource(resourceName));
+        final Map<String, List<Apk>> apks = IndexData.groupApks(details, repo.getId());
+
+        IndexData.persist(context, repo, details, apks);
+        assertEquals(details.apps.size(), AppProvider.Helper.all(context.getContentResolver()).size());
+
+        RUNNER.run(resourceName, details.apps.size() + details.apks.size(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() throws Exception {
+                IndexData.persist(context, repo, details, apks);
+            }
+        });
+    }
+}
@@ -0,0 +1,59 @@
+package org.fdroid.fdroid.benchmark;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.data.RepoXMLHandler;
+import org.fdroid.fdroid.data.RepoXMLPullParser;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * How long {@link RepoXMLHandler} takes to parse {@code index.xml} files of
+ * different sizes, from memory, driven by SAX and by {@link RepoXMLPullParser}.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class RepoXMLHandlerBenchmark {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("RepoXMLHandler");
+
+    @Test
+    public void parseSmallRepo() throws Exception {
+        parse("smallRepo.xml", 12);
+    }
+
+    @Test
+    public void parseMediumRepo() throws Exception {
+        parse("mediumRepo.xml", 15);
+    }
+
+    @Test
+    public void parseLargeRepo() throws Exception {
+        parse("largeRepo.xml", 1211);
+    }
+
+    private void parse(String resourceName, int expectedApps) throws Exception {
+        final byte[] indexXml = IndexData.readResource(resourceName);
+        RepoDetails details = IndexData.parse(indexXml);
+        assertEquals(expectedApps, details.apps.size());
+
+        assertEquals(expectedApps, IndexData.parseWithPullParser(indexXml).apps.size());
+
+        RUNNER.run(resourceName + ".sax", expectedApps, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                IndexData.parse(indexXml);
+            }
+        });
+        RUNNER.run(resourceName + ".pull", expectedApps, new BenchmarkRunner.Benchmark() {
+            @Override
+            public void run() {
+                IndexData.parseWithPullParser(indexXml);
+            }
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package org.fdroid.fdroid.benchmark;
+
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.TempTableWriters;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.FileInputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * How long it takes to fill the temp tables with a whole index, one
+ * {@code ContentProviderOperation} per row as {@code RepoPersister} used to,
+ * compared with {@code TempTableBulkWriter}.  That both write the same rows
+ * is checked by {@code TempTableBulkWriterTest}.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class TempTableBulkWriterBenchmark extends FDroidProviderTest {
+
+    private static final BenchmarkRunner RUNNER = new BenchmarkRunner("TempTableBulkWriter");
+
+    private Repo repo;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+    }
+
+    @Test
+    public void guardianProjectIndex() throws Exception {
+        compareWriters("guardianProjectIndex", new TempTableWriters(context, repo.getId(),
+                new FileInputStream(TestUtils.copyResourceToTempFile("guardianproject_index-v1.json"))));
+    }
+
+    @Test
+    public void fdroidIndex() throws Exception {
+        JarFile jarFile = new JarFile(TestUtils.copyResourceToTempFile("index-v1.fdroid.2017-07-07.jar"), true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+        TempTableWriters writers = new TempTableWriters(context, repo.getId(), jarFile.getInputStream(indexEntry));
+        jarFile.close();
+        compareWriters("fdroidIndex", writers);
+    }
+
+    private void compareWriters(String name, final TempTableWriters writers) throws Exception {
+        RUNNER.run(name + ".contentProviderOperations", writers.getRows(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void setUp() {
+                writers.initTempTables();
+            }
+
+            @Override
+            public void run() throws Exception {
+                writers.writeWithContentProviderOperations();
+            }
+        });
+        RUNNER.run(name + ".bulkWriter", writers.getRows(), new BenchmarkRunner.Benchmark() {
+            @Override
+            public void setUp() {
+                writers.initTempTables();
+            }
+
+            @Override
+            public void run() {
+                writers.writeWithBulkWriter();
+            }
+        });
+    }
+}
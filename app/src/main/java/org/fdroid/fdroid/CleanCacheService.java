@@ -13,7 +13,7 @@ import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.JobIntentService;
 import org.apache.commons.io.FileUtils;
-import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheManager;
 
 import java.io.File;
 import java.util.concurrent.TimeUnit;
@@ -88,11 +88,14 @@ public class CleanCacheService extends JobIntentService {
     /**
      * All downloaded APKs will be cached for a certain amount of time, which is
      * specified by the user in the "Keep Cache Time" preference.  This removes
-     * any APK in the cache that is older than that preference specifies.
+     * any APK in the cache that is older than that preference specifies, except
+     * those still being downloaded or installed, and then trims the cache to its
+     * size budget.
+     *
+     * @see ApkCacheManager
      */
     private void deleteExpiredApksFromCache() {
-        File cacheDir = ApkCache.getApkCacheDir(getBaseContext());
-        clearOldFiles(cacheDir, Preferences.get().getKeepCacheTime());
+        ApkCacheManager.trim(getBaseContext(), Preferences.get().getKeepCacheTime());
     }
 
     /**
@@ -9,22 +9,46 @@ import org.fdroid.fdroid.compat.SupportedArchitectures;
 import org.fdroid.fdroid.data.Apk;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Call getIncompatibleReasons(apk) on an instance of this class to
 // find reasons why an apk may be incompatible with the user's device.
+//
+// Whether an apk is compatible only depends on its minSdkVersion, maxSdkVersion,
+// features and nativecode, and a whole repo only has a handful of different
+// combinations of those.  So the reasons are worked out once per combination,
+// then shared by every apk with the same requirements, see
+// getIncompatibleReasonsArray(apk).  When only the answer is needed, use
+// isCompatible(apk), which never formats any reasons.
 public class CompatibilityChecker {
 
     public static final String TAG = "Compatibility";
 
+    /**
+     * Normally there are only a few dozen combinations, this is just so that a
+     * strange repo cannot make the cache grow without limit.
+     */
+    private static final int MAX_CACHED_REQUIREMENTS = 1024;
+
+    private static final String[] NO_REASONS = new String[0];
+
     private final Context context;
     private final Set<String> features;
     private final String[] cpuAbis;
     private final boolean forceTouchApps;
 
+    /**
+     * The reasons for each combination of requirements seen so far, empty if
+     * they are compatible.  Filled from whichever threads
+     * {@link org.fdroid.fdroid.data.RepoPersister} checks the apks on.
+     */
+    private final ConcurrentHashMap<Requirements, String[]> reasonsCache = new ConcurrentHashMap<>();
+
     public CompatibilityChecker(Context ctx) {
 
         context = ctx.getApplicationContext();
@@ -61,16 +85,73 @@ public class CompatibilityChecker {
         return false;
     }
 
+    /**
+     * @return a new list of the reasons why {@code apk} is not compatible, empty if it is
+     */
     public List<String> getIncompatibleReasons(final Apk apk) {
+        return new ArrayList<>(Arrays.asList(getIncompatibleReasonsArray(apk)));
+    }
+
+    /**
+     * The same as {@link #getIncompatibleReasons(Apk)}, except that the array is
+     * shared with every other apk with the same requirements, so it must not
+     * be modified.
+     *
+     * @return the reasons why {@code apk} is not compatible, empty if it is
+     */
+    public String[] getIncompatibleReasonsArray(final Apk apk) {
+        Requirements requirements = new Requirements(apk);
+        String[] reasons = reasonsCache.get(requirements);
+        if (reasons != null) {
+            return reasons;
+        }
+
+        List<String> reasonsList = new ArrayList<>();
+        check(apk, reasonsList);
+        reasons = reasonsList.isEmpty() ? NO_REASONS : reasonsList.toArray(new String[reasonsList.size()]);
+        if (reasonsCache.size() < MAX_CACHED_REQUIREMENTS) {
+            String[] existing = reasonsCache.putIfAbsent(requirements, reasons);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return reasons;
+    }
+
+    /**
+     * Whether {@code apk} can be installed on this device, without formatting
+     * any of the reasons why not.
+     */
+    public boolean isCompatible(final Apk apk) {
+        String[] reasons = reasonsCache.get(new Requirements(apk));
+        if (reasons != null) {
+            return reasons.length == 0;
+        }
+        return check(apk, null);
+    }
 
-        List<String> incompatibleReasons = new ArrayList<>();
+    /**
+     * @param reasons where to add the reasons why {@code apk} is not compatible, or
+     *                {@code null} to stop at the first one
+     * @return whether {@code apk} is compatible
+     */
+    private boolean check(final Apk apk, @Nullable List<String> reasons) {
+        boolean compatible = true;
 
         if (Build.VERSION.SDK_INT < apk.minSdkVersion) {
-            incompatibleReasons.add(context.getString(
+            if (reasons == null) {
+                return false;
+            }
+            compatible = false;
+            reasons.add(context.getString(
                     R.string.minsdk_or_later,
                     Utils.getAndroidVersionName(apk.minSdkVersion)));
         } else if (Build.VERSION.SDK_INT > apk.maxSdkVersion) {
-            incompatibleReasons.add(context.getString(
+            if (reasons == null) {
+                return false;
+            }
+            compatible = false;
+            reasons.add(context.getString(
                     R.string.up_to_maxsdk,
                     Utils.getAndroidVersionName(apk.maxSdkVersion)));
         }
@@ -81,14 +162,70 @@ public class CompatibilityChecker {
                     continue;
                 }
                 if (!features.contains(feat)) {
-                    Collections.addAll(incompatibleReasons, feat.split(","));
+                    String[] missing = feat.split(",");
+                    if (missing.length == 0) {
+                        continue;
+                    }
+                    if (reasons == null) {
+                        return false;
+                    }
+                    compatible = false;
+                    Collections.addAll(reasons, missing);
                 }
             }
         }
-        if (!compatibleApi(apk.nativecode)) {
-            Collections.addAll(incompatibleReasons, apk.nativecode);
+        if (!compatibleApi(apk.nativecode) && apk.nativecode.length > 0) {
+            if (reasons == null) {
+                return false;
+            }
+            compatible = false;
+            Collections.addAll(reasons, apk.nativecode);
+        }
+
+        return compatible;
+    }
+
+    /**
+     * Everything about an {@link Apk} that {@link #check(Apk, List)} looks at.
+     * The arrays are those of the first apk seen with these requirements, and
+     * are never modified.
+     */
+    private static final class Requirements {
+        private final int minSdkVersion;
+        private final int maxSdkVersion;
+        private final String[] features;
+        private final String[] nativecode;
+        private final int hashCode;
+
+        Requirements(Apk apk) {
+            minSdkVersion = apk.minSdkVersion;
+            maxSdkVersion = apk.maxSdkVersion;
+            features = apk.features;
+            nativecode = apk.nativecode;
+            int hash = 31 * minSdkVersion + maxSdkVersion;
+            hash = 31 * hash + Arrays.hashCode(features);
+            hashCode = 31 * hash + Arrays.hashCode(nativecode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Requirements)) {
+                return false;
+            }
+            Requirements other = (Requirements) o;
+            return hashCode == other.hashCode
+                    && minSdkVersion == other.minSdkVersion
+                    && maxSdkVersion == other.maxSdkVersion
+                    && Arrays.equals(features, other.features)
+                    && Arrays.equals(nativecode, other.nativecode);
         }
 
-        return incompatibleReasons;
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
     }
 }
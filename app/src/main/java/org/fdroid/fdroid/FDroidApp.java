@@ -75,6 +75,7 @@ import org.fdroid.fdroid.net.ConnectivityMonitorService;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.HttpDownloader;
 import org.fdroid.fdroid.net.ImageLoaderForUIL;
+import org.fdroid.fdroid.net.MirrorChooser;
 import org.fdroid.fdroid.nearby.WifiStateChangeService;
 import org.fdroid.fdroid.panic.HidingManager;
 
@@ -127,8 +128,16 @@ public class FDroidApp extends Application {
     public static final SubnetUtils.SubnetInfo UNSET_SUBNET_INFO = new SubnetUtils("0.0.0.0/32").getInfo();
 
     private static volatile LongSparseArray<String> lastWorkingMirrorArray = new LongSparseArray<>(1);
-    private static volatile int numTries = Integer.MAX_VALUE;
-    private static volatile int timeout = Downloader.DEFAULT_TIMEOUT;
+    private static volatile LongSparseArray<MirrorRetries> mirrorRetriesArray = new LongSparseArray<>(1);
+
+    /**
+     * How far {@link #getNewMirrorOnError(String, Repo)} has got for one repo.
+     * Repos are updated in parallel, so each one needs its own.
+     */
+    private static final class MirrorRetries {
+        private int numTries = Integer.MAX_VALUE;
+        private int timeout = Downloader.DEFAULT_TIMEOUT;
+    }
 
     // Leaving the fully qualified class name here to help clarify the difference between spongy/bouncy castle.
     private static final org.bouncycastle.jce.provider.BouncyCastleProvider BOUNCYCASTLE_PROVIDER;
@@ -259,29 +268,31 @@ public class FDroidApp extends Application {
      * so it can be used in the string replacement operating when converting a
      * download URL to point to a different mirror.  Download URLs can be
      * anything from {@code index-v1.jar} to APKs to icons to screenshots.
+     * Like the retry counter and timeout, that is kept for each repo.
      *
-     * @see #resetMirrorVars()
-     * @see #getTimeout()
-     * @see Repo#getRandomMirror(String)
+     * @see #resetMirrorVars(long)
+     * @see #getTimeout(long)
+     * @see MirrorChooser#chooseMirror(Repo, String)
      */
-    public static String getNewMirrorOnError(@Nullable String urlString, Repo repo2) throws IOException {
+    public static synchronized String getNewMirrorOnError(@Nullable String urlString, Repo repo2) throws IOException {
         if (repo2.hasMirrors()) {
-            if (numTries <= 0) {
-                if (timeout == Downloader.DEFAULT_TIMEOUT) {
-                    timeout = Downloader.SECOND_TIMEOUT;
-                    numTries = Integer.MAX_VALUE;
-                } else if (timeout == Downloader.SECOND_TIMEOUT) {
-                    timeout = Downloader.LONGEST_TIMEOUT;
-                    numTries = Integer.MAX_VALUE;
+            MirrorRetries retries = getMirrorRetries(repo2.getId());
+            if (retries.numTries <= 0) {
+                if (retries.timeout == Downloader.DEFAULT_TIMEOUT) {
+                    retries.timeout = Downloader.SECOND_TIMEOUT;
+                    retries.numTries = Integer.MAX_VALUE;
+                } else if (retries.timeout == Downloader.SECOND_TIMEOUT) {
+                    retries.timeout = Downloader.LONGEST_TIMEOUT;
+                    retries.numTries = Integer.MAX_VALUE;
                 } else {
                     Utils.debugLog(TAG, "Mirrors: Giving up");
                     throw new IOException("Ran out of mirrors");
                 }
             }
-            if (numTries == Integer.MAX_VALUE) {
-                numTries = repo2.getMirrorCount();
+            if (retries.numTries == Integer.MAX_VALUE) {
+                retries.numTries = repo2.getMirrorCount();
             }
-            numTries--;
+            retries.numTries--;
             return switchUrlToNewMirror(urlString, repo2);
         } else {
             throw new IOException("No mirrors available");
@@ -289,34 +300,49 @@ public class FDroidApp extends Application {
     }
 
     /**
-     * Switch the URL in {@code urlString} to come from a random mirror.
+     * Switch the URL in {@code urlString} to come from another mirror, picked
+     * by how well the mirrors have performed so far.
+     *
+     * @see MirrorChooser
      */
-    public static String switchUrlToNewMirror(@Nullable String urlString, Repo repo2) {
+    public static synchronized String switchUrlToNewMirror(@Nullable String urlString, Repo repo2) {
         String lastWorkingMirror = lastWorkingMirrorArray.get(repo2.getId());
         if (lastWorkingMirror == null) {
             lastWorkingMirror = repo2.address;
         }
-        String mirror = repo2.getRandomMirror(lastWorkingMirror);
+        String mirror = MirrorChooser.chooseMirror(repo2, lastWorkingMirror);
         lastWorkingMirrorArray.put(repo2.getId(), mirror);
         return urlString.replace(lastWorkingMirror, mirror);
     }
 
-    public static int getTimeout() {
-        return timeout;
+    private static MirrorRetries getMirrorRetries(long repoId) {
+        MirrorRetries retries = mirrorRetriesArray.get(repoId);
+        if (retries == null) {
+            retries = new MirrorRetries();
+            mirrorRetriesArray.put(repoId, retries);
+        }
+        return retries;
+    }
+
+    /**
+     * @return the timeout to use for the next download from the repo with
+     * {@code repoId}, as set by {@link #getNewMirrorOnError(String, Repo)}
+     */
+    public static synchronized int getTimeout(long repoId) {
+        MirrorRetries retries = mirrorRetriesArray.get(repoId);
+        return retries == null ? Downloader.DEFAULT_TIMEOUT : retries.timeout;
     }
 
     /**
      * Reset the retry counter and timeout to defaults, and set the last
-     * working mirror to the canonical URL.
+     * working mirror to the canonical URL, for the repo with {@code repoId}.
+     * Downloads from other repos that are in progress are left alone.
      *
      * @see #getNewMirrorOnError(String, Repo)
      */
-    public static void resetMirrorVars() {
-        for (int i = 0; i < lastWorkingMirrorArray.size(); i++) {
-            lastWorkingMirrorArray.removeAt(i);
-        }
-        numTries = Integer.MAX_VALUE;
-        timeout = Downloader.DEFAULT_TIMEOUT;
+    public static synchronized void resetMirrorVars(long repoId) {
+        lastWorkingMirrorArray.remove(repoId);
+        mirrorRetriesArray.remove(repoId);
     }
 
     @Override
@@ -420,6 +446,7 @@ public class FDroidApp extends Application {
         });
 
         CleanCacheService.schedule(this);
+        MirrorChooser.init(this);
 
         notificationHelper = new NotificationHelper(getApplicationContext());
 
@@ -505,7 +532,8 @@ public class FDroidApp extends Application {
         // find and process provisions if any.
         Provisioner.scanAndProcess(getApplicationContext());
 
-        // if the underlying OS version has changed, then fully rebuild the database
+        // if the underlying OS version has changed, then fully rebuild the database,
+        // from the retained indexes where possible, see UpdateService
         SharedPreferences atStartTime = getAtStartTimeSharedPreferences();
         if (Build.VERSION.SDK_INT != atStartTime.getInt("build-version", Build.VERSION.SDK_INT)) {
             UpdateService.forceUpdateRepo(this);
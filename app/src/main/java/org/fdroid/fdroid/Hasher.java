@@ -20,9 +20,13 @@
 
 package org.fdroid.fdroid;
 
+import android.support.annotation.Nullable;
+import org.apache.commons.io.FileUtils;
+
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -32,6 +36,8 @@ import java.util.Locale;
 
 public class Hasher {
 
+    private static final String TAG = "Hasher";
+
     private MessageDigest digest;
     private File file;
     private byte[] array;
@@ -112,6 +118,55 @@ public class Hasher {
         }
     }
 
+    /**
+     * @return the file next to {@code file} which records its hash, as calculated
+     * while it was being written, so it does not need to be read again to check it
+     */
+    public static File getSidecarFile(File file, String hashType) {
+        return new File(file.getPath() + "." + hashType.replace("-", "").toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Record the {@code hash} of {@code file} in its {@link #getSidecarFile(File, String) sidecar},
+     * together with its current size and modification time.
+     */
+    public static void writeSidecar(File file, String hashType, String hash) {
+        String contents = hash.toLowerCase(Locale.ENGLISH) + " " + file.length() + " " + file.lastModified();
+        try {
+            FileUtils.writeStringToFile(getSidecarFile(file, hashType), contents);
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not write the " + hashType + " of " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the hash recorded in the {@link #getSidecarFile(File, String) sidecar} of
+     * {@code file}, or {@code null} if there is none, or if {@code file} has changed
+     * size or modification time since it was written
+     */
+    @Nullable
+    public static String readSidecar(File file, String hashType) {
+        File sidecar = getSidecarFile(file, hashType);
+        if (!sidecar.isFile() || !file.isFile()) {
+            return null;
+        }
+        try {
+            String[] fields = FileUtils.readFileToString(sidecar).trim().split(" ");
+            if (fields.length == 3
+                    && Long.parseLong(fields[1]) == file.length()
+                    && Long.parseLong(fields[2]) == file.lastModified()) {
+                return fields[0];
+            }
+        } catch (IOException | NumberFormatException e) {
+            Utils.debugLog(TAG, "Could not read the " + hashType + " of " + file + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    public static void deleteSidecar(File file, String hashType) {
+        FileUtils.deleteQuietly(getSidecarFile(file, hashType));
+    }
+
     public static String hex(Certificate cert) {
         byte[] encoded;
         try {
@@ -122,7 +177,7 @@ public class Hasher {
         return hex(encoded);
     }
 
-    private static String hex(byte[] sig) {
+    public static String hex(byte[] sig) {
         byte[] csig = new byte[sig.length * 2];
         for (int j = 0; j < sig.length; j++) {
             byte v = sig[j];
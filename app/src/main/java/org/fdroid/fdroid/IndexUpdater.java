@@ -39,6 +39,7 @@ import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.RepoPushRequest;
 import org.fdroid.fdroid.data.RepoXMLHandler;
+import org.fdroid.fdroid.data.RepoXMLPullParser;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 import org.fdroid.fdroid.installer.InstallManagerService;
 import org.fdroid.fdroid.installer.InstallerService;
@@ -48,6 +49,7 @@ import org.fdroid.fdroid.net.TreeUriDownloader;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xmlpull.v1.XmlPullParserException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -88,6 +90,14 @@ public class IndexUpdater {
     public static final String SIGNED_FILE_NAME = "index.jar";
     public static final String DATA_FILE_NAME = "index.xml";
 
+    /**
+     * Every updater writes into the same temporary tables in
+     * {@link org.fdroid.fdroid.data.TempAppProvider} while it processes an index,
+     * so several indexes can be downloaded at the same time, but only one can be
+     * processed and committed to the database at a time.
+     */
+    static final Object PROCESS_LOCK = new Object();
+
     final String indexUrl;
 
     @NonNull
@@ -166,7 +176,14 @@ public class IndexUpdater {
             // Don't worry about checking the status code for 200. If it was a
             // successful download, then we will have a file ready to use:
             cacheTag = downloader.getCacheTag();
-            processDownloadedFile(downloader.outputFile);
+            synchronized (PROCESS_LOCK) {
+                try {
+                    processDownloadedFile(downloader.outputFile);
+                } finally {
+                    // does nothing if it was committed
+                    persister.abandon();
+                }
+            }
             processRepoPushRequests(repoPushRequestList);
         }
         return true;
@@ -219,13 +236,23 @@ public class IndexUpdater {
                     processIndexListener, (int) indexEntry.getSize());
 
             // Process the index...
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            final SAXParser parser = factory.newSAXParser();
-            final XMLReader reader = parser.getXMLReader();
-            final RepoXMLHandler repoXMLHandler = new RepoXMLHandler(repo, createIndexReceiver());
-            reader.setContentHandler(repoXMLHandler);
-            reader.parse(new InputSource(indexInputStream));
+            Tracing.Span parseSpan = Tracing.begin("parse", IndexUpdater.DATA_FILE_NAME)
+                    .setBytes(indexEntry.getSize());
+            try {
+                if (Preferences.get().isPullParserIndexEnabled()) {
+                    new RepoXMLPullParser(repo, createIndexReceiver()).parse(indexInputStream);
+                } else {
+                    SAXParserFactory factory = SAXParserFactory.newInstance();
+                    factory.setNamespaceAware(true);
+                    final SAXParser parser = factory.newSAXParser();
+                    final XMLReader reader = parser.getXMLReader();
+                    final RepoXMLHandler repoXMLHandler = new RepoXMLHandler(repo, createIndexReceiver());
+                    reader.setContentHandler(repoXMLHandler);
+                    reader.parse(new InputSource(indexInputStream));
+                }
+            } finally {
+                parseSpan.end();
+            }
 
             long timestamp = repoDetailsToSave.getAsLong(RepoTable.Cols.TIMESTAMP);
             if (timestamp < repo.timestamp) {
@@ -233,13 +260,18 @@ public class IndexUpdater {
                         + timestamp + " < " + repo.timestamp);
             }
 
-            signingCertFromJar = getSigningCertFromJar(indexEntry);
+            Tracing.Span verifySpan = Tracing.begin("verifyJar", repo.address);
+            try {
+                signingCertFromJar = getSigningCertFromJar(indexEntry);
 
-            // JarEntry can only read certificates after the file represented by that JarEntry
-            // has been read completely, so verification cannot run until now...
-            assertSigningCertFromXmlCorrect();
+                // JarEntry can only read certificates after the file represented by that JarEntry
+                // has been read completely, so verification cannot run until now...
+                assertSigningCertFromXmlCorrect();
+            } finally {
+                verifySpan.end();
+            }
             commitToDb();
-        } catch (SAXException | ParserConfigurationException | IOException e) {
+        } catch (SAXException | XmlPullParserException | ParserConfigurationException | IOException e) {
             throw new UpdateException("Error parsing index", e);
         } finally {
             FDroidApp.enableBouncyCastleOnLollipop();
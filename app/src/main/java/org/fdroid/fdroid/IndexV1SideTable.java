@@ -0,0 +1,146 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A file-backed side table for holding one section of {@code index-v1.json}
+ * while the other section is being streamed.  The {@code apps} array and the
+ * {@code packages} map are separate sections of the index, so joining an
+ * {@link org.fdroid.fdroid.data.App} with its {@link org.fdroid.fdroid.data.Apk}s
+ * requires holding on to whichever section comes first.  Instead of
+ * deserializing that whole section into the heap, each entry is copied
+ * verbatim as JSON into a temp file, and only the package name plus the file
+ * offset are kept in memory.  Entries are then read back one at a time as they
+ * are joined.
+ * <p>
+ * The file is created in {@link Context#getCacheDir()} with an {@code index-}
+ * prefix, so {@link CleanCacheService} will remove it if F-Droid is killed
+ * before {@link #close()} is called.
+ */
+public class IndexV1SideTable implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final JsonFactory jsonFactory;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+
+    /**
+     * Maps the package name to {@code {offset, length}} in {@link #file}, in
+     * the order that the entries were written.
+     */
+    private final LinkedHashMap<String, long[]> entries = new LinkedHashMap<>();
+
+    public IndexV1SideTable(Context context, JsonFactory jsonFactory) throws IOException {
+        this.jsonFactory = jsonFactory;
+        file = File.createTempFile("index-v1-side-", ".json", context.getCacheDir());
+        randomAccessFile = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Copy the JSON structure that {@code parser} is currently pointing at into
+     * the side table, keyed by {@code packageName}.  If {@code packageName} is
+     * {@code null}, then it is read from the top level {@code packageName} field
+     * of the copied object, which is how entries in the {@code apps} array are
+     * keyed.
+     *
+     * @return the package name the entry was stored under, or {@code null} if
+     * none could be found, in which case nothing is stored
+     */
+    @Nullable
+    public String put(@Nullable String packageName, JsonParser parser) throws IOException {
+        buffer.reset();
+        JsonGenerator generator = jsonFactory.createGenerator(buffer);
+        generator.copyCurrentStructure(parser);
+        generator.close();
+        byte[] bytes = buffer.toByteArray();
+
+        if (packageName == null) {
+            packageName = readPackageName(bytes);
+            if (packageName == null) {
+                return null;
+            }
+        }
+
+        long offset = randomAccessFile.length();
+        randomAccessFile.seek(offset);
+        randomAccessFile.write(bytes);
+        entries.put(packageName, new long[]{offset, bytes.length});
+        return packageName;
+    }
+
+    /**
+     * Remove the entry for {@code packageName} from the side table.
+     *
+     * @return the raw JSON of the entry, or {@code null} if there was none
+     */
+    @Nullable
+    public byte[] remove(String packageName) throws IOException {
+        long[] entry = entries.remove(packageName);
+        if (entry == null) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) entry[1]];
+        randomAccessFile.seek(entry[0]);
+        randomAccessFile.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the package names of all entries that have not been removed yet,
+     * in the order that they were added
+     */
+    public List<String> getPackageNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        Utils.closeQuietly(randomAccessFile);
+        FileUtils.deleteQuietly(file);
+        entries.clear();
+    }
+
+    /**
+     * Scan the top level of a JSON object for its {@code packageName} field
+     * without deserializing the rest of it.
+     */
+    @Nullable
+    private String readPackageName(byte[] bytes) throws IOException {
+        JsonParser parser = jsonFactory.createParser(bytes);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("packageName".equals(fieldName) && value == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } finally {
+            parser.close();
+        }
+    }
+}
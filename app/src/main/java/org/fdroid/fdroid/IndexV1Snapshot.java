@@ -0,0 +1,308 @@
+package org.fdroid.fdroid;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads a pre-built SQLite snapshot of {@code index-v1.json}, which a repo can
+ * offer next to it as {@link IndexV1Updater#SNAPSHOT_FILE_NAME}.  Reading rows
+ * out of a database is much cheaper than parsing the same data from JSON, which
+ * matters most for the first update of a big repo.
+ * <p>
+ * The snapshot has {@code PRAGMA user_version} set to {@link #VERSION}, and
+ * three tables:
+ * <ul>
+ * <li>{@code repo}, with a single row holding the fields of the {@code repo}
+ * section of {@code index-v1.json}, with {@code mirrors} comma-separated</li>
+ * <li>{@code app}, with one row per entry of {@code apps}</li>
+ * <li>{@code apk}, with one row per entry of {@code packages}, in the same
+ * order as in {@code index-v1.json}</li>
+ * </ul>
+ * The columns of {@code app} and {@code apk} are named after the fields in
+ * {@code index-v1.json}, and hold the same values, with lists comma-separated.
+ * Only the fields that are listed here are read, just like the JSON only sets
+ * the fields that Jackson is allowed to see.  Some fields have to be worked out
+ * on the device, like the locale to use, or the permissions for this version
+ * of Android.  Those are kept as a JSON object in the {@code json} column, e.g.
+ * {@code {"description": ..., "localized": ...}}, and go through exactly the
+ * same Jackson setters as when parsing {@code index-v1.json}.
+ * <p>
+ * The apps are then handed out one at a time along with their apks, so that
+ * they can be saved by {@link org.fdroid.fdroid.data.RepoPersister} like any
+ * other index, which sorts out compatibility, IDs, categories and anti-features.
+ */
+public class IndexV1Snapshot implements Closeable {
+
+    public static final int VERSION = 1;
+
+    public static final String REPO_TABLE = "repo";
+    public static final String APP_TABLE = "app";
+    public static final String APK_TABLE = "apk";
+
+    /**
+     * These are aliased to names that {@link App#App(Cursor)} and
+     * {@link Apk#Apk(Cursor)} do not know about, and are read here instead.
+     */
+    private static final String ADDED = "snapshot_added";
+    private static final String LAST_UPDATED = "snapshot_lastUpdated";
+    private static final String CATEGORIES = "snapshot_categories";
+    private static final String JSON = "snapshot_json";
+
+    private static final String[] APP_PROJECTION = {
+            column("packageName", AppMetadataTable.Cols.Package.PACKAGE_NAME),
+            column("name", AppMetadataTable.Cols.NAME),
+            column("summary", AppMetadataTable.Cols.SUMMARY),
+            column("icon", AppMetadataTable.Cols.ICON),
+            column("iconUrl", AppMetadataTable.Cols.ICON_URL),
+            column("whatsNew", AppMetadataTable.Cols.WHATSNEW),
+            column("license", AppMetadataTable.Cols.LICENSE),
+            column("authorName", AppMetadataTable.Cols.AUTHOR_NAME),
+            column("authorEmail", AppMetadataTable.Cols.AUTHOR_EMAIL),
+            column("webSite", AppMetadataTable.Cols.WEBSITE),
+            column("issueTracker", AppMetadataTable.Cols.ISSUE_TRACKER),
+            column("sourceCode", AppMetadataTable.Cols.SOURCE_CODE),
+            column("translation", AppMetadataTable.Cols.TRANSLATION),
+            column("video", AppMetadataTable.Cols.VIDEO),
+            column("changelog", AppMetadataTable.Cols.CHANGELOG),
+            column("donate", AppMetadataTable.Cols.DONATE),
+            column("bitcoin", AppMetadataTable.Cols.BITCOIN),
+            column("litecoin", AppMetadataTable.Cols.LITECOIN),
+            column("flattrID", AppMetadataTable.Cols.FLATTR_ID),
+            column("liberapayID", AppMetadataTable.Cols.LIBERAPAY_ID),
+            column("suggestedVersionName", AppMetadataTable.Cols.SUGGESTED_VERSION_NAME),
+            column("ifnull(suggestedVersionCode, " + Integer.MIN_VALUE + ")",
+                    AppMetadataTable.Cols.SUGGESTED_VERSION_CODE),
+            column("antiFeatures", AppMetadataTable.Cols.ANTI_FEATURES),
+            column("requirements", AppMetadataTable.Cols.REQUIREMENTS),
+            column("featureGraphic", AppMetadataTable.Cols.FEATURE_GRAPHIC),
+            column("promoGraphic", AppMetadataTable.Cols.PROMO_GRAPHIC),
+            column("tvBanner", AppMetadataTable.Cols.TV_BANNER),
+            column("phoneScreenshots", AppMetadataTable.Cols.PHONE_SCREENSHOTS),
+            column("sevenInchScreenshots", AppMetadataTable.Cols.SEVEN_INCH_SCREENSHOTS),
+            column("tenInchScreenshots", AppMetadataTable.Cols.TEN_INCH_SCREENSHOTS),
+            column("tvScreenshots", AppMetadataTable.Cols.TV_SCREENSHOTS),
+            column("wearScreenshots", AppMetadataTable.Cols.WEAR_SCREENSHOTS),
+            column("added", ADDED),
+            column("lastUpdated", LAST_UPDATED),
+            column("categories", CATEGORIES),
+            column("json", JSON),
+    };
+
+    private static final String[] APK_PROJECTION = {
+            column("packageName", ApkTable.Cols.Package.PACKAGE_NAME),
+            column("versionName", ApkTable.Cols.VERSION_NAME),
+            column("versionCode", ApkTable.Cols.VERSION_CODE),
+            column("apkName", ApkTable.Cols.NAME),
+            column("size", ApkTable.Cols.SIZE),
+            column("hash", ApkTable.Cols.HASH),
+            column("hashType", ApkTable.Cols.HASH_TYPE),
+            column("sig", ApkTable.Cols.SIGNATURE),
+            column("srcname", ApkTable.Cols.SOURCE_NAME),
+            column("minSdkVersion", ApkTable.Cols.MIN_SDK_VERSION),
+            column("targetSdkVersion", ApkTable.Cols.TARGET_SDK_VERSION),
+            column("ifnull(maxSdkVersion, " + Apk.SDK_VERSION_MAX_VALUE + ")", ApkTable.Cols.MAX_SDK_VERSION),
+            column("obbMainFile", ApkTable.Cols.OBB_MAIN_FILE),
+            column("obbMainFileSha256", ApkTable.Cols.OBB_MAIN_FILE_SHA256),
+            column("obbPatchFile", ApkTable.Cols.OBB_PATCH_FILE),
+            column("obbPatchFileSha256", ApkTable.Cols.OBB_PATCH_FILE_SHA256),
+            column("features", ApkTable.Cols.FEATURES),
+            column("nativecode", ApkTable.Cols.NATIVE_CODE),
+            column("antiFeatures", ApkTable.Cols.AntiFeatures.ANTI_FEATURES),
+            column("added", ADDED),
+            column("json", JSON),
+    };
+
+    private final SQLiteDatabase db;
+    private final ObjectMapper mapper;
+    private final long repoId;
+
+    private Cursor appCursor;
+    private Cursor apkCursor;
+    private App app;
+    private List<Apk> apks;
+
+    /**
+     * @param mapper set up by {@link IndexV1Updater#getObjectMapperInstance(long)}
+     *               for the repo the snapshot is from
+     * @throws IOException if the file is not a snapshot of a {@link #VERSION} this can read
+     */
+    public IndexV1Snapshot(File file, ObjectMapper mapper, long repoId) throws IOException {
+        this.mapper = mapper;
+        this.repoId = repoId;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        } catch (SQLiteException e) {
+            throw new IOException("Could not open snapshot: " + e.getMessage());
+        }
+        int version = db.getVersion();
+        if (version != VERSION) {
+            db.close();
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    private static String column(String expression, String alias) {
+        return expression + " AS " + alias;
+    }
+
+    /**
+     * @return the fields of the {@code repo} section, as they would be read from
+     * {@code index-v1.json}
+     */
+    public HashMap<String, Object> readRepo() throws IOException {
+        HashMap<String, Object> repoMap = new HashMap<>();
+        try {
+            Cursor cursor = db.query(REPO_TABLE, null, null, null, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    throw new IOException("Snapshot has no repo");
+                }
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (cursor.isNull(i)) {
+                        continue;
+                    }
+                    String key = cursor.getColumnName(i);
+                    switch (key) {
+                        case "timestamp":
+                            repoMap.put(key, cursor.getLong(i));
+                            break;
+                        case "version":
+                        case "maxage":
+                            repoMap.put(key, cursor.getInt(i));
+                            break;
+                        case "name":
+                        case "description":
+                        case "icon":
+                            repoMap.put(key, cursor.getString(i));
+                            break;
+                        case "mirrors":
+                            String[] mirrors = Utils.parseCommaSeparatedString(cursor.getString(i));
+                            if (mirrors != null) {
+                                repoMap.put(key, new ArrayList<>(Arrays.asList(mirrors)));
+                            }
+                            break;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Could not read repo from snapshot: " + e.getMessage());
+        }
+        if (!repoMap.containsKey("timestamp")) {
+            throw new IOException("Snapshot has no timestamp");
+        }
+        return repoMap;
+    }
+
+    public int getAppCount() {
+        return (int) DatabaseUtils.queryNumEntries(db, APP_TABLE);
+    }
+
+    /**
+     * Move on to the next app, which is then available from {@link #getApp()},
+     * along with its apks from {@link #getApks()}.  Both tables are read in
+     * order of package name, so this is a single pass over each of them.
+     *
+     * @return whether there was another app
+     */
+    public boolean moveToNext() throws IOException {
+        try {
+            if (appCursor == null) {
+                appCursor = db.query(APP_TABLE, APP_PROJECTION, null, null, null, null, "packageName");
+                apkCursor = db.query(APK_TABLE, APK_PROJECTION, null, null, null, null, "packageName, rowid");
+                apkCursor.moveToFirst();
+            }
+            if (!appCursor.moveToNext()) {
+                return false;
+            }
+            app = readApp(appCursor);
+
+            apks = new ArrayList<>();
+            int packageNameIndex = apkCursor.getColumnIndexOrThrow(ApkTable.Cols.Package.PACKAGE_NAME);
+            while (!apkCursor.isAfterLast()) {
+                String packageName = apkCursor.getString(packageNameIndex);
+                if (!Utils.isSafePackageName(packageName)) {
+                    throw new IOException("Snapshot includes unsafe packageName: '" + packageName + "'");
+                }
+                int compare = packageName.compareTo(app.packageName);
+                if (compare > 0) {
+                    break;
+                } else if (compare == 0) {
+                    apks.add(readApk(apkCursor));
+                }
+                apkCursor.moveToNext();
+            }
+            return true;
+        } catch (SQLiteException e) {
+            throw new IOException("Could not read apps from snapshot: " + e.getMessage());
+        }
+    }
+
+    public App getApp() {
+        return app;
+    }
+
+    public List<Apk> getApks() {
+        return apks;
+    }
+
+    private App readApp(Cursor cursor) throws IOException {
+        App app = new App(cursor);
+        app.repoId = repoId;
+        app.added = readDate(cursor, ADDED);
+        app.lastUpdated = readDate(cursor, LAST_UPDATED);
+        app.categories = Utils.parseCommaSeparatedString(cursor.getString(cursor.getColumnIndexOrThrow(CATEGORIES)));
+        readJson(cursor, app);
+        if (!Utils.isSafePackageName(app.packageName)) {
+            throw new IOException("Snapshot includes unsafe packageName: '" + app.packageName + "'");
+        }
+        return app;
+    }
+
+    private Apk readApk(Cursor cursor) throws IOException {
+        Apk apk = new Apk(cursor);
+        apk.repoId = repoId;
+        apk.added = readDate(cursor, ADDED);
+        readJson(cursor, apk);
+        return apk;
+    }
+
+    private static Date readDate(Cursor cursor, String column) {
+        int index = cursor.getColumnIndexOrThrow(column);
+        return cursor.isNull(index) ? null : new Date(cursor.getLong(index));
+    }
+
+    private void readJson(Cursor cursor, Object appOrApk) throws IOException {
+        String json = cursor.getString(cursor.getColumnIndexOrThrow(JSON));
+        if (json != null) {
+            mapper.readerForUpdating(appOrApk).readValue(json);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (appCursor != null) {
+            appCursor.close();
+            apkCursor.close();
+        }
+        db.close();
+    }
+}
@@ -32,13 +32,16 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.LocaleChain;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
@@ -46,14 +49,17 @@ import org.fdroid.fdroid.data.RepoPushRequest;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.HttpDownloader;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLProtocolException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.HttpRetryException;
 import java.net.NoRouteToHostException;
@@ -65,9 +71,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -85,6 +93,19 @@ import java.util.jar.JarFile;
  * This setup prevents the situation where future developers add variables to the
  * App/Apk classes, resulting in malicious servers being able to populate those
  * variables.
+ * <p>
+ * When the usual check says that {@link #SIGNED_FILE_NAME} has changed, this
+ * first tries to fetch a signed diff from {@link #DIFF_DIR_NAME}, named after
+ * the timestamp of the index that is currently in the database.  This contains
+ * only the apps which changed since then, so both the download and the database
+ * update are much smaller.  If there is no such diff, or it cannot be applied for
+ * any reason other than a bad signature, then this falls back to the whole index.
+ * <p>
+ * When the repo has no ETag yet, which is the case the first time, and after
+ * the index tables have been reset, this first tries
+ * {@link #SNAPSHOT_FILE_NAME}, a pre-built SQLite snapshot of the index read by
+ * {@link IndexV1Snapshot}.  If the repo does not offer one, this falls back to
+ * {@link #SIGNED_FILE_NAME} in the same way.
  */
 public class IndexV1Updater extends IndexUpdater {
     public static final String TAG = "IndexV1Updater";
@@ -92,6 +113,43 @@ public class IndexV1Updater extends IndexUpdater {
     public static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
 
+    /**
+     * Directory in the repo holding signed diffs of {@link #DATA_FILE_NAME}, each
+     * one named after the {@link Repo#timestamp} it applies to, e.g.
+     * {@code index-v1-diff/1498729445.jar}.
+     */
+    public static final String DIFF_DIR_NAME = "index-v1-diff";
+    public static final String DIFF_DATA_FILE_NAME = "index-v1-diff.json";
+
+    /**
+     * Signed jar holding {@link #SNAPSHOT_DATA_FILE_NAME}, the SQLite version
+     * of {@link #DATA_FILE_NAME}, see {@link IndexV1Snapshot}.
+     */
+    public static final String SNAPSHOT_FILE_NAME = "index-v1-snapshot.jar";
+    public static final String SNAPSHOT_DATA_FILE_NAME = "index-v1-snapshot.db";
+
+    private static final TypeReference<List<Apk>> APK_LIST_TYPE = new TypeReference<List<Apk>>() {
+    };
+    private static final TypeReference<List<App>> APP_LIST_TYPE = new TypeReference<List<App>>() {
+    };
+    private static final TypeReference<HashMap<String, List<Apk>>> PACKAGES_MAP_TYPE =
+            new TypeReference<HashMap<String, List<Apk>>>() {
+            };
+    private static final TypeReference<List<String>> STRING_LIST_TYPE = new TypeReference<List<String>>() {
+    };
+
+    /**
+     * The number of apps handed to {@link RepoPersister} so far during
+     * {@link #processIndexV1(InputStream, JarEntry, String)}.
+     */
+    private int appCount;
+
+    /**
+     * Set while processing the files kept by {@link RetainedIndex}, which were
+     * already fully handled when they were downloaded.
+     */
+    private boolean rebuilding;
+
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
         super(context, repo);
     }
@@ -108,6 +166,34 @@ public class IndexV1Updater extends IndexUpdater {
         }
     }
 
+    /**
+     * @return the URL of the signed diff from the index currently in the database
+     * to the latest index, using the same encoding as {@link #getIndexUrl(Repo)}
+     */
+    protected String getDiffUrl(@NonNull Repo repo) {
+        String fileName = repo.timestamp + ".jar";
+        if (repo.address.startsWith("content://")) {
+            return repo.address + "%2F" + DIFF_DIR_NAME + "%2F" + fileName;
+        } else {
+            return Uri.parse(repo.address).buildUpon()
+                    .appendPath(DIFF_DIR_NAME)
+                    .appendPath(fileName)
+                    .build().toString();
+        }
+    }
+
+    /**
+     * @return the URL of {@link #SNAPSHOT_FILE_NAME}, using the same encoding as
+     * {@link #getIndexUrl(Repo)}
+     */
+    protected String getSnapshotUrl(@NonNull Repo repo) {
+        if (repo.address.startsWith("content://")) {
+            return repo.address + "%2F" + SNAPSHOT_FILE_NAME;
+        } else {
+            return Uri.parse(repo.address).buildUpon().appendPath(SNAPSHOT_FILE_NAME).build().toString();
+        }
+    }
+
     /**
      * @return whether this successfully found an index of this version
      * @throws IndexUpdater.UpdateException
@@ -122,10 +208,27 @@ public class IndexV1Updater extends IndexUpdater {
         }
         Downloader downloader = null;
         try {
+            // the snapshot has no push requests, so those repos always use the JSON
+            if (repo.lastetag == null && repo.pushRequests != Repo.PUSH_REQUEST_ACCEPT_ALWAYS
+                    && updateFromSnapshot()) {
+                return true;
+            }
+
             // read file name from file
             downloader = DownloaderFactory.create(context, indexUrl);
             downloader.setCacheTag(repo.lastetag);
             downloader.setListener(downloadListener);
+            if (downloader instanceof HttpDownloader && repo.timestamp > 0
+                    && !TextUtils.isEmpty(repo.signingCertificate)) {
+                // only ask for a diff once the usual check says that there is something new
+                HttpDownloader httpDownloader = (HttpDownloader) downloader;
+                if (!httpDownloader.checkIfChanged()) {
+                    return !httpDownloader.isNotFound();
+                }
+                if (updateFromDiff(httpDownloader.getHeadCacheTag())) {
+                    return true;
+                }
+            }
             downloader.download();
             if (downloader.isNotFound()) {
                 return false;
@@ -140,12 +243,13 @@ public class IndexV1Updater extends IndexUpdater {
         } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
                 | ProtocolException | UnknownHostException e) {
-            // if the above list changes, also change below and in DownloaderService.handleIntent()
+            // if the above list changes, also change below, in updateFromDiff()
+            // and in DownloaderService.handleIntent()
             Utils.debugLog(TAG, "Trying to download the index from a mirror: " + e.getMessage());
             // Mirror logic here, so that the default download code is untouched.
             String mirrorUrl;
             String prevMirrorUrl = indexUrl;
-            FDroidApp.resetMirrorVars();
+            FDroidApp.resetMirrorVars(repo.getId());
             int n = repo.getMirrorCount() * 3; // 3 is the number of timeouts we have. 10s, 30s & 60s
             for (int i = 0; i <= n; i++) {
                 try {
@@ -154,7 +258,7 @@ public class IndexV1Updater extends IndexUpdater {
                     downloader = DownloaderFactory.create(context, mirrorUrl);
                     downloader.setCacheTag(repo.lastetag);
                     downloader.setListener(downloadListener);
-                    downloader.setTimeout(FDroidApp.getTimeout());
+                    downloader.setTimeout(FDroidApp.getTimeout(repo.getId()));
                     downloader.download();
                     if (downloader.isNotFound()) {
                         return false;
@@ -193,14 +297,379 @@ public class IndexV1Updater extends IndexUpdater {
         return true;
     }
 
+    /**
+     * Try to bring the repo up to date using the diff at {@link #getDiffUrl(Repo)}.
+     * This is only tried after the {@code HEAD} check of {@link #SIGNED_FILE_NAME}
+     * said that it has changed, so an unchanged repo costs no extra requests.
+     * Connection errors are passed on, so that {@link #update()} can go on to the
+     * mirrors.  Any other failure than the signature not matching is logged,
+     * and then the caller falls back to downloading the whole index.
+     * <p>
+     * Only HTTP repos use diffs, since they are about saving bandwidth, and
+     * local repos can be read in full just as quickly.
+     *
+     * @param indexEtag the ETag of {@link #SIGNED_FILE_NAME} from that check
+     * @return whether the diff was found and applied
+     * @throws SigningException if the diff was not signed by the repo's key
+     */
+    private boolean updateFromDiff(String indexEtag) throws SigningException, InterruptedException, IOException {
+        String diffUrl = getDiffUrl(repo);
+        Downloader downloader = null;
+        try {
+            downloader = DownloaderFactory.create(context, diffUrl);
+            downloader.setListener(downloadListener);
+            downloader.download();
+            if (downloader.isNotFound()) {
+                Utils.debugLog(TAG, "No diff available at " + diffUrl);
+                return false;
+            }
+            long since = repo.timestamp;
+            processDownloadedDiff(downloader.outputFile, indexEtag);
+            hasChanged = true;
+            retainDiff(downloader.outputFile, since);
+            return true;
+        } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
+                | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
+                | ProtocolException | UnknownHostException e) {
+            throw e;
+        } catch (IOException | UpdateException e) {
+            Log.i(TAG, "Could not apply " + diffUrl + ", falling back to " + SIGNED_FILE_NAME + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (downloader != null) {
+                FileUtils.deleteQuietly(downloader.outputFile);
+            }
+        }
+    }
+
+    /**
+     * @param indexEtag the ETag of {@link #SIGNED_FILE_NAME} to save along with
+     *                  the diff, or {@code null} to keep the current one
+     */
+    private void processDownloadedDiff(File outputFile, String indexEtag) throws IOException, UpdateException {
+        JarFile jarFile = new JarFile(outputFile, true);
+        try {
+            JarEntry diffEntry = (JarEntry) jarFile.getEntry(DIFF_DATA_FILE_NAME);
+            if (diffEntry == null) {
+                throw new UpdateException(DIFF_DATA_FILE_NAME + " not found in " + outputFile.getName());
+            }
+            InputStream diffInputStream = new ProgressInputStream(jarFile.getInputStream(diffEntry),
+                    processIndexListener, diffEntry.getSize());
+            synchronized (PROCESS_LOCK) {
+                processIndexV1Diff(diffInputStream, diffEntry, indexEtag);
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * Try to fill the repo from {@link #SNAPSHOT_FILE_NAME}.  This is only tried
+     * while the repo has no ETag, so a repo without a snapshot costs one extra
+     * request the first time, rather than on every update.  Any failure other
+     * than the signature not matching is logged, and then the caller falls back
+     * to downloading {@link #SIGNED_FILE_NAME}.
+     *
+     * @return whether the snapshot was found and saved
+     * @throws SigningException if the snapshot was not signed by the repo's key
+     */
+    private boolean updateFromSnapshot() throws SigningException, InterruptedException {
+        String snapshotUrl = getSnapshotUrl(repo);
+        Downloader downloader = null;
+        try {
+            downloader = DownloaderFactory.create(context, snapshotUrl);
+            downloader.setListener(downloadListener);
+            downloader.download();
+            if (downloader.isNotFound()) {
+                Utils.debugLog(TAG, "No snapshot available at " + snapshotUrl);
+                return false;
+            }
+            processDownloadedSnapshot(downloader.outputFile);
+            hasChanged = true;
+            return true;
+        } catch (SigningException e) {
+            throw e;
+        } catch (IOException | UpdateException e) {
+            Log.i(TAG, "Could not use " + snapshotUrl + ", falling back to " + SIGNED_FILE_NAME + ": "
+                    + e.getMessage());
+            return false;
+        } finally {
+            if (downloader != null) {
+                FileUtils.deleteQuietly(downloader.outputFile);
+            }
+        }
+    }
+
+    /**
+     * SQLite needs a real file to open, so the snapshot is copied out of the
+     * jar, which also reads all of it so that {@link JarFile} can check it.
+     */
+    private void processDownloadedSnapshot(File outputFile) throws IOException, UpdateException {
+        JarFile jarFile = new JarFile(outputFile, true);
+        File snapshotFile = null;
+        try {
+            JarEntry snapshotEntry = (JarEntry) jarFile.getEntry(SNAPSHOT_DATA_FILE_NAME);
+            if (snapshotEntry == null) {
+                throw new UpdateException(SNAPSHOT_DATA_FILE_NAME + " not found in " + outputFile.getName());
+            }
+            snapshotFile = File.createTempFile("index-v1-snapshot-", ".db", context.getCacheDir());
+            InputStream snapshotInputStream = new ProgressInputStream(jarFile.getInputStream(snapshotEntry),
+                    processIndexListener, snapshotEntry.getSize());
+            OutputStream outputStream = new FileOutputStream(snapshotFile);
+            try {
+                IOUtils.copy(snapshotInputStream, outputStream);
+            } finally {
+                Utils.closeQuietly(outputStream);
+                Utils.closeQuietly(snapshotInputStream);
+            }
+            synchronized (PROCESS_LOCK) {
+                processIndexSnapshot(snapshotFile, snapshotEntry);
+            }
+        } finally {
+            jarFile.close();
+            FileUtils.deleteQuietly(snapshotFile);
+        }
+    }
+
+    /**
+     * Saves the apps and packages from {@link #SNAPSHOT_DATA_FILE_NAME} via
+     * {@link RepoPersister}, just like {@link #processIndexV1(InputStream, JarEntry, String)}
+     * does with the JSON, so the compatibility, locale and everything else that
+     * depends on the device are worked out in the same way.
+     * <p>
+     * Unlike with the JSON, the signature is checked before the snapshot is
+     * even opened, since SQLite reads much more of a file than the handful of
+     * fields that Jackson is allowed to set.  The snapshot can be older than
+     * {@link #SIGNED_FILE_NAME}, so its current ETag cannot be saved with it.
+     * The repo is saved with an empty ETag instead, so that the next
+     * {@link #update()} downloads {@link #SIGNED_FILE_NAME} but skips importing
+     * it if it is at the same timestamp, see {@link #isAlreadyImported(Map)}.
+     *
+     * @param snapshotFile  the extracted {@link #SNAPSHOT_DATA_FILE_NAME}
+     * @param snapshotEntry the entry it was extracted from, after it was read completely
+     */
+    private void processIndexSnapshot(File snapshotFile, JarEntry snapshotEntry)
+            throws IOException, UpdateException {
+        Tracing.Span verifySpan = Tracing.begin("verifyJar", repo.address);
+        try {
+            X509Certificate certificate = getSigningCertFromJar(snapshotEntry);
+            verifySigningCertificate(certificate);
+        } finally {
+            verifySpan.end();
+        }
+
+        Tracing.Span parseSpan = Tracing.begin("parse", SNAPSHOT_DATA_FILE_NAME).setBytes(snapshotFile.length());
+        IndexV1Snapshot snapshot = new IndexV1Snapshot(snapshotFile, getObjectMapperInstance(repo.getId()),
+                repo.getId());
+        RepoPersister repoPersister = new RepoPersister(context, repo);
+        HashMap<String, Object> repoMap;
+        long timestamp;
+        appCount = 0;
+        try {
+            try {
+                repoMap = snapshot.readRepo();
+                timestamp = (Long) repoMap.get("timestamp") / 1000;
+                if (repo.timestamp > timestamp) {
+                    throw new IndexUpdater.UpdateException(SNAPSHOT_DATA_FILE_NAME
+                            + " is older that current index! " + timestamp + " < " + repo.timestamp);
+                }
+                int totalApps = snapshot.getAppCount();
+                while (snapshot.moveToNext()) {
+                    saveApp(repoPersister, snapshot.getApp(), snapshot.getApks(), totalApps);
+                }
+            } finally {
+                snapshot.close();
+                parseSpan.setRows(appCount).end();
+            }
+
+            setRepoValues(repoMap, timestamp, "");
+            notifyCommittingToDb();
+            repoPersister.commit(getRepoContentValues(), repo.getId());
+        } finally {
+            // does nothing if it was committed
+            repoPersister.abandon();
+        }
+    }
+
     private void processDownloadedIndex(File outputFile, String cacheTag)
             throws IOException, IndexUpdater.UpdateException {
+        processIndexJar(outputFile, cacheTag);
+        retainIndex(outputFile);
+    }
+
+    /**
+     * Rebuild the apps and packages of this repo from the files kept by
+     * {@link RetainedIndex}, after the index tables were emptied.  The retained
+     * index is processed just like a downloaded one, including checking its
+     * signature against the repo's signing certificate, then each retained diff
+     * is applied on top of it.  No network is used, and the ETag that the index
+     * was downloaded with is restored, so that the next {@link #update()} is
+     * only a check whether the repo has changed since.
+     * <p>
+     * The whole chain of retained files is checked before any of it is saved.
+     * If anything goes wrong, the retained files are deleted, and the repo has
+     * to be updated from the network as before.
+     *
+     * @return whether there was a usable retained index to rebuild from
+     */
+    public boolean rebuildFromRetainedIndex() throws UpdateException {
+        RetainedIndex retainedIndex = new RetainedIndex(context, repo.getId());
+        if (!retainedIndex.matches(repo)) {
+            retainedIndex.delete();
+            return false;
+        }
+
+        Tracing.Span span = Tracing.begin("rebuildFromRetainedIndex", repo.address);
+        long timestamp = repo.timestamp;
+        boolean success = false;
+        rebuilding = true;
+        try {
+            checkRetainedChain(retainedIndex);
+            // the retained index is older than the current timestamp if diffs were applied since
+            repo.timestamp = 0;
+            processIndexJar(retainedIndex.getIndex(), retainedIndex.getEtag());
+            for (File diff : retainedIndex.getDiffs()) {
+                processDownloadedDiff(diff, null);
+            }
+            if (repo.timestamp != timestamp) {
+                throw new UpdateException("Retained " + SIGNED_FILE_NAME + " is at "
+                        + repo.timestamp + " instead of " + timestamp);
+            }
+            hasChanged = true;
+            success = true;
+            return true;
+        } catch (IOException e) {
+            throw new UpdateException("Error rebuilding from retained " + SIGNED_FILE_NAME, e);
+        } finally {
+            rebuilding = false;
+            if (!success) {
+                repo.timestamp = timestamp;
+                retainedIndex.delete();
+            }
+            span.end();
+        }
+    }
+
+    /**
+     * Each step of {@link #rebuildFromRetainedIndex()} is committed on its own,
+     * so check that the whole chain is usable before the first one is: every
+     * file has to be signed by the repo's key, each diff has to apply to the
+     * timestamp that the file before it leads to, and the last one has to end
+     * at the timestamp that {@link RetainedIndex} recorded for the repo.
+     */
+    private void checkRetainedChain(RetainedIndex retainedIndex) throws IOException, UpdateException {
+        long timestamp = readRetainedTimestamps(retainedIndex.getIndex(), DATA_FILE_NAME)[1];
+        for (File diff : retainedIndex.getDiffs()) {
+            long[] sinceAndTimestamp = readRetainedTimestamps(diff, DIFF_DATA_FILE_NAME);
+            if (sinceAndTimestamp[0] != timestamp) {
+                throw new UpdateException("Retained " + diff.getName() + " applies to "
+                        + sinceAndTimestamp[0] + " instead of " + timestamp);
+            }
+            timestamp = sinceAndTimestamp[1];
+        }
+        if (timestamp != retainedIndex.getTimestamp()) {
+            throw new UpdateException("Retained " + SIGNED_FILE_NAME + " leads to "
+                    + timestamp + " instead of " + retainedIndex.getTimestamp());
+        }
+    }
+
+    /**
+     * Read through {@code entryName} in the retained {@code jar} without saving
+     * anything, and verify its signature.
+     *
+     * @return the {@code since} field, which only diffs have, and the timestamp
+     * of the {@code repo} section, both in seconds like {@link Repo#timestamp}
+     */
+    private long[] readRetainedTimestamps(File jar, String entryName) throws IOException, UpdateException {
+        JarFile jarFile = new JarFile(jar, true);
+        try {
+            JarEntry entry = (JarEntry) jarFile.getEntry(entryName);
+            if (entry == null) {
+                throw new UpdateException(entryName + " not found in " + jar.getName());
+            }
+            InputStream inputStream = jarFile.getInputStream(entry);
+            ObjectMapper mapper = getObjectMapperInstance(repo.getId());
+            JsonParser parser = mapper.getFactory().createParser(inputStream);
+            HashMap<String, Object> repoMap = null;
+            long since = 0;
+            parser.nextToken(); // go into the main object block
+            while (true) {
+                String fieldName = parser.nextFieldName();
+                if (fieldName == null) {
+                    break;
+                }
+                if ("since".equals(fieldName)) {
+                    parser.nextToken();
+                    since = parser.getLongValue();
+                } else if ("repo".equals(fieldName)) {
+                    repoMap = parseRepo(mapper, parser);
+                } else {
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+            }
+            readToEnd(inputStream);
+            parser.close();
+
+            if (repoMap == null) {
+                throw new UpdateException(entryName + " in " + jar.getName() + " has no repo section");
+            }
+            verifySigningCertificate(getSigningCertFromJar(entry));
+            return new long[]{since / 1000, (Long) repoMap.get("timestamp") / 1000};
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private void retainIndex(File downloadedIndex) {
+        RetainedIndex retainedIndex = new RetainedIndex(context, repo.getId());
+        try {
+            retainedIndex.retainIndex(downloadedIndex, repo);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not keep " + SIGNED_FILE_NAME + " for rebuilding: " + e.getMessage());
+            retainedIndex.delete();
+        }
+    }
+
+    private void retainDiff(File downloadedDiff, long since) {
+        RetainedIndex retainedIndex = new RetainedIndex(context, repo.getId());
+        try {
+            retainedIndex.retainDiff(downloadedDiff, since, repo);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not keep the diff for rebuilding: " + e.getMessage());
+            retainedIndex.delete();
+        }
+    }
+
+    private void processIndexJar(File outputFile, String cacheTag)
+            throws IOException, IndexUpdater.UpdateException {
         JarFile jarFile = new JarFile(outputFile, true);
-        JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
-        InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
-                processIndexListener, (int) indexEntry.getSize());
-        processIndexV1(indexInputStream, indexEntry, cacheTag);
-        jarFile.close();
+        try {
+            JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
+            if (indexEntry == null) {
+                throw new UpdateException(DATA_FILE_NAME + " not found in " + outputFile.getName());
+            }
+            InputStream indexInputStream = new ProgressInputStream(jarFile.getInputStream(indexEntry),
+                    processIndexListener, indexEntry.getSize());
+            synchronized (PROCESS_LOCK) {
+                processIndexV1(indexInputStream, indexEntry, cacheTag);
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * {@link JarFile} only checks an entry against its signature once every byte
+     * of it has been read, but the JSON parser stops at the closing brace, and it
+     * reads straight from the entry without any buffer reading ahead.  So read
+     * whatever is left after the last token before looking for the signer.
+     */
+    private static void readToEnd(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (inputStream.read(buffer) != -1) {
+            // only the verification matters here
+        }
     }
 
     /**
@@ -209,11 +678,16 @@ public class IndexV1Updater extends IndexUpdater {
      * added to {@code index-v1.json}.  This is required for both forward compatibility,
      * but also because ignoring such properties when coming from a malicious server seems
      * reasonable anyway.
+     * <p>
+     * The user's {@link LocaleChain} is resolved here, so once per import, and is
+     * injected into each {@link App} along with the repo ID.
      */
     public static ObjectMapper getObjectMapperInstance(long repoId) {
         ObjectMapper mapper = new ObjectMapper();
         mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-        mapper.setInjectableValues(new InjectableValues.Std().addValue("repoId", repoId));
+        mapper.setInjectableValues(new InjectableValues.Std()
+                .addValue("repoId", repoId)
+                .addValue(LocaleChain.INJECT_ID, LocaleChain.fromDevice()));
         mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
         mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.PUBLIC_ONLY);
         return mapper;
@@ -229,6 +703,14 @@ public class IndexV1Updater extends IndexUpdater {
      * in the database, then fetch the ID from the database to populate
      * {@link Repo#id}.  That has to happen first, then the rest of the {@code Repo}
      * data must be added later.
+     * <p>
+     * The index is streamed token by token so that the whole {@code apps} array
+     * and {@code packages} map are never in memory at the same time.  Whichever
+     * of the two comes first is spilled to an {@link IndexV1SideTable}, then as
+     * the second one is streamed, each {@link App} is joined with its
+     * {@link Apk}s and handed to {@link RepoPersister}, which writes them out
+     * in batches.  Everything goes into the temporary tables first, so nothing
+     * is visible until the signature has been verified.
      *
      * @param indexInputStream {@link InputStream} to {@code index-v1.json}
      * @param etag             the {@code etag} value from HTTP headers
@@ -237,16 +719,162 @@ public class IndexV1Updater extends IndexUpdater {
      */
     public void processIndexV1(InputStream indexInputStream, JarEntry indexEntry, String etag)
             throws IOException, UpdateException {
-        Utils.Profiler profiler = new Utils.Profiler(TAG);
-        profiler.log("Starting to process index-v1.json");
+        RepoPersister repoPersister = new RepoPersister(context, repo);
+        try {
+            processIndexV1(indexInputStream, indexEntry, etag, repoPersister);
+        } finally {
+            // does nothing if it was committed
+            repoPersister.abandon();
+        }
+    }
+
+    private void processIndexV1(InputStream indexInputStream, JarEntry indexEntry, String etag,
+                                RepoPersister repoPersister) throws IOException, UpdateException {
+        Tracing.Span parseSpan = Tracing.begin("parse", DATA_FILE_NAME).setBytes(indexEntry.getSize());
         ObjectMapper mapper = getObjectMapperInstance(repo.getId());
         JsonFactory f = mapper.getFactory();
         JsonParser parser = f.createParser(indexInputStream);
         HashMap<String, Object> repoMap = null;
-        App[] apps = null;
         Map<String, String[]> requests = null;
-        Map<String, List<Apk>> packages = null;
+        IndexV1SideTable sideTable = null;
+        boolean appsInSideTable = false;
+        boolean alreadyImported = false;
+        appCount = 0;
+
+        try {
+            parser.nextToken(); // go into the main object block
+            while (true) {
+                String fieldName = parser.nextFieldName();
+                if (fieldName == null) {
+                    break;
+                }
+                switch (fieldName) {
+                    case "repo":
+                        repoMap = parseRepo(mapper, parser);
+                        alreadyImported = isAlreadyImported(repoMap);
+                        break;
+                    case "requests":
+                        requests = parseRequests(mapper, parser);
+                        break;
+                    case "apps":
+                        if (alreadyImported) {
+                            parser.nextToken();
+                            parser.skipChildren();
+                        } else if (sideTable == null) {
+                            sideTable = new IndexV1SideTable(context, f);
+                            appsInSideTable = true;
+                            spillApps(parser, sideTable);
+                        } else {
+                            streamApps(mapper, parser, sideTable, repoPersister);
+                        }
+                        break;
+                    case "packages":
+                        if (alreadyImported) {
+                            parser.nextToken();
+                            parser.skipChildren();
+                        } else if (sideTable == null) {
+                            sideTable = new IndexV1SideTable(context, f);
+                            spillPackages(parser, sideTable);
+                        } else {
+                            streamPackages(mapper, parser, sideTable, repoPersister);
+                        }
+                        break;
+                    default:
+                        parser.nextToken();
+                        parser.skipChildren();
+                        break;
+                }
+            }
+            readToEnd(indexInputStream);
+            parser.close(); // ensure resources get cleaned up timely and properly
+
+            if (appsInSideTable && !alreadyImported) {
+                // these apps had no entry in "packages", or there was no "packages" at all
+                int totalApps = appCount + sideTable.size();
+                for (String packageName : sideTable.getPackageNames()) {
+                    App app = mapper.readValue(sideTable.remove(packageName), App.class);
+                    Log.i(TAG, "processIndexV1 empty packages");
+                    saveApp(repoPersister, app, new ArrayList<Apk>(0), totalApps);
+                }
+            }
+        } finally {
+            if (sideTable != null) {
+                sideTable.close();
+            }
+            parseSpan.setRows(appCount).end();
+        }
+
+        if (repoMap == null) {
+            return;
+        }
+
+        long timestamp = (Long) repoMap.get("timestamp") / 1000;
+
+        if (repo.timestamp > timestamp) {
+            throw new IndexUpdater.UpdateException("index.jar is older that current index! "
+                    + timestamp + " < " + repo.timestamp);
+        }
+
+        Tracing.Span verifySpan = Tracing.begin("verifyJar", repo.address);
+        try {
+            X509Certificate certificate = getSigningCertFromJar(indexEntry);
+            verifySigningCertificate(certificate);
+        } finally {
+            verifySpan.end();
+        }
+
+        if (alreadyImported || isAlreadyImported(repoMap)) {
+            Utils.debugLog(TAG, DATA_FILE_NAME + " at " + timestamp + " is already in the database, "
+                    + "only saving the ETag");
+            repo.lastetag = etag;
+            ContentValues values = new ContentValues(2);
+            values.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
+            values.put(Schema.RepoTable.Cols.LAST_ETAG, etag);
+            RepoProvider.Helper.update(context, repo, values);
+            hasChanged = false;
+            return;
+        }
+
+        setRepoValues(repoMap, timestamp, etag);
+        notifyCommittingToDb();
+
+        repoPersister.commit(getRepoContentValues(), repo.getId());
+
+        if (repo.pushRequests == Repo.PUSH_REQUEST_ACCEPT_ALWAYS && !rebuilding) {
+            processRepoPushRequests(requests);
+            Utils.debugLog(TAG, "Completed Repo Push Requests: " + requests);
+        }
+    }
+
+    /**
+     * Parses a diff made up of the same sections as {@code index-v1.json}, except
+     * that {@code apps} and {@code packages} only contain the entries that changed,
+     * and there are two extra fields: {@code since}, the timestamp of the index this
+     * diff applies to, and {@code removed}, the package names that are no longer in
+     * the repo.  Every changed package has to come with its app.  Diffs are
+     * expected to be small, so this parses the whole thing before touching the
+     * database.  Then only the rows for the changed and removed packages are
+     * replaced, using {@link RepoPersister} in the same way as
+     * {@link #processIndexV1(InputStream, JarEntry, String)}.
+     *
+     * @param diffInputStream {@link InputStream} to {@link #DIFF_DATA_FILE_NAME}
+     * @param indexEtag       the ETag of the {@link #SIGNED_FILE_NAME} that this diff
+     *                        leads to, or {@code null} if it is not known
+     * @throws UpdateException if the diff does not apply to the index that is in
+     *                         the database, or is not signed by the repo's key
+     */
+    public void processIndexV1Diff(InputStream diffInputStream, JarEntry diffEntry, String indexEtag)
+            throws IOException, UpdateException {
+        ObjectMapper mapper = getObjectMapperInstance(repo.getId());
+        JsonParser parser = mapper.getFactory().createParser(diffInputStream);
+        HashMap<String, Object> repoMap = null;
+        Map<String, String[]> requests = null;
+        List<App> apps = Collections.emptyList();
+        Map<String, List<Apk>> packages = Collections.emptyMap();
+        List<String> removed = Collections.emptyList();
+        long since = 0;
 
+        Tracing.Span parseSpan = Tracing.begin("parse", DIFF_DATA_FILE_NAME).setBytes(diffEntry.getSize());
         parser.nextToken(); // go into the main object block
         while (true) {
             String fieldName = parser.nextFieldName();
@@ -254,6 +882,10 @@ public class IndexV1Updater extends IndexUpdater {
                 break;
             }
             switch (fieldName) {
+                case "since":
+                    parser.nextToken();
+                    since = parser.getLongValue();
+                    break;
                 case "repo":
                     repoMap = parseRepo(mapper, parser);
                     break;
@@ -261,32 +893,127 @@ public class IndexV1Updater extends IndexUpdater {
                     requests = parseRequests(mapper, parser);
                     break;
                 case "apps":
-                    apps = parseApps(mapper, parser);
+                    parser.nextToken(); // START_ARRAY
+                    apps = mapper.readValue(parser, APP_LIST_TYPE);
                     break;
                 case "packages":
-                    packages = parsePackages(mapper, parser);
+                    parser.nextToken(); // START_OBJECT
+                    packages = mapper.readValue(parser, PACKAGES_MAP_TYPE);
+                    break;
+                case "removed":
+                    parser.nextToken(); // START_ARRAY
+                    removed = mapper.readValue(parser, STRING_LIST_TYPE);
+                    break;
+                default:
+                    parser.nextToken();
+                    parser.skipChildren();
                     break;
             }
         }
-        parser.close(); // ensure resources get cleaned up timely and properly
-        profiler.log("Finished processing index-v1.json. Now verifying certificate...");
+        readToEnd(diffInputStream);
+        parser.close();
+        parseSpan.setRows(apps.size()).end();
 
         if (repoMap == null) {
-            return;
+            throw new UpdateException(DIFF_DATA_FILE_NAME + " has no repo section");
+        }
+        if (since / 1000 != repo.timestamp) {
+            throw new UpdateException(DIFF_DATA_FILE_NAME + " is for a different index! "
+                    + since / 1000 + " != " + repo.timestamp);
         }
-
         long timestamp = (Long) repoMap.get("timestamp") / 1000;
+        if (repo.timestamp >= timestamp) {
+            throw new UpdateException(DIFF_DATA_FILE_NAME + " is not newer than current index! "
+                    + timestamp + " <= " + repo.timestamp);
+        }
 
-        if (repo.timestamp > timestamp) {
-            throw new IndexUpdater.UpdateException("index.jar is older that current index! "
-                    + timestamp + " < " + repo.timestamp);
+        Set<String> packageNamesToUpdate = new HashSet<>();
+        for (String packageName : removed) {
+            assertSafePackageName(packageName);
+            packageNamesToUpdate.add(packageName);
+        }
+        Set<String> changedPackageNames = new HashSet<>(apps.size());
+        for (App app : apps) {
+            assertSafePackageName(app.packageName);
+            changedPackageNames.add(app.packageName);
+        }
+        packageNamesToUpdate.addAll(changedPackageNames);
+        for (String packageName : packages.keySet()) {
+            assertSafePackageName(packageName);
+            // only the apps are saved, so their packages would be lost while the timestamp moves on
+            if (!changedPackageNames.contains(packageName)) {
+                throw new UpdateException(DIFF_DATA_FILE_NAME + " has packages without their app: " + packageName);
+            }
+        }
+
+        Tracing.Span verifySpan = Tracing.begin("verifyJar", repo.address);
+        try {
+            X509Certificate certificate = getSigningCertFromJar(diffEntry);
+            verifySigningCertificate(certificate);
+        } finally {
+            verifySpan.end();
         }
 
-        X509Certificate certificate = getSigningCertFromJar(indexEntry);
-        verifySigningCertificate(certificate);
+        Utils.debugLog(TAG, "Applying " + DIFF_DATA_FILE_NAME + " with " + apps.size() + " changed and "
+                + removed.size() + " removed apps");
 
-        profiler.log("Certificate verified. Now saving to database...");
+        RepoPersister repoPersister = new RepoPersister(context, repo, packageNamesToUpdate);
+        appCount = 0;
+        try {
+            for (App app : apps) {
+                List<Apk> apks = packages.get(app.packageName);
+                if (apks == null) {
+                    apks = new ArrayList<>(0);
+                }
+                saveApp(repoPersister, app, apks, apps.size());
+            }
+
+            // without a new ETag, the old one makes the next update() download index-v1.jar
+            // again, but then it is not imported again, see isAlreadyImported()
+            setRepoValues(repoMap, timestamp, indexEtag != null ? indexEtag : repo.lastetag);
+
+            notifyCommittingToDb();
+            repoPersister.commit(getRepoContentValues(), repo.getId());
+        } finally {
+            // does nothing if it was committed
+            repoPersister.abandon();
+        }
+
+        if (repo.pushRequests == Repo.PUSH_REQUEST_ACCEPT_ALWAYS && !rebuilding) {
+            processRepoPushRequests(requests);
+            Utils.debugLog(TAG, "Completed Repo Push Requests: " + requests);
+        }
+    }
+
+    /**
+     * Every package name in a diff is passed on to pick the rows to replace,
+     * joined by commas, so check them all before touching any table.
+     */
+    private static void assertSafePackageName(String packageName) throws UpdateException {
+        if (!Utils.isSafePackageName(packageName)) {
+            throw new UpdateException("Invalid package name in " + DIFF_DATA_FILE_NAME + ": " + packageName);
+        }
+    }
+
+    /**
+     * Snapshots, and diffs when the server did not send an ETag in the check
+     * before them, come without the ETag of {@link #SIGNED_FILE_NAME}, so the
+     * first time it is downloaded after one of them, it is usually the
+     * very index that is already in the database.  Rather than importing the
+     * whole thing again, only its ETag is saved, so that after that, the usual
+     * check whether it has changed works again.  A {@code null} ETag means
+     * that the whole index was asked for regardless, e.g. after the language
+     * was changed, see {@link RepoProvider.Helper#clearEtags(Context)}.
+     *
+     * @return whether the apps of the index described by {@code repoMap} are
+     * already in the database
+     */
+    private boolean isAlreadyImported(Map<String, Object> repoMap) {
+        return !rebuilding && repo.lastetag != null && repo.timestamp == (Long) repoMap.get("timestamp") / 1000
+                && RepoProvider.Helper.countAppsForRepo(context, repo.getId()) > 0;
+    }
 
+    private void setRepoValues(Map<String, Object> repoMap, long timestamp, String etag) {
         // timestamp is absolutely required
         repo.timestamp = timestamp;
         // below are optional, can be null
@@ -304,42 +1031,9 @@ public class IndexV1Updater extends IndexUpdater {
         // below are optional, can be default value
         repo.maxage = getIntRepoValue(repoMap, "maxage");
         repo.version = getIntRepoValue(repoMap, "version");
+    }
 
-        RepoPersister repoPersister = new RepoPersister(context, repo);
-        if (apps != null && apps.length > 0) {
-            int appCount = 0;
-            for (App app : apps) {
-                appCount++;
-                List<Apk> apks = null;
-                if (packages != null) {
-                    apks = packages.get(app.packageName);
-                }
-
-                if (apks == null) {
-                    Log.i(TAG, "processIndexV1 empty packages");
-                    apks = new ArrayList<>(0);
-                }
-
-                if (apks.size() > 0) {
-                    app.preferredSigner = apks.get(0).sig;
-                    app.isApk = true;
-                    for (Apk apk : apks) {
-                        if (!apk.isApk()) {
-                            app.isApk = false;
-                        }
-                    }
-                }
-
-                if (appCount % 50 == 0) {
-                    notifyProcessingApps(appCount, apps.length);
-                }
-
-                repoPersister.saveToDb(app, apks);
-            }
-        }
-        profiler.log("Saved to database, but only a temporary table. Now persisting to database...");
-        notifyCommittingToDb();
-
+    private ContentValues getRepoContentValues() {
         ContentValues contentValues = new ContentValues();
         contentValues.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
         contentValues.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp);
@@ -362,13 +1056,7 @@ public class IndexV1Updater extends IndexUpdater {
         if (repo.mirrors != null && repo.mirrors.length > 0) {
             contentValues.put(Schema.RepoTable.Cols.MIRRORS, Utils.serializeCommaSeparatedString(repo.mirrors));
         }
-        repoPersister.commit(contentValues, repo.getId());
-        profiler.log("Persisted to database.");
-
-        if (repo.pushRequests == Repo.PUSH_REQUEST_ACCEPT_ALWAYS) {
-            processRepoPushRequests(requests);
-            Utils.debugLog(TAG, "Completed Repo Push Requests: " + requests);
-        }
+        return contentValues;
     }
 
     private int getIntRepoValue(Map<String, Object> repoMap, String key) {
@@ -411,18 +1099,90 @@ public class IndexV1Updater extends IndexUpdater {
         return mapper.readValue(parser, typeRef);
     }
 
-    private App[] parseApps(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<App[]> typeRef = new TypeReference<App[]>() {
-        };
+    /**
+     * Copy each entry of the {@code apps} array into the {@link IndexV1SideTable}
+     * so they can be joined with their entries from {@code packages} later.
+     */
+    private void spillApps(JsonParser parser, IndexV1SideTable sideTable) throws IOException {
         parser.nextToken(); // START_ARRAY
-        return mapper.readValue(parser, typeRef);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            sideTable.put(null, parser);
+        }
     }
 
-    private Map<String, List<Apk>> parsePackages(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, List<Apk>>> typeRef = new TypeReference<HashMap<String, List<Apk>>>() {
-        };
+    /**
+     * Copy each entry of the {@code packages} map into the {@link IndexV1SideTable}
+     * so they can be joined with their entries from {@code apps} later.
+     */
+    private void spillPackages(JsonParser parser, IndexV1SideTable sideTable) throws IOException {
         parser.nextToken(); // START_OBJECT
-        return mapper.readValue(parser, typeRef);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            parser.nextToken(); // START_ARRAY
+            sideTable.put(packageName, parser);
+        }
+    }
+
+    /**
+     * Deserialize the {@code apps} array one {@link App} at a time, joining each
+     * with its list of {@link Apk}s from the {@link IndexV1SideTable}.
+     */
+    private void streamApps(ObjectMapper mapper, JsonParser parser, IndexV1SideTable sideTable,
+                            RepoPersister repoPersister) throws IOException, UpdateException {
+        int totalApps = sideTable.size();
+        parser.nextToken(); // START_ARRAY
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            App app = mapper.readValue(parser, App.class);
+            byte[] packagesJson = sideTable.remove(app.packageName);
+            List<Apk> apks;
+            if (packagesJson == null) {
+                Log.i(TAG, "processIndexV1 empty packages");
+                apks = new ArrayList<>(0);
+            } else {
+                apks = mapper.readValue(packagesJson, APK_LIST_TYPE);
+            }
+            saveApp(repoPersister, app, apks, totalApps);
+        }
+    }
+
+    /**
+     * Deserialize the {@code packages} map one list of {@link Apk}s at a time,
+     * joining each with its {@link App} from the {@link IndexV1SideTable}.
+     */
+    private void streamPackages(ObjectMapper mapper, JsonParser parser, IndexV1SideTable sideTable,
+                                RepoPersister repoPersister) throws IOException, UpdateException {
+        int totalApps = sideTable.size();
+        parser.nextToken(); // START_OBJECT
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            parser.nextToken(); // START_ARRAY
+            List<Apk> apks = mapper.readValue(parser, APK_LIST_TYPE);
+            byte[] appJson = sideTable.remove(packageName);
+            if (appJson != null) {
+                App app = mapper.readValue(appJson, App.class);
+                saveApp(repoPersister, app, apks, totalApps);
+            }
+        }
+    }
+
+    private void saveApp(RepoPersister repoPersister, App app, List<Apk> apks, int totalApps)
+            throws UpdateException {
+        appCount++;
+        if (apks.size() > 0) {
+            app.preferredSigner = apks.get(0).sig;
+            app.isApk = true;
+            for (Apk apk : apks) {
+                if (!apk.isApk()) {
+                    app.isApk = false;
+                }
+            }
+        }
+
+        if (appCount % 50 == 0) {
+            notifyProcessingApps(appCount, totalApps);
+        }
+
+        repoPersister.saveToDb(app, apks);
     }
 
     /**
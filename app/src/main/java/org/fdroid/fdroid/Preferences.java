@@ -95,6 +95,8 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String PREF_KEEP_INSTALL_HISTORY = "keepInstallHistory";
     public static final String PREF_EXPERT = "expert";
     public static final String PREF_FORCE_OLD_INDEX = "forceOldIndex";
+    public static final String PREF_PULL_PARSER_INDEX = "pullParserIndex";
+    public static final String PREF_CONDITIONAL_GET = "conditionalGet";
     public static final String PREF_PRIVILEGED_INSTALLER = "privilegedInstaller";
     public static final String PREF_LOCAL_REPO_NAME = "localRepoName";
     public static final String PREF_LOCAL_REPO_HTTPS = "localRepoHttps";
@@ -123,6 +125,7 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
 
     // not shown in Settings
     private static final String PREF_LAST_UPDATE_CHECK = "lastUpdateCheck";
+    private static final String PREF_INDEX_REBUILD_PENDING = "indexRebuildPending";
 
     // these preferences are not listed in preferences.xml so the defaults are set here
     @SuppressWarnings("PMD.AvoidUsingHardCodedIP")
@@ -197,6 +200,25 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         preferences.edit().putBoolean(PREF_FORCE_OLD_INDEX, flag).apply();
     }
 
+    /**
+     * Whether to read the XML app index with a pull parser rather than SAX.
+     *
+     * @see org.fdroid.fdroid.data.RepoXMLPullParser
+     */
+    public boolean isPullParserIndexEnabled() {
+        return preferences.getBoolean(PREF_PULL_PARSER_INDEX, IGNORED_B);
+    }
+
+    /**
+     * Whether to check for index updates with a single conditional {@code GET},
+     * rather than a {@code HEAD} then a {@code GET}.
+     *
+     * @see org.fdroid.fdroid.net.HttpDownloader#setConditionalGet(boolean)
+     */
+    public boolean isConditionalGetEnabled() {
+        return preferences.getBoolean(PREF_CONDITIONAL_GET, IGNORED_B);
+    }
+
     /**
      * Whether to use the Privileged Installer, based on if it is installed.  Only the disabled
      * state is stored as a preference since the enabled state is based entirely on the presence
@@ -342,6 +364,18 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         setLastUpdateCheck(DEFAULT_LAST_UPDATE_CHECK);
     }
 
+    /**
+     * Whether the index tables were emptied, and should be filled again from the
+     * indexes kept by {@link RetainedIndex} before anything is downloaded.
+     */
+    public boolean isIndexRebuildPending() {
+        return preferences.getBoolean(PREF_INDEX_REBUILD_PENDING, false);
+    }
+
+    public void setIndexRebuildPending(boolean indexRebuildPending) {
+        preferences.edit().putBoolean(PREF_INDEX_REBUILD_PENDING, indexRebuildPending).apply();
+    }
+
     /**
      * The first time the app has been run since fresh install or clearing all data.
      */
@@ -0,0 +1,79 @@
+package org.fdroid.fdroid;
+
+import android.support.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Like {@link ProgressBufferedInputStream}, but without a buffer of its own,
+ * for readers like Jackson that already read in large chunks into their own
+ * buffers.  Each chunk then goes straight from the verifying
+ * {@link java.util.jar.JarFile} stream into the parser, instead of being
+ * copied through another buffer on the way.  Progress is based on the bytes
+ * actually read, rather than the bytes asked for.
+ */
+class ProgressInputStream extends FilterInputStream {
+
+    /**
+     * Don't send every change, to keep things efficient.
+     */
+    private static final int PROGRESS_INTERVAL = 333333;
+
+    private final ProgressListener progressListener;
+    private final long totalBytes;
+
+    private long currentBytes;
+    private long lastReportedBytes;
+
+    /**
+     * Reports progress to the specified {@link ProgressListener}, with the
+     * progress based on the {@code totalBytes}.
+     */
+    ProgressInputStream(InputStream in, ProgressListener progressListener, long totalBytes) {
+        super(in);
+        this.progressListener = progressListener;
+        this.totalBytes = totalBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            onRead(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+        int read = super.read(buffer, byteOffset, byteCount);
+        if (read > 0) {
+            onRead(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long skipped = super.skip(byteCount);
+        if (skipped > 0) {
+            onRead(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void onRead(long bytes) {
+        currentBytes += bytes;
+        if (progressListener != null && currentBytes - lastReportedBytes >= PROGRESS_INTERVAL) {
+            lastReportedBytes = currentBytes;
+            progressListener.onProgress(currentBytes, totalBytes);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.data.Repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps the last {@code index-v1.jar} that was verified and saved to the
+ * database for a repo, along with the signed diffs that were applied on top
+ * of it since.  When the index tables have to be rebuilt, e.g. after the
+ * locale or the Android version changed, or a database migration called
+ * {@link org.fdroid.fdroid.data.DBHelper#resetTransient(Context)}, the repo can
+ * be processed again from these files, see
+ * {@link IndexV1Updater#rebuildFromRetainedIndex()}, instead of downloading
+ * the whole index again.  The files are kept as they were signed, so the
+ * signature is checked again each time they are used.
+ * <p>
+ * Each repo gets a directory in {@link Context#getFilesDir()} named after its
+ * {@link Repo#getId() ID}, holding the index, a
+ * {@link #DIFF_DIR_NAME} directory with each diff named after the timestamp
+ * it applies to, and {@link #INFO_FILE_NAME} with the repo address, the ETag
+ * of the index, and the timestamp that the whole chain brings the repo up to.
+ * If those do not match the repo, the files are out of date and not used.
+ */
+public class RetainedIndex {
+    private static final String TAG = "RetainedIndex";
+
+    public static final String DIR_NAME = "retained-indexes";
+    static final String DIFF_DIR_NAME = "diffs";
+    static final String INFO_FILE_NAME = "info.properties";
+
+    private static final String KEY_ADDRESS = "address";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_TIMESTAMP = "timestamp";
+
+    private final File dir;
+    private final File indexFile;
+    private final File diffDir;
+    private final File infoFile;
+
+    public RetainedIndex(Context context, long repoId) {
+        dir = new File(new File(context.getFilesDir(), DIR_NAME), String.valueOf(repoId));
+        indexFile = new File(dir, IndexV1Updater.SIGNED_FILE_NAME);
+        diffDir = new File(dir, DIFF_DIR_NAME);
+        infoFile = new File(dir, INFO_FILE_NAME);
+    }
+
+    /**
+     * @return the retained index, or {@code null} if there is none
+     */
+    @Nullable
+    public File getIndex() {
+        return indexFile.isFile() ? indexFile : null;
+    }
+
+    /**
+     * @return the retained diffs, in the order that they have to be applied
+     */
+    public List<File> getDiffs() {
+        File[] files = diffDir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> diffs = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(diffs, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsSince = getSince(lhs);
+                long rhsSince = getSince(rhs);
+                return lhsSince < rhsSince ? -1 : (lhsSince == rhsSince ? 0 : 1);
+            }
+        });
+        return diffs;
+    }
+
+    private static long getSince(File diff) {
+        String name = diff.getName();
+        int dot = name.indexOf('.');
+        try {
+            return Long.parseLong(dot < 0 ? name : name.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return whether the retained files are for {@code repo} as it is in the database now
+     */
+    public boolean matches(Repo repo) {
+        Properties info = readInfo();
+        return getIndex() != null
+                && repo.address.equals(info.getProperty(KEY_ADDRESS))
+                && String.valueOf(repo.timestamp).equals(info.getProperty(KEY_TIMESTAMP));
+    }
+
+    /**
+     * @return the ETag that the retained index was downloaded with, or {@code null}
+     */
+    @Nullable
+    public String getEtag() {
+        return readInfo().getProperty(KEY_ETAG);
+    }
+
+    /**
+     * @return the {@link Repo#timestamp} that processing the retained index and
+     * then all of the diffs results in, or {@code 0} if unknown
+     */
+    public long getTimestamp() {
+        try {
+            return Long.parseLong(readInfo().getProperty(KEY_TIMESTAMP, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Keep {@code downloadedIndex}, which was just saved to the database, in place of
+     * whatever was retained before.  The file is moved if possible, so it must not be
+     * used after this.
+     */
+    public void retainIndex(File downloadedIndex, Repo repo) throws IOException {
+        FileUtils.deleteDirectory(diffDir);
+        FileUtils.deleteQuietly(infoFile);
+        move(downloadedIndex, indexFile);
+        writeInfo(repo.address, repo.lastetag, repo.timestamp);
+        Utils.debugLog(TAG, "Retained " + indexFile + " at " + repo.timestamp);
+    }
+
+    /**
+     * Keep {@code downloadedDiff}, which was just applied to the index at {@code since},
+     * bringing {@code repo} up to its current timestamp.  If the retained files were
+     * not at {@code since}, they can no longer be used, so they are all deleted instead.
+     */
+    public void retainDiff(File downloadedDiff, long since, Repo repo) throws IOException {
+        if (getIndex() == null || getTimestamp() != since) {
+            Utils.debugLog(TAG, "Nothing retained at " + since + ", not keeping the diff to " + repo.timestamp);
+            delete();
+            return;
+        }
+        String etag = getEtag();
+        FileUtils.deleteQuietly(infoFile);
+        move(downloadedDiff, new File(diffDir, since + ".jar"));
+        writeInfo(repo.address, etag, repo.timestamp);
+        Utils.debugLog(TAG, "Retained the diff from " + since + " to " + repo.timestamp);
+    }
+
+    public void delete() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private static void move(File from, File to) throws IOException {
+        File parent = to.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        if (from.renameTo(to)) {
+            return;
+        }
+        // the cache and files directories can be on different file systems
+        File tmp = new File(parent, to.getName() + ".tmp");
+        FileUtils.copyFile(from, tmp);
+        if (!tmp.renameTo(to)) {
+            FileUtils.deleteQuietly(tmp);
+            throw new IOException("Could not move " + from + " to " + to);
+        }
+        FileUtils.deleteQuietly(from);
+    }
+
+    private Properties readInfo() {
+        Properties info = new Properties();
+        if (!infoFile.isFile()) {
+            return info;
+        }
+        try {
+            InputStream input = new FileInputStream(infoFile);
+            try {
+                info.load(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not read " + infoFile, e);
+        }
+        return info;
+    }
+
+    private void writeInfo(String address, @Nullable String etag, long timestamp) throws IOException {
+        Properties info = new Properties();
+        info.setProperty(KEY_ADDRESS, address);
+        if (etag != null) {
+            info.setProperty(KEY_ETAG, etag);
+        }
+        info.setProperty(KEY_TIMESTAMP, String.valueOf(timestamp));
+        File tmp = new File(dir, INFO_FILE_NAME + ".tmp");
+        OutputStream output = new FileOutputStream(tmp);
+        try {
+            info.store(output, null);
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(infoFile)) {
+            FileUtils.deleteQuietly(tmp);
+            throw new IOException("Could not write " + infoFile);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.fdroid.fdroid;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each step of the repo update takes, as a tree of
+ * {@link Span}s, e.g. downloading, verifying and parsing the index, writing each
+ * batch of apps to the temporary tables, and committing them.  Each span can also
+ * record how many bytes and rows it handled.
+ * <p>
+ * Finished spans are kept in a ring buffer of the last {@link #CAPACITY}, so this
+ * can always be on.  They can be written out in the
+ * <a href="https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSsKchNAySU">Chrome
+ * trace event format</a>, to be opened in {@code chrome://tracing} or
+ * <a href="https://ui.perfetto.dev">Perfetto</a>, see {@link #writeChromeTrace(File)}.
+ * <p>
+ * Spans are nested by time on each thread, so a span has to be ended on the
+ * thread that began it, in the reverse order of beginning them:
+ * <pre>
+ * Tracing.Span span = Tracing.begin("parse");
+ * try {
+ *     ...
+ *     span.setRows(apps);
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ */
+public final class Tracing {
+    private static final String TAG = "Tracing";
+
+    static final int CAPACITY = 4096;
+
+    private static final Span[] FINISHED = new Span[CAPACITY];
+    private static int next;
+    private static int size;
+
+    private Tracing() {
+    }
+
+    public static Span begin(String name) {
+        return new Span(name, null);
+    }
+
+    /**
+     * @param detail shown with the span, e.g. the URL being downloaded
+     */
+    public static Span begin(String name, @Nullable String detail) {
+        return new Span(name, detail);
+    }
+
+    /**
+     * One timed step.
+     */
+    public static final class Span {
+        final String name;
+        final String detail;
+        final long threadId;
+        final String threadName;
+        final long startNanos;
+        long endNanos = -1;
+        long bytes = -1;
+        long rows = -1;
+
+        private Span(String name, @Nullable String detail) {
+            this.name = name;
+            this.detail = detail;
+            Thread thread = Thread.currentThread();
+            threadId = thread.getId();
+            threadName = thread.getName();
+            startNanos = System.nanoTime();
+        }
+
+        public Span setBytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        public Span setRows(long rows) {
+            this.rows = rows;
+            return this;
+        }
+
+        public Span addRows(long rows) {
+            this.rows = Math.max(0, this.rows) + rows;
+            return this;
+        }
+
+        /**
+         * Finish this span and add it to the ring buffer.  Calling this more than once does nothing.
+         */
+        public void end() {
+            if (endNanos >= 0) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            add(this);
+            if (BuildConfig.DEBUG) {
+                Utils.debugLog(TAG, "[" + TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos) + "ms] " + name
+                        + (detail == null ? "" : " " + detail)
+                        + (bytes < 0 ? "" : " bytes=" + bytes)
+                        + (rows < 0 ? "" : " rows=" + rows));
+            }
+        }
+    }
+
+    private static synchronized void add(Span span) {
+        FINISHED[next] = span;
+        next = (next + 1) % CAPACITY;
+        size = Math.min(CAPACITY, size + 1);
+    }
+
+    /**
+     * @return the finished spans that are still in the ring buffer, oldest first
+     */
+    static synchronized List<Span> getFinished() {
+        List<Span> spans = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            spans.add(FINISHED[(next - size + i + CAPACITY) % CAPACITY]);
+        }
+        return spans;
+    }
+
+    static synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            FINISHED[i] = null;
+        }
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * Write the finished spans to {@code file} as Chrome trace event JSON, logging any error.
+     */
+    public static void writeChromeTrace(File file) {
+        try {
+            OutputStream output = new FileOutputStream(file);
+            try {
+                writeChromeTrace(output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not write trace to " + file, e);
+        }
+    }
+
+    /**
+     * Write the finished spans as "complete" events, with the times in
+     * microseconds, plus the names of the threads they ran on.
+     */
+    static void writeChromeTrace(OutputStream output) throws IOException {
+        int pid = Process.myPid();
+        Map<Long, String> threadNames = new HashMap<>();
+        JsonGenerator generator = new JsonFactory().createGenerator(output, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeStringField("displayTimeUnit", "ms");
+        generator.writeArrayFieldStart("traceEvents");
+        for (Span span : getFinished()) {
+            threadNames.put(span.threadId, span.threadName);
+            generator.writeStartObject();
+            generator.writeStringField("name", span.name);
+            generator.writeStringField("cat", "update");
+            generator.writeStringField("ph", "X");
+            generator.writeNumberField("ts", TimeUnit.NANOSECONDS.toMicros(span.startNanos));
+            generator.writeNumberField("dur", TimeUnit.NANOSECONDS.toMicros(span.endNanos - span.startNanos));
+            generator.writeNumberField("pid", pid);
+            generator.writeNumberField("tid", span.threadId);
+            generator.writeObjectFieldStart("args");
+            if (span.detail != null) {
+                generator.writeStringField("detail", span.detail);
+            }
+            if (span.bytes >= 0) {
+                generator.writeNumberField("bytes", span.bytes);
+            }
+            if (span.rows >= 0) {
+                generator.writeNumberField("rows", span.rows);
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+            generator.writeStartObject();
+            generator.writeStringField("name", "thread_name");
+            generator.writeStringField("ph", "M");
+            generator.writeNumberField("pid", pid);
+            generator.writeNumberField("tid", entry.getKey());
+            generator.writeObjectFieldStart("args");
+            generator.writeStringField("name", entry.getValue());
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.flush();
+    }
+}
@@ -55,9 +55,15 @@ import org.fdroid.fdroid.net.BluetoothDownloader;
 import org.fdroid.fdroid.net.ConnectivityMonitorService;
 import org.fdroid.fdroid.views.main.MainActivity;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UpdateService extends JobIntentService {
 
@@ -83,6 +89,18 @@ public class UpdateService extends JobIntentService {
 
     private static final int NOTIFY_ID_UPDATING = 0;
 
+    /**
+     * How many repos are downloaded and parsed at the same time.  Committing to
+     * the database is still done one repo at a time.
+     */
+    private static final int MAX_PARALLEL_REPO_UPDATES = 4;
+
+    /**
+     * The {@link Tracing} spans of the last update are written to this file in the
+     * cache dir, as Chrome trace event JSON.
+     */
+    public static final String TRACE_FILE_NAME = "update-trace.json";
+
     private static UpdateService updateService;
 
     private NotificationManager notificationManager;
@@ -399,6 +417,7 @@ public class UpdateService extends JobIntentService {
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
 
         final long startTime = System.currentTimeMillis();
+        Tracing.Span span = Tracing.begin("update", intent.getDataString());
         boolean manualUpdate = intent.getBooleanExtra(EXTRA_MANUAL_UPDATE, false);
         boolean forcedUpdate = intent.getBooleanExtra(EXTRA_FORCED_UPDATE, false);
         String address = intent.getDataString();
@@ -410,6 +429,11 @@ public class UpdateService extends JobIntentService {
             // database while we do all the downloading, etc...
             List<Repo> repos = RepoProvider.Helper.all(this);
 
+            if (fdroidPrefs.isIndexRebuildPending()) {
+                // e.g. a database migration emptied the index tables, which needs no network to fix
+                repos = rebuildFromRetainedIndexes();
+            }
+
             // See if it's time to actually do anything yet...
             int netState = ConnectivityMonitorService.getNetworkState(this);
             if (isLocalRepoAddress(address)) {
@@ -442,6 +466,7 @@ public class UpdateService extends JobIntentService {
                 if (forcedUpdate) {
                     DBHelper.resetTransient(this);
                     InstalledAppProviderService.compareToPackageManager(this);
+                    repos = rebuildFromRetainedIndexes();
                 }
             } else if (!fdroidPrefs.isBackgroundDownloadAllowed() && !fdroidPrefs.isOnDemandDownloadAllowed()) {
                 Utils.debugLog(TAG, "don't run update");
@@ -458,6 +483,7 @@ public class UpdateService extends JobIntentService {
             ArrayList<CharSequence> repoErrors = new ArrayList<>();
             boolean changes = false;
             boolean singleRepoUpdate = !TextUtils.isEmpty(address);
+            List<Repo> reposToUpdate = new ArrayList<>(repos.size());
             for (final Repo repo : repos) {
                 if (!repo.inuse) {
                     continue;
@@ -469,38 +495,57 @@ public class UpdateService extends JobIntentService {
                 if (!singleRepoUpdate && repo.isSwap) {
                     continue;
                 }
+                reposToUpdate.add(repo);
+            }
 
-                sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
+            // the network and the index parsing are the slow parts, so run the repos in parallel
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(MAX_PARALLEL_REPO_UPDATES, reposToUpdate.size())));
+            List<Future<Boolean>> results = new ArrayList<>(reposToUpdate.size());
+            try {
+                for (final Repo repo : reposToUpdate) {
+                    results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws IndexUpdater.UpdateException {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            return updateRepo(repo);
+                        }
+                    }));
+                }
 
-                try {
-                    IndexUpdater updater = new IndexV1Updater(this, repo);
-                    if (Preferences.get().isForceOldIndexEnabled() || !updater.update()) {
-                        updater = new IndexUpdater(getBaseContext(), repo);
-                        updater.update();
+                for (int i = 0; i < reposToUpdate.size(); i++) {
+                    Repo repo = reposToUpdate.get(i);
+                    try {
+                        if (results.get(i).get()) {
+                            updatedRepos++;
+                            changes = true;
+                            InstalledAppProviderService.hashNewlyTrackedPackages(this);
+                        } else {
+                            unchangedRepos++;
+                        }
+                    } catch (ExecutionException executionException) {
+                        if (!(executionException.getCause() instanceof IndexUpdater.UpdateException)) {
+                            throw executionException;
+                        }
+                        IndexUpdater.UpdateException e = (IndexUpdater.UpdateException) executionException.getCause();
+                        errorRepos++;
+                        Throwable cause = e.getCause();
+                        if (cause == null) {
+                            repoErrors.add(e.getLocalizedMessage());
+                        } else {
+                            repoErrors.add(e.getLocalizedMessage() + " ⇨ " + cause.getLocalizedMessage());
+                        }
+                        Log.e(TAG, "Error updating repository " + repo.address);
+                        e.printStackTrace();
                     }
 
-                    if (updater.hasChanged()) {
-                        updatedRepos++;
-                        changes = true;
-                    } else {
-                        unchangedRepos++;
+                    // now that downloading the index is done, start downloading updates
+                    if (changes && fdroidPrefs.isAutoDownloadEnabled() && fdroidPrefs.isBackgroundDownloadAllowed()) {
+                        autoDownloadUpdates(this);
                     }
-                } catch (IndexUpdater.UpdateException e) {
-                    errorRepos++;
-                    Throwable cause = e.getCause();
-                    if (cause == null) {
-                        repoErrors.add(e.getLocalizedMessage());
-                    } else {
-                        repoErrors.add(e.getLocalizedMessage() + " ⇨ " + cause.getLocalizedMessage());
-                    }
-                    Log.e(TAG, "Error updating repository " + repo.address);
-                    e.printStackTrace();
-                }
-
-                // now that downloading the index is done, start downloading updates
-                if (changes && fdroidPrefs.isAutoDownloadEnabled() && fdroidPrefs.isBackgroundDownloadAllowed()) {
-                    autoDownloadUpdates(this);
                 }
+            } finally {
+                executor.shutdownNow();
             }
 
             if (!changes) {
@@ -535,6 +580,67 @@ public class UpdateService extends JobIntentService {
 
         long time = System.currentTimeMillis() - startTime;
         Log.i(TAG, "Updating repo(s) complete, took " + time / 1000 + " seconds to complete.");
+        span.end();
+        Tracing.writeChromeTrace(new File(getCacheDir(), TRACE_FILE_NAME));
+    }
+
+    /**
+     * Fill the index tables again after they were emptied by
+     * {@link DBHelper#resetTransient(Context)}, using the last verified index of
+     * each repo kept by {@link RetainedIndex}.  This is what happens when the
+     * locale or the Android version changes, so only the repos that cannot be
+     * rebuilt this way have to download their whole index again.  The others
+     * get back their ETag, so the update that follows only checks whether they
+     * have changed.
+     *
+     * @return all repos, reloaded, since rebuilding changes their ETags
+     */
+    private List<Repo> rebuildFromRetainedIndexes() {
+        Tracing.Span span = Tracing.begin("rebuildFromRetainedIndexes");
+        boolean changes = false;
+        for (Repo repo : RepoProvider.Helper.all(this)) {
+            if (!repo.inuse || repo.isSwap) {
+                continue;
+            }
+            try {
+                if (new IndexV1Updater(this, repo).rebuildFromRetainedIndex()) {
+                    changes = true;
+                }
+            } catch (IndexUpdater.UpdateException e) {
+                Log.e(TAG, "Could not rebuild " + repo.address + " from its retained index", e);
+            }
+        }
+        Preferences.get().setIndexRebuildPending(false);
+        if (changes) {
+            InstalledAppProviderService.hashNewlyTrackedPackages(this);
+            notifyContentProviders();
+        }
+        span.end();
+        return RepoProvider.Helper.all(this);
+    }
+
+    /**
+     * Download and process the index of a single repo.  This is run on a worker
+     * thread, with up to {@link #MAX_PARALLEL_REPO_UPDATES} repos at a time.
+     * Processing writes to the database through the shared temporary tables, so
+     * {@link IndexUpdater} makes sure only one index is processed at a time.
+     *
+     * @return whether the index of {@code repo} had changed
+     */
+    private boolean updateRepo(Repo repo) throws IndexUpdater.UpdateException {
+        sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
+
+        Tracing.Span span = Tracing.begin("updateRepo", repo.address);
+        try {
+            IndexUpdater updater = new IndexV1Updater(this, repo);
+            if (Preferences.get().isForceOldIndexEnabled() || !updater.update()) {
+                updater = new IndexUpdater(getBaseContext(), repo);
+                updater.update();
+            }
+            return updater.hasChanged();
+        } finally {
+            span.end();
+        }
     }
 
     private void notifyContentProviders() {
@@ -857,21 +857,6 @@ public final class Utils {
         return (int) ((100L * current + total / 2) / total);
     }
 
-    @SuppressWarnings("unused")
-    public static class Profiler {
-        public final long startTime = System.currentTimeMillis();
-        public final String logTag;
-
-        public Profiler(String logTag) {
-            this.logTag = logTag;
-        }
-
-        public void log(String message) {
-            long duration = System.currentTimeMillis() - startTime;
-            Utils.debugLog(logTag, "[" + duration + "ms] " + message);
-        }
-    }
-
     /**
      * In order to send a {@link Toast} from a {@link android.app.Service}, we
      * have to do these tricks.
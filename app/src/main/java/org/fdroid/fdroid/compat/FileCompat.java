@@ -35,6 +35,36 @@ public class FileCompat {
         return dest.exists();
     }
 
+    /**
+     * Make {@code dest} another name for the same file as {@code source}, without
+     * copying anything.  This only works when both are on the same filesystem.
+     *
+     * @return whether the link was made, otherwise the caller has to copy
+     */
+    public static boolean link(SanitizedFile source, SanitizedFile dest) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new Link21().link(source, dest) && dest.exists();
+        }
+        return false;
+    }
+
+    /**
+     * Kept apart for the same reason as {@link Symlink21}.
+     */
+    private static class Link21 {
+
+        @TargetApi(21)
+        boolean link(SanitizedFile source, SanitizedFile dest) {
+            try {
+                android.system.Os.link(source.getAbsolutePath(), dest.getAbsolutePath());
+                return true;
+            } catch (ErrnoException e) {
+                Utils.debugLog(TAG, "Could not link " + source + " to " + dest + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
     /**
      * Moved into a separate class rather than just a method, so that phones without API 21 will
      * not attempt to load this class at runtime. Otherwise, using the Os.symlink method will cause
@@ -0,0 +1,349 @@
+package org.fdroid.fdroid.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkHashCacheTable;
+import org.fdroid.fdroid.data.Schema.ApkHashCacheTable.Cols;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the hashes of installed APKs, so that {@link InstalledAppProviderService}
+ * only has to read an APK in full when it is new or has changed.  An entry is only
+ * used when the path, size, modification time and, where Android makes it available,
+ * the inode of the file all still match, so an APK replaced by an OTA update or
+ * reinstalled at the same path gets hashed again.  The entries are stored in
+ * {@link ApkHashCacheTable}, which survives the index tables being reset.
+ * <p>
+ * Hashing is done on demand, and can also be started ahead of time on a small
+ * pool of {@link Process#THREAD_PRIORITY_LOWEST lowest priority} threads, see
+ * {@link #prefetch(Context, File, String)}.  The bytes that were actually read
+ * versus those that were skipped, thanks to the cache or because nothing needed
+ * the hash, are counted so the savings can be checked in the logs.
+ */
+public final class ApkHashCache {
+    private static final String TAG = "ApkHashCache";
+
+    /**
+     * Hashing is mostly limited by storage, so more threads than this just
+     * compete with each other and with the rest of the device.
+     */
+    static final int THREAD_COUNT = 2;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            runnable.run();
+                        }
+                    }, TAG + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The hashes being calculated by {@link #EXECUTOR} right now, keyed on the path
+     * of the APK, so that nothing is hashed twice at the same time.
+     */
+    private static final ConcurrentHashMap<String, Future<String>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static final AtomicLong BYTES_HASHED = new AtomicLong();
+    private static final AtomicLong BYTES_SKIPPED = new AtomicLong();
+
+    private ApkHashCache() {
+    }
+
+    /**
+     * @return the hash of {@code apk}, read from the cache if it is unchanged,
+     * otherwise calculated now, or {@code null} if it could not be read
+     */
+    @Nullable
+    public static String getHash(Context context, File apk, String hashType) {
+        return getHash(context, apk, hashType, true);
+    }
+
+    /**
+     * @param hashIfMissing whether to calculate the hash if it is not known yet.
+     *                      If not, this only returns a hash when it costs nothing.
+     * @return the hash of {@code apk}, or {@code null} if it is not known and was
+     * not calculated, or could not be read
+     */
+    @Nullable
+    public static String getHash(Context context, File apk, String hashType, boolean hashIfMissing) {
+        Future<String> inFlight = IN_FLIGHT.get(apk.getAbsolutePath());
+        if (inFlight != null) {
+            try {
+                return inFlight.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Utils.debugLog(TAG, "Waiting for the hash of " + apk + " failed: " + e.getMessage());
+            }
+        }
+
+        return findOrHash(context, apk, hashType, hashIfMissing);
+    }
+
+    @Nullable
+    private static String findOrHash(Context context, File apk, String hashType, boolean hashIfMissing) {
+        FileKey key = new FileKey(apk);
+        String hash = Helper.find(context, key, hashType);
+        if (hash != null || !hashIfMissing) {
+            BYTES_SKIPPED.addAndGet(key.size);
+            return hash;
+        }
+
+        hash = Utils.getBinaryHash(apk, hashType);
+        BYTES_HASHED.addAndGet(key.size);
+        if (hash != null) {
+            Helper.save(context, key, hashType, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Start hashing {@code apk} in the background, unless it is already cached or
+     * being hashed, so that a later {@link #getHash(Context, File, String)} call
+     * finds it ready, or at least only waits for the rest of it.
+     */
+    public static void prefetch(final Context context, final File apk, final String hashType) {
+        final String path = apk.getAbsolutePath();
+        if (IN_FLIGHT.containsKey(path)) {
+            return;
+        }
+        final FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    return findOrHash(context, apk, hashType, true);
+                } finally {
+                    IN_FLIGHT.remove(path);
+                }
+            }
+        });
+        if (IN_FLIGHT.putIfAbsent(path, task) == null) {
+            EXECUTOR.execute(task);
+        }
+    }
+
+    public static long getBytesHashed() {
+        return BYTES_HASHED.get();
+    }
+
+    public static long getBytesSkipped() {
+        return BYTES_SKIPPED.get();
+    }
+
+    public static void logStats() {
+        Utils.debugLog(TAG, "Hashed " + BYTES_HASHED.get() + " bytes of installed APKs, skipped "
+                + BYTES_SKIPPED.get() + " bytes");
+    }
+
+    /**
+     * Only used for testing.
+     */
+    static void resetStats() {
+        BYTES_HASHED.set(0);
+        BYTES_SKIPPED.set(0);
+    }
+
+    /**
+     * What identifies a particular version of a file on disk, without reading it.
+     */
+    static final class FileKey {
+        final String path;
+        final long size;
+        final long lastModified;
+        final long inode;
+
+        FileKey(File file) {
+            path = file.getAbsolutePath();
+            size = file.length();
+            lastModified = file.lastModified();
+            inode = Build.VERSION.SDK_INT >= 21 ? Stat21.getInode(path) : 0;
+        }
+    }
+
+    /**
+     * Kept in its own class, so that older Android versions, which do not have
+     * {@link android.system.Os}, never load it.
+     */
+    private static class Stat21 {
+
+        /**
+         * @return the inode, or {@code 0} if it is not available, in which case
+         * only the path, size and modification time are compared
+         */
+        @TargetApi(21)
+        static long getInode(String path) {
+            try {
+                return android.system.Os.stat(path).st_ino;
+            } catch (Exception | LinkageError e) { // NOPMD ErrnoException, or no native code outside of Android
+                return 0;
+            }
+        }
+    }
+
+    public static final class Helper {
+
+        private Helper() {
+        }
+
+        @Nullable
+        static String find(Context context, FileKey key, String hashType) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getReadableDatabase();
+            String selection = Cols.PATH + " = ? AND " + Cols.SIZE + " = ? AND " + Cols.LAST_MODIFIED + " = ? AND "
+                    + Cols.INODE + " = ? AND " + Cols.HASH_TYPE + " = ?";
+            String[] args = {
+                    key.path, Long.toString(key.size), Long.toString(key.lastModified), Long.toString(key.inode),
+                    hashType,
+            };
+            Cursor cursor = db.query(ApkHashCacheTable.NAME, new String[]{Cols.HASH}, selection, args,
+                    null, null, null);
+            try {
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        static void save(Context context, FileKey key, String hashType, String hash) {
+            ContentValues values = new ContentValues(Cols.ALL.length);
+            values.put(Cols.PATH, key.path);
+            values.put(Cols.SIZE, key.size);
+            values.put(Cols.LAST_MODIFIED, key.lastModified);
+            values.put(Cols.INODE, key.inode);
+            values.put(Cols.HASH_TYPE, hashType);
+            values.put(Cols.HASH, hash);
+            SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+            db.insertWithOnConflict(ApkHashCacheTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+
+        /**
+         * Forget the cached hashes of APKs which are no longer installed, i.e.
+         * everything that is not one of {@code paths}.
+         */
+        static int deleteAllExcept(Context context, Set<String> paths) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+            Cursor cursor = db.query(ApkHashCacheTable.NAME, new String[]{Cols.PATH}, null, null, null, null, null);
+            Set<String> stale = new HashSet<>();
+            try {
+                while (cursor.moveToNext()) {
+                    if (!paths.contains(cursor.getString(0))) {
+                        stale.add(cursor.getString(0));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            for (String path : stale) {
+                db.delete(ApkHashCacheTable.NAME, Cols.PATH + " = ?", new String[]{path});
+            }
+            return stale.size();
+        }
+
+        /**
+         * @return the package names which are available from at least one repo,
+         * so there is something to compare the hash of the installed APK to
+         */
+        public static Set<String> findTrackedPackageNames(Context context) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT DISTINCT p." + PackageTable.Cols.PACKAGE_NAME
+                    + " FROM " + PackageTable.NAME + " AS p"
+                    + " JOIN " + AppMetadataTable.NAME + " AS app"
+                    + " ON (app." + AppMetadataTable.Cols.PACKAGE_ID + " = p." + PackageTable.Cols.ROW_ID + ")",
+                    null);
+            try {
+                Set<String> packageNames = new HashSet<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    packageNames.add(cursor.getString(0));
+                }
+                return packageNames;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * @return whether any repo has been indexed yet.  Until then, nothing is
+         * {@link #isTracked(Context, String) tracked}, so everything gets hashed.
+         */
+        public static boolean hasTrackedPackages(Context context) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT 1 FROM " + AppMetadataTable.NAME + " LIMIT 1", null);
+            try {
+                return cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        public static boolean isTracked(Context context, String packageName) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT 1"
+                    + " FROM " + PackageTable.NAME + " AS p"
+                    + " JOIN " + AppMetadataTable.NAME + " AS app"
+                    + " ON (app." + AppMetadataTable.Cols.PACKAGE_ID + " = p." + PackageTable.Cols.ROW_ID + ")"
+                    + " WHERE p." + PackageTable.Cols.PACKAGE_NAME + " = ? LIMIT 1",
+                    new String[]{packageName});
+            try {
+                return cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * @return the installed packages which were stored without a hash, see
+         * {@link InstalledApp#getHash()}, but which are now {@link #isTracked(Context, String) tracked}
+         */
+        public static Set<String> findUnhashedTrackedPackageNames(Context context) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT p." + PackageTable.Cols.PACKAGE_NAME
+                    + " FROM " + InstalledAppTable.NAME + " AS installed"
+                    + " JOIN " + PackageTable.NAME + " AS p"
+                    + " ON (installed." + InstalledAppTable.Cols.PACKAGE_ID + " = p." + PackageTable.Cols.ROW_ID + ")"
+                    + " WHERE installed." + InstalledAppTable.Cols.HASH + " = ''"
+                    + " AND EXISTS (SELECT 1 FROM " + AppMetadataTable.NAME + " AS app"
+                    + " WHERE app." + AppMetadataTable.Cols.PACKAGE_ID + " = p." + PackageTable.Cols.ROW_ID + ")",
+                    null);
+            try {
+                Set<String> packageNames = new HashSet<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    packageNames.add(cursor.getString(0));
+                }
+                return packageNames;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -546,7 +546,8 @@ public class ApkProvider extends FDroidProvider {
         queryBuilder.addSelection(query);
         queryBuilder.addOrderBy(sortOrder);
 
-        Cursor cursor = LoggingQuery.rawQuery(db(), queryBuilder.toString(), queryBuilder.getArgs());
+        Cursor cursor = LoggingQuery.rawQuery(db(), queryBuilder.toString(), queryBuilder.getArgs(),
+                getQueryMetricName(uri));
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
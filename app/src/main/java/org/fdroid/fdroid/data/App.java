@@ -7,12 +7,9 @@ import android.content.pm.FeatureInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
-import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.os.Build;
 import android.os.Environment;
-import android.os.LocaleList;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
@@ -22,6 +19,7 @@ import android.util.Log;
 import com.fasterxml.jackson.annotation.JacksonInject;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
@@ -42,7 +40,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -111,6 +108,14 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     @JacksonInject("repoId")
     public long repoId;
 
+    /**
+     * The locales to pick the {@code localized} texts from, which is resolved once
+     * for the whole index, see {@link #setLocalized(Map)}.
+     */
+    @JsonIgnore
+    @JacksonInject(LocaleChain.INJECT_ID)
+    private LocaleChain localeChain;
+
     // the remaining properties are set directly from the index metadata
     public String packageName = "unknown";
     public String name = "Unknown";
@@ -400,12 +405,12 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         PackageInfo packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
         SanitizedFile apkFile = SanitizedFile.knownSanitized(packageInfo.applicationInfo.publicSourceDir);
         app.installedApk = new Apk();
-        if (installedApp != null) {
+        if (installedApp != null && !TextUtils.isEmpty(installedApp.getHash())) {
             app.installedApk.hashType = installedApp.getHashType();
             app.installedApk.hash = installedApp.getHash();
         } else if (apkFile.canRead()) {
             String hashType = "sha256";
-            String hash = Utils.getBinaryHash(apkFile, hashType);
+            String hash = ApkHashCache.getHash(context, apkFile, hashType);
             if (TextUtils.isEmpty(hash)) {
                 return null;
             }
@@ -487,65 +492,21 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * On {@code < android-24}, the user can only set a single
      * locale with a country as an option, so here it makes sense to try to fallback
      * on other country-specific locales, rather than English.
+     * <p>
+     * The user's side of this list is worked out once per index by {@link LocaleChain},
+     * and {@link LocalizedDeserializer} only reads the locales that could be picked.
      */
     @JsonProperty("localized")
+    @JsonDeserialize(using = LocalizedDeserializer.class)
     private void setLocalized(Map<String, Map<String, Object>> localized) { // NOPMD
         if (localized.size() > 1) {
             isLocalized = true;
         }
 
-        Locale defaultLocale = Locale.getDefault();
-        String languageTag = defaultLocale.getLanguage();
-        String countryTag = defaultLocale.getCountry();
-        String localeTag;
-        if (TextUtils.isEmpty(countryTag)) {
-            localeTag = languageTag;
-        } else {
-            localeTag = languageTag + "-" + countryTag;
-        }
-
-        Set<String> availableLocales = localized.keySet();
-        Set<String> localesToUse = new LinkedHashSet<>();
-        if (availableLocales.contains(localeTag)) {
-            localesToUse.add(localeTag);
-        }
-        if (availableLocales.contains(languageTag)) {
-            localesToUse.add(languageTag);
-        }
-        if (Build.VERSION.SDK_INT >= 24) {
-            LocaleList localeList = Resources.getSystem().getConfiguration().getLocales();
-            String[] sortedLocaleList = localeList.toLanguageTags().split(",");
-            Arrays.sort(sortedLocaleList, new java.util.Comparator<String>() {
-                @Override
-                public int compare(String s1, String s2) {
-                    return s1.length() - s2.length();
-                }
-            });
-            for (String toUse : sortedLocaleList) {
-                localesToUse.add(toUse);
-                for (String l : availableLocales) {
-                    if (l.equals(toUse.split("-")[0])) {
-                        localesToUse.add(l);
-                        break;
-                    }
-                }
-            }
-        } else {
-            for (String l : availableLocales) {
-                if (l.startsWith(languageTag)) {
-                    localesToUse.add(l);
-                }
-            }
-        }
-        if (availableLocales.contains("en-US")) {
-            localesToUse.add("en-US");
-        }
-        for (String l : availableLocales) {
-            if (l.startsWith("en")) {
-                localesToUse.add(l);
-                break;
-            }
+        if (localeChain == null) {
+            localeChain = LocaleChain.fromDevice();
         }
+        Set<String> localesToUse = localeChain.getLocalesToUse(localized.keySet());
 
         String value = getLocalizedEntry(localized, localesToUse, "whatsNew");
         if (!TextUtils.isEmpty(value)) {
@@ -587,7 +548,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * as the first entry, then sorting the rest based on length (e.g. {@code de-AT}
      * before {@code de}).
      *
-     * @see LocaleList
+     * @see android.os.LocaleList
      * @see Locale#getDefault()
      * @see java.util.Locale.LanguageRange
      */
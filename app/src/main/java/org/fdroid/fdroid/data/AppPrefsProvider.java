@@ -131,7 +131,7 @@ public class AppPrefsProvider extends FDroidProvider {
         query.addFields(projection);
         query.addOrderBy(sortOrder);
 
-        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs(), getQueryMetricName(uri));
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
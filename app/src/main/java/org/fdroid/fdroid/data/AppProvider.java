@@ -11,9 +11,11 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.Tracing;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataFtsTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
@@ -24,10 +26,11 @@ import org.fdroid.fdroid.data.Schema.PackageTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Each app has a bunch of metadata that it associates with a package name (such as org.fdroid.fdroid).
@@ -128,6 +131,21 @@ public class AppProvider extends FDroidProvider {
             context.getContentResolver().update(calcSuggestedApksUri(), null, null, null);
         }
 
+        /**
+         * Recalculate everything in {@link #updateAppDetails(String)} for the packages
+         * which had rows replaced by the commit that is in progress.  Everything else was
+         * calculated by an earlier update, and none of its inputs have changed since.  Only
+         * works while the temp tables are still attached.  This does not notify anyone,
+         * that is up to the caller once the whole update has been committed.
+         *
+         * @see TempAppProvider#TABLE_TEMP_COMMITTED_PACKAGE
+         * @see TempAppProvider.Helper#commitAppsAndApks(Context, long)
+         */
+        static void calcDetailsForCommittedPackages(Context context) {
+            Uri uri = Uri.withAppendedPath(getContentUri(), PATH_CALC_DETAILS_FOR_COMMITTED_PACKAGES);
+            context.getContentResolver().update(uri, null, null, null);
+        }
+
         public static List<App> findCanUpdate(Context context, String[] projection) {
             return cursorToList(context.getContentResolver().query(AppProvider.getCanUpdateUri(), projection, null, null, null));
         }
@@ -440,6 +458,12 @@ public class AppProvider extends FDroidProvider {
 
     private static final UriMatcher MATCHER = new UriMatcher(-1);
 
+    /**
+     * Everything which the "simple" FTS tokenizer treats as a word break: all ASCII
+     * characters except letters and digits.
+     */
+    private static final Pattern FTS_TOKEN_SEPARATORS = Pattern.compile("[\\p{ASCII}&&[^\\p{Alnum}]]+");
+
     private static final String PATH_INSTALLED = "installed";
     private static final String PATH_CAN_UPDATE = "canUpdate";
     private static final String PATH_SEARCH = "search";
@@ -452,6 +476,7 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_HIGHEST_PRIORITY = "highestPriority";
     private static final String PATH_CALC_PREFERRED_METADATA = "calcPreferredMetadata";
     private static final String PATH_CALC_SUGGESTED_APKS = "calcNonRepoDetailsFromIndex";
+    private static final String PATH_CALC_DETAILS_FOR_COMMITTED_PACKAGES = "calcDetailsForCommittedPackages";
     private static final String PATH_TOP_FROM_CATEGORY = "topFromCategory";
     private static final String PATH_INSTALLED_WITH_KNOWN_VULNS = "installedWithKnownVulns";
 
@@ -468,6 +493,7 @@ public class AppProvider extends FDroidProvider {
     private static final int CALC_PREFERRED_METADATA = HIGHEST_PRIORITY + 1;
     private static final int TOP_FROM_CATEGORY = CALC_PREFERRED_METADATA + 1;
     private static final int INSTALLED_WITH_KNOWN_VULNS = TOP_FROM_CATEGORY + 1;
+    private static final int CALC_DETAILS_FOR_COMMITTED_PACKAGES = INSTALLED_WITH_KNOWN_VULNS + 1;
 
     static {
         MATCHER.addURI(getAuthority(), null, CODE_LIST);
@@ -486,6 +512,7 @@ public class AppProvider extends FDroidProvider {
         MATCHER.addURI(getAuthority(), PATH_CALC_PREFERRED_METADATA, CALC_PREFERRED_METADATA);
         MATCHER.addURI(getAuthority(), PATH_TOP_FROM_CATEGORY + "/#/*", TOP_FROM_CATEGORY);
         MATCHER.addURI(getAuthority(), PATH_INSTALLED_WITH_KNOWN_VULNS, INSTALLED_WITH_KNOWN_VULNS);
+        MATCHER.addURI(getAuthority(), PATH_CALC_DETAILS_FOR_COMMITTED_PACKAGES, CALC_DETAILS_FOR_COMMITTED_PACKAGES);
     }
 
     public static Uri getContentUri() {
@@ -639,56 +666,134 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection().requireNaturalInstalledTable();
     }
 
+    /**
+     * Apps match if every keyword is found in their name, summary or description, or if every
+     * keyword is part of their package name.  The name, summary and description are looked up in
+     * {@link AppMetadataFtsTable}, which only matches from the start of a word, so "droid" finds
+     * "Droid Fish" but not "F-Droid".  Package names are few and short, so they are still
+     * searched for anywhere with a {@code LIKE}.
+     *
+     * @see #orderBySearchRank(String)
+     */
     private AppQuerySelection querySearch(String query) {
-        // Put in a Set to remove duplicates
-        final Set<String> keywordSet = new HashSet<>(Arrays.asList(query.split("\\s")));
-
-        if (keywordSet.isEmpty()) {
+        final Set<String> keywords = getSearchKeywords(query);
+        if (keywords.isEmpty()) {
             return new AppQuerySelection();
         }
 
-        // Surround each keyword in % for wildcard searching
-        final String[] keywords = new String[keywordSet.size()];
-        int iKeyword = 0;
-        for (final String keyword : keywordSet) {
-            keywords[iKeyword] = "%" + keyword + "%";
-            iKeyword++;
-        }
+        final String packageName = PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME;
+        final List<String> args = new ArrayList<>(keywords.size() + 1);
+        final StringBuilder selection = new StringBuilder("(");
 
-        final String app = getTableName();
-        final String[] columns = {
-                PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME,
-                app + "." + Cols.NAME,
-                app + "." + Cols.SUMMARY,
-                app + "." + Cols.DESCRIPTION,
-        };
+        String match = getFtsMatch(keywords, null);
+        if (match != null) {
+            selection.append(getTableName()).append('.').append(Cols.ROW_ID)
+                    .append(" IN (").append(getFtsDocIdsSubquery()).append(") OR ");
+            args.add(match);
+        }
 
-        // Build selection string and fill out keyword arguments
-        final StringBuilder selection = new StringBuilder();
-        final String[] selectionKeywords = new String[columns.length * keywords.length];
-        iKeyword = 0;
-        boolean firstColumn = true;
-        for (final String column : columns) {
-            if (firstColumn) {
-                firstColumn = false;
+        selection.append('(');
+        boolean firstKeyword = true;
+        for (final String keyword : keywords) {
+            if (firstKeyword) {
+                firstKeyword = false;
             } else {
-                selection.append(" OR ");
+                selection.append(" AND ");
+            }
+            selection.append(packageName).append(" LIKE ?");
+            args.add("%" + keyword + "%");
+        }
+        selection.append("))");
+        return new AppQuerySelection(selection.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Apps with every keyword in their name come first, then those with every keyword in their
+     * summary, then everything else which was found by {@link #querySearch(String)}.
+     */
+    @Nullable
+    private OrderClause orderBySearchRank(String query) {
+        final Set<String> keywords = getSearchKeywords(query);
+        final String inName = getFtsMatch(keywords, AppMetadataFtsTable.Cols.NAME);
+        final String inSummary = getFtsMatch(keywords, AppMetadataFtsTable.Cols.SUMMARY);
+        if (inName == null || inSummary == null) {
+            return null;
+        }
+
+        final String rowId = getTableName() + "." + Cols.ROW_ID;
+        final String rank = "CASE"
+                + " WHEN " + rowId + " IN (" + getFtsDocIdsSubquery() + ") THEN 0"
+                + " WHEN " + rowId + " IN (" + getFtsDocIdsSubquery() + ") THEN 1"
+                + " ELSE 2 END";
+        return new OrderClause(rank, new String[]{inName, inSummary}, true);
+    }
+
+    private static String getFtsDocIdsSubquery() {
+        return "SELECT " + AppMetadataFtsTable.Cols.DOC_ID + " FROM " + AppMetadataFtsTable.NAME
+                + " WHERE " + AppMetadataFtsTable.NAME + " MATCH ?";
+    }
+
+    private static Set<String> getSearchKeywords(String query) {
+        // Put in a Set to remove duplicates
+        final Set<String> keywords = new LinkedHashSet<>();
+        for (String keyword : query.split("\\s")) {
+            if (!TextUtils.isEmpty(keyword)) {
+                keywords.add(keyword);
             }
-            selection.append('(');
-            boolean firstKeyword = true;
-            for (final String keyword : keywords) {
-                if (firstKeyword) {
-                    firstKeyword = false;
-                } else {
-                    selection.append(" AND ");
+        }
+        return keywords;
+    }
+
+    /**
+     * Turns each keyword into a prefix phrase query for {@link AppMetadataFtsTable}, e.g.
+     * {@code f-dro} becomes {@code "f dro*"}, split up the same way the default "simple"
+     * tokenizer splits up the text being indexed.  Keywords made only of punctuation
+     * cannot be found in the index, so they are left out.
+     * <p>
+     * FTS4 cannot limit a quoted phrase to a single column, so when {@code column} is given,
+     * each word is matched on its own instead, e.g. {@code name:f name:dro*}.  They are
+     * lower cased so that words like "OR" are not taken to be operators.
+     *
+     * @param column Only match in this column of {@link AppMetadataFtsTable}, or {@code null} for any.
+     * @return The query to pass to {@code MATCH}, or {@code null} if there is nothing to look for.
+     */
+    @Nullable
+    static String getFtsMatch(Set<String> keywords, @Nullable String column) {
+        final List<String> terms = new ArrayList<>();
+        for (String keyword : keywords) {
+            final List<String> tokens = new ArrayList<>();
+            for (String token : FTS_TOKEN_SEPARATORS.split(keyword)) {
+                if (!TextUtils.isEmpty(token)) {
+                    tokens.add(token);
+                }
+            }
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            if (column == null) {
+                terms.add('"' + TextUtils.join(" ", tokens) + "*\"");
+            } else {
+                for (int i = 0; i < tokens.size(); i++) {
+                    String suffix = i == tokens.size() - 1 ? "*" : "";
+                    terms.add(column + ':' + toLowerCaseAscii(tokens.get(i)) + suffix);
                 }
-                selection.append(column).append(" LIKE ?");
-                selectionKeywords[iKeyword] = keyword;
-                iKeyword++;
             }
-            selection.append(") ");
         }
-        return new AppQuerySelection(selection.toString(), selectionKeywords);
+        return terms.isEmpty() ? null : TextUtils.join(" ", terms);
+    }
+
+    /**
+     * The "simple" tokenizer only folds the case of ASCII letters, so anything else has to be
+     * left as it is for the index to find it.
+     */
+    private static String toLowerCaseAscii(String token) {
+        final char[] chars = token.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] = (char) (chars[i] + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
     }
 
     protected AppQuerySelection querySingle(String packageName, long repoId) {
@@ -776,10 +881,13 @@ public class AppProvider extends FDroidProvider {
 
         int limit = 0;
 
+        // Search results are ranked by where the keywords were found before sortOrder applies.
+        OrderClause searchRank = null;
+
         List<String> pathSegments = uri.getPathSegments();
         switch (MATCHER.match(uri)) {
             case CALC_PREFERRED_METADATA:
-                updatePreferredMetadata();
+                updatePreferredMetadata(null);
                 return null;
 
             case CODE_LIST:
@@ -811,6 +919,7 @@ public class AppProvider extends FDroidProvider {
 
             case SEARCH_TEXT:
                 selection = selection.add(querySearch(pathSegments.get(1)));
+                searchRank = orderBySearchRank(pathSegments.get(1));
                 includeSwap = false;
                 break;
 
@@ -818,6 +927,7 @@ public class AppProvider extends FDroidProvider {
                 selection = selection
                         .add(querySearch(pathSegments.get(1)))
                         .add(queryCategory(pathSegments.get(2)));
+                searchRank = orderBySearchRank(pathSegments.get(1));
                 includeSwap = false;
                 break;
 
@@ -825,6 +935,7 @@ public class AppProvider extends FDroidProvider {
                 selection = selection
                         .add(querySearch(pathSegments.get(2)))
                         .add(queryRepo(Long.parseLong(pathSegments.get(1))));
+                searchRank = orderBySearchRank(pathSegments.get(2));
                 repoIsKnown = true;
                 break;
 
@@ -875,14 +986,17 @@ public class AppProvider extends FDroidProvider {
             selection = selection.add(queryHighestPriority());
         }
 
-        return runQuery(uri, selection, projection, includeSwap, sortOrder, limit);
+        return runQuery(uri, selection, projection, includeSwap, searchRank, sortOrder, limit);
     }
 
     /**
      * Helper method used by both the genuine {@link AppProvider} and the temporary version used
      * by the repo updater ({@link TempAppProvider}).
+     *
+     * @param firstOrderBy Sorted by before {@code sortOrder}, if not null.
      */
-    protected Cursor runQuery(Uri uri, AppQuerySelection selection, String[] projection, boolean includeSwap, String sortOrder, int limit) {
+    protected Cursor runQuery(Uri uri, AppQuerySelection selection, String[] projection, boolean includeSwap,
+                              @Nullable OrderClause firstOrderBy, String sortOrder, int limit) {
         if (!includeSwap) {
             selection = selection.add(queryExcludeSwap());
         }
@@ -894,10 +1008,11 @@ public class AppProvider extends FDroidProvider {
         Query query = new Query();
         query.addSelection(selection);
         query.addFields(projection); // TODO: Make the order of addFields/addSelection not dependent on each other...
+        query.addOrderBy(firstOrderBy);
         query.addOrderBy(sortOrder);
         query.addLimit(limit);
 
-        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs(), getQueryMetricName(uri));
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -988,6 +1103,11 @@ public class AppProvider extends FDroidProvider {
 
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
+        if (MATCHER.match(uri) == CALC_DETAILS_FOR_COMMITTED_PACKAGES) {
+            updateAppDetails(TempAppProvider.getCommittedPackageIdsQuery());
+            return 0;
+        }
+
         if (MATCHER.match(uri) != CALC_SUGGESTED_APKS) {
             throw new UnsupportedOperationException("Update not supported for " + uri + ".");
         }
@@ -1003,17 +1123,27 @@ public class AppProvider extends FDroidProvider {
         return 0;
     }
 
-    protected void updateAllAppDetails() {
-        updatePreferredMetadata();
-        updateCompatibleFlags();
-        updateSuggestedFromUpstream(null);
-        updateSuggestedFromLatest(null);
-        updateIconUrls();
+    /**
+     * @param packageIds A query selecting the {@link PackageTable} IDs to update the details
+     *                   of.  All rows of those packages are updated, from every repo, because
+     *                   the preferred metadata and the suggested version both depend on the
+     *                   other repos which have the package.
+     */
+    private void updateAppDetails(@NonNull String packageIds) {
+        Tracing.Span span = Tracing.begin("recalculateAppDetails", "committed");
+        try {
+            updatePreferredMetadata(packageIds);
+            updateCompatibleFlags(packageIds);
+            updateSuggested(packageIds, null);
+            updateIconUrls(packageIds);
+        } finally {
+            span.end();
+        }
     }
 
     /**
      * If the repo hasn't changed, then there are many things which we shouldn't waste time updating
-     * (compared to {@link AppProvider#updateAllAppDetails()}:
+     * (compared to {@link AppProvider#updateAppDetails(String)}:
      *
      * + The "preferred metadata", as that is calculated based on repo with highest priority, and
      *   only takes into account the package name, not specific versions, when figuring this out.
@@ -1028,16 +1158,24 @@ public class AppProvider extends FDroidProvider {
      * {@link android.app.IntentService} as described in https://gitlab.com/fdroid/fdroidclient/issues/520.
      */
     protected void updateSuggestedApks() {
-        updateSuggestedFromUpstream(null);
-        updateSuggestedFromLatest(null);
+        updateSuggested(null, null);
     }
 
     protected void updateSuggestedApk(String packageName) {
-        updateSuggestedFromUpstream(packageName);
-        updateSuggestedFromLatest(packageName);
+        updateSuggested(getPackageIdFromPackageNameQuery(), new String[]{packageName});
     }
 
-    private void updatePreferredMetadata() {
+    private void updateSuggested(@Nullable String packageIds, @Nullable String[] args) {
+        Tracing.Span span = Tracing.begin("recalculateSuggestedApks", args == null ? null : args[0]);
+        try {
+            updateSuggestedFromUpstream(packageIds, args);
+            updateSuggestedFromLatest(packageIds, args);
+        } finally {
+            span.end();
+        }
+    }
+
+    private void updatePreferredMetadata(@Nullable String packageIds) {
         Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
 
         final String app = getTableName();
@@ -1056,7 +1194,11 @@ public class AppProvider extends FDroidProvider {
                 " JOIN " + RepoTable.NAME + " AS repo ON (metadata." + Cols.REPO_ID + " = repo." + RepoTable.Cols._ID + ") " +
                 " WHERE metadata." + Cols.PACKAGE_ID + " = " + PackageTable.NAME + "." + PackageTable.Cols.ROW_ID +
                 " AND repo." + RepoTable.Cols.PRIORITY + " = (" + highestPriority + ")" +
-                ");";
+                ")";
+
+        if (packageIds != null) {
+            updateSql += " WHERE " + PackageTable.Cols.ROW_ID + " IN (" + packageIds + ")";
+        }
 
         db().execSQL(updateSql);
     }
@@ -1065,7 +1207,7 @@ public class AppProvider extends FDroidProvider {
      * For each app, we want to set the isCompatible flag to 1 if any of the apks we know
      * about are compatible, and 0 otherwise.
      */
-    private void updateCompatibleFlags() {
+    private void updateCompatibleFlags(@Nullable String packageIds) {
         Utils.debugLog(TAG, "Calculating whether apps are compatible, based on whether any of their apks are compatible");
 
         final String apk = getApkTableName();
@@ -1075,7 +1217,11 @@ public class AppProvider extends FDroidProvider {
                 "UPDATE " + app + " SET " + Cols.IS_COMPATIBLE + " = ( " +
                 " SELECT TOTAL( " + apk + "." + ApkTable.Cols.IS_COMPATIBLE + ") > 0 " +
                 " FROM " + apk +
-                " WHERE " + apk + "." + ApkTable.Cols.APP_ID + " = " + app + "." + Cols.ROW_ID + " );";
+                " WHERE " + apk + "." + ApkTable.Cols.APP_ID + " = " + app + "." + Cols.ROW_ID + " )";
+
+        if (packageIds != null) {
+            updateSql += " WHERE " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ")";
+        }
 
         db().execSQL(updateSql);
     }
@@ -1088,9 +1234,11 @@ public class AppProvider extends FDroidProvider {
      * If the app is installed, then all apks signed by a different certificate are
      * ignored for the purpose of this calculation.
      *
-     * @see #updateSuggestedFromLatest(String)
+     * @param packageIds A query selecting the {@link PackageTable} IDs to update, using
+     *                   {@code args}, or {@code null} to update every app.
+     * @see #updateSuggestedFromLatest(String, String[])
      */
-    private void updateSuggestedFromUpstream(@Nullable String packageName) {
+    private void updateSuggestedFromUpstream(@Nullable String packageIds, @Nullable String[] args) {
         Utils.debugLog(TAG, "Calculating suggested versions for all NON-INSTALLED apps which specify an upstream version code.");
 
         final String apk = getApkTableName();
@@ -1101,11 +1249,9 @@ public class AppProvider extends FDroidProvider {
         String restrictToStable = unstableUpdates ? "" : (apk + "." + ApkTable.Cols.VERSION_CODE + " <= " + app + "." + Cols.SUGGESTED_VERSION_CODE + " AND ");
 
         String restrictToApp = "";
-        String[] args = null;
 
-        if (packageName != null) {
-            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
-            args = new String[]{packageName};
+        if (packageIds != null) {
+            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ";
         }
 
         // The join onto `appForThisApk` is to ensure that the MAX(apk.versionCode) is chosen from
@@ -1135,7 +1281,7 @@ public class AppProvider extends FDroidProvider {
                     " ( " + app + "." + Cols.IS_COMPATIBLE + " = 0 OR " + apk + "." + Cols.IS_COMPATIBLE + " = 1 ) ) " +
                 " WHERE " + Cols.SUGGESTED_VERSION_CODE + " > 0 " + restrictToApp;
 
-        LoggingQuery.execSQL(db(), updateSql, args);
+        LoggingQuery.execSQL(db(), updateSql, args, getQueryMetricName("updateSuggestedFromUpstream"));
     }
 
     /**
@@ -1146,26 +1292,23 @@ public class AppProvider extends FDroidProvider {
      * out from the upstream vercode. In such a case, fall back to the simpler
      * algorithm as if upstreamVercode was 0.
      *
-     * @see #updateSuggestedFromUpstream(String)
+     * @param packageIds A query selecting the {@link PackageTable} IDs to update, using
+     *                   {@code args}, or {@code null} to update every app.
+     * @see #updateSuggestedFromUpstream(String, String[])
      */
-    private void updateSuggestedFromLatest(@Nullable String packageName) {
+    private void updateSuggestedFromLatest(@Nullable String packageIds, @Nullable String[] args) {
         Utils.debugLog(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
 
         final String apk = getApkTableName();
         final String app = getTableName();
         final String installed = InstalledAppTable.NAME;
 
-        final String restrictToApps;
-        final String[] args;
+        // Don't update an app with an upstream version code, because that would have been updated
+        // by updateSuggestedFromUpstream(), unless it could not find a suitable version there.
+        String restrictToApps = " ( COALESCE(" + Cols.SUGGESTED_VERSION_CODE + ", 0) = 0 OR " + Cols.AUTO_INSTALL_VERSION_CODE + " IS NULL ) ";
 
-        if (packageName == null) {
-            restrictToApps = " COALESCE(" + Cols.SUGGESTED_VERSION_CODE + ", 0) = 0 OR " + Cols.AUTO_INSTALL_VERSION_CODE + " IS NULL ";
-            args = null;
-        } else {
-            // Don't update an app with an upstream version code, because that would have been updated
-            // by updateSuggestedFromUpdate(packageName).
-            restrictToApps = " COALESCE(" + Cols.SUGGESTED_VERSION_CODE + ", 0) = 0 AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
-            args = new String[]{packageName};
+        if (packageIds != null) {
+            restrictToApps += " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ";
         }
 
         String updateSql =
@@ -1180,16 +1323,19 @@ public class AppProvider extends FDroidProvider {
                     " ( " + app + "." + Cols.IS_COMPATIBLE + " = 0 OR " + apk + "." + ApkTable.Cols.IS_COMPATIBLE + " = 1 ) ) " +
                 " WHERE " + restrictToApps;
 
-        LoggingQuery.execSQL(db(), updateSql, args);
+        LoggingQuery.execSQL(db(), updateSql, args, getQueryMetricName("updateSuggestedFromLatest"));
     }
 
-    private void updateIconUrls() {
+    private void updateIconUrls(@Nullable String packageIds) {
         final String appTable = getTableName();
         final String iconsDir = Utils.getIconsDir(getContext(), 1.0);
         String repoVersion = Integer.toString(Repo.VERSION_DENSITY_SPECIFIC_ICONS);
         Utils.debugLog(TAG, "Updating icon paths for apps belonging to repos with version >= " + repoVersion);
         Utils.debugLog(TAG, "Using icons dir '" + iconsDir + "'");
         String query = getIconUpdateQuery(appTable);
+        if (packageIds != null) {
+            query += " WHERE " + appTable + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ")";
+        }
         final String[] params = {
             repoVersion, iconsDir, Utils.FALLBACK_ICONS_DIR,
         };
@@ -211,7 +211,7 @@ public class CategoryProvider extends FDroidProvider {
             query.setOnlyCategoriesWithApps();
         }
 
-        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs(), getQueryMetricName(uri));
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -26,6 +26,7 @@ package org.fdroid.fdroid.data;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
@@ -35,11 +36,14 @@ import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
 import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkHashCacheTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataFtsTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+import org.fdroid.fdroid.data.Schema.MirrorStatsTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 import org.xmlpull.v1.XmlPullParser;
@@ -226,7 +230,64 @@ public class DBHelper extends SQLiteOpenHelper {
             + "primary key(" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
             + " );";
 
-    protected static final int DB_VERSION = 82;
+    private static final String CREATE_TABLE_MIRROR_STATS = "CREATE TABLE " + MirrorStatsTable.NAME
+            + " ( "
+            + MirrorStatsTable.Cols.HOST + " TEXT NOT NULL PRIMARY KEY, "
+            + MirrorStatsTable.Cols.CONNECT_MS + " REAL NOT NULL, "
+            + MirrorStatsTable.Cols.TTFB_MS + " REAL NOT NULL, "
+            + MirrorStatsTable.Cols.BYTES_PER_SECOND + " REAL NOT NULL, "
+            + MirrorStatsTable.Cols.ERROR_RATE + " REAL NOT NULL, "
+            + MirrorStatsTable.Cols.SAMPLE_COUNT + " INTEGER NOT NULL, "
+            + MirrorStatsTable.Cols.LAST_MEASURED + " INTEGER NOT NULL, "
+            + MirrorStatsTable.Cols.LAST_FAILURE + " INTEGER NOT NULL DEFAULT 0"
+            + " );";
+
+    private static final String CREATE_TABLE_APK_HASH_CACHE = "CREATE TABLE " + ApkHashCacheTable.NAME
+            + " ( "
+            + ApkHashCacheTable.Cols.PATH + " TEXT NOT NULL PRIMARY KEY, "
+            + ApkHashCacheTable.Cols.SIZE + " INTEGER NOT NULL, "
+            + ApkHashCacheTable.Cols.LAST_MODIFIED + " INTEGER NOT NULL, "
+            + ApkHashCacheTable.Cols.INODE + " INTEGER NOT NULL DEFAULT 0, "
+            + ApkHashCacheTable.Cols.HASH_TYPE + " TEXT NOT NULL, "
+            + ApkHashCacheTable.Cols.HASH + " TEXT NOT NULL"
+            + " );";
+
+    /**
+     * A plain FTS4 table rather than one using {@code content=} to point at
+     * {@link AppMetadataTable}, since external content tables need SQLite 3.7.9,
+     * which is newer than what ships with the oldest supported Android versions.
+     */
+    private static final String CREATE_TABLE_APP_METADATA_FTS = "CREATE VIRTUAL TABLE " + AppMetadataFtsTable.NAME
+            + " USING fts4("
+            + AppMetadataFtsTable.Cols.NAME + ", "
+            + AppMetadataFtsTable.Cols.SUMMARY + ", "
+            + AppMetadataFtsTable.Cols.DESCRIPTION
+            + ");";
+
+    private static final String APP_METADATA_FTS_INSERT_NEW = "INSERT INTO " + AppMetadataFtsTable.NAME
+            + " (" + AppMetadataFtsTable.Cols.DOC_ID + ", " + TextUtils.join(", ", AppMetadataFtsTable.Cols.ALL) + ")"
+            + " VALUES (new." + AppMetadataTable.Cols.ROW_ID + ", new." + AppMetadataTable.Cols.NAME
+            + ", new." + AppMetadataTable.Cols.SUMMARY + ", new." + AppMetadataTable.Cols.DESCRIPTION + ");";
+
+    private static final String APP_METADATA_FTS_DELETE_OLD = "DELETE FROM " + AppMetadataFtsTable.NAME
+            + " WHERE " + AppMetadataFtsTable.Cols.DOC_ID + " = old." + AppMetadataTable.Cols.ROW_ID + ";";
+
+    private static final String APP_METADATA_FTS_UPDATE_OF = " UPDATE OF " + AppMetadataTable.Cols.NAME + ", "
+            + AppMetadataTable.Cols.SUMMARY + ", " + AppMetadataTable.Cols.DESCRIPTION
+            + " ON " + AppMetadataTable.NAME;
+
+    private static final String[] CREATE_TRIGGERS_APP_METADATA_FTS = {
+            "CREATE TRIGGER IF NOT EXISTS appMetadataFts_insert AFTER INSERT ON " + AppMetadataTable.NAME
+                    + " BEGIN " + APP_METADATA_FTS_INSERT_NEW + " END;",
+            "CREATE TRIGGER IF NOT EXISTS appMetadataFts_delete BEFORE DELETE ON " + AppMetadataTable.NAME
+                    + " BEGIN " + APP_METADATA_FTS_DELETE_OLD + " END;",
+            "CREATE TRIGGER IF NOT EXISTS appMetadataFts_beforeUpdate BEFORE" + APP_METADATA_FTS_UPDATE_OF
+                    + " BEGIN " + APP_METADATA_FTS_DELETE_OLD + " END;",
+            "CREATE TRIGGER IF NOT EXISTS appMetadataFts_afterUpdate AFTER" + APP_METADATA_FTS_UPDATE_OF
+                    + " BEGIN " + APP_METADATA_FTS_INSERT_NEW + " END;",
+    };
+
+    protected static final int DB_VERSION = 86;
 
     private final Context context;
 
@@ -266,7 +327,10 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_APP_PREFS);
         db.execSQL(CREATE_TABLE_ANTI_FEATURE);
         db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
+        db.execSQL(CREATE_TABLE_MIRROR_STATS);
+        db.execSQL(CREATE_TABLE_APK_HASH_CACHE);
         ensureIndexes(db);
+        createAppMetadataFts(db);
 
         List<String> initialRepos = DBHelper.loadInitialRepos(context);
 
@@ -454,6 +518,62 @@ public class DBHelper extends SQLiteOpenHelper {
         addDisabledMirrorsFields(db, oldVersion);
         addIsLocalized(db, oldVersion);
         addTranslation(db, oldVersion);
+        addMirrorStatsTable(db, oldVersion);
+        addAppMetadataFts(db, oldVersion);
+        addApkHashCacheTable(db, oldVersion);
+        makePackageNamesUnique(db, oldVersion);
+    }
+
+    /**
+     * Packages used to be added by both index updates and the installed app
+     * tracking without anything stopping them both adding the same one.  If
+     * that happened, the index tables are rebuilt, since the apps and
+     * installed apps may point at either of the duplicates.
+     */
+    private void makePackageNamesUnique(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 86) {
+            return;
+        }
+        if (!tableExists(db, PackageTable.NAME)) {
+            return;
+        }
+        long duplicates = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (SELECT "
+                + PackageTable.Cols.PACKAGE_NAME + " FROM " + PackageTable.NAME + " GROUP BY "
+                + PackageTable.Cols.PACKAGE_NAME + " HAVING COUNT(*) > 1)", null);
+        if (duplicates > 0) {
+            Utils.debugLog(TAG, "Found " + duplicates + " duplicated package names, resetting index tables");
+            resetTransient(db);
+        }
+        Utils.debugLog(TAG, "Making " + PackageTable.Cols.PACKAGE_NAME + " unique in " + PackageTable.NAME);
+        db.execSQL("DROP INDEX IF EXISTS package_packageName");
+        ensureIndexes(db);
+    }
+
+    private void addApkHashCacheTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 85) {
+            return;
+        }
+        if (!tableExists(db, ApkHashCacheTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + ApkHashCacheTable.NAME + " table");
+            db.execSQL(CREATE_TABLE_APK_HASH_CACHE);
+        }
+    }
+
+    private void addAppMetadataFts(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 84) {
+            return;
+        }
+        createAppMetadataFts(db);
+    }
+
+    private void addMirrorStatsTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 83) {
+            return;
+        }
+        if (!tableExists(db, MirrorStatsTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + MirrorStatsTable.NAME + " table");
+            db.execSQL(CREATE_TABLE_MIRROR_STATS);
+        }
     }
 
     private void addTranslation(SQLiteDatabase db, int oldVersion) {
@@ -1250,7 +1370,8 @@ public class DBHelper extends SQLiteOpenHelper {
     /**
      * Resets all database tables that are generated from the index files downloaded
      * from the active repositories.  This will trigger the index file(s) to be
-     * downloaded processed on the next update.
+     * downloaded processed on the next update, or to be processed again from the
+     * copies kept by {@link org.fdroid.fdroid.RetainedIndex} where possible.
      */
     public static void resetTransient(Context context) {
         resetTransient(getInstance(context).getWritableDatabase());
@@ -1260,6 +1381,7 @@ public class DBHelper extends SQLiteOpenHelper {
         Utils.debugLog(TAG, "Removing all index tables, they will be recreated next time F-Droid updates.");
 
         Preferences.get().resetLastUpdateCheck();
+        Preferences.get().setIndexRebuildPending(true);
 
         db.beginTransaction();
         try {
@@ -1300,6 +1422,7 @@ public class DBHelper extends SQLiteOpenHelper {
             db.execSQL(CREATE_TABLE_INSTALLED_APP);
             clearRepoEtags(db);
             ensureIndexes(db);
+            createAppMetadataFts(db);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -1326,10 +1449,31 @@ public class DBHelper extends SQLiteOpenHelper {
         ensureIndexes(db);
     }
 
+    /**
+     * (Re)creates {@link AppMetadataFtsTable} and the triggers which keep it in sync with
+     * {@link AppMetadataTable}, then fills it with whatever is in {@link AppMetadataTable}
+     * right now.  Dropping {@link AppMetadataTable} also drops the triggers, so this needs
+     * to be run again whenever that table is recreated.
+     */
+    private static void createAppMetadataFts(SQLiteDatabase db) {
+        Utils.debugLog(TAG, "Creating " + AppMetadataFtsTable.NAME + " and its triggers");
+        db.execSQL("DROP TABLE IF EXISTS " + AppMetadataFtsTable.NAME);
+        db.execSQL(CREATE_TABLE_APP_METADATA_FTS);
+        for (String createTrigger : CREATE_TRIGGERS_APP_METADATA_FTS) {
+            db.execSQL(createTrigger);
+        }
+        db.execSQL("INSERT INTO " + AppMetadataFtsTable.NAME + " (" + AppMetadataFtsTable.Cols.DOC_ID + ", "
+                + TextUtils.join(", ", AppMetadataFtsTable.Cols.ALL) + ")"
+                + " SELECT " + AppMetadataTable.Cols.ROW_ID + ", " + AppMetadataTable.Cols.NAME + ", "
+                + AppMetadataTable.Cols.SUMMARY + ", " + AppMetadataTable.Cols.DESCRIPTION
+                + " FROM " + AppMetadataTable.NAME);
+    }
+
     private static void ensureIndexes(SQLiteDatabase db) {
         if (tableExists(db, PackageTable.NAME)) {
             Utils.debugLog(TAG, "Ensuring indexes exist for " + PackageTable.NAME);
-            db.execSQL("CREATE INDEX IF NOT EXISTS package_packageName on " + PackageTable.NAME + " (" + PackageTable.Cols.PACKAGE_NAME + ");");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS package_packageName on " + PackageTable.NAME
+                    + " (" + PackageTable.Cols.PACKAGE_NAME + ");");
             db.execSQL("CREATE INDEX IF NOT EXISTS package_preferredMetadata on " + PackageTable.NAME + " (" + PackageTable.Cols.PREFERRED_METADATA + ");");
         }
 
@@ -13,6 +13,8 @@ import android.os.Build;
 import android.support.annotation.NonNull;
 import org.fdroid.fdroid.BuildConfig;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Map;
@@ -94,6 +96,31 @@ public abstract class FDroidProvider extends ContentProvider {
 
     protected abstract UriMatcher getMatcher();
 
+    /**
+     * The name that queries for {@code uri} are recorded under in {@link QueryMetrics},
+     * made up of the provider and the {@link UriMatcher} code that {@code uri} matches.
+     */
+    protected final String getQueryMetricName(Uri uri) {
+        return getProviderName() + "/" + getMatcher().match(uri);
+    }
+
+    /**
+     * The name that a statement which does not come from a {@link Uri} is recorded
+     * under in {@link QueryMetrics}, e.g. the name of the method running it.
+     */
+    protected final String getQueryMetricName(String operation) {
+        return getProviderName() + "/" + operation;
+    }
+
+    /**
+     * Print the {@link QueryMetrics} of this provider, with
+     * {@code adb shell dumpsys activity provider <provider class>}.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        QueryMetrics.dump(writer, getProviderName() + "/");
+    }
+
     protected static String generateQuestionMarksForInClause(int num) {
         StringBuilder sb = new StringBuilder(num * 2);
         for (int i = 0; i < num; i++) {
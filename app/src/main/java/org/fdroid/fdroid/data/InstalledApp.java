@@ -84,6 +84,10 @@ public class InstalledApp extends ValueObject {
         return hashType;
     }
 
+    /**
+     * @return the hash of the installed APK, or an empty string if it was not
+     * calculated because no repo has this package, see {@link ApkHashCache}
+     */
     public String getHash() {
         return hash;
     }
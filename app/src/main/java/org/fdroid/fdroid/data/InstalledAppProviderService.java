@@ -23,8 +23,10 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -47,6 +49,14 @@ import java.util.concurrent.TimeUnit;
  * processes where some outside factor uninstalled the package while the F-Droid
  * process was underway, e.g. uninstalling via {@code adb}, updates via Google
  * Play, Yalp, etc.
+ * <p>
+ * Reading every installed APK in full is slow, so the hashes are looked up in
+ * {@link ApkHashCache} first.  Once some repo has been indexed, only the packages
+ * which are available from a repo get hashed at all, the rest are stored with an
+ * empty hash.  The hash is what tells whether the installed APK is one with
+ * {@link AppProvider#getInstalledWithKnownVulnsUri() known vulnerabilities}, so
+ * each repo update that adds such a package is followed by
+ * {@link #hashNewlyTrackedPackages(Context)}.
  */
 @SuppressWarnings("LineLength")
 public class InstalledAppProviderService extends JobIntentService {
@@ -57,6 +67,8 @@ public class InstalledAppProviderService extends JobIntentService {
 
     private static final String EXTRA_PACKAGE_INFO = "org.fdroid.fdroid.data.extra.PACKAGE_INFO";
 
+    private static final String HASH_TYPE = "sha256";
+
     /**
      * This is for notifing the users of this {@link android.content.ContentProvider}
      * that the contents has changed.  Since {@link Intent}s can come in slow
@@ -103,6 +115,12 @@ public class InstalledAppProviderService extends JobIntentService {
                 });
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        ApkHashCache.logStats();
+    }
+
     /**
      * Inserts an app into {@link InstalledAppProvider} based on a {@code package:} {@link Uri}.
      * This has no checks for whether it is inserting an exact duplicate, whatever is provided
@@ -171,12 +189,22 @@ public class InstalledAppProviderService extends JobIntentService {
      * time since we have no way to know whether an APK wasn't changed as part of an
      * OTA update.  An OTA update could change the APK without changing the
      * {@link PackageInfo#versionCode} or {@link PackageInfo#lastUpdateTime}.
+     * {@link ApkHashCache} still notices that case without reading the whole APK.
+     * <p>
+     * Packages which were stored without a hash, but which a repo now provides,
+     * are also inserted again, and the hashing of all packages that will need
+     * it is started in the background right away.  Before any repo has been
+     * indexed, that is all of them.  Cached hashes of APKs which are no longer
+     * installed are forgotten.
      *
      * @see <a href="https://gitlab.com/fdroid/fdroidclient/issues/819>issue #819</a>
      */
     public static void compareToPackageManager(Context context) {
         Utils.debugLog(TAG, "Comparing package manager to our installed app cache.");
         Map<String, Long> cachedInfo = InstalledAppProvider.Helper.lastUpdateTimes(context);
+        Set<String> trackedPackages = ApkHashCache.Helper.findTrackedPackageNames(context);
+        boolean hashAll = trackedPackages.isEmpty();
+        Set<String> unhashedPackages = ApkHashCache.Helper.findUnhashedTrackedPackageNames(context);
 
         List<PackageInfo> packageInfoList = context.getPackageManager()
                 .getInstalledPackages(PackageManager.GET_SIGNATURES);
@@ -186,14 +214,27 @@ public class InstalledAppProviderService extends JobIntentService {
                 return o1.packageName.compareTo(o2.packageName);
             }
         });
+        Set<String> installedApkPaths = new HashSet<>(packageInfoList.size());
         for (PackageInfo packageInfo : packageInfoList) {
+            File apk = getPathToInstalledApk(packageInfo);
+            if (apk != null) {
+                installedApkPaths.add(apk.getAbsolutePath());
+            }
+
+            boolean needsInsert;
             if (cachedInfo.containsKey(packageInfo.packageName)) {
-                if (packageInfo.lastUpdateTime < 1262300400000L // 2010-01-01 00:00
-                        || packageInfo.lastUpdateTime > cachedInfo.get(packageInfo.packageName)) {
-                    insert(context, packageInfo);
-                }
+                needsInsert = packageInfo.lastUpdateTime < 1262300400000L // 2010-01-01 00:00
+                        || packageInfo.lastUpdateTime > cachedInfo.get(packageInfo.packageName)
+                        || unhashedPackages.contains(packageInfo.packageName);
                 cachedInfo.remove(packageInfo.packageName);
             } else {
+                needsInsert = true;
+            }
+
+            if (needsInsert) {
+                if (apk != null && (hashAll || trackedPackages.contains(packageInfo.packageName))) {
+                    ApkHashCache.prefetch(context, apk, HASH_TYPE);
+                }
                 insert(context, packageInfo);
             }
         }
@@ -201,6 +242,40 @@ public class InstalledAppProviderService extends JobIntentService {
         for (String packageName : cachedInfo.keySet()) {
             delete(context, packageName);
         }
+
+        int forgotten = ApkHashCache.Helper.deleteAllExcept(context, installedApkPaths);
+        if (forgotten > 0) {
+            Utils.debugLog(TAG, "Forgot the hashes of " + forgotten + " APKs which are no longer installed.");
+        }
+    }
+
+    /**
+     * Hash the installed packages which were stored without a hash, because no
+     * repo provided them at the time, but which a repo update has just added.
+     * Without their hash, {@link AppProvider#getInstalledWithKnownVulnsUri()}
+     * cannot find them.  This runs right away on the calling thread, rather than
+     * in this {@link JobIntentService}, so that they are all hashed by the time
+     * the repo update has finished.
+     */
+    @SuppressWarnings("PackageManagerGetSignatures")
+    public static void hashNewlyTrackedPackages(Context context) {
+        PackageManager packageManager = context.getPackageManager();
+        for (String packageName : ApkHashCache.Helper.findUnhashedTrackedPackageNames(context)) {
+            PackageInfo packageInfo;
+            try {
+                packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+            } catch (PackageManager.NameNotFoundException e) {
+                continue;
+            }
+            File apk = getPathToInstalledApk(packageInfo);
+            if (apk == null || !apk.canRead()) {
+                continue;
+            }
+            String hash = ApkHashCache.getHash(context, apk, HASH_TYPE);
+            if (hash != null) {
+                insertAppIntoDb(context, packageInfo, HASH_TYPE, hash);
+            }
+        }
     }
 
     @Nullable
@@ -245,9 +320,7 @@ public class InstalledAppProviderService extends JobIntentService {
                 }
                 if (apk.exists() && apk.canRead()) {
                     try {
-                        String hashType = "sha256";
-                        String hash = Utils.getBinaryHash(apk, hashType);
-                        insertAppIntoDb(this, packageInfo, hashType, hash);
+                        insertAppIntoDb(this, packageInfo, HASH_TYPE, getHash(this, packageName, apk));
                     } catch (IllegalArgumentException e) {
                         Utils.debugLog(TAG, e.getMessage());
                         ACRA.getErrorReporter().handleException(e, false);
@@ -264,6 +337,17 @@ public class InstalledAppProviderService extends JobIntentService {
         packageChangeNotifier.onNext(packageName);
     }
 
+    /**
+     * @return the hash of the installed {@code apk}, or an empty string if no repo
+     * provides {@code packageName}, so there is nothing to compare it to
+     */
+    static String getHash(Context context, String packageName, File apk) {
+        boolean hashIfMissing = !ApkHashCache.Helper.hasTrackedPackages(context)
+                || ApkHashCache.Helper.isTracked(context, packageName);
+        String hash = ApkHashCache.getHash(context, apk, HASH_TYPE, hashIfMissing);
+        return hash == null ? "" : hash;
+    }
+
     /**
      * This class will either have received an intent from the {@link InstalledAppProviderService}
      * itself, while iterating over installed apps, or from a {@link Intent#ACTION_PACKAGE_ADDED}
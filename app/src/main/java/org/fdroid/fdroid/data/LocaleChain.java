@@ -0,0 +1,149 @@
+package org.fdroid.fdroid.data;
+
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.LocaleList;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The locales the user prefers, in the order that the {@code localized} block
+ * of each {@link App} in {@code index-v1.json} is searched, see
+ * {@link App#setLocalized(java.util.Map)} for the rules.  Working this out
+ * means asking the system for the locale list, then sorting and splitting it,
+ * so it is done once per index import rather than once per app.  It is handed
+ * to Jackson as an injectable value with the id {@link #INJECT_ID}, see
+ * {@link org.fdroid.fdroid.IndexV1Updater#getObjectMapperInstance(long)}.
+ * <p>
+ * Since the chain is known before parsing, it also says which locales can
+ * never be chosen, so {@link LocalizedDeserializer} can skip over them in the
+ * JSON instead of building a map for each one.
+ */
+public final class LocaleChain {
+
+    public static final String INJECT_ID = "localeChain";
+
+    private final String localeTag;
+    private final String languageTag;
+
+    /**
+     * The system locale list, shortest first, or {@code null} before {@code android-24}.
+     */
+    private final String[] sortedLocaleList;
+
+    /**
+     * The language of each entry in {@link #sortedLocaleList}.
+     */
+    private final String[] sortedLanguageList;
+
+    private final Set<String> wantedLocales = new HashSet<>();
+    private final boolean pruneUnwanted;
+
+    private LocaleChain(Locale defaultLocale, String[] localeList, boolean pruneUnwanted) {
+        this.pruneUnwanted = pruneUnwanted;
+        languageTag = defaultLocale.getLanguage();
+        String countryTag = defaultLocale.getCountry();
+        if (TextUtils.isEmpty(countryTag)) {
+            localeTag = languageTag;
+        } else {
+            localeTag = languageTag + "-" + countryTag;
+        }
+        wantedLocales.add(localeTag);
+        wantedLocales.add(languageTag);
+        wantedLocales.add("en-US");
+
+        sortedLocaleList = localeList;
+        if (sortedLocaleList == null) {
+            sortedLanguageList = null;
+        } else {
+            Arrays.sort(sortedLocaleList, new Comparator<String>() {
+                @Override
+                public int compare(String s1, String s2) {
+                    return s1.length() - s2.length();
+                }
+            });
+            sortedLanguageList = new String[sortedLocaleList.length];
+            for (int i = 0; i < sortedLocaleList.length; i++) {
+                sortedLanguageList[i] = sortedLocaleList[i].split("-")[0];
+                wantedLocales.add(sortedLocaleList[i]);
+                wantedLocales.add(sortedLanguageList[i]);
+            }
+        }
+    }
+
+    /**
+     * Resolve the chain for the current {@link Locale#getDefault()} and, on
+     * {@code android-24} or newer, the system locale list.
+     */
+    public static LocaleChain fromDevice() {
+        return fromDevice(true);
+    }
+
+    /**
+     * @param pruneUnwanted whether {@link #isWanted(String)} should rule out the
+     *                      locales that cannot be chosen, rather than keeping all of them
+     */
+    public static LocaleChain fromDevice(boolean pruneUnwanted) {
+        String[] localeList = null;
+        if (Build.VERSION.SDK_INT >= 24) {
+            LocaleList locales = Resources.getSystem().getConfiguration().getLocales();
+            localeList = locales.toLanguageTags().split(",");
+        }
+        return new LocaleChain(Locale.getDefault(), localeList, pruneUnwanted);
+    }
+
+    /**
+     * Whether {@code locale} could be in {@link #getLocalesToUse(Set)} for any set
+     * of available locales.  If not, its block in the index can be skipped.
+     */
+    public boolean isWanted(String locale) {
+        if (!pruneUnwanted || wantedLocales.contains(locale) || locale.startsWith("en")) {
+            return true;
+        }
+        return sortedLocaleList == null && locale.startsWith(languageTag);
+    }
+
+    /**
+     * The locales to look in for each localized field, best first, out of the
+     * {@code availableLocales} that an app has.
+     */
+    public Set<String> getLocalesToUse(Set<String> availableLocales) {
+        Set<String> localesToUse = new LinkedHashSet<>();
+        if (availableLocales.contains(localeTag)) {
+            localesToUse.add(localeTag);
+        }
+        if (availableLocales.contains(languageTag)) {
+            localesToUse.add(languageTag);
+        }
+        if (sortedLocaleList != null) {
+            for (int i = 0; i < sortedLocaleList.length; i++) {
+                localesToUse.add(sortedLocaleList[i]);
+                if (availableLocales.contains(sortedLanguageList[i])) {
+                    localesToUse.add(sortedLanguageList[i]);
+                }
+            }
+        } else {
+            for (String l : availableLocales) {
+                if (l.startsWith(languageTag)) {
+                    localesToUse.add(l);
+                }
+            }
+        }
+        if (availableLocales.contains("en-US")) {
+            localesToUse.add("en-US");
+        }
+        for (String l : availableLocales) {
+            if (l.startsWith("en")) {
+                localesToUse.add(l);
+                break;
+            }
+        }
+        return localesToUse;
+    }
+}
@@ -0,0 +1,62 @@
+package org.fdroid.fdroid.data;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the {@code localized} block of an app in {@code index-v1.json}, which
+ * has one entry per locale, often dozens of them, each with a full description
+ * and lists of screenshots.  Only the few locales that the injected
+ * {@link LocaleChain} could choose are read into maps.  The rest are skipped
+ * token by token, without decoding their strings, and are kept only as empty
+ * entries, so that {@link App#setLocalized(Map)} still sees every locale that
+ * is available.
+ */
+class LocalizedDeserializer extends StdDeserializer<Map<String, Map<String, Object>>> {
+
+    private static final JavaType LOCALE_ENTRY_TYPE =
+            TypeFactory.defaultInstance().constructMapType(LinkedHashMap.class, String.class, Object.class);
+
+    LocalizedDeserializer() {
+        super(Map.class);
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> deserialize(JsonParser parser, DeserializationContext context)
+            throws IOException {
+        String locale;
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            locale = parser.nextFieldName();
+        } else if (parser.getCurrentToken() == JsonToken.FIELD_NAME) {
+            locale = parser.getCurrentName();
+        } else {
+            throw context.wrongTokenException(parser, JsonToken.START_OBJECT, "localized must be an object");
+        }
+
+        LocaleChain localeChain = (LocaleChain) context.findInjectableValue(LocaleChain.INJECT_ID, null, null);
+        Map<String, Map<String, Object>> localized = new LinkedHashMap<>();
+        while (locale != null) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                localized.put(locale, null);
+            } else if (localeChain.isWanted(locale)) {
+                Map<String, Object> entry = context.readValue(parser, LOCALE_ENTRY_TYPE);
+                localized.put(locale, entry);
+            } else {
+                parser.skipChildren();
+                localized.put(locale, Collections.<String, Object>emptyMap());
+            }
+            locale = parser.nextFieldName();
+        }
+        return localized;
+    }
+}
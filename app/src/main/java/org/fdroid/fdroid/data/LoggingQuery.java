@@ -4,12 +4,12 @@ import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
 
-import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Utils;
 
 /**
- * Helper class to log slow queries to logcat when in debug mode. When not in debug mode, it
- * runs the queries without any logging.
+ * Helper class to time every query and record it in {@link QueryMetrics}, and to log
+ * slow queries to logcat when in debug mode.  The query plans of slow queries are
+ * only sampled, see {@link QueryMetrics.Metric#shouldSamplePlan(long)}.
  *
  * Here is an example of what would be output to logcat for a query that takes too long (except the
  * query would not be formatted as nicely):
@@ -42,30 +42,24 @@ final class LoggingQuery {
     private final SQLiteDatabase db;
     private final String query;
     private final String[] queryArgs;
+    private final QueryMetrics.Metric metric;
 
-    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs) {
+    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs, String metricName) {
         this.db = db;
         this.query = query;
         this.queryArgs = queryArgs;
+        this.metric = QueryMetrics.get(metricName);
     }
 
     /**
-     * When running a debug build, this will log details (including query plans) for any query which
-     * takes longer than {@link LoggingQuery#SLOW_QUERY_DURATION}.
+     * The time it takes to run the query is recorded once it has actually been run, see
+     * {@link MetricsCursorWrapper}. Details (including query plans) are logged for any query
+     * which takes longer than {@link LoggingQuery#SLOW_QUERY_DURATION} when running a debug build.
      */
     private Cursor rawQuery() {
-        if (BuildConfig.DEBUG) {
-            long startTime = System.currentTimeMillis();
-            Cursor cursor = db.rawQuery(query, queryArgs);
-            long queryDuration = System.currentTimeMillis() - startTime;
-
-            if (queryDuration >= SLOW_QUERY_DURATION) {
-                logSlowQuery(queryDuration);
-            }
-
-            return new LogGetCountCursorWrapper(cursor);
-        }
-        return db.rawQuery(query, queryArgs);
+        long startTime = System.nanoTime();
+        Cursor cursor = db.rawQuery(query, queryArgs);
+        return new MetricsCursorWrapper(cursor, System.nanoTime() - startTime);
     }
 
     /**
@@ -74,38 +68,73 @@ final class LoggingQuery {
      * method to manually invoke the {@link Cursor#getCount()} method to force query execution.
      * It does so with a comment saying "Force query execution". When this happens, the call to
      * query() takes 1ms, whereas the call go getCount() is the bit which takes time.
-     * As such, we will also track that method duration in order to potentially log slow queries.
+     * As such, the first call to {@link Cursor#getCount()}, or to anything that moves the cursor
+     * and so runs the query, is also timed, and that is when the query is recorded.
      */
-    private final class LogGetCountCursorWrapper extends CursorWrapper {
-        private LogGetCountCursorWrapper(Cursor cursor) {
+    private final class MetricsCursorWrapper extends CursorWrapper {
+        private final long rawQueryNanos;
+        private boolean recorded;
+
+        private MetricsCursorWrapper(Cursor cursor, long rawQueryNanos) {
             super(cursor);
+            this.rawQueryNanos = rawQueryNanos;
         }
 
-        @Override
-        public int getCount() {
-            long startTime = System.currentTimeMillis();
+        private int recordOnce() {
+            long startTime = System.nanoTime();
             int count = super.getCount();
-            long queryDuration = System.currentTimeMillis() - startTime;
-            if (queryDuration >= SLOW_QUERY_DURATION) {
-                logSlowQuery(queryDuration);
+            if (!recorded) {
+                recorded = true;
+                record(rawQueryNanos + System.nanoTime() - startTime, count);
             }
             return count;
         }
-    }
 
-    private void execSQLInternal() {
-        if (BuildConfig.DEBUG) {
-            long startTime = System.currentTimeMillis();
-            long queryDuration = System.currentTimeMillis() - startTime;
-            executeSQLInternal();
-            if (queryDuration >= SLOW_QUERY_DURATION) {
-                logSlowQuery(queryDuration);
+        @Override
+        public int getCount() {
+            return recorded ? super.getCount() : recordOnce();
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            if (!recorded) {
+                recordOnce();
             }
-        } else {
-            executeSQLInternal();
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            if (!recorded) {
+                recordOnce();
+            }
+            return super.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (!recorded) {
+                recordOnce();
+            }
+            return super.moveToNext();
+        }
+
+        @Override
+        public void close() {
+            if (!recorded) {
+                recorded = true;
+                record(rawQueryNanos, -1);
+            }
+            super.close();
         }
     }
 
+    private void execSQLInternal() {
+        long startTime = System.nanoTime();
+        executeSQLInternal();
+        record(System.nanoTime() - startTime, -1);
+    }
+
     private void executeSQLInternal() {
         if (queryArgs == null || queryArgs.length == 0) {
             db.execSQL(query);
@@ -114,9 +143,18 @@ final class LoggingQuery {
         }
     }
 
+    private void record(long queryNanos, int rows) {
+        metric.record(queryNanos, rows);
+        long queryDuration = queryNanos / 1000000;
+        if (queryDuration >= SLOW_QUERY_DURATION && metric.shouldSamplePlan(System.currentTimeMillis())) {
+            logSlowQuery(queryDuration);
+        }
+    }
+
     /**
      * Log the query and its duration to the console. In addition, execute an "EXPLAIN QUERY PLAN"
-     * for the query in question so that the query can be diagnosed (https://sqlite.org/eqp.html)
+     * for the query in question so that the query can be diagnosed (https://sqlite.org/eqp.html),
+     * and keep it with the {@link QueryMetrics}.
      */
     private void logSlowQuery(long queryDuration) {
         StringBuilder sb = new StringBuilder();
@@ -126,11 +164,15 @@ final class LoggingQuery {
                 .append(query);
 
         try {
-            StringBuilder sbExplain = new StringBuilder("\nExplain:\n");
+            StringBuilder sbExplain = new StringBuilder();
             for (String plan : getExplainQueryPlan()) {
-                sbExplain.append("  ").append(plan).append("\n");
+                if (sbExplain.length() > 0) {
+                    sbExplain.append("\n");
+                }
+                sbExplain.append(plan);
             }
-            sb.append(sbExplain);
+            metric.setSampledPlan(sbExplain.toString(), queryDuration);
+            sb.append("\nExplain:\n  ").append(sbExplain.toString().replace("\n", "\n  ")).append("\n");
         } catch (Exception e) {
             // Ignore exception, we caught this because the SQLite docs say explain query plan can
             // change between versions. We do our best in getExplainQueryPlan() to mitigate this,
@@ -150,7 +192,7 @@ final class LoggingQuery {
             // EXPLAIN QUERY PLAN can change between SQLite versions. This has been observed
             // between the sqlite versions on Android 2.3.3 and Android 5.0. However, it seems
             // that the last column is always the one with the interesting details that we wish
-            // to log. If this fails for some reason, then hey, it is only for debug builds, right?
+            // to log. If this fails for some reason, then hey, it is only sampled, right?
             if (cursor.getColumnCount() > 0) {
                 int index = cursor.getColumnCount() - 1;
                 plan[cursor.getPosition()] = cursor.getString(index);
@@ -161,11 +203,15 @@ final class LoggingQuery {
         return plan;
     }
 
-    public static Cursor rawQuery(SQLiteDatabase db, String query, String[] queryBuilderArgs) {
-        return new LoggingQuery(db, query, queryBuilderArgs).rawQuery();
+    /**
+     * @param metricName what to record this query under in {@link QueryMetrics}, see
+     *                   {@link FDroidProvider#getQueryMetricName(android.net.Uri)}
+     */
+    public static Cursor rawQuery(SQLiteDatabase db, String query, String[] queryBuilderArgs, String metricName) {
+        return new LoggingQuery(db, query, queryBuilderArgs, metricName).rawQuery();
     }
 
-    public static void execSQL(SQLiteDatabase db, String sql, String[] queryArgs) {
-        new LoggingQuery(db, sql, queryArgs).execSQLInternal();
+    public static void execSQL(SQLiteDatabase db, String sql, String[] queryArgs, String metricName) {
+        new LoggingQuery(db, sql, queryArgs, metricName).execSQLInternal();
     }
 }
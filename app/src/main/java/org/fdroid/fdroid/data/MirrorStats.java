@@ -0,0 +1,206 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.format.DateUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.MirrorStatsTable;
+import org.fdroid.fdroid.data.Schema.MirrorStatsTable.Cols;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How well a single mirror has performed for downloads from this device.  Each
+ * download folds its connect time, time to first byte and throughput into
+ * moving averages, so that a mirror that got faster or slower is noticed after
+ * a handful of downloads.  Failures are folded into {@link #errorRate} the same
+ * way, and also mark the mirror as {@link #isBackingOff(long) backing off} for
+ * a little while, so that retries after an error move on to another mirror.
+ * <p>
+ * Old measurements say little about how a mirror performs now, so the
+ * {@link #errorRate} is forgiven over time, and once a mirror has not been
+ * measured for {@link #STALE_AGE_MS} it is treated as if it had never been
+ * used, which gets it tried again.
+ *
+ * @see org.fdroid.fdroid.net.MirrorChooser
+ */
+public class MirrorStats extends ValueObject {
+
+    private static final String TAG = "MirrorStats";
+
+    /**
+     * How much each new download counts towards the averages.
+     */
+    static final double WEIGHT = 0.3;
+
+    public static final long STALE_AGE_MS = 7 * DateUtils.DAY_IN_MILLIS;
+    static final long ERROR_HALF_LIFE_MS = DateUtils.HOUR_IN_MILLIS;
+    static final long FAILURE_BACKOFF_MS = DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Downloads smaller than this are all latency, so they are not used to
+     * measure throughput.
+     */
+    static final long MIN_THROUGHPUT_BYTES = 64 * 1024;
+
+    /**
+     * The size used to turn the timings into a single score, roughly an
+     * average APK.
+     */
+    static final long TYPICAL_DOWNLOAD_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * Used in the score until the first large enough download from a mirror.
+     */
+    static final double DEFAULT_BYTES_PER_SECOND = 256 * 1024;
+
+    public final String host;
+    double connectMs;
+    double ttfbMs;
+    double bytesPerSecond;
+    double errorRate;
+    int sampleCount;
+    long lastMeasured;
+    long lastFailure;
+
+    public MirrorStats(String host) {
+        this.host = host;
+    }
+
+    MirrorStats(Cursor cursor) {
+        checkCursorPosition(cursor);
+        host = cursor.getString(cursor.getColumnIndex(Cols.HOST));
+        connectMs = cursor.getDouble(cursor.getColumnIndex(Cols.CONNECT_MS));
+        ttfbMs = cursor.getDouble(cursor.getColumnIndex(Cols.TTFB_MS));
+        bytesPerSecond = cursor.getDouble(cursor.getColumnIndex(Cols.BYTES_PER_SECOND));
+        errorRate = cursor.getDouble(cursor.getColumnIndex(Cols.ERROR_RATE));
+        sampleCount = cursor.getInt(cursor.getColumnIndex(Cols.SAMPLE_COUNT));
+        lastMeasured = cursor.getLong(cursor.getColumnIndex(Cols.LAST_MEASURED));
+        lastFailure = cursor.getLong(cursor.getColumnIndex(Cols.LAST_FAILURE));
+    }
+
+    /**
+     * @param connectMs  how long it took to connect, or {@code -1} if unknown
+     * @param ttfbMs     how long from sending the request until the response came back
+     * @param bytes      how many bytes were downloaded
+     * @param transferMs how long it took to download those bytes
+     */
+    public synchronized void addSuccess(long connectMs, long ttfbMs, long bytes, long transferMs, long now) {
+        boolean first = sampleCount == 0 || isStale(now);
+        if (connectMs >= 0) {
+            this.connectMs = first ? connectMs : average(this.connectMs, connectMs);
+        }
+        this.ttfbMs = first ? ttfbMs : average(this.ttfbMs, ttfbMs);
+        if (bytes >= MIN_THROUGHPUT_BYTES && transferMs > 0) {
+            double sample = bytes * 1000.0 / transferMs;
+            this.bytesPerSecond = first || bytesPerSecond == 0 ? sample : average(bytesPerSecond, sample);
+        }
+        errorRate = first ? 0 : average(getErrorRate(now), 0);
+        sampleCount++;
+        lastMeasured = now;
+    }
+
+    public synchronized void addFailure(long now) {
+        errorRate = sampleCount == 0 || isStale(now) ? 1 : average(getErrorRate(now), 1);
+        sampleCount++;
+        lastMeasured = now;
+        lastFailure = now;
+    }
+
+    private static double average(double current, double sample) {
+        return current * (1 - WEIGHT) + sample * WEIGHT;
+    }
+
+    /**
+     * @return whether there is nothing recent enough to go on
+     */
+    public synchronized boolean isStale(long now) {
+        return sampleCount == 0 || now - lastMeasured > STALE_AGE_MS;
+    }
+
+    /**
+     * @return whether this mirror failed so recently that it should not be
+     * picked again if there are any others
+     */
+    public synchronized boolean isBackingOff(long now) {
+        return lastFailure > 0 && now - lastFailure < FAILURE_BACKOFF_MS;
+    }
+
+    /**
+     * @return the error rate, halved for every {@link #ERROR_HALF_LIFE_MS}
+     * since the last measurement
+     */
+    synchronized double getErrorRate(long now) {
+        long age = Math.max(0, now - lastMeasured);
+        return errorRate * Math.pow(0.5, (double) age / ERROR_HALF_LIFE_MS);
+    }
+
+    /**
+     * Combine all the measurements into how many {@link #TYPICAL_DOWNLOAD_BYTES}
+     * sized downloads per second would succeed from this mirror.  Higher is
+     * better.
+     */
+    public synchronized double getScore(long now) {
+        double throughput = bytesPerSecond > 0 ? bytesPerSecond : DEFAULT_BYTES_PER_SECOND;
+        double expectedMs = connectMs + ttfbMs + TYPICAL_DOWNLOAD_BYTES * 1000 / throughput;
+        return (1 - getErrorRate(now)) * 1000 / expectedMs;
+    }
+
+    synchronized ContentValues toContentValues() {
+        ContentValues values = new ContentValues(Cols.ALL.length);
+        values.put(Cols.HOST, host);
+        values.put(Cols.CONNECT_MS, connectMs);
+        values.put(Cols.TTFB_MS, ttfbMs);
+        values.put(Cols.BYTES_PER_SECOND, bytesPerSecond);
+        values.put(Cols.ERROR_RATE, errorRate);
+        values.put(Cols.SAMPLE_COUNT, sampleCount);
+        values.put(Cols.LAST_MEASURED, lastMeasured);
+        values.put(Cols.LAST_FAILURE, lastFailure);
+        return values;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return host + " connect=" + Math.round(connectMs) + "ms ttfb=" + Math.round(ttfbMs) + "ms "
+                + Math.round(bytesPerSecond / 1024) + "KiB/s errors=" + Math.round(errorRate * 100) + "%";
+    }
+
+    public static final class Helper {
+
+        private Helper() {
+        }
+
+        /**
+         * @return all the stored stats that are not {@link #isStale(long) stale},
+         * keyed on {@link #host}.  Stale ones are deleted while at it.
+         */
+        public static Map<String, MirrorStats> findAll(Context context, long now) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+            int deleted = db.delete(MirrorStatsTable.NAME, Cols.LAST_MEASURED + " < ?",
+                    new String[]{Long.toString(now - STALE_AGE_MS)});
+            if (deleted > 0) {
+                Utils.debugLog(TAG, "Deleted " + deleted + " stale mirror stats");
+            }
+            Cursor cursor = db.query(MirrorStatsTable.NAME, Cols.ALL, null, null, null, null, null);
+            try {
+                Map<String, MirrorStats> all = new HashMap<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    MirrorStats stats = new MirrorStats(cursor);
+                    all.put(stats.host, stats);
+                }
+                return all;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        public static void save(Context context, MirrorStats stats) {
+            SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+            db.insertWithOnConflict(MirrorStatsTable.NAME, null, stats.toContentValues(),
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+}
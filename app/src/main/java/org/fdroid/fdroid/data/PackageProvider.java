@@ -4,6 +4,8 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import org.fdroid.fdroid.data.Schema.PackageTable;
@@ -71,7 +73,7 @@ public class PackageProvider extends FDroidProvider {
         MATCHER.addURI(getAuthority(), PATH_PACKAGE_NAME + "/*", CODE_SINGLE);
     }
 
-    private static Uri getContentUri() {
+    static Uri getContentUri() {
         return Uri.parse("content://" + getAuthority());
     }
 
@@ -138,7 +140,7 @@ public class PackageProvider extends FDroidProvider {
         query.addFields(projection);
         query.addOrderBy(sortOrder);
 
-        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs(), getQueryMetricName(uri));
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -155,9 +157,18 @@ public class PackageProvider extends FDroidProvider {
         throw new UnsupportedOperationException("Delete not supported for " + uri + ".");
     }
 
+    /**
+     * An index update can add the same package at any time, so this relies on
+     * the unique index on {@link Cols#PACKAGE_NAME}, and returns the ID of the
+     * existing row if there is one already.
+     *
+     * @see TempTableBulkWriter
+     */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        long rowId = db().insertOrThrow(getTableName(), null, values);
+        db().insertWithOnConflict(getTableName(), null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        long rowId = DatabaseUtils.longForQuery(db(), "SELECT " + Cols.ROW_ID + " FROM " + getTableName()
+                + " WHERE " + Cols.PACKAGE_NAME + " = ?", new String[]{values.getAsString(Cols.PACKAGE_NAME)});
         getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
         return getPackageIdUri(rowId);
     }
@@ -0,0 +1,228 @@
+package org.fdroid.fdroid.data;
+
+import android.support.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on latency and row count metrics for the queries that go through
+ * {@link LoggingQuery}, one set per provider and {@link android.content.UriMatcher}
+ * code, see {@link FDroidProvider#getQueryMetricName(android.net.Uri)}.
+ * <p>
+ * Latencies are counted in a fixed number of log-linear buckets, like an HDR
+ * histogram: every power of two microseconds is split into {@link #SUB_BUCKETS}
+ * equal buckets, so percentiles are accurate to within an eighth, and the memory
+ * used does not grow with the number of queries.  Recording is lock free.  There
+ * is also a limit of {@link #MAX_METRICS} names, after which everything is counted
+ * under {@link #OVERFLOW_NAME}.
+ * <p>
+ * The query plan of a slow query is sampled at most once per
+ * {@link #PLAN_SAMPLE_INTERVAL_MILLIS} for each name, rather than on every slow
+ * query.  These can all be printed with
+ * {@code adb shell dumpsys activity provider <provider class>}, see
+ * {@link FDroidProvider#dump(java.io.FileDescriptor, PrintWriter, String[])}.
+ */
+public final class QueryMetrics {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this many microseconds each get their own bucket.
+     */
+    static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    /**
+     * The highest power of two microseconds that is counted, about 9.5 hours,
+     * anything slower goes into the last bucket.
+     */
+    static final int MAX_EXPONENT = 35;
+    static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    static final int MAX_METRICS = 64;
+    static final String OVERFLOW_NAME = "other";
+
+    static final long PLAN_SAMPLE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ConcurrentHashMap<String, Metric> METRICS = new ConcurrentHashMap<>();
+
+    private QueryMetrics() {
+    }
+
+    static Metric get(String name) {
+        Metric metric = METRICS.get(name);
+        if (metric != null) {
+            return metric;
+        }
+        if (METRICS.size() >= MAX_METRICS) {
+            name = OVERFLOW_NAME;
+        }
+        Metric newMetric = new Metric(name);
+        metric = METRICS.putIfAbsent(name, newMetric);
+        return metric == null ? newMetric : metric;
+    }
+
+    /**
+     * @return the metrics recorded so far, sorted by name
+     */
+    public static List<Metric> getAll() {
+        List<Metric> metrics = new ArrayList<>(METRICS.values());
+        Collections.sort(metrics, new Comparator<Metric>() {
+            @Override
+            public int compare(Metric lhs, Metric rhs) {
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+        return metrics;
+    }
+
+    static void reset() {
+        METRICS.clear();
+    }
+
+    /**
+     * Print each metric whose name starts with {@code prefix}, or all of them if it is null.
+     */
+    public static void dump(PrintWriter writer, @Nullable String prefix) {
+        for (Metric metric : getAll()) {
+            if (prefix != null && !metric.name.startsWith(prefix)) {
+                continue;
+            }
+            long count = metric.getCount();
+            writer.println(String.format(Locale.ENGLISH,
+                    "%s: count=%d rows=%d p50=%dus p90=%dus p99=%dus max=%dus",
+                    metric.name, count, metric.getRows(), metric.getPercentileMicros(50),
+                    metric.getPercentileMicros(90), metric.getPercentileMicros(99), metric.getMaxMicros()));
+            String plan = metric.getSampledPlan();
+            if (plan != null) {
+                writer.println("  plan of a " + metric.getSampledPlanMillis() + "ms query:");
+                writer.println("    " + plan.replace("\n", "\n    "));
+            }
+        }
+    }
+
+    static int getBucket(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The highest number of microseconds that is counted in {@code bucket}.
+     */
+    static long getBucketUpperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+    /**
+     * The latencies and row counts of one kind of query.
+     */
+    public static final class Metric {
+        public final String name;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+        private final AtomicLong lastPlanSampled = new AtomicLong(Long.MIN_VALUE / 2);
+        private volatile String sampledPlan;
+        private volatile long sampledPlanMillis;
+
+        private Metric(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param rows how many rows the query returned, or a negative number if that is not known
+         */
+        void record(long nanos, int rows) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets.incrementAndGet(getBucket(micros));
+            count.incrementAndGet();
+            if (rows > 0) {
+                this.rows.addAndGet(rows);
+            }
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        /**
+         * Whether the plan of a slow query should be captured now.  This only
+         * returns true once for each {@link #PLAN_SAMPLE_INTERVAL_MILLIS}.
+         */
+        boolean shouldSamplePlan(long nowMillis) {
+            long last = lastPlanSampled.get();
+            return nowMillis - last >= PLAN_SAMPLE_INTERVAL_MILLIS
+                    && lastPlanSampled.compareAndSet(last, nowMillis);
+        }
+
+        void setSampledPlan(String plan, long queryMillis) {
+            sampledPlanMillis = queryMillis;
+            sampledPlan = plan;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getMaxMicros() {
+            return maxMicros.get();
+        }
+
+        /**
+         * An upper bound for {@code percentile} percent of the recorded latencies, or
+         * {@code 0} if nothing has been recorded.
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(getBucketUpperBound(i), getMaxMicros());
+                }
+            }
+            return getMaxMicros();
+        }
+
+        @Nullable
+        public String getSampledPlan() {
+            return sampledPlan;
+        }
+
+        public long getSampledPlanMillis() {
+            return sampledPlanMillis;
+        }
+    }
+}
@@ -27,7 +27,6 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.text.TextUtils;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.RepoTable.Cols;
@@ -36,7 +35,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -404,54 +402,4 @@ public class Repo extends ValueObject {
         }
         return count;
     }
-
-    /**
-     * Get a random mirror URL from the list of mirrors for this repo. It will
-     * remove the URL in {@code mirrorToSkip} from consideration before choosing
-     * which mirror to return.  {@link #getMirrorList()} returns a list of all
-     * known mirrors <b>minus</b> the mirrors that have been disabled by the
-     * user preference, e.g. {@link #disabledMirrors}.
-     * <p>
-     * The mirror logic assumes that it has a mirrors list with at least one
-     * valid entry in it.  In the index format as defined by {@code fdroid update},
-     * there is always at least one valid URL: the canonical URL.  That also means
-     * if there is only one item in the mirrors list, there are no other URLs to try.
-     * <p>
-     * The initial state of the repos in the database also includes the canonical
-     * URL in the mirrors list so the mirror logic works on the first index
-     * update.  That makes it possible to do the first index update via SD Card
-     * or USB OTG drive.
-     *
-     * @see #getMirrorList()
-     * @see #disabledMirrors
-     * @see FDroidApp#resetMirrorVars()
-     * @see FDroidApp#switchUrlToNewMirror(String, Repo)
-     * @see FDroidApp#getTimeout()
-     */
-    public String getRandomMirror(String mirrorToSkip) {
-        if (TextUtils.isEmpty(mirrorToSkip)) {
-            mirrorToSkip = address;
-        }
-        List<String> shuffledMirrors = getMirrorList();
-        if (shuffledMirrors.size() > 0) {
-
-            final boolean isTorEnabled = Preferences.get().isTorEnabled();
-
-            Collections.shuffle(shuffledMirrors);
-            for (String m : shuffledMirrors) {
-                // Return a non default, and not last used mirror
-                if (!m.equals(mirrorToSkip)) {
-                    if (isTorEnabled) {
-                        return m;
-                    } else {
-                        // Filter-out onion mirrors for non-tor connections
-                        if (!m.contains(".onion")) {
-                            return m;
-                        }
-                    }
-                }
-            }
-        }
-        return address; // In case we are out of mirrors.
-    }
 }
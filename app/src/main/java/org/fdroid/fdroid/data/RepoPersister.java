@@ -1,22 +1,59 @@
 package org.fdroid.fdroid.data;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
-import android.net.Uri;
-import android.os.RemoteException;
+import android.database.SQLException;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.fdroid.fdroid.CompatibilityChecker;
 import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.Tracing;
 import org.fdroid.fdroid.Utils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves the apps and apks of a repo to the temp tables as they are parsed, then
+ * commits them all at once.  Each batch of {@link #MAX_APP_BUFFER} apps goes
+ * through a pipeline: the thread calling {@link #saveToDb(App, List)} is the
+ * parser, a pool of {@link #ENCODE_THREADS} threads works out the compatibility
+ * of each apk and turns the batch into rows with
+ * {@link TempTableBulkWriter#encode(List, Map)}, and one writer thread inserts
+ * them, in the order that they were parsed, so the rows and their IDs come out
+ * exactly as they would if it was all done on one thread.  At most
+ * {@link #MAX_BATCHES_IN_FLIGHT} batches are held in memory at once, after that
+ * the parser waits for the writer to catch up.  On a single core device there
+ * is nothing to gain, so it is all done on the calling thread instead.
+ * <p>
+ * All the database work, including setting up the temp tables, happens on the
+ * writer thread, which runs everything in the order it was queued.  So the
+ * batches of an import are all written before the next import sets up the temp
+ * tables again.  Every import shares those temp tables, so only one can be in
+ * progress at a time, from the first {@link #saveToDb(App, List)} until it is
+ * committed or abandoned.  {@link IndexUpdater} ensures that by holding its
+ * {@code PROCESS_LOCK} while it processes an index.
+ * <p>
+ * An import that is not going to be committed, e.g. because parsing failed,
+ * has to be {@link #abandon() abandoned}, so that the batches it still has
+ * in the pipeline are dropped and the compiled statements of its
+ * {@link TempTableBulkWriter} are closed.  This happens by itself when
+ * saving to the temp tables fails.
+ */
 public class RepoPersister {
 
     private static final String TAG = "RepoPersister";
@@ -32,11 +69,77 @@ public class RepoPersister {
      */
     private static final int MAX_APP_BUFFER = 50;
 
+    /**
+     * Encoding is cheap next to parsing and writing, so a couple of threads keep
+     * up, leaving a core each for the parser and the writer where possible.
+     */
+    static final int ENCODE_THREADS = Math.max(0,
+            Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final int MAX_BATCHES_IN_FLIGHT = 2 * ENCODE_THREADS + 2;
+
+    private static final ExecutorService ENCODER = ENCODE_THREADS == 0 ? null
+            : Executors.newFixedThreadPool(ENCODE_THREADS, newThreadFactory(TAG + "-encode"));
+
+    private static final ExecutorService WRITER = ENCODE_THREADS == 0 ? null
+            : Executors.newSingleThreadExecutor(newThreadFactory(TAG + "-write"));
+
+    private static final Executor CALLING_THREAD = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnable.run();
+        }
+    };
+
     @NonNull
     private final Repo repo;
 
     private boolean hasBeenInitialized;
 
+    /**
+     * Whether the temp tables have been committed, or the import was abandoned.
+     */
+    private boolean finished;
+
+    /**
+     * Set by {@link #abandon()}, so the batches still waiting for {@link #writerThread} are dropped.
+     */
+    private volatile boolean abandoned;
+
+    private final Executor encoder;
+    private final Executor writerThread;
+    private final Semaphore batchesInFlight = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+
+    /**
+     * Only used on {@link #writerThread}.
+     */
+    private TempTableBulkWriter writer;
+
+    /**
+     * The compiled statements of {@link #writer} are tied to the temp tables, so
+     * they are closed when the temp tables are committed or the import is abandoned.
+     */
+    private final Runnable closeWriter = new Runnable() {
+        @Override
+        public void run() {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+    };
+
+    /**
+     * The first thing that went wrong on {@link #encoder} or {@link #writerThread}.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * How many apps and apks have been written to the temp tables so far.  Only
+     * updated on {@link #writerThread}.
+     */
+    private long savedRows;
+
     @NonNull
     private final Context context;
 
@@ -49,10 +152,64 @@ public class RepoPersister {
     @NonNull
     private final CompatibilityChecker checker;
 
+    /**
+     * If not null, only these packages are replaced when committing, the rest of the
+     * repo is left as it is in the database.
+     */
+    @Nullable
+    private final Collection<String> packageNamesToUpdate;
+
     public RepoPersister(@NonNull Context context, @NonNull Repo repo) {
+        this(context, repo, null);
+    }
+
+    /**
+     * @param packageNamesToUpdate if not {@code null}, only the apps and apks of these
+     *                             packages are replaced in the repo, e.g. when applying
+     *                             an {@code index-v1} diff.  Any package in this list which
+     *                             is not passed to {@link #saveToDb(App, List)} is removed.
+     */
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo,
+                         @Nullable Collection<String> packageNamesToUpdate) {
+        this(context, repo, packageNamesToUpdate, ENCODE_THREADS > 0);
+    }
+
+    /**
+     * @param pipelined whether to encode and write on background threads, or do
+     *                  everything on the thread calling {@link #saveToDb(App, List)}
+     */
+    RepoPersister(@NonNull Context context, @NonNull Repo repo,
+                  @Nullable Collection<String> packageNamesToUpdate, boolean pipelined) {
         this.repo = repo;
         this.context = context;
+        this.packageNamesToUpdate = packageNamesToUpdate;
         checker = new CompatibilityChecker(context);
+        if (pipelined && ENCODE_THREADS > 0) {
+            encoder = ENCODER;
+            writerThread = WRITER;
+        } else {
+            encoder = CALLING_THREAD;
+            writerThread = CALLING_THREAD;
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        runnable.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     public void saveToDb(App app, List<Apk> packages) throws IndexUpdater.UpdateException {
@@ -66,8 +223,36 @@ public class RepoPersister {
 
     public void commit(ContentValues repoDetailsToSave, long repoIdToCommit) throws IndexUpdater.UpdateException {
         flushBufferToDb();
-        TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
-        RepoProvider.Helper.update(context, repo, repoDetailsToSave);
+        runOnWriter(closeWriter);
+        finished = true;
+        Tracing.Span span = Tracing.begin("commit", repo.address).setRows(savedRows);
+        try {
+            TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
+            RepoProvider.Helper.update(context, repo, repoDetailsToSave);
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Stop an import that is not going to be committed.  The batches which are
+     * still waiting to be written are dropped, and once the writer has finished
+     * the one it is on, if any, its compiled statements are closed.  This does
+     * nothing if the import was already committed or abandoned.
+     */
+    public void abandon() {
+        if (!hasBeenInitialized || finished) {
+            return;
+        }
+        finished = true;
+        abandoned = true;
+        FutureTask<Void> future = new FutureTask<>(closeWriter, null);
+        writerThread.execute(future);
+        try {
+            future.get();
+        } catch (ExecutionException | InterruptedException e) {
+            Utils.debugLog(TAG, "Could not close the writer of an abandoned import: " + e.getMessage());
+        }
     }
 
     private void flushBufferToDb() throws IndexUpdater.UpdateException {
@@ -77,100 +262,115 @@ public class RepoPersister {
             // the index was signed with until we've finished reading it - and we don't
             // want to put stuff in the real database until we are sure it is from a
             // trusted source. It also helps performance as it is done via an in-memory database.
-            TempAppProvider.Helper.init(context, repo.getId());
             hasBeenInitialized = true;
+            runOnWriter(new Runnable() {
+                @Override
+                public void run() {
+                    Tracing.Span span = Tracing.begin("initTempTables", repo.address);
+                    try {
+                        TempAppProvider.Helper.init(context, repo.getId(), packageNamesToUpdate);
+                        writer = new TempTableBulkWriter(context);
+                    } finally {
+                        span.end();
+                    }
+                }
+            });
         }
 
         if (apksToSave.size() > 0 || appsToSave.size() > 0) {
             Utils.debugLog(TAG, "Flushing details of up to " + MAX_APP_BUFFER + " apps/packages to the database.");
-            Map<String, Long> appIds = flushAppsToDbInBatch();
-            flushApksToDbInBatch(appIds);
+            final List<App> apps = new ArrayList<>(appsToSave);
+            final Map<String, List<Apk>> apks = new HashMap<>(apksToSave);
             apksToSave.clear();
             appsToSave.clear();
-        }
-    }
 
-    private void flushApksToDbInBatch(Map<String, Long> appIds) throws IndexUpdater.UpdateException {
-        List<Apk> apksToSaveList = new ArrayList<>();
-        for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
-            for (Apk apk : entries.getValue()) {
-                apk.appId = appIds.get(apk.packageName);
-            }
-            apksToSaveList.addAll(entries.getValue());
-        }
-
-        calcApkCompatibilityFlags(apksToSaveList);
-
-        ArrayList<ContentProviderOperation> apkOperations = insertApks(apksToSaveList);
-
-        try {
-            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+            final FutureTask<TempTableBulkWriter.EncodedBatch> encoded = new FutureTask<>(
+                    new Callable<TempTableBulkWriter.EncodedBatch>() {
+                        @Override
+                        public TempTableBulkWriter.EncodedBatch call() {
+                            Tracing.Span span = Tracing.begin("encodeBatch", repo.address);
+                            try {
+                                for (List<Apk> apksForApp : apks.values()) {
+                                    calcApkCompatibilityFlags(apksForApp);
+                                }
+                                TempTableBulkWriter.EncodedBatch batch = TempTableBulkWriter.encode(apps, apks);
+                                span.setRows(batch.getRows());
+                                return batch;
+                            } finally {
+                                span.end();
+                            }
+                        }
+                    });
+            Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (abandoned || failure != null) {
+                            return;
+                        }
+                        TempTableBulkWriter.EncodedBatch batch = encoded.get();
+                        Tracing.Span span = Tracing.begin("persistBatch", repo.address).setRows(batch.getRows());
+                        try {
+                            writer.insert(batch);
+                            savedRows += batch.getRows();
+                        } finally {
+                            span.end();
+                        }
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    } catch (InterruptedException | RuntimeException | Error e) {
+                        failure = e;
+                    } finally {
+                        batchesInFlight.release();
+                    }
+                }
+            };
+
+            batchesInFlight.acquireUninterruptibly();
+            encoder.execute(encoded);
+            writerThread.execute(write);
         }
+        throwIfFailed();
     }
 
     /**
-     * Will first insert new or update existing rows in the database for each {@link RepoPersister#appsToSave}.
-     * Then, will query the database for the ID + packageName for each of these apps, so that they
-     * can be returned and the relevant apks can be joined to the app table correctly.
+     * Run {@code task} on the writer thread once everything before it has been
+     * written, and wait for it to finish.
      */
-    private Map<String, Long> flushAppsToDbInBatch() throws IndexUpdater.UpdateException {
-        ArrayList<ContentProviderOperation> appOperations = insertApps(appsToSave);
-
+    private void runOnWriter(Runnable task) throws IndexUpdater.UpdateException {
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        writerThread.execute(future);
         try {
-            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
-            return getIdsForPackages(appsToSave);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+            future.get();
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } catch (InterruptedException e) {
+            failure = e;
         }
+        throwIfFailed();
     }
 
     /**
-     * Although this might seem counter intuitive - receiving a list of apps, then querying the
-     * database again for info about these apps, it is required because the apps came from the
-     * repo metadata, but we are really interested in their IDs from the database. These IDs only
-     * exist in SQLite and not the repo metadata.
+     * If anything went wrong on {@link #encoder} or {@link #writerThread}, this
+     * import cannot be committed anymore, so {@link #abandon()} it and throw.
      */
-    private Map<String, Long> getIdsForPackages(List<App> apps) {
-        List<String> packageNames = new ArrayList<>(appsToSave.size());
-        for (App app : apps) {
-            packageNames.add(app.packageName);
+    private void throwIfFailed() throws IndexUpdater.UpdateException {
+        Throwable t = failure;
+        if (t == null) {
+            return;
         }
-
-        String[] projection = {
-                Schema.AppMetadataTable.Cols.ROW_ID,
-                Schema.AppMetadataTable.Cols.Package.PACKAGE_NAME,
-        };
-
-        List<App> fromDb = TempAppProvider.Helper.findByPackageNames(context, packageNames, repo.id, projection);
-
-        Map<String, Long> ids = new HashMap<>(fromDb.size());
-        for (App app : fromDb) {
-            ids.put(app.packageName, app.getId());
+        abandon();
+        if (t instanceof SQLException) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database",
+                    (SQLException) t);
         }
-        return ids;
-    }
-
-    private ArrayList<ContentProviderOperation> insertApps(List<App> apps) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(apps.size());
-        for (App app : apps) {
-            ContentValues values = app.toContentValues();
-            Uri uri = TempAppProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
         }
-        return operations;
-    }
-
-    private ArrayList<ContentProviderOperation> insertApks(List<Apk> packages) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(packages.size());
-        for (Apk apk : packages) {
-            ContentValues values = apk.toContentValues();
-            Uri uri = TempApkProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        if (t instanceof Error) {
+            throw (Error) t;
         }
-
-        return operations;
+        throw new IndexUpdater.UpdateException("Interrupted while updating the database", (Exception) t);
     }
 
     /**
@@ -181,13 +381,14 @@ public class RepoPersister {
      */
     private void calcApkCompatibilityFlags(List<Apk> apks) {
         for (final Apk apk : apks) {
-            final List<String> reasons = checker.getIncompatibleReasons(apk);
-            if (reasons.isEmpty()) {
+            // shared with other apks, but they are only read, to write them to the database
+            final String[] reasons = checker.getIncompatibleReasonsArray(apk);
+            if (reasons.length == 0) {
                 apk.compatible = true;
                 apk.incompatibleReasons = null;
             } else {
                 apk.compatible = false;
-                apk.incompatibleReasons = reasons.toArray(new String[reasons.size()]);
+                apk.incompatibleReasons = reasons;
             }
         }
     }
@@ -12,6 +12,7 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import org.fdroid.fdroid.AppUpdateStatusManager;
+import org.fdroid.fdroid.RetainedIndex;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 import org.fdroid.fdroid.data.Schema.RepoTable.Cols;
@@ -236,6 +237,7 @@ public class RepoProvider extends FDroidProvider {
             ContentResolver resolver = context.getContentResolver();
             Uri uri = RepoProvider.getContentUri(repoId);
             resolver.delete(uri, null, null);
+            new RetainedIndex(context, repoId).delete();
         }
 
         public static void purgeApps(Context context, Repo repo) {
@@ -92,9 +92,38 @@ public class RepoXMLHandler extends DefaultHandler {
         curchars.append(ch, start, length);
     }
 
+    /**
+     * For {@link RepoXMLPullParser}, which reads the text of each element
+     * straight into the same buffer that {@link #characters(char[], int, int)} uses.
+     */
+    StringBuilder getCharacterBuffer() {
+        return curchars;
+    }
+
     @Override
     public void endElement(String uri, String localName, String qName)
             throws SAXException {
+        endElement(localName);
+    }
+
+    /**
+     * The text of the element that just ended, without surrounding whitespace.
+     * Only the fields that are actually used call this, so nothing is allocated
+     * for the elements that are ignored or only contain other elements.
+     */
+    private String text() {
+        int start = 0;
+        int end = curchars.length();
+        while (start < end && curchars.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && curchars.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return curchars.substring(start, end);
+    }
+
+    void endElement(String localName) {
 
         if ("application".equals(localName) && curapp != null) {
             onApplicationParsed();
@@ -134,163 +163,162 @@ public class RepoXMLHandler extends DefaultHandler {
             // All options below require non-empty content
             return;
         }
-        final String str = curchars.toString().trim();
         if (curapk != null) {
             switch (localName) {
                 case ApkTable.Cols.VERSION_NAME:
-                    curapk.versionName = str;
+                    curapk.versionName = text();
                     break;
                 case "versioncode": // ApkTable.Cols.VERSION_CODE
-                    curapk.versionCode = Utils.parseInt(str, -1);
+                    curapk.versionCode = Utils.parseInt(text(), -1);
                     break;
                 case ApkTable.Cols.SIZE:
-                    curapk.size = Utils.parseInt(str, 0);
+                    curapk.size = Utils.parseInt(text(), 0);
                     break;
                 case ApkTable.Cols.HASH:
                     if (currentApkHashType == null || "md5".equals(currentApkHashType)) {
                         if (curapk.hash == null) {
-                            curapk.hash = str;
+                            curapk.hash = text();
                             curapk.hashType = "sha256";
                         }
                     } else if ("sha256".equals(currentApkHashType)) {
-                        curapk.hash = str;
+                        curapk.hash = text();
                         curapk.hashType = "sha256";
                     }
                     break;
                 case ApkTable.Cols.SIGNATURE:
-                    curapk.sig = str;
+                    curapk.sig = text();
                     // the first APK in the list provides the preferred signature
                     if (curapp.preferredSigner == null) {
-                        curapp.preferredSigner = str;
+                        curapp.preferredSigner = curapk.sig;
                     }
                     break;
                 case ApkTable.Cols.SOURCE_NAME:
-                    curapk.srcname = str;
+                    curapk.srcname = text();
                     break;
                 case "apkname": // ApkTable.Cols.NAME
-                    curapk.apkName = str;
+                    curapk.apkName = text();
                     break;
                 case "sdkver": // ApkTable.Cols.MIN_SDK_VERSION
-                    curapk.minSdkVersion = Utils.parseInt(str, Apk.SDK_VERSION_MIN_VALUE);
+                    curapk.minSdkVersion = Utils.parseInt(text(), Apk.SDK_VERSION_MIN_VALUE);
                     break;
                 case ApkTable.Cols.TARGET_SDK_VERSION:
-                    curapk.targetSdkVersion = Utils.parseInt(str, Apk.SDK_VERSION_MIN_VALUE);
+                    curapk.targetSdkVersion = Utils.parseInt(text(), Apk.SDK_VERSION_MIN_VALUE);
                     break;
                 case "maxsdkver": // ApkTable.Cols.MAX_SDK_VERSION
-                    curapk.maxSdkVersion = Utils.parseInt(str, Apk.SDK_VERSION_MAX_VALUE);
+                    curapk.maxSdkVersion = Utils.parseInt(text(), Apk.SDK_VERSION_MAX_VALUE);
                     if (curapk.maxSdkVersion == 0) {
                         // before fc0df0dcf4dd0d5f13de82d7cd9254b2b48cb62d, this could be 0
                         curapk.maxSdkVersion = Apk.SDK_VERSION_MAX_VALUE;
                     }
                     break;
                 case ApkTable.Cols.OBB_MAIN_FILE:
-                    curapk.obbMainFile = str;
+                    curapk.obbMainFile = text();
                     break;
                 case ApkTable.Cols.OBB_MAIN_FILE_SHA256:
-                    curapk.obbMainFileSha256 = str;
+                    curapk.obbMainFileSha256 = text();
                     break;
                 case ApkTable.Cols.OBB_PATCH_FILE:
-                    curapk.obbPatchFile = str;
+                    curapk.obbPatchFile = text();
                     break;
                 case ApkTable.Cols.OBB_PATCH_FILE_SHA256:
-                    curapk.obbPatchFileSha256 = str;
+                    curapk.obbPatchFileSha256 = text();
                     break;
                 case ApkTable.Cols.ADDED_DATE:
-                    curapk.added = Utils.parseDate(str, null);
+                    curapk.added = Utils.parseDate(text(), null);
                     break;
                 case "permissions": // together with <uses-permissions* makes ApkTable.Cols.REQUESTED_PERMISSIONS
-                    addCommaSeparatedPermissions(str);
+                    addCommaSeparatedPermissions(text());
                     break;
                 case ApkTable.Cols.FEATURES:
-                    curapk.features = Utils.parseCommaSeparatedString(str);
+                    curapk.features = Utils.parseCommaSeparatedString(text());
                     break;
                 case ApkTable.Cols.NATIVE_CODE:
-                    curapk.nativecode = Utils.parseCommaSeparatedString(str);
+                    curapk.nativecode = Utils.parseCommaSeparatedString(text());
                     break;
             }
         } else if (curapp != null) {
             switch (localName) {
                 case "name":
-                    curapp.name = str;
+                    curapp.name = text();
                     break;
                 case "icon":
-                    curapp.icon = str;
+                    curapp.icon = text();
                     break;
                 case "description":
                     // This is the old-style description. We'll read it
                     // if present, to support old repos, but in newer
                     // repos it will get overwritten straight away!
-                    curapp.description = "<p>" + str + "</p>";
+                    curapp.description = "<p>" + text() + "</p>";
                     break;
                 case "desc":
                     // New-style description.
-                    curapp.description = App.formatDescription(str);
+                    curapp.description = App.formatDescription(text());
                     break;
                 case "summary":
-                    curapp.summary = str;
+                    curapp.summary = text();
                     break;
                 case "license":
-                    curapp.license = str;
+                    curapp.license = text();
                     break;
                 case "author":
-                    curapp.authorName = str;
+                    curapp.authorName = text();
                     break;
                 case "email":
-                    curapp.authorEmail = str;
+                    curapp.authorEmail = text();
                     break;
                 case "source":
-                    curapp.sourceCode = str;
+                    curapp.sourceCode = text();
                     break;
                 case "changelog":
-                    curapp.changelog = str;
+                    curapp.changelog = text();
                     break;
                 case "donate":
-                    curapp.donate = str;
+                    curapp.donate = text();
                     break;
                 case "bitcoin":
-                    curapp.bitcoin = str;
+                    curapp.bitcoin = text();
                     break;
                 case "litecoin":
-                    curapp.litecoin = str;
+                    curapp.litecoin = text();
                     break;
                 case "flattr":
-                    curapp.flattrID = str;
+                    curapp.flattrID = text();
                     break;
                 case "liberapay":
-                    curapp.liberapayID = str;
+                    curapp.liberapayID = text();
                     break;
                 case "web":
-                    curapp.webSite = str;
+                    curapp.webSite = text();
                     break;
                 case "tracker":
-                    curapp.issueTracker = str;
+                    curapp.issueTracker = text();
                     break;
                 case "added":
-                    curapp.added = Utils.parseDate(str, null);
+                    curapp.added = Utils.parseDate(text(), null);
                     break;
                 case "lastupdated":
-                    curapp.lastUpdated = Utils.parseDate(str, null);
+                    curapp.lastUpdated = Utils.parseDate(text(), null);
                     break;
                 case "marketversion":
-                    curapp.suggestedVersionName = str;
+                    curapp.suggestedVersionName = text();
                     break;
                 case "marketvercode":
-                    curapp.suggestedVersionCode = Utils.parseInt(str, -1);
+                    curapp.suggestedVersionCode = Utils.parseInt(text(), -1);
                     break;
                 case "categories":
-                    curapp.categories = Utils.parseCommaSeparatedString(str);
+                    curapp.categories = Utils.parseCommaSeparatedString(text());
                     break;
                 case "antifeatures":
-                    curapp.antiFeatures = Utils.parseCommaSeparatedString(str);
+                    curapp.antiFeatures = Utils.parseCommaSeparatedString(text());
                     break;
                 case "requirements":
-                    curapp.requirements = Utils.parseCommaSeparatedString(str);
+                    curapp.requirements = Utils.parseCommaSeparatedString(text());
                     break;
             }
         } else if ("description".equals(localName)) {
-            repoDescription = cleanWhiteSpace(str);
+            repoDescription = cleanWhiteSpace(text());
         } else if ("mirror".equals(localName)) {
-            repoMirrors.add(str);
+            repoMirrors.add(text());
         }
     }
 
@@ -353,19 +381,46 @@ public class RepoXMLHandler extends DefaultHandler {
         receiver.receiveRepoPushRequest(repoPushRequest);
     }
 
+    /**
+     * The attributes of the element that just started, whichever parser is
+     * reading the index.  Only attributes without a namespace are looked up.
+     */
+    interface AttributeSource {
+        @Nullable
+        String getValue(String name);
+    }
+
+    private Attributes saxAttributes;
+
+    private final AttributeSource saxAttributeSource = new AttributeSource() {
+        @Override
+        public String getValue(String name) {
+            return saxAttributes.getValue("", name);
+        }
+    };
+
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
         super.startElement(uri, localName, qName, attributes);
+        saxAttributes = attributes;
+        try {
+            startElement(localName, saxAttributeSource);
+        } finally {
+            saxAttributes = null;
+        }
+    }
+
+    void startElement(String localName, AttributeSource attributes) throws SAXException {
 
         if ("repo".equals(localName)) {
-            repoSigningCert = attributes.getValue("", "pubkey");
-            repoMaxAge = Utils.parseInt(attributes.getValue("", "maxage"), -1);
-            repoVersion = Utils.parseInt(attributes.getValue("", "version"), -1);
-            repoName = cleanWhiteSpace(attributes.getValue("", "name"));
-            repoDescription = cleanWhiteSpace(attributes.getValue("", "description"));
-            repoTimestamp = parseLong(attributes.getValue("", "timestamp"), 0);
-            repoIcon = attributes.getValue("", "icon");
+            repoSigningCert = attributes.getValue("pubkey");
+            repoMaxAge = Utils.parseInt(attributes.getValue("maxage"), -1);
+            repoVersion = Utils.parseInt(attributes.getValue("version"), -1);
+            repoName = cleanWhiteSpace(attributes.getValue("name"));
+            repoDescription = cleanWhiteSpace(attributes.getValue("description"));
+            repoTimestamp = parseLong(attributes.getValue("timestamp"), 0);
+            repoIcon = attributes.getValue("icon");
         } else if (RepoPushRequest.VALID_REQUESTS.contains(localName)) {
             if (repo.pushRequests == Repo.PUSH_REQUEST_ACCEPT_ALWAYS) {
                 RepoPushRequest r = new RepoPushRequest(
@@ -378,7 +433,7 @@ public class RepoXMLHandler extends DefaultHandler {
             curapp = new App();
             curapp.repoId = repo.getId();
             try {
-                curapp.setPackageName(attributes.getValue("", "id"));
+                curapp.setPackageName(attributes.getValue("id"));
             } catch (IllegalArgumentException e) {
                 throw new SAXException(e);
             }
@@ -394,7 +449,7 @@ public class RepoXMLHandler extends DefaultHandler {
             currentApkHashType = null;
 
         } else if ("hash".equals(localName) && curapk != null) {
-            currentApkHashType = attributes.getValue("", "type");
+            currentApkHashType = attributes.getValue("type");
         } else if ("uses-permission".equals(localName) && curapk != null) {
             String maxSdkVersion = attributes.getValue("maxSdkVersion");
             if (maxSdkVersion == null || Build.VERSION.SDK_INT <= Integer.valueOf(maxSdkVersion)) {
@@ -0,0 +1,68 @@
+package org.fdroid.fdroid.data;
+
+import android.support.annotation.NonNull;
+import android.util.Xml;
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads {@code index.xml} with an {@link XmlPullParser} instead of SAX, handing
+ * each element to the same {@link RepoXMLHandler} logic, so the
+ * {@link RepoXMLHandler.IndexReceiver} gets exactly the same apps and apks.
+ * The text of each element is copied straight out of the parser's own buffer
+ * into the handler's, rather than being turned into a {@link String} for every
+ * text event, and only the fields that are used are ever made into strings.
+ * <p>
+ * Android has no StAX, but its pull parser is the same idea, and it is what
+ * {@link Xml#newPullParser()} gives out, so there is no factory to set up for
+ * each index.
+ *
+ * @see org.fdroid.fdroid.Preferences#isPullParserIndexEnabled()
+ */
+public class RepoXMLPullParser {
+
+    private final RepoXMLHandler handler;
+    private final int[] textHolder = new int[2];
+
+    public RepoXMLPullParser(Repo repo, @NonNull RepoXMLHandler.IndexReceiver receiver) {
+        handler = new RepoXMLHandler(repo, receiver);
+    }
+
+    public void parse(InputStream input) throws IOException, XmlPullParserException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(input, null);
+        RepoXMLHandler.AttributeSource attributes = new RepoXMLHandler.AttributeSource() {
+            @Override
+            public String getValue(String name) {
+                return parser.getAttributeValue("", name);
+            }
+        };
+        StringBuilder text = handler.getCharacterBuffer();
+
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    try {
+                        handler.startElement(parser.getName(), attributes);
+                    } catch (SAXException e) {
+                        throw new XmlPullParserException(e.getMessage(), parser, e.getException());
+                    }
+                    break;
+                case XmlPullParser.TEXT:
+                    char[] chars = parser.getTextCharacters(textHolder);
+                    text.append(chars, textHolder[0], textHolder[1]);
+                    break;
+                case XmlPullParser.END_TAG:
+                    handler.endElement(parser.getName());
+                    break;
+            }
+            eventType = parser.next();
+        }
+    }
+}
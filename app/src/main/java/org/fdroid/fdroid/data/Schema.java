@@ -272,6 +272,26 @@ public interface Schema {
         }
     }
 
+    /**
+     * Full text index of the searchable text of {@link AppMetadataTable}, so that searching
+     * does not need to scan every description.  The {@code docid} of each row is the
+     * {@link AppMetadataTable.Cols#ROW_ID} of the app it was made from.  It is kept up to
+     * date by triggers on {@link AppMetadataTable}, rather than written to directly.
+     */
+    interface AppMetadataFtsTable {
+
+        String NAME = "fdroid_appMetadataFts";
+
+        interface Cols {
+            String DOC_ID = "docid";
+            String NAME = AppMetadataTable.Cols.NAME;
+            String SUMMARY = AppMetadataTable.Cols.SUMMARY;
+            String DESCRIPTION = AppMetadataTable.Cols.DESCRIPTION;
+
+            String[] ALL = {NAME, SUMMARY, DESCRIPTION};
+        }
+    }
+
     /**
      * This table stores details of all the application versions we
      * know about. Each relates directly back to an entry in TABLE_APP.
@@ -411,4 +431,55 @@ public interface Schema {
         }
     }
 
+    /**
+     * How well each mirror has performed for downloads from this device, keyed on
+     * the host and port of the mirror.  The timings and rates are exponentially
+     * weighted moving averages, so recent downloads count for the most.
+     *
+     * @see MirrorStats
+     */
+    interface MirrorStatsTable {
+
+        String NAME = "fdroid_mirrorStats";
+
+        interface Cols {
+            String HOST = "host";
+            String CONNECT_MS = "connectMs";
+            String TTFB_MS = "ttfbMs";
+            String BYTES_PER_SECOND = "bytesPerSecond";
+            String ERROR_RATE = "errorRate";
+            String SAMPLE_COUNT = "sampleCount";
+            String LAST_MEASURED = "lastMeasured";
+            String LAST_FAILURE = "lastFailure";
+
+            String[] ALL = {
+                    HOST, CONNECT_MS, TTFB_MS, BYTES_PER_SECOND, ERROR_RATE, SAMPLE_COUNT, LAST_MEASURED,
+                    LAST_FAILURE,
+            };
+        }
+    }
+
+    /**
+     * The hashes of installed APKs, so they do not need to be read in full again
+     * until the file changes.  This is not reset along with the index tables,
+     * since its contents do not come from any repo.
+     *
+     * @see ApkHashCache
+     */
+    interface ApkHashCacheTable {
+
+        String NAME = "fdroid_apkHashCache";
+
+        interface Cols {
+            String PATH = "path";
+            String SIZE = "size";
+            String LAST_MODIFIED = "lastModified";
+            String INODE = "inode";
+            String HASH_TYPE = "hashType";
+            String HASH = "hash";
+
+            String[] ALL = {PATH, SIZE, LAST_MODIFIED, INODE, HASH_TYPE, HASH};
+        }
+    }
+
 }
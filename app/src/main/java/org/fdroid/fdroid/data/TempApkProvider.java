@@ -20,6 +20,18 @@ public class TempApkProvider extends ApkProvider {
 
     static final String TABLE_TEMP_APK = "temp_" + ApkTable.NAME;
 
+    /**
+     * {@link Cols#ALL_COLS} does not include {@link Cols#ROW_ID}, but the temp apks need to
+     * keep theirs when they are committed, since the anti-feature join table points to them.
+     */
+    static final String[] COLS_WITH_ROW_ID;
+
+    static {
+        COLS_WITH_ROW_ID = new String[Cols.ALL_COLS.length + 1];
+        COLS_WITH_ROW_ID[0] = Cols.ROW_ID;
+        System.arraycopy(Cols.ALL_COLS, 0, COLS_WITH_ROW_ID, 1, Cols.ALL_COLS.length);
+    }
+
     private static final String PATH_INIT = "init";
 
     private static final int CODE_INIT = 10000;
@@ -58,8 +70,8 @@ public class TempApkProvider extends ApkProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Creates new, empty temporary tables for the apks and their anti-features from the repo
+         * being updated.
          *
          * This is package local because it must be invoked after
          * {@link org.fdroid.fdroid.data.TempAppProvider.Helper#init(Context, long)}. Due to this
@@ -101,23 +113,7 @@ public class TempApkProvider extends ApkProvider {
         db.execSQL(DBHelper.CREATE_TABLE_APK.replaceFirst(ApkTable.NAME, memoryDbName + "." + getTableName()));
         db.execSQL(DBHelper.CREATE_TABLE_APK_ANTI_FEATURE_JOIN.replaceFirst(Schema.ApkAntiFeatureJoinTable.NAME, memoryDbName + "." + getApkAntiFeatureJoinTableName()));
 
-        String where = ApkTable.NAME + "." + Cols.REPO_ID + " != ?";
-        String[] whereArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(TempAppProvider.copyData(Cols.ALL_COLS, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
-
-        String antiFeaturesWhere =
-                Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN " +
-                "(SELECT innerApk." + Cols.ROW_ID + " FROM " + ApkTable.NAME + " AS innerApk " +
-                "WHERE innerApk." + Cols.REPO_ID + " != ?)";
-
-        db.execSQL(TempAppProvider.copyData(
-                Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                Schema.ApkAntiFeatureJoinTable.NAME,
-                memoryDbName + "." + getApkAntiFeatureJoinTableName(),
-                antiFeaturesWhere), whereArgs);
-
         db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_appId on " + getTableName() + " (" + Cols.APP_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
     }
 
 }
@@ -8,13 +8,17 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -28,12 +32,38 @@ public class TempAppProvider extends AppProvider {
      */
     static final String DB = "temp_update_db";
 
+    private static final String TAG = "TempAppProvider";
+
     private static final String PROVIDER_NAME = "TempAppProvider";
 
     static final String TABLE_TEMP_APP = "temp_" + AppMetadataTable.NAME;
-    static final String TABLE_TEMP_APK_ANTI_FEATURE_JOIN = "temp_" + Schema.ApkAntiFeatureJoinTable.NAME;
+    static final String TABLE_TEMP_APK_ANTI_FEATURE_JOIN = "temp_" + ApkAntiFeatureJoinTable.NAME;
     static final String TABLE_TEMP_CAT_JOIN = "temp_" + CatJoinTable.NAME;
 
+    /**
+     * Only exists when just some of the packages from a repo are being replaced,
+     * e.g. when applying an {@code index-v1} diff.  Holds the names of those
+     * packages, all other rows from the repo are left as they are.
+     */
+    static final String TABLE_TEMP_CHANGED_PACKAGE = "temp_changed_package";
+
+    /**
+     * The {@link PackageTable} IDs of every package which {@link #commitTable(long)} deleted
+     * or inserted rows for, so that only their details need to be worked out again.
+     */
+    static final String TABLE_TEMP_COMMITTED_PACKAGE = "temp_committed_package";
+
+    private static final String KEY_PACKAGE_NAMES = "packageNames";
+
+    /**
+     * The category join rows in the temp table are numbered from 1, so they get new IDs
+     * when they are copied into the real table.  Nothing refers to those IDs.
+     */
+    private static final String[] CAT_JOIN_COLS_WITHOUT_ROW_ID = {
+            CatJoinTable.Cols.APP_METADATA_ID,
+            CatJoinTable.Cols.CATEGORY_ID,
+    };
+
     private static final String PATH_INIT = "init";
     private static final String PATH_COMMIT = "commit";
 
@@ -90,15 +120,29 @@ public class TempAppProvider extends AppProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Deletes the old temporary table (if it exists). Then creates a new, empty temporary
+         * table to hold the apps from the repo being updated.
          */
         public static void init(Context context, long repoIdToUpdate) {
+            init(context, repoIdToUpdate, null);
+        }
+
+        /**
+         * Same as {@link #init(Context, long)}, except that if {@code packageNamesToUpdate}
+         * is not null, then only those packages are replaced in the repo.  The rest of the
+         * apps and apks from that repo are left untouched when committing.
+         */
+        public static void init(Context context, long repoIdToUpdate,
+                                @Nullable Collection<String> packageNamesToUpdate) {
             Uri uri = getContentUri().buildUpon()
                     .appendPath(PATH_INIT)
                     .appendPath(Long.toString(repoIdToUpdate))
                     .build();
-            context.getContentResolver().insert(uri, new ContentValues());
+            ContentValues values = new ContentValues(1);
+            if (packageNamesToUpdate != null) {
+                values.put(KEY_PACKAGE_NAMES, TextUtils.join(",", packageNamesToUpdate));
+            }
+            context.getContentResolver().insert(uri, values);
             TempApkProvider.Helper.init(context, repoIdToUpdate);
         }
 
@@ -110,8 +154,11 @@ public class TempAppProvider extends AppProvider {
         }
 
         /**
-         * Saves data from the temp table to the apk table, by removing _EVERYTHING_ from the real
-         * apk table and inserting all of the records from here. The temporary table is then removed.
+         * Saves data from the temp table to the apk table, by removing _EVERYTHING_ belonging to the
+         * repo from the real apk table and inserting all of the records from here. The temporary
+         * table is then removed.
+         * If the temp table was initialized with a list of package names, then only the rows for
+         * those packages are replaced.
          */
         public static void commitAppsAndApks(Context context, long repoIdToCommit) {
             Uri uri = getContentUri().buildUpon()
@@ -135,10 +182,11 @@ public class TempAppProvider extends AppProvider {
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         switch (MATCHER.match(uri)) {
             case CODE_INIT:
-                initTable(Long.parseLong(uri.getLastPathSegment()));
+                String packageNames = values == null ? null : values.getAsString(KEY_PACKAGE_NAMES);
+                initTable(Long.parseLong(uri.getLastPathSegment()),
+                        packageNames == null ? null : Utils.parseCommaSeparatedString(packageNames));
                 return null;
             case CODE_COMMIT:
-                updateAllAppDetails();
                 commitTable(Long.parseLong(uri.getLastPathSegment()));
                 return null;
             default:
@@ -162,7 +210,7 @@ public class TempAppProvider extends AppProvider {
                 break;
         }
 
-        return super.runQuery(uri, selection, projection, true, sortOrder, 0);
+        return super.runQuery(uri, selection, projection, true, null, sortOrder, 0);
     }
 
     private void ensureTempTableDetached(SQLiteDatabase db) {
@@ -178,29 +226,73 @@ public class TempAppProvider extends AppProvider {
         }
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    /**
+     * Whether the temp tables were set up to only replace some packages in the repo.
+     * See {@link Helper#init(Context, long, Collection)}.
+     */
+    static boolean isUpdatingChangedPackagesOnly(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT name FROM " + DB + ".sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{TABLE_TEMP_CHANGED_PACKAGE});
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Selects the {@link PackageTable} IDs of everything in {@link #TABLE_TEMP_CHANGED_PACKAGE}.
+     * Packages which are new to the device don't have a row until they are inserted during the
+     * update, so this is only evaluated at commit time.
+     */
+    private static String getChangedPackageIdsSubquery() {
+        return "SELECT pkg." + PackageTable.Cols.ROW_ID + " " +
+                "FROM " + PackageTable.NAME + " AS pkg " +
+                "JOIN " + DB + "." + TABLE_TEMP_CHANGED_PACKAGE + " AS changed " +
+                "ON (pkg." + PackageTable.Cols.PACKAGE_NAME + " = changed." + PackageTable.Cols.PACKAGE_NAME + ")";
+    }
+
+    /**
+     * Creates empty temp tables, which only ever hold the rows from the repo being updated.
+     * The rows from every other repo stay where they are in the real tables, so the cost of
+     * an update only depends on the size of the repo being updated.  The temp rows are given
+     * IDs higher than any in the real tables by {@link TempTableBulkWriter}, so they can be
+     * copied across as they are, along with the join tables which point to them.
+     */
+    private void initTable(long repoIdBeingUpdated, @Nullable String[] packageNamesToUpdate) {
         final SQLiteDatabase db = db();
 
-        String mainApp = AppMetadataTable.NAME;
         String tempApp = DB + "." + getTableName();
-        String mainCat = CatJoinTable.NAME;
         String tempCat = DB + "." + getCatJoinTableName();
 
+        Utils.debugLog(TAG, "Creating temp tables for repo " + repoIdBeingUpdated);
         ensureTempTableDetached(db);
         db.execSQL("ATTACH DATABASE ':memory:' AS " + DB);
         db.execSQL(DBHelper.CREATE_TABLE_APP_METADATA.replaceFirst(AppMetadataTable.NAME, tempApp));
         db.execSQL(DBHelper.CREATE_TABLE_CAT_JOIN.replaceFirst(CatJoinTable.NAME, tempCat));
 
-        String appWhere = mainApp + "." + Cols.REPO_ID + " != ?";
-        String[] repoArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, appWhere), repoArgs);
+        if (packageNamesToUpdate != null) {
+            db.execSQL("CREATE TABLE " + DB + "." + TABLE_TEMP_CHANGED_PACKAGE
+                    + " (" + PackageTable.Cols.PACKAGE_NAME + " TEXT PRIMARY KEY)");
+            ContentValues values = new ContentValues(1);
+            for (String packageName : packageNamesToUpdate) {
+                values.put(PackageTable.Cols.PACKAGE_NAME, packageName);
+                db.insertWithOnConflict(DB + "." + TABLE_TEMP_CHANGED_PACKAGE, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+            }
+        }
 
-        // TODO: String catWhere = mainCat + "." + CatJoinTable.Cols..Cols.REPO_ID + " != ?";
-        db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, null));
+        db.execSQL("CREATE TABLE " + DB + "." + TABLE_TEMP_COMMITTED_PACKAGE
+                + " (" + Cols.PACKAGE_ID + " INTEGER PRIMARY KEY)");
 
         db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_upstreamVercode ON " + getTableName() + " (" + Cols.SUGGESTED_VERSION_CODE + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
+    }
+
+    /**
+     * Selects the {@link PackageTable} IDs in {@link #TABLE_TEMP_COMMITTED_PACKAGE}.
+     */
+    static String getCommittedPackageIdsQuery() {
+        return "SELECT " + Cols.PACKAGE_ID + " FROM " + DB + "." + TABLE_TEMP_COMMITTED_PACKAGE;
     }
 
     /**
@@ -216,6 +308,16 @@ public class TempAppProvider extends AppProvider {
         return sql;
     }
 
+    /**
+     * Replaces the rows of the repo in the real tables with everything in the temp tables.  If
+     * the temp tables were set up with a list of package names, then only the rows of those
+     * packages are removed, everything else from the repo is left as it is.  Rows which point
+     * to the app rows that are about to be deleted go first, so that nothing is left dangling.
+     * Once the new rows are in, the details which are calculated from all repos together, like
+     * the preferred metadata and the suggested versions, are worked out again in the same
+     * transaction.  That is only done for the packages in {@link #TABLE_TEMP_COMMITTED_PACKAGE},
+     * so the cost of a commit depends on the size of the repo, not on all of the repos together.
+     */
     private void commitTable(long repoIdToCommit) {
         final SQLiteDatabase db = db();
         try {
@@ -228,24 +330,35 @@ public class TempAppProvider extends AppProvider {
 
             final String[] repoArgs = new String[]{Long.toString(repoIdToCommit)};
 
-            db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(Cols.ALL_COLS, tempApp, AppMetadataTable.NAME, Cols.REPO_ID + " = ?"), repoArgs);
-
-            db.execSQL("DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(ApkTable.Cols.ALL_COLS, tempApk, ApkTable.NAME, ApkTable.Cols.REPO_ID + " = ?"), repoArgs);
-
-            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE " + getCatRepoWhere(CatJoinTable.NAME), repoArgs);
-            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, tempCatJoin, CatJoinTable.NAME, getCatRepoWhere(tempCatJoin)), repoArgs);
-
-            db.execSQL(
-                    "DELETE FROM " + Schema.ApkAntiFeatureJoinTable.NAME + " " +
-                    "WHERE " + getAntiFeatureRepoWhere(Schema.ApkAntiFeatureJoinTable.NAME), repoArgs);
-
-            db.execSQL(copyData(
-                    Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                    tempAntiFeatureJoin,
-                    Schema.ApkAntiFeatureJoinTable.NAME,
-                    getAntiFeatureRepoWhere(tempAntiFeatureJoin)), repoArgs);
+            String appWhere = AppMetadataTable.NAME + "." + Cols.REPO_ID + " = ?";
+            if (isUpdatingChangedPackagesOnly(db)) {
+                appWhere += " AND " + AppMetadataTable.NAME + "." + Cols.PACKAGE_ID
+                        + " IN (" + getChangedPackageIdsSubquery() + ")";
+            }
+            final String appIds = "SELECT " + Cols.ROW_ID + " FROM " + AppMetadataTable.NAME + " WHERE " + appWhere;
+            final String apkIds = "SELECT " + ApkTable.Cols.ROW_ID + " FROM " + ApkTable.NAME
+                    + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + appIds + ")";
+
+            final String committedPackages = "INSERT OR IGNORE INTO " + DB + "." + TABLE_TEMP_COMMITTED_PACKAGE
+                    + " (" + Cols.PACKAGE_ID + ") SELECT " + Cols.PACKAGE_ID + " FROM ";
+            db.execSQL(committedPackages + AppMetadataTable.NAME + " WHERE " + appWhere, repoArgs);
+            db.execSQL(committedPackages + tempApp);
+
+            db.execSQL("DELETE FROM " + ApkAntiFeatureJoinTable.NAME + " WHERE "
+                    + ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + apkIds + ")", repoArgs);
+            db.execSQL("DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.APP_ID + " IN (" + appIds + ")",
+                    repoArgs);
+            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE "
+                    + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + appIds + ")", repoArgs);
+            db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + appWhere, repoArgs);
+
+            db.execSQL(copyData(Cols.ALL_COLS, tempApp, AppMetadataTable.NAME, null));
+            db.execSQL(copyData(TempApkProvider.COLS_WITH_ROW_ID, tempApk, ApkTable.NAME, null));
+            db.execSQL(copyData(CAT_JOIN_COLS_WITHOUT_ROW_ID, tempCatJoin, CatJoinTable.NAME, null));
+            db.execSQL(copyData(ApkAntiFeatureJoinTable.Cols.ALL_COLS, tempAntiFeatureJoin,
+                    ApkAntiFeatureJoinTable.NAME, null));
+
+            AppProvider.Helper.calcDetailsForCommittedPackages(getContext());
 
             db.setTransactionSuccessful();
 
@@ -257,23 +370,4 @@ public class TempAppProvider extends AppProvider {
             db.execSQL("DETACH DATABASE " + DB); // Can't be done in a transaction.
         }
     }
-
-    private String getCatRepoWhere(String categoryTable) {
-        String catRepoSubquery =
-                "SELECT DISTINCT innerCatJoin." + CatJoinTable.Cols.ROW_ID + " " +
-                "FROM " + categoryTable + " AS innerCatJoin " +
-                "JOIN " + getTableName() + " AS app ON (app." + Cols.ROW_ID + " = innerCatJoin." + CatJoinTable.Cols.APP_METADATA_ID + ") " +
-                "WHERE app." + Cols.REPO_ID + " = ?";
-
-        return CatJoinTable.Cols.ROW_ID + " IN (" + catRepoSubquery + ")";
-    }
-
-    private String getAntiFeatureRepoWhere(String antiFeatureTable) {
-        String subquery =
-                "SELECT innerApk." + ApkTable.Cols.ROW_ID + " " +
-                "FROM " + ApkTable.NAME + " AS innerApk " +
-                "WHERE innerApk." + ApkTable.Cols.REPO_ID + " = ?";
-
-        return antiFeatureTable + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + subquery + ")";
-    }
 }
@@ -0,0 +1,375 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes apps and apks straight into the temporary tables set up by
+ * {@link TempAppProvider.Helper#init(Context, long)}, instead of going through
+ * {@link TempAppProvider#insert(android.net.Uri, ContentValues)} and
+ * {@link TempApkProvider#insert(android.net.Uri, ContentValues)} one
+ * {@link android.content.ContentProviderOperation} at a time.  The
+ * {@code INSERT} statements are compiled once and then rebound for each row,
+ * and the row ID of each app comes straight from
+ * {@link SQLiteStatement#executeInsert()}, so there is no need to query the
+ * apps again to find out what ID they were given.
+ * <p>
+ * This does the same massaging of the data as the {@code insert()} methods
+ * of those providers, so the two must be kept in sync.  The statements are
+ * only valid while the temp database is attached, so this must be
+ * {@link #close() closed} before the temp tables are committed.
+ * <p>
+ * The temp tables only hold the rows of the repo being updated, which get
+ * copied into the real tables when committing.  So that they can be copied
+ * with their IDs intact, along with the join tables pointing at them, each
+ * app and apk is given an ID which is higher than any in the real tables.
+ * <p>
+ * Every app needs the ID of its row in {@link PackageTable}, and every apk the
+ * IDs of its anti-features in {@link AntiFeatureTable}.  Rather than looking
+ * those up one at a time, both tables are read into memory once when this is
+ * created, and any names that are missing are all inserted together at the
+ * start of each batch.  Anti-features are only ever added by imports, which
+ * run one at a time, but packages are also added whenever an app gets
+ * installed, see {@link PackageProvider.Helper#ensureExists(Context, String)}.
+ * So missing packages are inserted with {@code INSERT OR IGNORE}, relying on
+ * the unique index on {@link PackageTable.Cols#PACKAGE_NAME}, and then their
+ * ID is looked up, whoever ended up adding the row.
+ * Categories already have a cache in {@link CategoryProvider.Helper}.
+ * <p>
+ * Turning the apps and apks into rows is split out into {@link #encode(List, Map)},
+ * which does not need the database, so {@link RepoPersister} can do that on other
+ * threads, and only {@link #insert(EncodedBatch)} has to happen on one thread.
+ */
+class TempTableBulkWriter implements Closeable {
+
+    private static final String TAG = "TempTableBulkWriter";
+
+    private final Context context;
+    private final SQLiteDatabase db;
+
+    /**
+     * Apps and apks always produce the same set of {@link ContentValues} keys, so
+     * in practice there is one of these per table.  They are keyed on the SQL
+     * anyway, so that nothing breaks if a field is left out.
+     */
+    private final Map<String, SQLiteStatement> insertStatements = new HashMap<>();
+
+    private long nextAppId;
+    private long nextApkId;
+
+    private final Map<String, Long> packageIds;
+    private final Map<String, Long> antiFeatureIds;
+
+    private final SQLiteStatement insertPackage;
+    private final SQLiteStatement selectPackageId;
+    private final SQLiteStatement insertAntiFeature;
+    private final SQLiteStatement insertCatJoin;
+    private final SQLiteStatement insertAntiFeatureJoin;
+
+    TempTableBulkWriter(Context context) {
+        this.context = context;
+        db = DBHelper.getInstance(context).getWritableDatabase();
+
+        nextAppId = loadMaxId(AppMetadataTable.NAME, AppMetadataTable.Cols.ROW_ID) + 1;
+        nextApkId = loadMaxId(ApkTable.NAME, ApkTable.Cols.ROW_ID) + 1;
+        packageIds = loadIds(PackageTable.NAME, PackageTable.Cols.ROW_ID, PackageTable.Cols.PACKAGE_NAME);
+        antiFeatureIds = loadIds(AntiFeatureTable.NAME, AntiFeatureTable.Cols.ROW_ID, AntiFeatureTable.Cols.NAME);
+
+        insertPackage = db.compileStatement("INSERT OR IGNORE INTO " + PackageTable.NAME
+                + " (" + PackageTable.Cols.PACKAGE_NAME + ") VALUES (?)");
+        selectPackageId = db.compileStatement("SELECT " + PackageTable.Cols.ROW_ID + " FROM " + PackageTable.NAME
+                + " WHERE " + PackageTable.Cols.PACKAGE_NAME + " = ?");
+        insertAntiFeature = db.compileStatement("INSERT INTO " + AntiFeatureTable.NAME
+                + " (" + AntiFeatureTable.Cols.NAME + ") VALUES (?)");
+        insertCatJoin = db.compileStatement("INSERT INTO " + TempAppProvider.TABLE_TEMP_CAT_JOIN
+                + " (" + CatJoinTable.Cols.APP_METADATA_ID + ", " + CatJoinTable.Cols.CATEGORY_ID + ") VALUES (?, ?)");
+        insertAntiFeatureJoin = db.compileStatement("INSERT INTO " + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN
+                + " (" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID
+                + ") VALUES (?, ?)");
+    }
+
+    /**
+     * Insert each app along with its apks in a single transaction.  Each {@link Apk#appId}
+     * is set to the row ID of its app before it is inserted.
+     *
+     * @return the row IDs of the newly inserted apps, keyed by package name
+     */
+    Map<String, Long> insertAppsAndApks(List<App> apps, Map<String, List<Apk>> apks) {
+        return insert(encode(apps, apks));
+    }
+
+    /**
+     * The rows of one batch of apps and their apks, as made by {@link #encode(List, Map)}.
+     */
+    static final class EncodedBatch {
+        private final List<EncodedApp> apps;
+        private final Set<String> packageNames = new TreeSet<>();
+        private final Set<String> antiFeatures = new TreeSet<>();
+        private int rows;
+
+        private EncodedBatch(int size) {
+            apps = new ArrayList<>(size);
+        }
+
+        /**
+         * @return how many app and apk rows this batch has
+         */
+        int getRows() {
+            return rows;
+        }
+    }
+
+    private static final class EncodedApp {
+        private final String packageName;
+        private final ContentValues values;
+        private final String[] categories;
+        private final List<Apk> apks;
+        private final List<ContentValues> apkValues;
+
+        private EncodedApp(String packageName, ContentValues values, String[] categories,
+                           List<Apk> apks, List<ContentValues> apkValues) {
+            this.packageName = packageName;
+            this.values = values;
+            this.categories = categories;
+            this.apks = apks;
+            this.apkValues = apkValues;
+        }
+    }
+
+    /**
+     * Turn each app and its apks into the {@link ContentValues} to insert, with
+     * everything but the IDs, which are only known when inserting.  This does not
+     * touch the database, so batches can be encoded on other threads while the
+     * one before is being inserted.
+     *
+     * @see AppProvider#insert(android.net.Uri, ContentValues)
+     * @see ApkProvider#insert(android.net.Uri, ContentValues)
+     */
+    static EncodedBatch encode(List<App> apps, Map<String, List<Apk>> apks) {
+        EncodedBatch batch = new EncodedBatch(apps.size());
+        for (App app : apps) {
+            ContentValues values = app.toContentValues();
+            String packageName = values.getAsString(AppMetadataTable.Cols.Package.PACKAGE_NAME);
+            values.remove(AppMetadataTable.Cols.Package.PACKAGE_NAME);
+
+            if (values.getAsString(AppMetadataTable.Cols.DESCRIPTION) == null) {
+                // the current structure assumes that description is always present and non-null
+                values.put(AppMetadataTable.Cols.DESCRIPTION, "");
+            }
+
+            // Trim these to avoid unwanted newlines in the UI
+            values.put(AppMetadataTable.Cols.SUMMARY, values.getAsString(AppMetadataTable.Cols.SUMMARY).trim());
+            values.put(AppMetadataTable.Cols.NAME, values.getAsString(AppMetadataTable.Cols.NAME).trim());
+
+            String[] categories = Utils.parseCommaSeparatedString(
+                    values.getAsString(AppMetadataTable.Cols.ForWriting.Categories.CATEGORIES));
+            values.remove(AppMetadataTable.Cols.ForWriting.Categories.CATEGORIES);
+
+            List<Apk> apksForApp = apks.get(app.packageName);
+            if (apksForApp == null) {
+                apksForApp = Collections.emptyList();
+            }
+            List<ContentValues> apkValues = new ArrayList<>(apksForApp.size());
+            for (Apk apk : apksForApp) {
+                ContentValues valuesForApk = apk.toContentValues();
+                valuesForApk.remove(ApkTable.Cols.AntiFeatures.ANTI_FEATURES);
+                apkValues.add(valuesForApk);
+                if (apk.antiFeatures != null) {
+                    Collections.addAll(batch.antiFeatures, apk.antiFeatures);
+                }
+            }
+
+            batch.apps.add(new EncodedApp(packageName, values, categories, apksForApp, apkValues));
+            batch.packageNames.add(packageName);
+            batch.rows += 1 + apksForApp.size();
+        }
+        return batch;
+    }
+
+    /**
+     * Insert an {@link EncodedBatch} in a single transaction, giving each row the
+     * next ID.  Batches must be inserted in the same order every time for the
+     * IDs to come out the same.
+     *
+     * @return the row IDs of the newly inserted apps, keyed by package name
+     */
+    Map<String, Long> insert(EncodedBatch batch) {
+        Map<String, Long> appIds = new HashMap<>(batch.apps.size());
+        Set<String> newPackages = new TreeSet<>();
+        for (String packageName : batch.packageNames) {
+            if (!packageIds.containsKey(packageName)) {
+                newPackages.add(packageName);
+            }
+        }
+        Set<String> newAntiFeatures = new TreeSet<>();
+        for (String antiFeature : batch.antiFeatures) {
+            if (!antiFeatureIds.containsKey(antiFeature)) {
+                newAntiFeatures.add(antiFeature);
+            }
+        }
+
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            insertMissingPackages(newPackages);
+            insertMissing(insertAntiFeature, newAntiFeatures, antiFeatureIds);
+            for (EncodedApp app : batch.apps) {
+                long appId = insertApp(app);
+                appIds.put(app.packageName, appId);
+                for (int i = 0; i < app.apks.size(); i++) {
+                    Apk apk = app.apks.get(i);
+                    apk.appId = appId;
+                    insertApk(apk, app.apkValues.get(i));
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                // those rows were rolled back, so their IDs are no longer valid
+                packageIds.keySet().removeAll(newPackages);
+                antiFeatureIds.keySet().removeAll(newAntiFeatures);
+            }
+        }
+        return appIds;
+    }
+
+    private long loadMaxId(String table, String idColumn) {
+        return DatabaseUtils.longForQuery(db, "SELECT COALESCE(MAX(" + idColumn + "), 0) FROM " + table, null);
+    }
+
+    private Map<String, Long> loadIds(String table, String idColumn, String nameColumn) {
+        Cursor cursor = db.query(table, new String[]{idColumn, nameColumn}, null, null, null, null, null);
+        try {
+            Map<String, Long> ids = new HashMap<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insertMissing(SQLiteStatement insert, Set<String> names, Map<String, Long> ids) {
+        for (String name : names) {
+            insert.bindString(1, name);
+            ids.put(name, insert.executeInsert());
+        }
+    }
+
+    /**
+     * The package may have been added since {@link #packageIds} was loaded, in
+     * which case the insert is ignored, so always look up the ID afterwards.
+     */
+    private void insertMissingPackages(Set<String> packageNames) {
+        for (String packageName : packageNames) {
+            insertPackage.bindString(1, packageName);
+            insertPackage.executeInsert();
+            selectPackageId.bindString(1, packageName);
+            packageIds.put(packageName, selectPackageId.simpleQueryForLong());
+        }
+    }
+
+    private long insertApp(EncodedApp app) {
+        ContentValues values = app.values;
+        values.put(AppMetadataTable.Cols.PACKAGE_ID, packageIds.get(app.packageName));
+        values.put(AppMetadataTable.Cols.ROW_ID, nextAppId++);
+
+        long appMetadataId = insert(TempAppProvider.TABLE_TEMP_APP, values);
+
+        if (app.categories != null) {
+            // There is nothing stopping a server repeating a category name in the metadata of
+            // an app. In order to prevent unique constraint violations, only insert once into
+            // the join table.
+            Set<String> categoriesSet = new HashSet<>();
+            for (String categoryName : app.categories) {
+                if (categoriesSet.add(categoryName)) {
+                    insertCatJoin.bindLong(1, appMetadataId);
+                    insertCatJoin.bindLong(2, CategoryProvider.Helper.ensureExists(context, categoryName));
+                    insertCatJoin.executeInsert();
+                }
+            }
+        }
+
+        return appMetadataId;
+    }
+
+    private void insertApk(Apk apk, ContentValues values) {
+        values.put(ApkTable.Cols.APP_ID, apk.appId);
+        values.put(ApkTable.Cols.ROW_ID, nextApkId++);
+
+        long apkId = insert(TempApkProvider.TABLE_TEMP_APK, values);
+
+        if (apk.antiFeatures != null) {
+            Set<String> antiFeatureSet = new HashSet<>();
+            for (String antiFeatureName : apk.antiFeatures) {
+                if (antiFeatureSet.add(antiFeatureName)) {
+                    insertAntiFeatureJoin.bindLong(1, apkId);
+                    insertAntiFeatureJoin.bindLong(2, antiFeatureIds.get(antiFeatureName));
+                    insertAntiFeatureJoin.executeInsert();
+                }
+            }
+        }
+    }
+
+    private long insert(String table, ContentValues values) {
+        List<String> columns = new ArrayList<>(values.size());
+        List<Object> args = new ArrayList<>(values.size());
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            columns.add(entry.getKey());
+            args.add(entry.getValue());
+        }
+
+        String sql = "INSERT INTO " + table + " (" + TextUtils.join(", ", columns) + ") VALUES ("
+                + FDroidProvider.generateQuestionMarksForInClause(columns.size()) + ")";
+        SQLiteStatement statement = insertStatements.get(sql);
+        if (statement == null) {
+            Utils.debugLog(TAG, "Compiling " + sql);
+            statement = db.compileStatement(sql);
+            insertStatements.put(sql, statement);
+        }
+
+        statement.clearBindings();
+        for (int i = 0; i < args.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, args.get(i));
+        }
+        return statement.executeInsert();
+    }
+
+    @Override
+    public void close() {
+        for (SQLiteStatement statement : insertStatements.values()) {
+            statement.close();
+        }
+        insertStatements.clear();
+        insertPackage.close();
+        selectPackageId.close();
+        insertAntiFeature.close();
+        insertCatJoin.close();
+        insertAntiFeatureJoin.close();
+    }
+}
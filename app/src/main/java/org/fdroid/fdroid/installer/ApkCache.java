@@ -23,19 +23,34 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import com.nostra13.universalimageloader.utils.StorageUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.compat.FileCompat;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
 
 public class ApkCache {
 
+    private static final String TAG = "ApkCache";
+
     private static final String CACHE_DIR = "apks";
 
     /**
@@ -68,6 +83,11 @@ public class ApkCache {
 
     /**
      * Copy an APK from {@param apkFile} to our internal files directory for 20 minutes.
+     * <p>
+     * If {@code apkFile} is in F-Droid's own internal storage, where no other app can
+     * change it, and its hash was recorded while it was downloaded, then it is linked
+     * rather than copied, so it does not need to be read at all.  Otherwise, the hash
+     * is calculated from the bytes as they are copied.
      *
      * @param verifyHash If the file was just downloaded, then you should mark this as true and
      *                   request the file to be verified once it has finished copying. Otherwise,
@@ -86,28 +106,24 @@ public class ApkCache {
             sanitizedApkFile.delete();
         }
 
-        FileUtils.copyFile(apkFile, sanitizedApkFile);
-
-        // verify copied file's hash with expected hash from Apk class
-        if (verifyHash && !Hasher.isFileMatchingHash(sanitizedApkFile, hash, hashType)) {
-            FileUtils.deleteQuietly(apkFile);
-            throw new IOException(apkFile + " failed to verify!");
+        if (verifyHash && isInPrivateStorage(context, apkFile)
+                && isMatchingHash(Hasher.readSidecar(apkFile, hashType), hash)
+                && FileCompat.link(SanitizedFile.knownSanitized(apkFile), sanitizedApkFile)) {
+            Utils.debugLog(TAG, "Linked verified " + apkFile + " to " + sanitizedApkFile);
+        } else if (verifyHash) {
+            // verify copied file's hash with expected hash from Apk class
+            if (!isMatchingHash(copyAndHash(apkFile, sanitizedApkFile, hashType), hash)) {
+                FileUtils.deleteQuietly(apkFile);
+                Hasher.deleteSidecar(apkFile, hashType);
+                FileUtils.deleteQuietly(sanitizedApkFile);
+                throw new IOException(apkFile + " failed to verify!");
+            }
+        } else {
+            FileUtils.copyFile(apkFile, sanitizedApkFile);
         }
 
         // 20 minutes the start of the install process, delete the file
-        final File apkToDelete = sanitizedApkFile;
-        new Thread() {
-            @Override
-            public void run() {
-                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-                try {
-                    Thread.sleep(1200000);
-                } catch (InterruptedException ignored) {
-                } finally {
-                    FileUtils.deleteQuietly(apkToDelete);
-                }
-            }
-        }.start();
+        ApkCacheManager.deleteLater(sanitizedApkFile, 20, TimeUnit.MINUTES);
 
         return sanitizedApkFile;
     }
@@ -134,10 +150,73 @@ public class ApkCache {
      * Verifies the size of the file on disk matches, and then hashes the file to compare with what
      * we received from the signed repo (i.e. {@link Apk#hash} and {@link Apk#hashType}).
      * Bails out if the file sizes don't match to prevent having to do the work of hashing the file.
+     *
+     * @see #isFileMatchingHash(Context, File, String, String)
+     */
+    public static boolean apkIsCached(Context context, File apkFile, Apk apkToCheck) {
+        if (apkFile.length() == apkToCheck.size &&
+                isFileMatchingHash(context, apkFile, apkToCheck.hash, apkToCheck.hashType)) {
+            ApkCacheManager.markUsed(apkFile);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks {@code file} against {@code hash}.  If the file is in F-Droid's internal
+     * storage, and has not changed since its hash was recorded while downloading it,
+     * then that hash is used instead of reading the whole file again.
+     *
+     * @see Hasher#readSidecar(File, String)
+     */
+    public static boolean isFileMatchingHash(Context context, File file, String hash, String hashType) {
+        String recordedHash = isInPrivateStorage(context, file) ? Hasher.readSidecar(file, hashType) : null;
+        if (recordedHash != null) {
+            return isMatchingHash(recordedHash, hash);
+        }
+        return Hasher.isFileMatchingHash(file, hash, hashType);
+    }
+
+    private static boolean isMatchingHash(@Nullable String actualHash, @Nullable String expectedHash) {
+        return !TextUtils.isEmpty(actualHash) && actualHash.equalsIgnoreCase(expectedHash);
+    }
+
+    /**
+     * Copy {@code source} to {@code dest}, hashing the bytes on the way through.
+     *
+     * @return the hash of what was written to {@code dest}
      */
-    public static boolean apkIsCached(File apkFile, Apk apkToCheck) {
-        return apkFile.length() == apkToCheck.size &&
-                Hasher.isFileMatchingHash(apkFile, apkToCheck.hash, apkToCheck.hashType);
+    private static String copyAndHash(File source, File dest, String hashType) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(hashType);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = new FileInputStream(source);
+            output = new DigestOutputStream(new FileOutputStream(dest), digest);
+            IOUtils.copy(input, output);
+        } finally {
+            Utils.closeQuietly(input);
+            Utils.closeQuietly(output);
+        }
+        return Hasher.hex(digest.digest());
+    }
+
+    /**
+     * Only the app itself can write to its internal storage, so a file in there
+     * cannot have been swapped out since its hash was recorded.
+     */
+    private static boolean isInPrivateStorage(Context context, File file) {
+        try {
+            String dataDir = new File(context.getApplicationInfo().dataDir).getCanonicalPath();
+            return file.getCanonicalPath().startsWith(dataDir + File.separator);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
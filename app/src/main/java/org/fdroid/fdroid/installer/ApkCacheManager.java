@@ -0,0 +1,267 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the {@link ApkCache#getApkCacheDir(Context) APK cache} within a byte
+ * budget, derived from how much space is free, by deleting the least recently
+ * used files first.  Downloads that are still running, and APKs that are
+ * {@link InstallManagerService#isPendingInstall(String) waiting to be installed},
+ * are pinned and never deleted.
+ * <p>
+ * All of the deleting happens on one background thread, a little after each
+ * finished download, rather than on a thread per file.  The files the installer
+ * copies out of the cache are deleted on the same thread once the install has
+ * had time to finish.
+ * <p>
+ * Each download is treated together with its {@link Hasher#getSidecarFile(File, String)
+ * sidecar}, which also stores when it was last used, see {@link #markUsed(File)}.
+ */
+public final class ApkCacheManager {
+    private static final String TAG = "ApkCacheManager";
+
+    /**
+     * The share of the space on the cache's filesystem, free or already used
+     * by the cache, that the cache may take up.
+     */
+    static final int BUDGET_DIVISOR = 10;
+    static final long MIN_BUDGET_BYTES = 64L * 1024 * 1024;
+    static final long MAX_BUDGET_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * How long after a download finishes to trim the cache, so a batch of
+     * downloads only causes one trim.
+     */
+    private static final long TRIM_DELAY_SECONDS = 10;
+
+    private static final String SIDECAR_HASH_TYPE = "sha256";
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            runnable.run();
+                        }
+                    }, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ConcurrentHashMap<String, AtomicInteger> PINS = new ConcurrentHashMap<>();
+    private static final AtomicBoolean TRIM_SCHEDULED = new AtomicBoolean();
+
+    private ApkCacheManager() {
+    }
+
+    /**
+     * Keep {@code file} from being deleted until {@link #unpin(File)} is
+     * called as many times as this was.
+     */
+    public static void pin(File file) {
+        String path = file.getAbsolutePath();
+        AtomicInteger count = PINS.get(path);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = PINS.putIfAbsent(path, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public static void unpin(File file) {
+        String path = file.getAbsolutePath();
+        AtomicInteger count = PINS.get(path);
+        if (count != null && count.decrementAndGet() <= 0) {
+            PINS.remove(path, count);
+        }
+    }
+
+    /**
+     * Record that {@code file} was just used, so it is the last to be deleted.
+     * The access time of the file cannot be relied on, since storage is often
+     * mounted with {@code noatime} or {@code relatime}, and changing its
+     * modification time would make its sidecar look out of date, so if there
+     * is a sidecar, the time is stored on that instead.
+     */
+    public static void markUsed(File file) {
+        long now = System.currentTimeMillis();
+        File sidecar = Hasher.getSidecarFile(file, SIDECAR_HASH_TYPE);
+        if (sidecar.exists()) {
+            sidecar.setLastModified(now);
+        } else {
+            file.setLastModified(now);
+        }
+    }
+
+    /**
+     * Delete {@code file} after {@code delay}, e.g. the copy of an APK that is
+     * given to the installer.
+     */
+    public static void deleteLater(final File file, long delay, TimeUnit unit) {
+        EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                FileUtils.deleteQuietly(file);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Trim the cache in the background soon, unless that is already planned.
+     */
+    public static void scheduleTrim(final Context context) {
+        if (!TRIM_SCHEDULED.compareAndSet(false, true)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                TRIM_SCHEDULED.set(false);
+                trim(appContext, Long.MAX_VALUE);
+            }
+        }, TRIM_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Delete everything in the cache that was last used more than {@code maxAge}
+     * milliseconds ago, then the least recently used files until the cache fits
+     * into its budget.  Pinned files are always kept.
+     *
+     * @return how many bytes were deleted
+     */
+    public static long trim(Context context, long maxAge) {
+        File cacheDir = ApkCache.getApkCacheDir(context);
+        return trim(cacheDir, getPinnedPaths(context), getBudget(cacheDir), maxAge, System.currentTimeMillis());
+    }
+
+    static long trim(File cacheDir, Set<String> pinnedPaths, long budget, long maxAge, long now) {
+        List<Entry> entries = new ArrayList<>();
+        collectEntries(cacheDir, entries);
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.lastUsed < rhs.lastUsed ? -1 : (lhs.lastUsed == rhs.lastUsed ? 0 : 1);
+            }
+        });
+
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+
+        long deleted = 0;
+        int deletedCount = 0;
+        for (Entry entry : entries) {
+            boolean expired = now - entry.lastUsed > maxAge;
+            if (!expired && total - deleted <= budget) {
+                break; // the rest were used more recently
+            }
+            if (pinnedPaths.contains(entry.file.getAbsolutePath())) {
+                continue;
+            }
+            FileUtils.deleteQuietly(entry.file);
+            FileUtils.deleteQuietly(entry.sidecar);
+            deleted += entry.size;
+            deletedCount++;
+        }
+
+        deleteEmptyDirs(cacheDir);
+        if (deletedCount > 0) {
+            Utils.debugLog(TAG, "Deleted " + deletedCount + " files (" + deleted + " bytes) from the APK cache, "
+                    + (total - deleted) + " bytes left of " + budget);
+        }
+        return deleted;
+    }
+
+    /**
+     * A tenth of the space the cache could use, between {@link #MIN_BUDGET_BYTES}
+     * and {@link #MAX_BUDGET_BYTES}.
+     */
+    static long getBudget(File cacheDir) {
+        long budget = (cacheDir.getUsableSpace() + FileUtils.sizeOfDirectory(cacheDir)) / BUDGET_DIVISOR;
+        return Math.max(MIN_BUDGET_BYTES, Math.min(MAX_BUDGET_BYTES, budget));
+    }
+
+    private static Set<String> getPinnedPaths(Context context) {
+        Set<String> paths = new HashSet<>(PINS.keySet());
+        for (String canonicalUrl : InstallManagerService.getPendingInstallUrls(context)) {
+            paths.add(ApkCache.getApkDownloadPath(context, canonicalUrl).getAbsolutePath());
+        }
+        return paths;
+    }
+
+    private static void collectEntries(File dir, List<Entry> entries) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectEntries(file, entries);
+            } else if (!file.getName().endsWith("." + SIDECAR_HASH_TYPE)) {
+                entries.add(new Entry(file));
+            } else if (!new File(file.getPath().substring(0,
+                    file.getPath().length() - SIDECAR_HASH_TYPE.length() - 1)).exists()) {
+                FileUtils.deleteQuietly(file); // its download is gone
+            }
+        }
+    }
+
+    private static void deleteEmptyDirs(File cacheDir) {
+        File[] dirs = cacheDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            String[] contents = dir.list();
+            if (dir.isDirectory() && contents != null && contents.length == 0) {
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * A file in the cache, together with its sidecar.
+     */
+    private static final class Entry {
+        final File file;
+        final File sidecar;
+        final long size;
+        final long lastUsed;
+
+        Entry(File file) {
+            this.file = file;
+            sidecar = Hasher.getSidecarFile(file, SIDECAR_HASH_TYPE);
+            size = file.length() + sidecar.length();
+            lastUsed = Math.max(file.lastModified(), sidecar.lastModified());
+        }
+    }
+}
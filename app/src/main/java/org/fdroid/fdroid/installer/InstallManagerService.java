@@ -11,6 +11,7 @@ import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -30,6 +31,8 @@ import org.fdroid.fdroid.net.DownloaderService;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Manages the whole process when a background update triggers an install or the user
@@ -201,8 +204,8 @@ public class InstallManagerService extends Service {
             return START_NOT_STICKY;
         }
 
-        FDroidApp.resetMirrorVars();
-        DownloaderService.setTimeout(FDroidApp.getTimeout());
+        FDroidApp.resetMirrorVars(apk.repoId);
+        DownloaderService.setTimeout(FDroidApp.getTimeout(apk.repoId));
 
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
 
@@ -214,15 +217,15 @@ public class InstallManagerService extends Service {
         long apkFileSize = apkFilePath.length();
         if (!apkFilePath.exists() || apkFileSize < apk.size) {
             Utils.debugLog(TAG, "download " + canonicalUrl + " " + apkFilePath);
-            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
-        } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
+            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl, apk.size, getSha256(apk));
+        } else if (ApkCache.apkIsCached(this, apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + canonicalUrl + " " + apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_COMPLETE, apkFilePath);
         } else {
             Utils.debugLog(TAG, "delete and download again " + canonicalUrl + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
+            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl, apk.size, getSha256(apk));
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
@@ -235,6 +238,15 @@ public class InstallManagerService extends Service {
         localBroadcastManager.sendBroadcast(intent);
     }
 
+    /**
+     * @return the SHA-256 of {@code apk} from the index, or {@code null} if the
+     * index used some other hash type
+     */
+    @Nullable
+    private static String getSha256(Apk apk) {
+        return "sha256".equalsIgnoreCase(apk.hashType) ? apk.hash : null;
+    }
+
     private void getMainObb(final String canonicalUrl, Apk apk) {
         getObb(canonicalUrl, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, apk.repoId);
     }
@@ -278,7 +290,7 @@ public class InstallManagerService extends Service {
                             + " to " + localApkUri);
 
                     try {
-                        if (Hasher.isFileMatchingHash(localFile, hash, "sha256")) {
+                        if (ApkCache.isFileMatchingHash(context, localFile, hash, "sha256")) {
                             Utils.debugLog(TAG, "Installing OBB " + localFile + " to " + obbDestFile);
                             FileUtils.forceMkdirParent(obbDestFile);
                             FileUtils.copyFile(localFile, obbDestFile);
@@ -297,6 +309,7 @@ public class InstallManagerService extends Service {
                         e.printStackTrace();
                     } finally {
                         FileUtils.deleteQuietly(localFile);
+                        Hasher.deleteSidecar(localFile, "sha256");
                     }
                 } else if (Downloader.ACTION_INTERRUPTED.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
@@ -307,7 +320,7 @@ public class InstallManagerService extends Service {
                 }
             }
         };
-        DownloaderService.queueUsingRandomMirror(this, repoId, obbUrlString);
+        DownloaderService.queueUsingRandomMirror(this, repoId, obbUrlString, 0, hash);
         localBroadcastManager.registerReceiver(downloadReceiver,
                 DownloaderService.getIntentFilter(obbUrlString));
     }
@@ -373,7 +386,7 @@ public class InstallManagerService extends Service {
                                     intent.getStringExtra(Downloader.EXTRA_MIRROR_URL),
                                     RepoProvider.Helper.findById(InstallManagerService.this, repoId));
                             DownloaderService.queue(context, currentUrlString, repoId, canonicalUrl);
-                            DownloaderService.setTimeout(FDroidApp.getTimeout());
+                            DownloaderService.setTimeout(FDroidApp.getTimeout(repoId));
                         } catch (IOException e) {
                             appUpdateStatusManager.setDownloadError(canonicalUrl,
                                     intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
@@ -515,6 +528,16 @@ public class InstallManagerService extends Service {
         pendingInstalls.edit().remove(canonicalUrl).apply();
     }
 
+    /**
+     * @return the {@code canonicalUrl}s of all the APKs that are waiting to be installed
+     */
+    public static Set<String> getPendingInstallUrls(Context context) {
+        if (pendingInstalls == null) {
+            pendingInstalls = getPendingInstalls(context);
+        }
+        return new HashSet<>(pendingInstalls.getAll().keySet());
+    }
+
     private static SharedPreferences getPendingInstalls(Context context) {
         return context.getSharedPreferences("pending-installs", Context.MODE_PRIVATE);
     }
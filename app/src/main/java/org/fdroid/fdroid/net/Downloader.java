@@ -1,17 +1,24 @@
 package org.fdroid.fdroid.net;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.format.DateUtils;
+import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.Utils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -56,6 +63,16 @@ public abstract class Downloader {
 
     private volatile int timeout = DEFAULT_TIMEOUT;
 
+    @Nullable
+    private volatile String hashType;
+
+    /**
+     * How many bytes {@link #downloadFromStream(boolean)} read, and how long it
+     * took, for {@link MirrorChooser}.
+     */
+    long streamBytes;
+    long streamMs;
+
     /**
      * For sending download progress, should only be called in {@link #progressTask}
      */
@@ -86,6 +103,15 @@ public abstract class Downloader {
         return timeout;
     }
 
+    /**
+     * Calculate the hash of {@link #outputFile} while it is being written, and
+     * record it in a {@link Hasher#getSidecarFile(File, String) sidecar}, so that
+     * checking the finished download does not need to read the whole file again.
+     */
+    public void setHashType(@Nullable String hashType) {
+        this.hashType = hashType;
+    }
+
     /**
      * If you ask for the cacheTag before calling download(), you will get the
      * same one you passed in (if any). If you call it after download(), you
@@ -119,15 +145,26 @@ public abstract class Downloader {
     void downloadFromStream(boolean resumable) throws IOException, InterruptedException {
         Utils.debugLog(TAG, "Downloading from stream");
         InputStream input = null;
+        MessageDigest digest = null;
+        String hashType = this.hashType;
         OutputStream outputStream = new FileOutputStream(outputFile, resumable);
         try {
+            if (hashType != null) {
+                Hasher.deleteSidecar(outputFile, hashType);
+                digest = createDigest(hashType, resumable);
+                outputStream = new DigestOutputStream(outputStream, digest);
+            }
+
             input = getInputStream();
 
             // Getting the input stream is slow(ish) for HTTP downloads, so we'll check if
             // we were interrupted before proceeding to the download.
             throwExceptionIfInterrupted();
 
+            long start = SystemClock.elapsedRealtime();
             copyInputToOutputStream(input, 8192, outputStream);
+            streamMs = SystemClock.elapsedRealtime() - start;
+            streamBytes = bytesRead;
         } finally {
             Utils.closeQuietly(outputStream);
             Utils.closeQuietly(input);
@@ -136,6 +173,36 @@ public abstract class Downloader {
         // Even if we have completely downloaded the file, we should probably respect
         // the wishes of the user who wanted to cancel us.
         throwExceptionIfInterrupted();
+
+        if (digest != null) {
+            Hasher.writeSidecar(outputFile, hashType, Hasher.hex(digest.digest()));
+        }
+    }
+
+    /**
+     * When resuming, the part of {@link #outputFile} that is already there is
+     * hashed first, which is the only time those bytes are read back.
+     */
+    private MessageDigest createDigest(String hashType, boolean resumable) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(hashType);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (resumable && outputFile.exists()) {
+            InputStream input = new FileInputStream(outputFile);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = input.read(buffer)) != -1) { // NOPMD Avoid assignments in operands
+                    digest.update(buffer, 0, count);
+                }
+            } finally {
+                Utils.closeQuietly(input);
+            }
+        }
+        return digest;
     }
 
     /**
@@ -160,6 +227,33 @@ public abstract class Downloader {
         cancelled = true;
     }
 
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * For downloaders that write the file themselves rather than through
+     * {@link #downloadFromStream(boolean)}, this sends progress updates on the
+     * same schedule until the returned {@link Timer} is cancelled.  Bytes are
+     * counted with {@link #addBytesRead(long)}.
+     */
+    Timer startProgressUpdates(long totalBytes) {
+        this.bytesRead = 0;
+        this.totalBytes = totalBytes;
+        Timer timer = new Timer();
+        timer.scheduleAtFixedRate(progressTask, 0, 100);
+        return timer;
+    }
+
+    /**
+     * @param count how many more bytes were read, or negative if bytes that were
+     *              already counted have to be downloaded again
+     * @see #startProgressUpdates(long)
+     */
+    synchronized void addBytesRead(long count) {
+        bytesRead += count;
+    }
+
     /**
      * This copies the downloaded data from the InputStream to the OutputStream,
      * keeping track of the number of bytes that have flowed through for the
@@ -3,12 +3,16 @@ package org.fdroid.fdroid.net;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class DownloaderFactory {
 
@@ -25,6 +29,31 @@ public class DownloaderFactory {
         return create(context, uri, destFile);
     }
 
+    /**
+     * Like {@link #create(Context, Uri, File)}, but if the file comes from a repo
+     * with mirrors and its SHA-256 is known, it can be downloaded from several
+     * mirrors at once by {@link SegmentedDownloader}.
+     *
+     * @param canonicalUrl the URL of the file on the repo's canonical address
+     * @param size         the size of the file from the index, or {@code 0} if unknown
+     * @param sha256       the SHA-256 of the file from the index, or {@code null}
+     *                     if unknown, in which case this is a plain download
+     */
+    public static Downloader create(Context context, Uri uri, File destFile, String canonicalUrl,
+                                    @Nullable Repo repo, long size, @Nullable String sha256)
+            throws IOException {
+        String scheme = uri.getScheme();
+        if (repo != null && !TextUtils.isEmpty(sha256) && repo.hasMirrors()
+                && ("http".equals(scheme) || "https".equals(scheme))) {
+            List<Uri> mirrorUris = SegmentedDownloader.getMirrorUris(repo, canonicalUrl, uri.toString(),
+                    Preferences.get().isTorEnabled());
+            if (mirrorUris.size() > 1) {
+                return new SegmentedDownloader(mirrorUris, destFile, size, sha256, repo.username, repo.password);
+            }
+        }
+        return create(context, uri, destFile);
+    }
+
     public static Downloader create(Context context, Uri uri, File destFile)
             throws IOException {
         Downloader downloader;
@@ -39,11 +68,14 @@ public class DownloaderFactory {
         } else {
             final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
             Repo repo = RepoProvider.Helper.findByUrl(context, uri, projection);
+            HttpDownloader httpDownloader;
             if (repo == null) {
-                downloader = new HttpDownloader(uri, destFile);
+                httpDownloader = new HttpDownloader(uri, destFile);
             } else {
-                downloader = new HttpDownloader(uri, destFile, repo.username, repo.password);
+                httpDownloader = new HttpDownloader(uri, destFile, repo.username, repo.password);
             }
+            httpDownloader.setConditionalGet(Preferences.get().isConditionalGetEnabled());
+            downloader = httpDownloader;
         }
         return downloader;
     }
@@ -22,18 +22,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.LogPrinter;
-import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
@@ -41,6 +37,7 @@ import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheManager;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -54,6 +51,13 @@ import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * DownloaderService is a service that handles asynchronous download requests
@@ -73,9 +77,10 @@ import java.net.UnknownHostException;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests are handled on a small pool of worker threads, so up to
+ * {@link #MAX_DOWNLOADS} files are downloaded at the same time, but never more
+ * than {@link #MAX_DOWNLOADS_PER_HOST} from the same mirror host.  Requests
+ * that cannot start yet wait in the order they were queued.
  * <p>
  * The Canonical URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -96,25 +101,68 @@ public class DownloaderService extends Service {
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
-    private static volatile String activeCanonicalUrl;
+    private static final String EXTRA_SIZE = "org.fdroid.fdroid.net.DownloaderService.extra.SIZE";
+    private static final String EXTRA_SHA256 = "org.fdroid.fdroid.net.DownloaderService.extra.SHA256";
+
+    /**
+     * The most downloads that can be running at the same time.
+     */
+    private static final int MAX_DOWNLOADS = 4;
+
+    /**
+     * The most downloads that can be running from the same host at the same time,
+     * so that a single mirror is not hammered when lots of apps are updated at once.
+     */
+    private static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+    /**
+     * The least time between {@link Downloader#ACTION_PROGRESS} broadcasts for a
+     * single download, since there can now be several sending them at once.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    /**
+     * Every download that is either waiting or running, keyed by its canonical URL.
+     */
+    private static final ConcurrentHashMap<String, Download> DOWNLOADS = new ConcurrentHashMap<>();
+
+    /**
+     * Downloads that are waiting for a free slot, in the order they were queued.
+     * This and {@link #runningPerHost} are only touched while holding this lock.
+     */
+    private final LinkedList<Download> waiting = new LinkedList<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    private int lastStartId;
+
+    private ExecutorService executor;
     private LocalBroadcastManager localBroadcastManager;
     private static volatile int timeout;
 
-    private final class ServiceHandler extends Handler {
-        static final String TAG = "ServiceHandler";
-
-        ServiceHandler(Looper looper) {
-            super(looper);
+    /**
+     * A single request from {@link #queue(Context, String, long, String)}, which
+     * is waiting to start until it has a {@link Downloader} to run.
+     */
+    private static final class Download {
+        final Intent intent;
+        final String canonicalUrl;
+        final String host;
+        volatile Downloader downloader;
+        volatile boolean cancelled;
+
+        Download(Intent intent, String canonicalUrl) {
+            this.intent = intent;
+            this.canonicalUrl = canonicalUrl;
+            String host = intent.getData().getHost();
+            this.host = host == null ? "" : host;
         }
 
-        @Override
-        public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
+        void cancel() {
+            cancelled = true;
+            Downloader downloader = this.downloader;
+            if (downloader != null) {
+                downloader.cancelDownload();
+            }
         }
     }
 
@@ -122,15 +170,7 @@ public class DownloaderService extends Service {
     public void onCreate() {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
-
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        if (BuildConfig.DEBUG) {
-            serviceLooper.setMessageLogging(new LogPrinter(Log.DEBUG, ServiceHandler.TAG));
-        }
-        serviceHandler = new ServiceHandler(serviceLooper);
+        executor = Executors.newFixedThreadPool(MAX_DOWNLOADS);
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
     }
 
@@ -153,31 +193,39 @@ public class DownloaderService extends Service {
             return START_NOT_STICKY;
         }
 
-        if (ACTION_CANCEL.equals(intent.getAction())) {
-            Utils.debugLog(TAG, "Cancelling download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
-                    + " downloading from " + downloadUrl);
-            Integer whatToRemove = canonicalUrl.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
-                Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
-                        + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
-                sendCancelledBroadcast(intent.getData(), canonicalUrl);
-            } else if (isActive(canonicalUrl)) {
-                downloader.cancelDownload();
+        synchronized (this) {
+            lastStartId = startId;
+            if (ACTION_CANCEL.equals(intent.getAction())) {
+                Utils.debugLog(TAG, "Cancelling download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
+                        + " downloading from " + downloadUrl);
+                Download download = DOWNLOADS.get(canonicalUrl);
+                if (download != null && waiting.remove(download)) {
+                    Utils.debugLog(TAG, "Removing waiting download " + canonicalUrl
+                            + ", then sending interrupted event.");
+                    DOWNLOADS.remove(canonicalUrl);
+                    sendCancelledBroadcast(intent.getData(), canonicalUrl);
+                } else if (download != null) {
+                    download.cancel();
+                } else {
+                    Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running: "
+                            + canonicalUrl);
+                }
+            } else if (ACTION_QUEUE.equals(intent.getAction())) {
+                if (DOWNLOADS.containsKey(canonicalUrl)) {
+                    Utils.debugLog(TAG, "Already queued or downloading " + canonicalUrl
+                            + ", ignoring " + downloadUrl);
+                } else {
+                    Download download = new Download(intent, canonicalUrl);
+                    DOWNLOADS.put(canonicalUrl, download);
+                    waiting.add(download);
+                    Utils.debugLog(TAG, "Queued download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
+                            + " using " + downloadUrl);
+                }
             } else {
-                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                        + " (expected to find message with ID of " + whatToRemove + " in queue).");
+                Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
             }
-        } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = intent;
-            msg.what = canonicalUrl.hashCode();
-            serviceHandler.sendMessage(msg);
-            Utils.debugLog(TAG, "Queued download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
-                    + " using " + downloadUrl);
-        } else {
-            Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
+            startWaitingDownloads();
+            stopIfIdle();
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
@@ -185,8 +233,70 @@ public class DownloaderService extends Service {
 
     @Override
     public void onDestroy() {
-        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        Utils.debugLog(TAG, "Destroying downloader service, cancelling any running downloads.");
+        synchronized (this) {
+            for (Download download : DOWNLOADS.values()) {
+                download.cancel();
+            }
+            DOWNLOADS.clear();
+            waiting.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start as many of the {@link #waiting} downloads as the limits allow, in the
+     * order they were queued, skipping those whose host is already busy.
+     */
+    private synchronized void startWaitingDownloads() {
+        Iterator<Download> iterator = waiting.iterator();
+        while (running < MAX_DOWNLOADS && iterator.hasNext()) {
+            final Download download = iterator.next();
+            Integer runningForHost = runningPerHost.get(download.host);
+            if (runningForHost == null) {
+                runningForHost = 0;
+            }
+            if (runningForHost >= MAX_DOWNLOADS_PER_HOST) {
+                continue;
+            }
+            iterator.remove();
+            runningPerHost.put(download.host, runningForHost + 1);
+            running++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        handleIntent(download);
+                    } finally {
+                        onDownloadFinished(download);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void onDownloadFinished(Download download) {
+        DOWNLOADS.remove(download.canonicalUrl, download);
+        running--;
+        int runningForHost = runningPerHost.get(download.host) - 1;
+        if (runningForHost == 0) {
+            runningPerHost.remove(download.host);
+        } else {
+            runningPerHost.put(download.host, runningForHost);
+        }
+        startWaitingDownloads();
+        stopIfIdle();
+    }
+
+    /**
+     * Downloads finish in any order, so this can only stop once all of them
+     * are done, using the ID of the last request that was received.
+     */
+    private synchronized void stopIfIdle() {
+        if (running == 0 && waiting.isEmpty()) {
+            stopSelf(lastStartId);
+        }
     }
 
     /**
@@ -198,11 +308,9 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
+     * This method is invoked on a worker thread with a request to process.
+     * Several of these can be running at the same time, each one on its own
      * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
      * When all requests have been handled, the DownloaderService stops itself,
      * so you should not ever call {@link #stopSelf}.
      * <p/>
@@ -210,23 +318,45 @@ public class DownloaderService extends Service {
      * to prevent files with the same names from conflicting.  Each repo enforces
      * unique APK file names on the server side.
      *
-     * @param intent The {@link Intent} passed via {@link
-     *               android.content.Context#startService(Intent)}.
+     * @param download The {@link Intent} passed via {@link
+     *                 android.content.Context#startService(Intent)}, wrapped up
+     *                 with the state needed to cancel it.
      * @see org.fdroid.fdroid.IndexV1Updater#update()
      */
-    private void handleIntent(Intent intent) {
+    private void handleIntent(Download download) {
+        final Intent intent = download.intent;
         final Uri uri = intent.getData();
         final long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
         final Uri canonicalUrl = Uri.parse(intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL));
         final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, canonicalUrl);
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, canonicalUrl);
 
+        String action;
+        String errorMessage = null;
+        Downloader downloader = null;
+        ApkCacheManager.pin(localFile);
         try {
-            activeCanonicalUrl = canonicalUrl.toString();
-            downloader = DownloaderFactory.create(this, uri, localFile);
+            String sha256 = intent.getStringExtra(EXTRA_SHA256);
+            if (sha256 == null) {
+                downloader = DownloaderFactory.create(this, uri, localFile);
+            } else {
+                downloader = DownloaderFactory.create(this, uri, localFile, canonicalUrl.toString(),
+                        RepoProvider.Helper.findById(this, repoId), intent.getLongExtra(EXTRA_SIZE, 0), sha256);
+            }
+            download.downloader = downloader;
+            if (download.cancelled) {
+                downloader.cancelDownload();
+            }
             downloader.setListener(new ProgressListener() {
+                private long lastProgressTime;
+
                 @Override
                 public void onProgress(long bytesRead, long totalBytes) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (now - lastProgressTime < PROGRESS_INTERVAL_MS && bytesRead != totalBytes) {
+                        return;
+                    }
+                    lastProgressTime = now;
                     Intent intent = new Intent(Downloader.ACTION_PROGRESS);
                     intent.setData(canonicalUrl);
                     intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
@@ -235,32 +365,40 @@ public class DownloaderService extends Service {
                 }
             });
             downloader.setTimeout(timeout);
+            downloader.setHashType("sha256");
             downloader.download();
             if (downloader.isNotFound()) {
-                sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
-                        repoId, canonicalUrl);
+                action = Downloader.ACTION_INTERRUPTED;
+                errorMessage = getString(R.string.download_404);
             } else {
-                sendBroadcast(uri, Downloader.ACTION_COMPLETE, localFile, repoId, canonicalUrl);
+                action = Downloader.ACTION_COMPLETE;
             }
         } catch (InterruptedException e) {
-            sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, repoId, canonicalUrl);
+            action = Downloader.ACTION_INTERRUPTED;
         } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
                 | ProtocolException | UnknownHostException e) {
             // if the above list of exceptions changes, also change it in IndexV1Updater.update()
             Log.e(TAG, "CONNECTION_FAILED: " + e.getLocalizedMessage());
-            sendBroadcast(uri, Downloader.ACTION_CONNECTION_FAILED, localFile, repoId, canonicalUrl);
+            action = Downloader.ACTION_CONNECTION_FAILED;
         } catch (IOException e) {
             e.printStackTrace();
-            sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile,
-                    e.getLocalizedMessage(), repoId, canonicalUrl);
+            action = Downloader.ACTION_INTERRUPTED;
+            errorMessage = e.getLocalizedMessage();
         } finally {
             if (downloader != null) {
                 downloader.close();
             }
+            ApkCacheManager.unpin(localFile);
+        }
+        if (Downloader.ACTION_COMPLETE.equals(action)) {
+            ApkCacheManager.scheduleTrim(this);
         }
-        downloader = null;
-        activeCanonicalUrl = null;
+
+        // receivers often queue the same URL again, e.g. from another mirror, so
+        // this must no longer count as queued or active by the time they hear of it
+        DOWNLOADS.remove(download.canonicalUrl, download);
+        sendBroadcast(uri, action, localFile, errorMessage, repoId, canonicalUrl);
     }
 
     private void sendCancelledBroadcast(Uri uri, String canonicalUrl) {
@@ -300,6 +438,20 @@ public class DownloaderService extends Service {
      * @see #cancel(Context, String)
      */
     public static void queue(Context context, String mirrorUrl, long repoId, String canonicalUrl) {
+        queue(context, mirrorUrl, repoId, canonicalUrl, 0, null);
+    }
+
+    /**
+     * Add a URL to the download queue, including what the signed index says
+     * about the file.  Large files with a known SHA-256 from repos with mirrors
+     * are downloaded from several mirrors at once.
+     *
+     * @param size   the size of the file in bytes, or {@code 0} if unknown
+     * @param sha256 the SHA-256 of the file, or {@code null} if unknown
+     * @see SegmentedDownloader
+     */
+    public static void queue(Context context, String mirrorUrl, long repoId, String canonicalUrl,
+                             long size, @Nullable String sha256) {
         if (TextUtils.isEmpty(mirrorUrl)) {
             return;
         }
@@ -310,6 +462,10 @@ public class DownloaderService extends Service {
         intent.setData(Uri.parse(mirrorUrl));
         intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
         intent.putExtra(Downloader.EXTRA_CANONICAL_URL, canonicalUrl);
+        if (sha256 != null) {
+            intent.putExtra(EXTRA_SIZE, size);
+            intent.putExtra(EXTRA_SHA256, sha256);
+        }
         context.startService(intent);
     }
 
@@ -321,9 +477,17 @@ public class DownloaderService extends Service {
      *                     needed here to support canceling active downloads
      */
     public static void queueUsingRandomMirror(Context context, long repoId, String canonicalUrl) {
+        queueUsingRandomMirror(context, repoId, canonicalUrl, 0, null);
+    }
+
+    /**
+     * @see #queue(Context, String, long, String, long, String)
+     */
+    public static void queueUsingRandomMirror(Context context, long repoId, String canonicalUrl,
+                                              long size, @Nullable String sha256) {
         String mirrorUrl = FDroidApp.switchUrlToNewMirror(canonicalUrl,
                 RepoProvider.Helper.findById(context, repoId));
-        queue(context, mirrorUrl, repoId, canonicalUrl);
+        queue(context, mirrorUrl, repoId, canonicalUrl, size, sha256);
     }
 
     /**
@@ -372,17 +536,7 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(canonicalUrl)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
-            return false; // this service is not even running
-        }
-        return serviceHandler.hasMessages(canonicalUrl.hashCode()) || isActive(canonicalUrl);
-    }
-
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String downloadUrl) {
-        return downloader != null && TextUtils.equals(downloadUrl, activeCanonicalUrl);
+        return DOWNLOADS.containsKey(canonicalUrl);
     }
 
     public static void setTimeout(int ms) {
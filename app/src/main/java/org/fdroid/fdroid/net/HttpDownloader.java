@@ -24,12 +24,14 @@ package org.fdroid.fdroid.net;
 import android.annotation.TargetApi;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 import info.guardianproject.netcipher.NetCipher;
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Tracing;
 import org.fdroid.fdroid.Utils;
 
 import java.io.BufferedInputStream;
@@ -41,6 +43,8 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Download files over HTTP, with support for proxies, {@code .onion} addresses,
@@ -54,11 +58,23 @@ public class HttpDownloader extends Downloader {
 
     public static final String HEADER_FIELD_ETAG = "ETag";
 
+    /**
+     * Matches the {@code ETag} format calculated in {@link #download()}, which is
+     * also what Nginx and Apache 2.4 use by default.
+     */
+    private static final Pattern CALCED_ETAG_PATTERN = Pattern.compile("^\"([0-9a-f]{1,15})-([0-9a-f]{1,15})\"$");
+
     private final String username;
     private final String password;
     private URL sourceUrl;
     private HttpURLConnection connection;
     private boolean newFileAvailableOnServer;
+    private boolean conditionalGet;
+    private boolean headChecked;
+    private int headContentLength = -1;
+    private String headCacheTag;
+    private long connectMs;
+    private long ttfbMs;
 
     /**
      * String to append to all HTTP downloads, created in {@link FDroidApp#onCreate()}
@@ -88,6 +104,16 @@ public class HttpDownloader extends Downloader {
         this.password = password;
     }
 
+    /**
+     * Try a single conditional {@code GET} before falling back to the
+     * {@code HEAD} then {@code GET} flow.
+     *
+     * @see #downloadIfModified()
+     */
+    public void setConditionalGet(boolean conditionalGet) {
+        this.conditionalGet = conditionalGet;
+    }
+
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
         setupConnection(false);
@@ -123,60 +149,214 @@ public class HttpDownloader extends Downloader {
      * resolution should be plenty since these files change more on the time
      * space of minutes or hours.
      *
+     * If {@link #setConditionalGet(boolean) conditional GET} is enabled, this
+     * first tries {@link #downloadIfModified()}, which saves the round trip of
+     * the {@code HEAD} request.
+     *
+     * <p>
+     * How long the server took to respond, and how fast the file came in, are
+     * recorded in {@link MirrorChooser}, as are any errors.
+     *
      * @see <a href="https://gitlab.com/fdroid/fdroidclient/issues/1708">update index from any available mirror</a>
      * @see <a href="http://lucb1e.com/rp/cookielesscookies">Cookieless cookies</a>
      */
     @Override
     public void download() throws IOException, InterruptedException {
+        if (!headChecked) {
+            // otherwise, the timings of the HEAD request from checkIfChanged() are kept
+            connectMs = -1;
+            ttfbMs = -1;
+        }
+        streamBytes = 0;
+        streamMs = 0;
+        Tracing.Span span = Tracing.begin("download", urlString);
+        try {
+            downloadIfChanged();
+        } catch (IOException e) {
+            MirrorChooser.recordFailure(urlString);
+            throw e;
+        } finally {
+            span.setBytes(streamBytes).end();
+        }
+        if (!notFound && ttfbMs >= 0) {
+            MirrorChooser.recordSuccess(urlString, connectMs, ttfbMs, streamBytes, streamMs);
+        }
+    }
+
+    /**
+     * @see #download()
+     */
+    private void downloadIfChanged() throws IOException, InterruptedException {
+        if (headChecked) {
+            headChecked = false;
+        } else if (conditionalGet && downloadIfModified()) {
+            return;
+        } else if (!headCheck()) {
+            return;
+        }
+
+        boolean resumable = false;
+        long fileLength = outputFile.length();
+        if (fileLength > headContentLength) {
+            FileUtils.deleteQuietly(outputFile);
+        } else if (fileLength == headContentLength && outputFile.isFile()) {
+            return; // already have it!
+        } else if (fileLength > 0) {
+            resumable = true;
+        }
+        setupConnection(resumable);
+        Utils.debugLog(TAG, "downloading " + urlString + " (is resumable: " + resumable + ")");
+        downloadFromStream(resumable);
+        cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+    }
+
+    /**
+     * Do only the {@code HEAD} check of {@link #download()}, so that the caller
+     * can decide how to get the file if it has changed, e.g. as a diff.  This
+     * never uses a {@link #setConditionalGet(boolean) conditional GET}, since
+     * that would already send the whole file.  Afterwards, {@link #hasChanged()}
+     * and {@link #isNotFound()} are set just like by {@link #download()}, and
+     * if the file has changed, {@link #download()} goes straight to the {@code GET}.
+     *
+     * @return whether the file has changed since {@link #getCacheTag()}
+     * @see #getHeadCacheTag()
+     */
+    public boolean checkIfChanged() throws IOException {
+        try {
+            headChecked = headCheck() && newFileAvailableOnServer;
+        } catch (IOException e) {
+            MirrorChooser.recordFailure(urlString);
+            throw e;
+        }
+        return newFileAvailableOnServer;
+    }
+
+    /**
+     * @return the {@code ETag} the server sent for the {@code HEAD} request of
+     * {@link #checkIfChanged()}, which is what {@link #getCacheTag()} would be
+     * after downloading the file, or {@code null} if the server did not say
+     */
+    public String getHeadCacheTag() {
+        return headCacheTag;
+    }
+
+    /**
+     * Ask the server for the size and {@code ETag} of the file, and compare
+     * them with {@link #cacheTag}.
+     *
+     * @return whether {@link #download()} should go on to {@code GET} the file
+     * @see #download()
+     */
+    private boolean headCheck() throws IOException {
         // get the file size from the server
+        Tracing.Span headSpan = Tracing.begin("headCheck", urlString);
         HttpURLConnection tmpConn = getConnection();
         tmpConn.setRequestMethod("HEAD");
 
-        int contentLength = -1;
-        int statusCode = tmpConn.getResponseCode();
+        headContentLength = -1;
+        headCacheTag = null;
+        int statusCode;
+        try {
+            statusCode = getResponseCode(tmpConn);
+        } finally {
+            headSpan.end();
+        }
         tmpConn.disconnect();
         newFileAvailableOnServer = false;
         switch (statusCode) {
             case HttpURLConnection.HTTP_OK:
-                String headETag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
-                contentLength = tmpConn.getContentLength();
+                headCacheTag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
+                headContentLength = tmpConn.getContentLength();
                 if (!TextUtils.isEmpty(cacheTag)) {
-                    if (cacheTag.equals(headETag)) {
-                        Utils.debugLog(TAG, urlString + " cached, not downloading: " + headETag);
-                        return;
+                    if (cacheTag.equals(headCacheTag)) {
+                        Utils.debugLog(TAG, urlString + " cached, not downloading: " + headCacheTag);
+                        return false;
                     } else {
                         String calcedETag = String.format("\"%x-%x\"",
-                                tmpConn.getLastModified() / 1000, contentLength);
+                                tmpConn.getLastModified() / 1000, headContentLength);
                         if (cacheTag.equals(calcedETag)) {
                             Utils.debugLog(TAG, urlString + " cached based on calced ETag, not downloading: " +
                                     calcedETag);
-                            return;
+                            return false;
                         }
                     }
                 }
                 newFileAvailableOnServer = true;
-                break;
+                return true;
             case HttpURLConnection.HTTP_NOT_FOUND:
                 notFound = true;
-                return;
+                return false;
             default:
                 Utils.debugLog(TAG, "HEAD check of " + urlString + " returned " + statusCode + ": "
                         + tmpConn.getResponseMessage());
+                return true;
         }
+    }
 
-        boolean resumable = false;
-        long fileLength = outputFile.length();
-        if (fileLength > contentLength) {
-            FileUtils.deleteQuietly(outputFile);
-        } else if (fileLength == contentLength && outputFile.isFile()) {
-            return; // already have it!
-        } else if (fileLength > 0) {
-            resumable = true;
+    /**
+     * Get the file with a single {@code GET} that includes {@code If-None-Match}
+     * and {@code If-Modified-Since}, so that the server only sends the file if it
+     * has changed.  This only works when {@link #cacheTag} is in the calculated
+     * {@code "lastModified-contentLength"} format.  Both headers are rebuilt from
+     * the two numbers parsed out of it, so nothing else from the server's
+     * {@code ETag} is ever sent back to it, the same as with the {@code HEAD} flow
+     * in {@link #download()}.  Those two numbers are what the server already
+     * tells every client about the file.
+     * <p>
+     * Some mirrors ignore the conditional headers and always send the whole file.
+     * If that file matches {@link #cacheTag}, the download is dropped, otherwise
+     * it is kept since it is new.  If the server responds with anything else, this
+     * gives up so that {@link #download()} can carry on with {@code HEAD}.
+     *
+     * @return whether the download is finished, either because the file has not
+     * changed, was not found, or was downloaded
+     */
+    private boolean downloadIfModified() throws IOException, InterruptedException {
+        if (TextUtils.isEmpty(cacheTag)) {
+            return false;
+        }
+        Matcher matcher = CALCED_ETAG_PATTERN.matcher(cacheTag);
+        if (!matcher.matches()) {
+            return false;
+        }
+        long lastModified = Long.parseLong(matcher.group(1), 16);
+        long contentLength = Long.parseLong(matcher.group(2), 16);
+
+        HttpURLConnection tmpConn = getConnection();
+        tmpConn.setRequestProperty("If-None-Match", String.format("\"%x-%x\"", lastModified, contentLength));
+        tmpConn.setIfModifiedSince(lastModified * 1000);
+
+        newFileAvailableOnServer = false;
+        int statusCode = getResponseCode(tmpConn);
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_NOT_MODIFIED:
+                tmpConn.disconnect();
+                Utils.debugLog(TAG, urlString + " not modified, not downloading: " + cacheTag);
+                return true;
+            case HttpURLConnection.HTTP_OK:
+                String calcedETag = String.format("\"%x-%x\"",
+                        tmpConn.getLastModified() / 1000, tmpConn.getContentLength());
+                if (cacheTag.equals(tmpConn.getHeaderField(HEADER_FIELD_ETAG)) || cacheTag.equals(calcedETag)) {
+                    tmpConn.disconnect();
+                    Utils.debugLog(TAG, urlString + " ignored conditional GET, but is cached: " + cacheTag);
+                    return true;
+                }
+                newFileAvailableOnServer = true;
+                connection = tmpConn;
+                Utils.debugLog(TAG, "downloading " + urlString + " from conditional GET");
+                downloadFromStream(false);
+                cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
+                return true;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                tmpConn.disconnect();
+                notFound = true;
+                return true;
+            default:
+                tmpConn.disconnect();
+                Utils.debugLog(TAG, "conditional GET of " + urlString + " returned " + statusCode
+                        + ", falling back to HEAD");
+                return false;
         }
-        setupConnection(resumable);
-        Utils.debugLog(TAG, "downloading " + urlString + " (is resumable: " + resumable + ")");
-        downloadFromStream(resumable);
-        cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
     public static boolean isSwapUrl(Uri uri) {
@@ -224,6 +404,56 @@ public class HttpDownloader extends Downloader {
         return connection;
     }
 
+    /**
+     * @return the size of the file according to a {@code HEAD} request, or
+     * {@code -1} if the server did not say
+     * @see SegmentedDownloader
+     */
+    long fetchContentLength() throws IOException {
+        HttpURLConnection tmpConn = getConnection();
+        tmpConn.setRequestMethod("HEAD");
+        try {
+            int statusCode = tmpConn.getResponseCode();
+            if (statusCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                notFound = true;
+            }
+            if (statusCode != HttpURLConnection.HTTP_OK) {
+                return -1;
+            }
+            return tmpConn.getContentLength();
+        } finally {
+            tmpConn.disconnect();
+        }
+    }
+
+
+    /**
+     * Open a connection for just the bytes from {@code first} to {@code last},
+     * inclusive.  The caller must check for {@code 206 Partial Content}, since
+     * servers are free to ignore {@code Range} and send the whole file.
+     *
+     * @see SegmentedDownloader
+     */
+    HttpURLConnection openRangeConnection(long first, long last) throws IOException {
+        HttpURLConnection rangeConnection = getConnection();
+        rangeConnection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+        return rangeConnection;
+    }
+
+    /**
+     * Send the request and wait for the response, timing how long it took to
+     * connect and how long the server then took to respond.
+     */
+    private int getResponseCode(HttpURLConnection tmpConn) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        tmpConn.connect();
+        long connected = SystemClock.elapsedRealtime();
+        int statusCode = tmpConn.getResponseCode();
+        connectMs = connected - start;
+        ttfbMs = SystemClock.elapsedRealtime() - connected;
+        return statusCode;
+    }
+
     private void setupConnection(boolean resumable) throws IOException {
         if (connection != null) {
             return;
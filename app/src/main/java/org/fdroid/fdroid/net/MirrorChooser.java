@@ -0,0 +1,232 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.MirrorStats;
+import org.fdroid.fdroid.data.Repo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks which mirror of a repo to download from, based on how each one has
+ * performed for the downloads so far.  Every {@link HttpDownloader} and
+ * {@link SegmentedDownloader} run is recorded here, keyed on the host of the
+ * mirror, and written to the database as {@link MirrorStats} so the history
+ * survives restarts.
+ * <p>
+ * Mirrors which have not been measured recently get tried first, since there
+ * is nothing to compare them by.  After that, the mirror with the best
+ * {@link MirrorStats#getScore(long) score} is used, except for every
+ * {@link #EXPLORATION_RATE}th download or so, which goes to a random mirror,
+ * so that a mirror which has gotten faster gets noticed.  A mirror which just
+ * failed is skipped as long as there is any other choice.
+ * <p>
+ * Swap repos on the local network are never recorded.
+ *
+ * @see FDroidApp#switchUrlToNewMirror(String, Repo)
+ */
+public final class MirrorChooser {
+    private static final String TAG = "MirrorChooser";
+
+    static final double EXPLORATION_RATE = 0.1;
+
+    private static final ConcurrentHashMap<String, MirrorStats> STATS = new ConcurrentHashMap<>();
+    private static final Random RANDOM = new Random();
+
+    private static volatile Context context;
+    private static boolean loaded;
+
+    private MirrorChooser() {
+    }
+
+    /**
+     * Keep the stats in the database from now on.  They are read in the first
+     * time they are needed.
+     */
+    public static void init(Context context) {
+        MirrorChooser.context = context.getApplicationContext();
+    }
+
+    public static void recordSuccess(String urlString, long connectMs, long ttfbMs, long bytes, long transferMs) {
+        MirrorStats stats = getStats(urlString);
+        if (stats != null) {
+            stats.addSuccess(connectMs, ttfbMs, bytes, transferMs, System.currentTimeMillis());
+            save(stats);
+        }
+    }
+
+    public static void recordFailure(String urlString) {
+        MirrorStats stats = getStats(urlString);
+        if (stats != null) {
+            stats.addFailure(System.currentTimeMillis());
+            Utils.debugLog(TAG, "Failure: " + stats);
+            save(stats);
+        }
+    }
+
+    /**
+     * Choose a mirror URL from the list of mirrors for this repo, leaving out
+     * {@code mirrorToSkip}, and {@code .onion} addresses unless Tor is in use.
+     * {@link Repo#getMirrorList()} returns a list of all known mirrors
+     * <b>minus</b> the mirrors that have been disabled by the user preference,
+     * e.g. {@link Repo#disabledMirrors}.
+     * <p>
+     * The mirror logic assumes that it has a mirrors list with at least one
+     * valid entry in it.  In the index format as defined by {@code fdroid update},
+     * there is always at least one valid URL: the canonical URL.  That also means
+     * if there is only one item in the mirrors list, there are no other URLs to try.
+     * <p>
+     * The initial state of the repos in the database also includes the canonical
+     * URL in the mirrors list so the mirror logic works on the first index
+     * update.  That makes it possible to do the first index update via SD Card
+     * or USB OTG drive.
+     *
+     * @return the chosen mirror, or the canonical URL if there are no others
+     * @see FDroidApp#resetMirrorVars(long)
+     * @see FDroidApp#getTimeout(long)
+     */
+    public static String chooseMirror(Repo repo, @Nullable String mirrorToSkip) {
+        return chooseMirror(repo, mirrorToSkip, Preferences.get().isTorEnabled(), RANDOM,
+                System.currentTimeMillis());
+    }
+
+    static String chooseMirror(Repo repo, @Nullable String mirrorToSkip, boolean isTorEnabled,
+                               Random random, long now) {
+        if (TextUtils.isEmpty(mirrorToSkip)) {
+            mirrorToSkip = repo.address;
+        }
+        List<String> candidates = new ArrayList<>();
+        for (String mirror : getUsableMirrors(repo, isTorEnabled)) {
+            if (!mirror.equals(mirrorToSkip)) {
+                candidates.add(mirror);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return repo.address; // In case we are out of mirrors.
+        }
+        Collections.sort(candidates); // getMirrorList() is in HashSet order
+
+        List<String> notBackingOff = new ArrayList<>(candidates.size());
+        List<String> unmeasured = new ArrayList<>(candidates.size());
+        for (String mirror : candidates) {
+            MirrorStats stats = getStats(mirror);
+            if (stats == null || !stats.isBackingOff(now)) {
+                notBackingOff.add(mirror);
+                if (stats == null || stats.isStale(now)) {
+                    unmeasured.add(mirror);
+                }
+            }
+        }
+        if (!notBackingOff.isEmpty()) {
+            candidates = notBackingOff;
+        }
+
+        if (random.nextDouble() < EXPLORATION_RATE) {
+            return candidates.get(random.nextInt(candidates.size()));
+        }
+        if (!unmeasured.isEmpty()) {
+            return unmeasured.get(random.nextInt(unmeasured.size()));
+        }
+        return sortByScore(candidates, now).get(0);
+    }
+
+    /**
+     * @return the mirrors of {@code repo} that can be used right now, with
+     * {@code .onion} addresses left out unless Tor is in use
+     */
+    static List<String> getUsableMirrors(Repo repo, boolean isTorEnabled) {
+        List<String> mirrors = new ArrayList<>();
+        for (String mirror : repo.getMirrorList()) {
+            // Filter-out onion mirrors for non-tor connections
+            if (isTorEnabled || !mirror.contains(".onion")) {
+                mirrors.add(mirror);
+            }
+        }
+        return mirrors;
+    }
+
+    /**
+     * @return a copy of {@code mirrors}, best first.  Mirrors that have not been
+     * measured recently get the score of a mirror with average performance.
+     */
+    public static List<String> sortByScore(List<String> mirrors, final long now) {
+        final Map<String, Double> scores = new HashMap<>(mirrors.size());
+        for (String mirror : mirrors) {
+            MirrorStats stats = getStats(mirror);
+            if (stats == null || stats.isStale(now)) {
+                stats = new MirrorStats(mirror);
+            }
+            scores.put(mirror, stats.getScore(now));
+        }
+        List<String> sorted = new ArrayList<>(mirrors);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Double.compare(scores.get(rhs), scores.get(lhs));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @return the stats for the host of {@code urlString}, created if needed,
+     * or {@code null} if it should not be tracked
+     */
+    @Nullable
+    static MirrorStats getStats(String urlString) {
+        Uri uri = Uri.parse(urlString);
+        String host = uri.getEncodedAuthority();
+        if (TextUtils.isEmpty(host) || uri.getHost() == null || HttpDownloader.isSwapUrl(uri)) {
+            return null;
+        }
+        loadIfNeeded();
+        MirrorStats stats = STATS.get(host);
+        if (stats == null) {
+            stats = new MirrorStats(host);
+            MirrorStats existing = STATS.putIfAbsent(host, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    private static synchronized void loadIfNeeded() {
+        if (loaded || context == null) {
+            return;
+        }
+        loaded = true;
+        for (MirrorStats stats : MirrorStats.Helper.findAll(context, System.currentTimeMillis()).values()) {
+            STATS.put(stats.host, stats);
+        }
+        Utils.debugLog(TAG, "Loaded stats for " + STATS.size() + " mirrors");
+    }
+
+    private static void save(MirrorStats stats) {
+        if (context != null) {
+            MirrorStats.Helper.save(context, stats);
+        }
+    }
+
+    /**
+     * Only used for testing, to forget all stats kept in memory and stop
+     * saving them.
+     */
+    static synchronized void reset() {
+        STATS.clear();
+        loaded = false;
+        context = null;
+    }
+}
@@ -0,0 +1,367 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.ProgressListener;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a large file from several mirrors at the same time.  The file is
+ * split into {@link #SEGMENT_SIZE} byte ranges, and each mirror keeps taking
+ * the next range that nobody has started yet, so faster mirrors end up doing
+ * more of the work.  Each range is written straight into its place in the
+ * preallocated {@link #outputFile} with positional {@link FileChannel} writes.
+ * <p>
+ * A mirror is dropped if it fails, if it ignores the {@code Range} header, or
+ * if it is more than {@link #SLOW_MIRROR_FACTOR} times slower than the fastest
+ * one, even in the middle of a range.  Whatever range it was working on goes
+ * back on the queue for the others.  Since the file is put together from many
+ * servers, the SHA-256 of the result must match what the signed index says
+ * before this counts as finished.
+ * <p>
+ * Files smaller than {@link #MIN_SEGMENTED_SIZE}, or where only one mirror is
+ * usable, are just downloaded with a plain {@link HttpDownloader}.
+ *
+ * @see DownloaderFactory#create(android.content.Context, Uri, File, String, Repo, long, String)
+ */
+public class SegmentedDownloader extends Downloader {
+    private static final String TAG = "SegmentedDownloader";
+
+    static final long MIN_SEGMENTED_SIZE = 20 * 1024 * 1024;
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int MAX_MIRRORS = 4;
+    static final int SLOW_MIRROR_FACTOR = 4;
+
+    /**
+     * How long a range has to be running before its speed is compared with
+     * the other mirrors, so that connection setup does not get it dropped.
+     */
+    private static final long MIN_MEASURE_MS = 3000;
+
+    private final List<HttpDownloader> mirrors;
+    private final String sha256;
+    private long size;
+
+    /**
+     * The plain download used when segmenting is not worth it.
+     */
+    private volatile HttpDownloader single;
+    private ProgressListener listener;
+    private String hashType;
+
+    /**
+     * @param mirrorUris the same file on each of the mirrors to use, the first
+     *                   is used when the file is downloaded in one piece
+     * @param size       the expected size of the file, or {@code 0} to ask the
+     *                   first mirror for it
+     * @param sha256     the expected SHA-256 of the whole file
+     */
+    SegmentedDownloader(List<Uri> mirrorUris, File destFile, long size, String sha256,
+                        @Nullable String username, @Nullable String password)
+            throws FileNotFoundException, MalformedURLException {
+        super(mirrorUris.get(0), destFile);
+        this.size = size;
+        this.sha256 = sha256;
+        mirrors = new ArrayList<>(mirrorUris.size());
+        for (Uri uri : mirrorUris) {
+            mirrors.add(new HttpDownloader(uri, destFile, username, password));
+        }
+    }
+
+    /**
+     * @return {@code canonicalUrl} pointed at each of the {@code repo}'s mirrors,
+     * leaving out {@code .onion} addresses unless Tor is in use, the same as
+     * {@link MirrorChooser#chooseMirror(Repo, String)}.  After
+     * {@code firstMirrorUrl}, the best scoring mirrors come first.
+     */
+    public static List<Uri> getMirrorUris(Repo repo, String canonicalUrl, String firstMirrorUrl,
+                                          boolean isTorEnabled) {
+        List<Uri> uris = new ArrayList<>();
+        uris.add(Uri.parse(firstMirrorUrl));
+        if (!canonicalUrl.startsWith(repo.address)) {
+            return uris;
+        }
+        List<String> mirrors = MirrorChooser.getUsableMirrors(repo, isTorEnabled);
+        for (String mirror : MirrorChooser.sortByScore(mirrors, System.currentTimeMillis())) {
+            String mirrorUrl = mirror + canonicalUrl.substring(repo.address.length());
+            if (!mirrorUrl.equals(firstMirrorUrl) && uris.size() < MAX_MIRRORS) {
+                uris.add(Uri.parse(mirrorUrl));
+            }
+        }
+        return uris;
+    }
+
+    @Override
+    public void setListener(ProgressListener listener) {
+        super.setListener(listener);
+        this.listener = listener;
+    }
+
+    /**
+     * The segments arrive out of order, so the hash cannot be calculated while
+     * they are written.  Instead, the check of the whole file that is done anyway
+     * gets recorded.
+     */
+    @Override
+    public void setHashType(@Nullable String hashType) {
+        super.setHashType(hashType);
+        this.hashType = hashType;
+        mirrors.get(0).setHashType(hashType);
+    }
+
+    @Override
+    public void download() throws IOException, InterruptedException {
+        HttpDownloader first = mirrors.get(0);
+        if (size <= 0 && mirrors.size() > 1) {
+            size = first.fetchContentLength();
+            if (first.isNotFound()) {
+                notFound = true;
+                return;
+            }
+        }
+        if (mirrors.size() < 2 || size < MIN_SEGMENTED_SIZE) {
+            Utils.debugLog(TAG, "Not worth segmenting " + urlString + " (" + size + " bytes)");
+            single = first;
+            single.setListener(listener);
+            single.setTimeout(getTimeout());
+            if (isCancelled()) {
+                single.cancelDownload();
+            }
+            single.download();
+            notFound = single.isNotFound();
+            return;
+        }
+
+        boolean success = false;
+        try {
+            downloadSegments();
+            if (!Hasher.isFileMatchingHash(outputFile, sha256, "sha256")) {
+                throw new IOException(outputFile + " does not match SHA-256 " + sha256);
+            }
+            if ("sha256".equals(hashType)) {
+                Hasher.writeSidecar(outputFile, hashType, sha256);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                // the ranges that were written cannot be told apart from the preallocated space
+                FileUtils.deleteQuietly(outputFile);
+            }
+        }
+    }
+
+    private void downloadSegments() throws IOException, InterruptedException {
+        final LinkedBlockingDeque<long[]> segments = new LinkedBlockingDeque<>();
+        for (long first = 0; first < size; first += SEGMENT_SIZE) {
+            segments.add(new long[]{first, Math.min(first + SEGMENT_SIZE, size) - 1});
+        }
+        final AtomicInteger remainingSegments = new AtomicInteger(segments.size());
+        final AtomicInteger activeMirrors = new AtomicInteger(mirrors.size());
+        final AtomicLong fastestBytesPerSecond = new AtomicLong();
+        Utils.debugLog(TAG, "Downloading " + urlString + " in " + segments.size() + " segments from "
+                + mirrors.size() + " mirrors");
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(outputFile, "rw");
+        ExecutorService executor = Executors.newFixedThreadPool(mirrors.size());
+        Timer timer = startProgressUpdates(size);
+        try {
+            randomAccessFile.setLength(size);
+            final FileChannel channel = randomAccessFile.getChannel();
+            List<Future<Void>> results = new ArrayList<>(mirrors.size());
+            for (final HttpDownloader mirror : mirrors) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                        downloadFromMirror(mirror, channel, segments, remainingSegments, activeMirrors,
+                                fastestBytesPerSecond);
+                        return null;
+                    }
+                }));
+            }
+
+            IOException lastError = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        lastError = (IOException) e.getCause();
+                    } else if (e.getCause() instanceof InterruptedException) {
+                        throw (InterruptedException) e.getCause();
+                    } else {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            }
+            if (isCancelled()) {
+                throw new InterruptedException();
+            }
+            if (remainingSegments.get() > 0) {
+                throw lastError != null ? lastError : new IOException("All mirrors failed for " + urlString);
+            }
+        } finally {
+            timer.cancel();
+            timer.purge();
+            executor.shutdownNow();
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Keep taking ranges off of {@code segments} until they are all done, or
+     * until this mirror is dropped.  When the queue is empty but other mirrors
+     * still have ranges running, this waits around in case one of them is
+     * dropped and its range needs to be taken over.
+     *
+     * @throws IOException the reason this mirror was dropped, only thrown if it
+     *                     was the last mirror left
+     */
+    private void downloadFromMirror(HttpDownloader mirror, FileChannel channel,
+                                    LinkedBlockingDeque<long[]> segments, AtomicInteger remainingSegments,
+                                    AtomicInteger activeMirrors, AtomicLong fastestBytesPerSecond)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[8192];
+        while (remainingSegments.get() > 0 && !isCancelled()) {
+            long[] segment = segments.poll(100, TimeUnit.MILLISECONDS);
+            if (segment == null) {
+                continue;
+            }
+            try {
+                downloadSegment(mirror, channel, segment, buffer, activeMirrors, fastestBytesPerSecond);
+                remainingSegments.decrementAndGet();
+            } catch (IOException e) {
+                segments.addFirst(segment);
+                int stillActive = activeMirrors.decrementAndGet();
+                Utils.debugLog(TAG, "Dropping mirror " + mirror.urlString + ", " + stillActive + " left: "
+                        + e.getMessage());
+                if (stillActive == 0) {
+                    throw e;
+                }
+                return;
+            }
+        }
+    }
+
+    private void downloadSegment(HttpDownloader mirror, FileChannel channel, long[] segment, byte[] buffer,
+                                 AtomicInteger activeMirrors, AtomicLong fastestBytesPerSecond)
+            throws IOException {
+        HttpURLConnection connection = mirror.openRangeConnection(segment[0], segment[1]);
+        long written = 0;
+        try {
+            long requested = SystemClock.elapsedRealtime();
+            int statusCode = connection.getResponseCode();
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (statusCode != HttpURLConnection.HTTP_PARTIAL || TextUtils.isEmpty(contentRange)
+                    || !contentRange.startsWith("bytes " + segment[0] + "-")) {
+                throw new IOException("Range not supported, got " + statusCode + " " + contentRange);
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            long position = segment[0];
+            long length = segment[1] - segment[0] + 1;
+            InputStream input = connection.getInputStream();
+            try {
+                while (written < length && !isCancelled()) {
+                    int count = input.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+                    if (count == -1) {
+                        throw new IOException("Segment ended after " + written + " of " + length + " bytes");
+                    }
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                    written += count;
+                    addBytesRead(count);
+
+                    long elapsed = SystemClock.elapsedRealtime() - start;
+                    if (elapsed >= MIN_MEASURE_MS) {
+                        long bytesPerSecond = written * 1000 / elapsed;
+                        long fastest = updateFastest(fastestBytesPerSecond, bytesPerSecond);
+                        if (activeMirrors.get() > 1 && bytesPerSecond * SLOW_MIRROR_FACTOR < fastest) {
+                            throw new IOException("Too slow: " + bytesPerSecond + " vs " + fastest + " bytes/s");
+                        }
+                    }
+                }
+            } finally {
+                Utils.closeQuietly(input);
+            }
+            MirrorChooser.recordSuccess(mirror.urlString, -1, start - requested, written,
+                    SystemClock.elapsedRealtime() - start);
+        } catch (IOException e) {
+            addBytesRead(-written);
+            MirrorChooser.recordFailure(mirror.urlString);
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long updateFastest(AtomicLong fastestBytesPerSecond, long bytesPerSecond) {
+        while (true) {
+            long fastest = fastestBytesPerSecond.get();
+            if (bytesPerSecond <= fastest) {
+                return fastest;
+            }
+            if (fastestBytesPerSecond.compareAndSet(fastest, bytesPerSecond)) {
+                return bytesPerSecond;
+            }
+        }
+    }
+
+    @Override
+    public void cancelDownload() {
+        super.cancelDownload();
+        if (single != null) {
+            single.cancelDownload();
+        }
+    }
+
+    @Override
+    protected InputStream getDownloadersInputStream() throws IOException {
+        return mirrors.get(0).getDownloadersInputStream();
+    }
+
+    @Override
+    protected long totalDownloadSize() {
+        return size;
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return true;
+    }
+
+    @Override
+    protected void close() {
+        for (HttpDownloader mirror : mirrors) {
+            mirror.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.fdroid.fdroid;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoXMLHandlerTest;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class CompatibilityCheckerTest {
+
+    private List<Apk> apks;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(RuntimeEnvironment.application);
+        RepoDetails details = RepoXMLHandlerTest.getFromFile(getClass().getClassLoader(),
+                "largeRepo.xml", Repo.PUSH_REQUEST_IGNORE);
+        apks = details.apks;
+        assertTrue(apks.size() > 0);
+    }
+
+    /**
+     * The cached reasons must not depend on which apk was checked first.
+     */
+    @Test
+    public void cachedReasonsMatchFirstCheck() {
+        CompatibilityChecker forwards = new CompatibilityChecker(RuntimeEnvironment.application);
+        CompatibilityChecker backwards = new CompatibilityChecker(RuntimeEnvironment.application);
+        String[][] reasons = new String[apks.size()][];
+        for (int i = apks.size() - 1; i >= 0; i--) {
+            reasons[i] = backwards.getIncompatibleReasonsArray(apks.get(i));
+        }
+        for (int i = 0; i < apks.size(); i++) {
+            Apk apk = apks.get(i);
+            assertArrayEquals(apk.packageName, reasons[i], forwards.getIncompatibleReasonsArray(apk));
+            assertEquals(Arrays.asList(reasons[i]), forwards.getIncompatibleReasons(apk));
+        }
+    }
+
+    @Test
+    public void isCompatibleMatchesReasons() {
+        CompatibilityChecker uncached = new CompatibilityChecker(RuntimeEnvironment.application);
+        CompatibilityChecker cached = new CompatibilityChecker(RuntimeEnvironment.application);
+        for (Apk apk : apks) {
+            boolean compatible = uncached.isCompatible(apk);
+            assertEquals(apk.packageName, cached.getIncompatibleReasonsArray(apk).length == 0, compatible);
+            assertEquals(apk.packageName, compatible, cached.isCompatible(apk));
+        }
+    }
+
+    @Test
+    public void sameRequirementsShareReasons() {
+        Apk first = new Apk();
+        first.minSdkVersion = 1000;
+        first.maxSdkVersion = Apk.SDK_VERSION_MAX_VALUE;
+        first.features = new String[]{"android.hardware.nonexistent"};
+        Apk second = new Apk();
+        second.minSdkVersion = 1000;
+        second.maxSdkVersion = Apk.SDK_VERSION_MAX_VALUE;
+        second.features = new String[]{"android.hardware.nonexistent"};
+
+        CompatibilityChecker checker = new CompatibilityChecker(RuntimeEnvironment.application);
+        assertFalse(checker.isCompatible(first));
+        String[] reasons = checker.getIncompatibleReasonsArray(first);
+        assertEquals(2, reasons.length);
+        assertEquals("android.hardware.nonexistent", reasons[1]);
+        assertSame(reasons, checker.getIncompatibleReasonsArray(second));
+
+        List<String> list = checker.getIncompatibleReasons(second);
+        list.clear();
+        assertEquals(2, checker.getIncompatibleReasonsArray(second).length);
+    }
+}
@@ -112,6 +112,10 @@ public class PreferencesTest {
                 preferences.isForceOldIndexEnabled());
         assertEquals(defaults.getBoolean(Preferences.PREF_FORCE_OLD_INDEX, false),
                 preferences.isForceOldIndexEnabled());
+        assertEquals(defaults.getBoolean(Preferences.PREF_PULL_PARSER_INDEX, false),
+                preferences.isPullParserIndexEnabled());
+        assertEquals(defaults.getBoolean(Preferences.PREF_CONDITIONAL_GET, false),
+                preferences.isConditionalGetEnabled());
         assertEquals(defaults.getBoolean(Preferences.PREF_PREVENT_SCREENSHOTS, false),
                 preferences.preventScreenshots());
         assertEquals(defaults.getBoolean(Preferences.PREF_SHOW_ANTI_FEATURE_APPS, false),
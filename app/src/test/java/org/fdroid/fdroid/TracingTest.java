@@ -0,0 +1,79 @@
+package org.fdroid.fdroid;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class TracingTest {
+
+    @Before
+    public void setUp() {
+        Tracing.clear();
+    }
+
+    @Test
+    public void onlyTheLatestSpansAreKept() {
+        for (int i = 0; i < Tracing.CAPACITY + 10; i++) {
+            Tracing.begin("span" + i).end();
+        }
+        List<Tracing.Span> spans = Tracing.getFinished();
+        assertEquals(Tracing.CAPACITY, spans.size());
+        assertEquals("span10", spans.get(0).name);
+        assertEquals("span" + (Tracing.CAPACITY + 9), spans.get(spans.size() - 1).name);
+    }
+
+    @Test
+    public void spansAreOnlyRecordedOnceEnded() {
+        Tracing.Span span = Tracing.begin("unfinished");
+        assertTrue(Tracing.getFinished().isEmpty());
+        span.end();
+        span.end();
+        assertEquals(1, Tracing.getFinished().size());
+    }
+
+    @Test
+    public void chromeTrace() throws IOException {
+        Tracing.Span outer = Tracing.begin("updateRepo", "https://example.com/fdroid/repo");
+        Tracing.begin("parse").setBytes(1234).addRows(50).addRows(25).end();
+        outer.end();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Tracing.writeChromeTrace(output);
+        JsonNode events = new ObjectMapper().readTree(output.toByteArray()).get("traceEvents");
+        assertEquals(3, events.size());
+
+        JsonNode parse = events.get(0);
+        assertEquals("parse", parse.get("name").asText());
+        assertEquals("X", parse.get("ph").asText());
+        assertEquals(1234, parse.get("args").get("bytes").asLong());
+        assertEquals(75, parse.get("args").get("rows").asLong());
+        assertFalse(parse.get("args").has("detail"));
+
+        JsonNode updateRepo = events.get(1);
+        assertEquals("updateRepo", updateRepo.get("name").asText());
+        assertEquals("https://example.com/fdroid/repo", updateRepo.get("args").get("detail").asText());
+        assertFalse(updateRepo.get("args").has("bytes"));
+        assertTrue(updateRepo.get("ts").asLong() <= parse.get("ts").asLong());
+        assertTrue(updateRepo.get("ts").asLong() + updateRepo.get("dur").asLong()
+                >= parse.get("ts").asLong() + parse.get("dur").asLong());
+        assertEquals(parse.get("tid").asLong(), updateRepo.get("tid").asLong());
+
+        JsonNode threadName = events.get(2);
+        assertEquals("M", threadName.get("ph").asText());
+        assertEquals(Thread.currentThread().getName(), threadName.get("args").get("name").asText());
+    }
+}
@@ -0,0 +1,214 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Assert;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ApkHashCacheTest extends FDroidProviderTest {
+
+    private static final String HASH_TYPE = "sha256";
+
+    private File apk;
+
+    @Before
+    public void setup() throws IOException {
+        TestUtils.registerContentProvider(InstalledAppProvider.getAuthority(), InstalledAppProvider.class);
+        Preferences.setupForTests(context);
+        ApkHashCache.resetStats();
+        apk = File.createTempFile("installed-", ".apk");
+        FileUtils.writeStringToFile(apk, "the first version of this APK");
+    }
+
+    @After
+    public void tearDown() {
+        apk.delete();
+    }
+
+    @Test
+    public void unchangedApkIsOnlyHashedOnce() {
+        String hash = ApkHashCache.getHash(context, apk, HASH_TYPE);
+        assertEquals(Utils.getBinaryHash(apk, HASH_TYPE), hash);
+        assertEquals(apk.length(), ApkHashCache.getBytesHashed());
+        assertEquals(0, ApkHashCache.getBytesSkipped());
+
+        assertEquals(hash, ApkHashCache.getHash(context, apk, HASH_TYPE));
+        assertEquals(apk.length(), ApkHashCache.getBytesHashed());
+        assertEquals(apk.length(), ApkHashCache.getBytesSkipped());
+    }
+
+    @Test
+    public void changedApkIsHashedAgain() throws IOException {
+        String hash = ApkHashCache.getHash(context, apk, HASH_TYPE);
+        long firstLength = apk.length();
+
+        FileUtils.writeStringToFile(apk, "the second version of this APK");
+        String newHash = ApkHashCache.getHash(context, apk, HASH_TYPE);
+        assertNotEquals(hash, newHash);
+        assertEquals(Utils.getBinaryHash(apk, HASH_TYPE), newHash);
+        assertEquals(firstLength + apk.length(), ApkHashCache.getBytesHashed());
+
+        // same size, only the timestamp tells them apart
+        FileUtils.writeStringToFile(apk, "the third version of this APK!");
+        assertEquals(firstLength + 1, apk.length());
+        assertTrue(apk.setLastModified(apk.lastModified() - 10000));
+        assertEquals(Utils.getBinaryHash(apk, HASH_TYPE), ApkHashCache.getHash(context, apk, HASH_TYPE));
+        assertEquals(0, ApkHashCache.getBytesSkipped());
+    }
+
+    @Test
+    public void lazyLookupNeverReadsTheApk() {
+        assertNull(ApkHashCache.getHash(context, apk, HASH_TYPE, false));
+        assertEquals(0, ApkHashCache.getBytesHashed());
+        assertEquals(apk.length(), ApkHashCache.getBytesSkipped());
+
+        String hash = ApkHashCache.getHash(context, apk, HASH_TYPE);
+        assertEquals(hash, ApkHashCache.getHash(context, apk, HASH_TYPE, false));
+        assertEquals(apk.length(), ApkHashCache.getBytesHashed());
+    }
+
+    @Test
+    public void prefetchedHashIsReused() {
+        ApkHashCache.prefetch(context, apk, HASH_TYPE);
+        ApkHashCache.prefetch(context, apk, HASH_TYPE);
+        assertEquals(Utils.getBinaryHash(apk, HASH_TYPE), ApkHashCache.getHash(context, apk, HASH_TYPE));
+        assertEquals(apk.length(), ApkHashCache.getBytesHashed());
+    }
+
+    @Test
+    public void cacheSurvivesResettingTheIndexTables() {
+        ApkHashCache.getHash(context, apk, HASH_TYPE);
+        DBHelper.resetTransient(context);
+        ApkHashCache.getHash(context, apk, HASH_TYPE);
+        assertEquals(apk.length(), ApkHashCache.getBytesHashed());
+    }
+
+    @Test
+    public void uninstalledApksAreForgotten() {
+        ApkHashCache.getHash(context, apk, HASH_TYPE);
+        assertEquals(0, ApkHashCache.Helper.deleteAllExcept(context, Collections.singleton(apk.getAbsolutePath())));
+        assertEquals(1, ApkHashCache.Helper.deleteAllExcept(context, Collections.<String>emptySet()));
+        ApkHashCache.getHash(context, apk, HASH_TYPE);
+        assertEquals(2 * apk.length(), ApkHashCache.getBytesHashed());
+    }
+
+    @Test
+    public void onlyPackagesFromReposAreTracked() {
+        install("org.example.tracked", "");
+        install("org.example.untracked", "");
+        install("org.example.hashed", "00112233445566778899aabbccddeeff");
+        assertTrue(ApkHashCache.Helper.findTrackedPackageNames(context).isEmpty());
+        assertTrue(ApkHashCache.Helper.findUnhashedTrackedPackageNames(context).isEmpty());
+
+        AppProviderTest.insertApp(contentResolver, context, "org.example.tracked", "Tracked", null);
+        AppProviderTest.insertApp(contentResolver, context, "org.example.hashed", "Hashed", null);
+        assertTrue(ApkHashCache.Helper.isTracked(context, "org.example.tracked"));
+        assertFalse(ApkHashCache.Helper.isTracked(context, "org.example.untracked"));
+
+        Set<String> tracked = ApkHashCache.Helper.findTrackedPackageNames(context);
+        assertEquals(2, tracked.size());
+        assertTrue(tracked.contains("org.example.tracked"));
+        assertTrue(tracked.contains("org.example.hashed"));
+        assertEquals(Collections.singleton("org.example.tracked"),
+                ApkHashCache.Helper.findUnhashedTrackedPackageNames(context));
+    }
+
+    @Test
+    public void everythingIsHashedBeforeAnyRepoIsIndexed() {
+        assertFalse(ApkHashCache.Helper.hasTrackedPackages(context));
+        assertEquals(Utils.getBinaryHash(apk, HASH_TYPE),
+                InstalledAppProviderService.getHash(context, "org.example.untracked", apk));
+
+        AppProviderTest.insertApp(contentResolver, context, "org.example.tracked", "Tracked", null);
+        assertTrue(ApkHashCache.Helper.hasTrackedPackages(context));
+        assertEquals("", InstalledAppProviderService.getHash(context, "org.example.untracked", apk));
+    }
+
+    /**
+     * An app is installed while no repo provides it, so it is stored without a hash.
+     * Once a repo update adds it, with that very APK marked as vulnerable, it has to
+     * be hashed for it to show up as installed with a known vulnerability.
+     */
+    @Test
+    public void knownVulnIsFoundAfterTheUpdateThatAddsIt() {
+        AppProviderTest.insertApp(contentResolver, context, "org.example.other", "Other", null);
+        PackageInfo info = install("com.vuln", 2);
+        InstalledAppProviderService.insertAppIntoDb(context, info, HASH_TYPE,
+                InstalledAppProviderService.getHash(context, "com.vuln", apk));
+        assertEquals("", InstalledAppProvider.Helper.findByPackageName(context, "com.vuln").getHash());
+
+        App app = Assert.insertApp(context, "com.vuln", "Vulnerable");
+        insertApk(app, 1, "not installed", false);
+        insertApk(app, 2, Utils.getBinaryHash(apk, HASH_TYPE), true);
+        insertApk(app, 3, "not installed either", false);
+        AppProvider.Helper.recalculatePreferredMetadata(context);
+        assertEquals(0, AppProvider.Helper.findInstalledAppsWithKnownVulns(context).size());
+
+        InstalledAppProviderService.hashNewlyTrackedPackages(context);
+        assertEquals(Utils.getBinaryHash(apk, HASH_TYPE),
+                InstalledAppProvider.Helper.findByPackageName(context, "com.vuln").getHash());
+        List<App> vulnerable = AppProvider.Helper.findInstalledAppsWithKnownVulns(context);
+        assertEquals(1, vulnerable.size());
+        assertEquals("com.vuln", vulnerable.get(0).packageName);
+    }
+
+    /**
+     * Tell {@link android.content.pm.PackageManager} that {@link #apk} is installed as {@code packageName}.
+     */
+    private PackageInfo install(String packageName, int versionCode) {
+        PackageInfo info = new PackageInfo();
+        info.packageName = packageName;
+        info.versionCode = versionCode;
+        info.versionName = "v" + versionCode;
+        info.applicationInfo = new ApplicationInfo();
+        info.applicationInfo.packageName = packageName;
+        info.applicationInfo.publicSourceDir = apk.getAbsolutePath();
+        Shadows.shadowOf(context.getPackageManager()).addPackage(info);
+        return info;
+    }
+
+    private void insertApk(App app, int versionCode, String hash, boolean isVuln) {
+        ContentValues values = new ContentValues();
+        values.put(Schema.ApkTable.Cols.HASH, hash);
+        if (isVuln) {
+            values.put(Schema.ApkTable.Cols.AntiFeatures.ANTI_FEATURES, "KnownVuln");
+        }
+        Assert.insertApk(context, app, versionCode, values);
+    }
+
+    private void install(String packageName, String hash) {
+        PackageInfo info = new PackageInfo();
+        info.packageName = packageName;
+        info.versionCode = 1;
+        info.versionName = "1.0";
+        info.applicationInfo = new ApplicationInfo();
+        info.applicationInfo.publicSourceDir = apk.getAbsolutePath();
+        InstalledAppProviderService.insertAppIntoDb(context, info, HASH_TYPE, hash);
+    }
+}
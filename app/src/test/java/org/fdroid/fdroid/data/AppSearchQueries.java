@@ -0,0 +1,68 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.fdroid.fdroid.data.Schema.AppMetadataFtsTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The two ways of finding the apps that match one search keyword: the
+ * {@code LIKE '%keyword%'} search that {@link AppProvider} did before, and
+ * {@link AppMetadataFtsTable}.  {@link AppSearchTest} checks what they find,
+ * and {@code AppSearchBenchmark} times them.
+ */
+public final class AppSearchQueries {
+
+    private AppSearchQueries() {
+    }
+
+    /**
+     * What {@link AppProvider} did before {@link AppMetadataFtsTable}.
+     */
+    public static Set<String> searchWithLike(Context context, String keyword) {
+        String like = "%" + keyword + "%";
+        String sql = "SELECT " + PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME + " FROM " + getTables()
+                + " WHERE " + PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME + " LIKE ?"
+                + " OR " + AppMetadataTable.NAME + "." + Cols.NAME + " LIKE ?"
+                + " OR " + AppMetadataTable.NAME + "." + Cols.SUMMARY + " LIKE ?"
+                + " OR " + AppMetadataTable.NAME + "." + Cols.DESCRIPTION + " LIKE ?";
+        return queryPackageNames(context, sql, new String[]{like, like, like, like});
+    }
+
+    public static Set<String> searchWithFts(Context context, String keyword) {
+        String sql = "SELECT " + PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME + " FROM " + getTables()
+                + " WHERE " + AppMetadataTable.NAME + "." + Cols.ROW_ID + " IN ("
+                + "SELECT " + AppMetadataFtsTable.Cols.DOC_ID + " FROM " + AppMetadataFtsTable.NAME
+                + " WHERE " + AppMetadataFtsTable.NAME + " MATCH ?)"
+                + " OR " + PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME + " LIKE ?";
+        String match = AppProvider.getFtsMatch(Collections.singleton(keyword), null);
+        return queryPackageNames(context, sql, new String[]{match, "%" + keyword + "%"});
+    }
+
+    private static String getTables() {
+        return AppMetadataTable.NAME + " JOIN " + PackageTable.NAME + " ON ("
+                + AppMetadataTable.NAME + "." + Cols.PACKAGE_ID + " = "
+                + PackageTable.NAME + "." + PackageTable.Cols.ROW_ID + ")";
+    }
+
+    private static Set<String> queryPackageNames(Context context, String sql, String[] args) {
+        SQLiteDatabase db = DBHelper.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            Set<String> packageNames = new HashSet<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                packageNames.add(cursor.getString(0));
+            }
+            return packageNames;
+        } finally {
+            cursor.close();
+        }
+    }
+}
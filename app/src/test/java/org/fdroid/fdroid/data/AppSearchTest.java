@@ -0,0 +1,198 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AppMetadataFtsTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.mock.RepoDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that searching through {@link AppMetadataFtsTable} finds the same apps that
+ * the old {@code LIKE '%keyword%'} search did, as long as the keyword is at the start of
+ * a word, and that matches in the name are listed first.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class AppSearchTest extends FDroidProviderTest {
+
+    private static final String[] KEYWORDS = {
+            "a", "fdroid", "open", "map", "game", "browser", "keyboard", "wifi", "k9", "zzzzzz",
+    };
+
+    private static final String[] PROJECTION = {Cols._ID, Cols.NAME, Cols.Package.PACKAGE_NAME};
+
+    private Repo repo;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+    }
+
+    @Test
+    public void matchesFromTheStartOfWords() {
+        insertApp("org.example.fish", "Droid Fish", "A chess game", "Plays chess.");
+        insertApp("org.example.fdroid", "F-Droid", "App store", "Lists open-source apps.");
+
+        assertSearchFinds("droid", "org.example.fish", "org.example.fdroid");
+        assertSearchFinds("DROI", "org.example.fish", "org.example.fdroid");
+        assertSearchFinds("f-droid", "org.example.fdroid");
+        assertSearchFinds("chess", "org.example.fish");
+        assertSearchFinds("open-sour", "org.example.fdroid");
+        assertSearchFinds("store chess");
+        assertSearchFinds("hess");
+
+        // package names are still matched anywhere
+        assertSearchFinds("xample.fi", "org.example.fish");
+        assertSearchFinds(".", "org.example.fish", "org.example.fdroid");
+    }
+
+    @Test
+    public void indexFollowsChangesToApps() {
+        App app = insertApp("org.example.fish", "Droid Fish", "A chess game", "Plays chess.");
+        assertSearchFinds("chess", "org.example.fish");
+
+        ContentValues values = new ContentValues(1);
+        values.put(Cols.SUMMARY, "A draughts game");
+        updateApp(app, values);
+        assertSearchFinds("draughts", "org.example.fish");
+        assertSearchFinds("chess", "org.example.fish");
+        assertSearchFinds("game", "org.example.fish");
+
+        values.put(Cols.DESCRIPTION, "Plays draughts.");
+        updateApp(app, values);
+        assertSearchFinds("chess");
+
+        RepoProvider.Helper.purgeApps(context, repo);
+        assertSearchFinds("draughts");
+    }
+
+    @Test
+    public void nameMatchesComeFirst() {
+        insertApp("org.example.description", "Aardvark", "Something", "Keeps track of your pumpkins.");
+        insertApp("org.example.summary", "Beaver", "Pumpkin growing", "Something else.");
+        insertApp("org.example.name", "Pumpkin", "Something", "Something else.");
+        insertApp("org.example.none", "Capybara", "Something", "Something else.");
+
+        Cursor cursor = contentResolver.query(AppProvider.getSearchUri("pumpkin", null), PROJECTION,
+                null, null, Cols.NAME);
+        List<App> apps = AppProvider.Helper.cursorToList(cursor);
+        assertEquals(3, apps.size());
+        assertEquals("org.example.name", apps.get(0).packageName);
+        assertEquals("org.example.summary", apps.get(1).packageName);
+        assertEquals("org.example.description", apps.get(2).packageName);
+    }
+
+    @Test
+    public void mediumRepo() throws Exception {
+        compareWithLikeSearch("mediumRepo.xml");
+    }
+
+    @Test
+    public void largeRepo() throws Exception {
+        compareWithLikeSearch("largeRepo.xml");
+    }
+
+    /**
+     * The search index only matches keywords at the start of a word, so it can find fewer apps
+     * than {@code LIKE '%keyword%'} did, but never any that it did not find.  How long each of
+     * them takes is measured by {@code AppSearchBenchmark}.
+     */
+    private void compareWithLikeSearch(String indexName) throws Exception {
+        loadIndex(indexName);
+        for (String keyword : KEYWORDS) {
+            Set<String> likeResults = AppSearchQueries.searchWithLike(context, keyword);
+            Set<String> ftsResults = AppSearchQueries.searchWithFts(context, keyword);
+            assertTrue(keyword, likeResults.containsAll(ftsResults));
+            assertEquals(keyword, ftsResults, searchWithProvider(keyword));
+        }
+    }
+
+    /**
+     * Loads the apps from an index in the test resources, using {@link RepoPersister} so
+     * that the search index gets filled in by the same statements as during a real update.
+     */
+    private void loadIndex(String indexName) throws Exception {
+        RepoDetails details = RepoDetails.getFromFile(getClass().getClassLoader().getResourceAsStream(indexName),
+                Repo.PUSH_REQUEST_IGNORE);
+        Map<String, List<Apk>> apks = new HashMap<>();
+        for (Apk apk : details.apks) {
+            apk.repoId = repo.getId();
+            List<Apk> apksForApp = apks.get(apk.packageName);
+            if (apksForApp == null) {
+                apksForApp = new ArrayList<>();
+                apks.put(apk.packageName, apksForApp);
+            }
+            apksForApp.add(apk);
+        }
+
+        RepoPersister persister = new RepoPersister(context, repo);
+        for (App app : details.apps) {
+            app.repoId = repo.getId();
+            List<Apk> apksForApp = apks.get(app.packageName);
+            persister.saveToDb(app, apksForApp == null ? Collections.<Apk>emptyList() : apksForApp);
+        }
+        persister.commit(new ContentValues(), repo.getId());
+    }
+
+    private Set<String> searchWithProvider(String keyword) {
+        Cursor cursor = contentResolver.query(AppProvider.getSearchUri(keyword, null), PROJECTION,
+                null, null, null);
+        Set<String> packageNames = new HashSet<>();
+        for (App app : AppProvider.Helper.cursorToList(cursor)) {
+            packageNames.add(app.packageName);
+        }
+        return packageNames;
+    }
+
+    private App insertApp(String packageName, String name, String summary, String description) {
+        ContentValues values = new ContentValues(3);
+        values.put(Cols.SUMMARY, summary);
+        values.put(Cols.DESCRIPTION, description);
+        values.put(Cols.REPO_ID, repo.getId());
+        return AppProviderTest.insertApp(contentResolver, context, packageName, name, values, repo.getId());
+    }
+
+    /**
+     * Nothing in {@link AppProvider} edits a single app, so this goes straight to the table,
+     * which is what the triggers keeping the search index up to date are watching anyway.
+     */
+    private void updateApp(App app, ContentValues values) {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        db.update(AppMetadataTable.NAME, values, Cols.ROW_ID + " = ?", new String[]{Long.toString(app.getId())});
+    }
+
+    private void assertSearchFinds(String query, String... expectedPackages) {
+        Cursor cursor = contentResolver.query(AppProvider.getSearchUri(query, null), PROJECTION, null, null, null);
+        List<App> apps = AppProvider.Helper.cursorToList(cursor);
+        Set<String> packageNames = new HashSet<>();
+        for (App app : apps) {
+            packageNames.add(app.packageName);
+        }
+        assertEquals(expectedPackages.length, apps.size());
+        for (String expected : expectedPackages) {
+            assertTrue(expected + " not found for \"" + query + "\"", packageNames.contains(expected));
+        }
+    }
+}
@@ -2,6 +2,9 @@ package org.fdroid.fdroid.data;
 
 import android.content.ContentValues;
 import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import org.fdroid.fdroid.TestUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -9,6 +12,9 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.Shadows;
 import org.robolectric.shadows.ShadowContentResolver;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public abstract class FDroidProviderTest { // NOPMD This abstract class does not have any abstract methods
 
     protected ShadowContentResolver contentResolver;
@@ -33,4 +39,53 @@ public abstract class FDroidProviderTest { // NOPMD This abstract class does not
         RepoProvider.Helper.update(context, repo, enable);
         return RepoProvider.Helper.findByAddress(context, repo.address);
     }
+
+    /**
+     * Empty all the tables that are filled from the index, and forget the IDs
+     * cached from them, so that the next import starts from scratch.
+     */
+    protected void resetTables() {
+        DBHelper.resetTransient(context);
+        CategoryProvider.Helper.clearCategoryIdCache();
+    }
+
+    /**
+     * @return every row of each of {@code tables}, in the order of their IDs
+     */
+    protected List<String> dumpTables(String... tables) {
+        List<String> rows = new ArrayList<>();
+        for (String table : tables) {
+            dumpRows(rows, "SELECT rowid, * FROM " + table + " ORDER BY rowid", null);
+        }
+        return rows;
+    }
+
+    /**
+     * Add each row returned by {@code sql} to {@code rows}, prefixed by the query
+     * it came from, leaving out {@code ignoredColumn}.
+     */
+    protected void dumpRows(List<String> rows, String sql, String ignoredColumn) {
+        Cursor cursor = getWritableDatabase().rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder(sql);
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (!cursor.getColumnName(i).equals(ignoredColumn)) {
+                        row.append('|').append(cursor.getColumnName(i)).append('=').append(cursor.getString(i));
+                    }
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    protected long countRows(String table) {
+        return DatabaseUtils.longForQuery(getWritableDatabase(), "SELECT COUNT(*) FROM " + table, null);
+    }
+
+    protected SQLiteDatabase getWritableDatabase() {
+        return DBHelper.getInstance(context).getWritableDatabase();
+    }
 }
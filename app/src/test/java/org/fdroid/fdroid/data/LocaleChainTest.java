@@ -0,0 +1,105 @@
+package org.fdroid.fdroid.data;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.InjectableValues;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.TestUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class LocaleChainTest {
+
+    private static final long FAKE_REPO_ID = 0xdeadbeef;
+
+    private final Locale defaultLocale = Locale.getDefault();
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void wantedLocales() {
+        Locale.setDefault(new Locale("de", "AT"));
+        LocaleChain localeChain = LocaleChain.fromDevice();
+        assertTrue(localeChain.isWanted("de-AT"));
+        assertTrue(localeChain.isWanted("de"));
+        assertTrue(localeChain.isWanted("en-US"));
+        assertTrue(localeChain.isWanted("en-GB"));
+        assertFalse(localeChain.isWanted("fr-FR"));
+        assertFalse(localeChain.isWanted("zh-CN"));
+
+        assertTrue(LocaleChain.fromDevice(false).isWanted("zh-CN"));
+    }
+
+    @Test
+    public void localesToUse() {
+        Locale.setDefault(new Locale("de", "AT"));
+        Set<String> available = new HashSet<>(Arrays.asList("fr", "en-GB", "de", "de-AT", "en-US"));
+        Set<String> localesToUse = LocaleChain.fromDevice().getLocalesToUse(available);
+        assertEquals(Arrays.asList("de-AT", "de"), Arrays.asList(localesToUse.toArray()).subList(0, 2));
+        assertTrue(localesToUse.contains("en-US"));
+        assertFalse(localesToUse.contains("fr"));
+    }
+
+    /**
+     * Skipping the locales that cannot be chosen must give exactly the same
+     * apps as reading every locale.
+     */
+    @Test
+    public void pruningDoesNotChangeApps() throws IOException {
+        for (Locale locale : new Locale[]{Locale.US, Locale.GERMANY, new Locale("es"), Locale.SIMPLIFIED_CHINESE}) {
+            Locale.setDefault(locale);
+            App[] all = parseApps("testy.at.or.at_index-v1.jar", LocaleChain.fromDevice(false));
+            App[] pruned = parseApps("testy.at.or.at_index-v1.jar", LocaleChain.fromDevice());
+            assertEquals(all.length, pruned.length);
+            for (int i = 0; i < all.length; i++) {
+                assertEquals(locale + " " + all[i].packageName,
+                        all[i].toContentValues(), pruned[i].toContentValues());
+            }
+        }
+    }
+
+    private static App[] parseApps(String jarName, LocaleChain localeChain) throws IOException {
+        File jar = TestUtils.copyResourceToTempFile(jarName);
+        JarFile jarFile = new JarFile(jar);
+        try {
+            InputStream input = jarFile.getInputStream(jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME));
+            ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(FAKE_REPO_ID);
+            mapper.setInjectableValues(new InjectableValues.Std()
+                    .addValue("repoId", FAKE_REPO_ID)
+                    .addValue(LocaleChain.INJECT_ID, localeChain));
+            JsonParser parser = mapper.getFactory().createParser(input);
+            parser.nextToken();
+            while (!"apps".equals(parser.nextFieldName())) {
+                parser.nextToken();
+                parser.skipChildren();
+            }
+            parser.nextToken();
+            return mapper.readValue(parser, App[].class);
+        } finally {
+            jarFile.close();
+            jar.delete();
+        }
+    }
+}
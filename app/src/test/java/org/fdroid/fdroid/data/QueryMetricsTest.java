@@ -0,0 +1,105 @@
+package org.fdroid.fdroid.data;
+
+import android.database.Cursor;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Preferences;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class QueryMetricsTest extends FDroidProviderTest {
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        QueryMetrics.reset();
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        int lastBucket = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = QueryMetrics.getBucket(micros);
+            assertTrue(bucket == lastBucket || bucket == lastBucket + 1);
+            assertTrue(micros <= QueryMetrics.getBucketUpperBound(bucket));
+            assertTrue(micros * 9 / 8 >= QueryMetrics.getBucketUpperBound(bucket) - 1);
+            lastBucket = bucket;
+        }
+        assertEquals(QueryMetrics.BUCKET_COUNT - 1, QueryMetrics.getBucket(Long.MAX_VALUE));
+        assertEquals(QueryMetrics.BUCKET_COUNT - 1, QueryMetrics.getBucket(1L << QueryMetrics.MAX_EXPONENT << 1));
+    }
+
+    @Test
+    public void percentiles() {
+        QueryMetrics.Metric metric = QueryMetrics.get("Test/1");
+        assertEquals(0, metric.getPercentileMicros(50));
+        for (int i = 1; i <= 100; i++) {
+            metric.record(TimeUnit.MILLISECONDS.toNanos(i), i);
+        }
+        assertEquals(100, metric.getCount());
+        assertEquals(5050, metric.getRows());
+        assertEquals(100000, metric.getMaxMicros());
+        assertWithinAnEighth(50000, metric.getPercentileMicros(50));
+        assertWithinAnEighth(90000, metric.getPercentileMicros(90));
+        assertEquals(100000, metric.getPercentileMicros(100));
+    }
+
+    @Test
+    public void planIsOnlySampledOncePerInterval() {
+        QueryMetrics.Metric metric = QueryMetrics.get("Test/1");
+        long now = System.currentTimeMillis();
+        assertTrue(metric.shouldSamplePlan(now));
+        assertFalse(metric.shouldSamplePlan(now + 1));
+        assertTrue(metric.shouldSamplePlan(now + QueryMetrics.PLAN_SAMPLE_INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void numberOfMetricsIsLimited() {
+        for (int i = 0; i < QueryMetrics.MAX_METRICS * 2; i++) {
+            QueryMetrics.get("Test/" + i).record(1000, 1);
+        }
+        assertEquals(QueryMetrics.MAX_METRICS + 1, QueryMetrics.getAll().size());
+        assertEquals(QueryMetrics.MAX_METRICS, QueryMetrics.get(QueryMetrics.OVERFLOW_NAME).getCount());
+    }
+
+    @Test
+    public void providerQueriesAreRecorded() {
+        AppProviderTest.insertApp(contentResolver, context, "org.example.one", "One", null);
+        AppProviderTest.insertApp(contentResolver, context, "org.example.two", "Two", null);
+        QueryMetrics.reset();
+
+        Cursor cursor = contentResolver.query(AppProvider.getContentUri(),
+                Schema.AppMetadataTable.Cols.ALL, null, null, null);
+        assertNotNull(cursor);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        assertEquals(1, QueryMetrics.getAll().size());
+        QueryMetrics.Metric metric = QueryMetrics.getAll().get(0);
+        assertTrue(metric.name.startsWith("AppProvider/"));
+        assertEquals(1, metric.getCount());
+        assertEquals(2, metric.getRows());
+
+        StringWriter dump = new StringWriter();
+        QueryMetrics.dump(new PrintWriter(dump), "AppProvider/");
+        assertTrue(dump.toString().contains(metric.name + ": count=1 rows=2"));
+        assertFalse(dump.toString().contains("Test/"));
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue(actual + " should be about " + expected, actual >= expected && actual <= expected * 9 / 8);
+    }
+}
@@ -0,0 +1,114 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that saving an index through the {@link RepoPersister} pipeline gives
+ * exactly the same rows, IDs included, as doing it all on one thread.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class RepoPersisterTest extends FDroidProviderTest {
+
+    private static final String[] TABLES = {
+            Schema.PackageTable.NAME,
+            Schema.AppMetadataTable.NAME,
+            Schema.ApkTable.NAME,
+            Schema.CategoryTable.NAME,
+            Schema.CatJoinTable.NAME,
+            Schema.AntiFeatureTable.NAME,
+            Schema.ApkAntiFeatureJoinTable.NAME,
+    };
+
+    private Repo repo;
+    private List<App> apps;
+    private Map<String, List<Apk>> apks;
+
+    @Before
+    public void setup() throws Exception {
+        Preferences.setupForTests(context);
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+
+        InputStream inputStream = new FileInputStream(
+                TestUtils.copyResourceToTempFile("guardianproject_index-v1.json"));
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(repo.getId());
+        JsonNode root = mapper.readTree(inputStream);
+        IOUtils.closeQuietly(inputStream);
+        apps = Arrays.asList(mapper.readValue(mapper.treeAsTokens(root.get("apps")), App[].class));
+        apks = mapper.readValue(mapper.treeAsTokens(root.get("packages")),
+                new TypeReference<HashMap<String, List<Apk>>>() {
+                });
+    }
+
+    @Test
+    public void pipelinedMatchesSequential() throws Exception {
+        save(new RepoPersister(context, repo, null, false), true);
+        List<String> sequential = dumpTables(TABLES);
+        assertTrue(sequential.size() > apps.size());
+
+        resetTables();
+        save(new RepoPersister(context, repo, null, true), true);
+        assertEquals(sequential, dumpTables(TABLES));
+    }
+
+    /**
+     * Batches left in the pipeline by an import that was abandoned must not
+     * end up in the temp tables of the next one.
+     */
+    @Test
+    public void abandonedImportIsDropped() throws Exception {
+        save(new RepoPersister(context, repo, null, false), true);
+        List<String> expected = dumpTables(TABLES);
+
+        resetTables();
+        save(new RepoPersister(context, repo, null, true), false);
+        RepoPersister persister = new RepoPersister(context, repo, null, true);
+        save(persister, true);
+        assertEquals(expected, dumpTables(TABLES));
+
+        // once committed, there is nothing left to abandon
+        persister.abandon();
+        assertEquals(expected, dumpTables(TABLES));
+    }
+
+    /**
+     * @param commit whether to commit, or to abandon the import once everything has been saved
+     */
+    private void save(RepoPersister persister, boolean commit) throws Exception {
+        for (App app : apps) {
+            List<Apk> apksForApp = apks.get(app.packageName);
+            persister.saveToDb(app, apksForApp == null ? Collections.<Apk>emptyList() : apksForApp);
+        }
+        if (commit) {
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, 1);
+            persister.commit(values, repo.getId());
+        } else {
+            persister.abandon();
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
+import org.xmlpull.v1.XmlPullParserException;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -51,6 +52,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -208,6 +210,68 @@ public class RepoXMLHandlerTest {
         assertEquals(6, repoPushRequests.size());
     }
 
+    /**
+     * {@link RepoXMLPullParser} must give the {@link RepoXMLHandler.IndexReceiver}
+     * exactly what the SAX parser does.
+     */
+    @Test
+    public void pullParserMatchesSax() throws IOException {
+        String[] indexes = {
+                "simpleIndex.xml",
+                "smallRepo.xml",
+                "mediumRepo.xml",
+                "largeRepo.xml",
+                "extendedPerms.xml",
+                "obbIndex.xml",
+                "guardianproject_index.xml",
+                "pushRequestsIndex.xml",
+        };
+        for (String index : indexes) {
+            ClassLoader classLoader = getClass().getClassLoader();
+            RepoDetails sax = RepoDetails.getFromFile(classLoader.getResourceAsStream(index),
+                    Repo.PUSH_REQUEST_ACCEPT_ALWAYS);
+            RepoDetails pull = RepoDetails.getFromFileWithPullParser(classLoader.getResourceAsStream(index),
+                    Repo.PUSH_REQUEST_ACCEPT_ALWAYS);
+
+            assertEquals(index, sax.name, pull.name);
+            assertEquals(index, sax.description, pull.description);
+            assertEquals(index, sax.signingCert, pull.signingCert);
+            assertEquals(index, sax.maxAge, pull.maxAge);
+            assertEquals(index, sax.version, pull.version);
+            assertEquals(index, sax.timestamp, pull.timestamp);
+            assertEquals(index, sax.icon, pull.icon);
+            assertArrayEquals(index, sax.mirrors, pull.mirrors);
+
+            assertEquals(index, sax.apps.size(), pull.apps.size());
+            for (int i = 0; i < sax.apps.size(); i++) {
+                assertEquals(index, sax.apps.get(i).toContentValues(), pull.apps.get(i).toContentValues());
+            }
+            assertEquals(index, sax.apks.size(), pull.apks.size());
+            for (int i = 0; i < sax.apks.size(); i++) {
+                assertEquals(index, sax.apks.get(i).toContentValues(), pull.apks.get(i).toContentValues());
+            }
+            assertEquals(index, sax.repoPushRequestList.size(), pull.repoPushRequestList.size());
+            for (int i = 0; i < sax.repoPushRequestList.size(); i++) {
+                assertEquals(index, sax.repoPushRequestList.get(i).toString(),
+                        pull.repoPushRequestList.get(i).toString());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPullParserCorruptedPackageName() throws Throwable {
+        InputStream inputStream = getClass().getClassLoader()
+                .getResourceAsStream("simpleIndexWithCorruptedPackageName.xml");
+        RepoXMLPullParser parser = new RepoXMLPullParser(new MockRepo(100, Repo.PUSH_REQUEST_IGNORE),
+                new RepoDetails());
+        try {
+            parser.parse(new BufferedInputStream(inputStream));
+        } catch (XmlPullParserException e) {
+            throw e.getDetail();
+        }
+        fail();
+    }
+
     @Test
     public void testPushRequestsRepoCorruption() {
         RepoPushRequest repoPushRequest;
@@ -0,0 +1,196 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The temp database used while updating a repo should only ever hold that
+ * repo's apps and apks, no matter how much else is already in the database.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class TempAppProviderTest extends FDroidProviderTest {
+
+    private static final int OTHER_REPO_APP_COUNT = 300;
+
+    private static final String UNTOUCHED = "untouched";
+
+    private Repo otherRepo;
+    private Repo repo;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        otherRepo = TestUtils.ensureRepo(context, "https://example.com/other/repo");
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+    }
+
+    @Test
+    public void tempDatabaseDoesNotGrowWithOtherRepos() {
+        TempAppProvider.Helper.init(context, repo.getId());
+        long emptyPageCount = countTempPages();
+        assertTempTablesAreEmpty();
+
+        insertAppsIntoOtherRepo();
+
+        TempAppProvider.Helper.init(context, repo.getId());
+        assertEquals(emptyPageCount, countTempPages());
+        assertTempTablesAreEmpty();
+    }
+
+    @Test
+    public void tempDatabaseDoesNotGrowWithOtherReposWhenUpdatingChangedPackages() {
+        insertAppsIntoOtherRepo();
+        TempAppProvider.Helper.init(context, repo.getId(), Collections.singletonList("org.example.one"));
+        assertTempTablesAreEmpty();
+        assertEquals(1, countRows(TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_CHANGED_PACKAGE));
+    }
+
+    @Test
+    public void commitOnlyReplacesUpdatedRepo() throws Exception {
+        insertAppsIntoOtherRepo();
+        commitApps("org.example.one", "org.example.two");
+
+        assertEquals(OTHER_REPO_APP_COUNT + 2, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertEquals(OTHER_REPO_APP_COUNT, ApkProvider.Helper.findByRepo(context, otherRepo,
+                Schema.ApkTable.Cols.ALL).size());
+        for (String packageName : new String[]{"org.example.one", "org.example.two"}) {
+            assertNotNull(AppProvider.Helper.findSpecificApp(context.getContentResolver(), packageName,
+                    repo.getId()));
+            List<Apk> apks = ApkProvider.Helper.findByPackageName(context, packageName);
+            assertEquals(1, apks.size());
+            assertArrayEquals(new String[]{"Ads", "Tracking"}, apks.get(0).antiFeatures);
+        }
+        assertEquals(2, countRows(Schema.ApkAntiFeatureJoinTable.NAME));
+        assertNull(AppProvider.Helper.findSpecificApp(context.getContentResolver(), "org.example.other.0",
+                repo.getId()));
+    }
+
+    /**
+     * Only the packages in the commit should have their details worked out again, which
+     * includes the rows from other repos for those packages.  They should end up the same
+     * as if the details of every app had been worked out again.
+     */
+    @Test
+    public void commitOnlyRecalculatesCommittedPackages() throws Exception {
+        insertAppsIntoOtherRepo();
+        ContentValues untouched = new ContentValues(1);
+        untouched.put(Cols.ICON_URL, UNTOUCHED);
+        getWritableDatabase().update(AppMetadataTable.NAME, untouched, null, null);
+
+        commitApps("org.example.one", "org.example.other.0");
+        assertEquals(OTHER_REPO_APP_COUNT - 1, countUntouchedApps());
+
+        List<String> details = getAppDetails("org.example.one", "org.example.other.0");
+        assertEquals(3, details.size());
+        calcDetailsOfAllPackages();
+        assertEquals(0, countUntouchedApps());
+        assertEquals(details, getAppDetails("org.example.one", "org.example.other.0"));
+    }
+
+    /**
+     * Work out the details of every app again, by going through a commit that
+     * replaced every package.
+     */
+    private void calcDetailsOfAllPackages() {
+        TempAppProvider.Helper.init(context, repo.getId());
+        getWritableDatabase().execSQL("INSERT INTO "
+                + TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_COMMITTED_PACKAGE
+                + " (" + Cols.PACKAGE_ID + ") SELECT " + PackageTable.Cols.ROW_ID + " FROM " + PackageTable.NAME);
+        AppProvider.Helper.calcDetailsForCommittedPackages(context);
+    }
+
+    /**
+     * Adds an app with one apk for each of {@code packageNames} to {@link #repo}, the same
+     * way an index update does.
+     */
+    private void commitApps(String... packageNames) throws Exception {
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(repo.getId());
+        RepoPersister persister = new RepoPersister(context, repo);
+        for (String packageName : packageNames) {
+            App app = mapper.readValue("{\"packageName\": \"" + packageName + "\", "
+                    + "\"name\": \"" + packageName + "\", \"summary\": \"Summary\"}", App.class);
+            List<Apk> apks = mapper.readValue("[{\"packageName\": \"" + packageName + "\", "
+                    + "\"apkName\": \"" + packageName + "_1.apk\", \"hash\": \"abcdef\", \"hashType\": \"sha256\", "
+                    + "\"sig\": \"d70ac6a02b53ebdd1354ea7af7b9ceee\", \"versionCode\": 1, \"versionName\": \"1\", "
+                    + "\"antiFeatures\": [\"Ads\", \"Tracking\"]}]",
+                    new TypeReference<List<Apk>>() {
+                    });
+            persister.saveToDb(app, apks);
+        }
+        persister.commit(new ContentValues(), repo.getId());
+    }
+
+    private void insertAppsIntoOtherRepo() {
+        for (int i = 0; i < OTHER_REPO_APP_COUNT; i++) {
+            App app = TestUtils.insertApp(context, "org.example.other." + i, "Other " + i, 1, otherRepo,
+                    TestUtils.FDROID_SIG);
+            TestUtils.insertApk(context, app, 1, TestUtils.FDROID_SIG);
+        }
+    }
+
+    private void assertTempTablesAreEmpty() {
+        assertEquals(0, countRows(TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APP));
+        assertEquals(0, countRows(TempAppProvider.DB + "." + TempApkProvider.TABLE_TEMP_APK));
+        assertEquals(0, countRows(TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_CAT_JOIN));
+        assertEquals(0, countRows(TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN));
+    }
+
+    private long countUntouchedApps() {
+        return DatabaseUtils.longForQuery(getWritableDatabase(), "SELECT COUNT(*) FROM " + AppMetadataTable.NAME
+                + " WHERE " + Cols.ICON_URL + " = ?", new String[]{UNTOUCHED});
+    }
+
+    /**
+     * @return everything that is calculated after a commit, for each app row of these packages
+     */
+    private List<String> getAppDetails(String... packageNames) {
+        String sql = "SELECT app." + Cols.ROW_ID + ", app." + Cols.IS_COMPATIBLE
+                + ", app." + Cols.AUTO_INSTALL_VERSION_CODE + ", app." + Cols.ICON_URL
+                + ", pkg." + PackageTable.Cols.PREFERRED_METADATA
+                + " FROM " + AppMetadataTable.NAME + " AS app"
+                + " JOIN " + PackageTable.NAME + " AS pkg"
+                + " ON (app." + Cols.PACKAGE_ID + " = pkg." + PackageTable.Cols.ROW_ID + ")"
+                + " WHERE pkg." + PackageTable.Cols.PACKAGE_NAME + " IN (?, ?)"
+                + " ORDER BY app." + Cols.ROW_ID;
+        Cursor cursor = getWritableDatabase().rawQuery(sql, packageNames);
+        try {
+            List<String> details = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                details.add(DatabaseUtils.dumpCurrentRowToString(cursor));
+            }
+            return details;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countTempPages() {
+        return DatabaseUtils.longForQuery(getWritableDatabase(),
+                "PRAGMA " + TempAppProvider.DB + ".page_count", null);
+    }
+}
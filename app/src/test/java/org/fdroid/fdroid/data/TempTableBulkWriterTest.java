@@ -0,0 +1,188 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.CategoryTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link TempTableBulkWriter} writes exactly the same rows as the
+ * {@link ContentProviderOperation} batches that {@link RepoPersister} used to
+ * send to {@link TempAppProvider} and {@link TempApkProvider}.  How fast each
+ * of them is gets measured by {@code TempTableBulkWriterBenchmark}.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class TempTableBulkWriterTest extends FDroidProviderTest {
+
+    private static final String TEMP_APP = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APP;
+    private static final String TEMP_APK = TempAppProvider.DB + "." + TempApkProvider.TABLE_TEMP_APK;
+    private static final String TEMP_CAT_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_CAT_JOIN;
+    private static final String TEMP_ANTI_FEATURE_JOIN =
+            TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
+
+    private Repo repo;
+
+    @Before
+    public void setup() {
+        Preferences.setupForTests(context);
+        repo = TestUtils.ensureRepo(context, "https://example.com/fdroid/repo");
+    }
+
+    @Test
+    public void guardianProjectIndex() throws Exception {
+        compareWriters(new TempTableWriters(context, repo.getId(),
+                new FileInputStream(TestUtils.copyResourceToTempFile("guardianproject_index-v1.json"))));
+    }
+
+    @Test
+    public void fdroidIndex() throws Exception {
+        JarFile jarFile = new JarFile(TestUtils.copyResourceToTempFile("index-v1.fdroid.2017-07-07.jar"), true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+        TempTableWriters writers = new TempTableWriters(context, repo.getId(), jarFile.getInputStream(indexEntry));
+        jarFile.close();
+        compareWriters(writers);
+    }
+
+    /**
+     * The package and anti-feature IDs are cached for each import, so make sure that
+     * a second import reuses the rows from the first one rather than adding duplicates.
+     */
+    @Test
+    public void packagesAndAntiFeaturesAreNotDuplicated() throws Exception {
+        TempTableWriters writers = new TempTableWriters(context, repo.getId(),
+                new FileInputStream(TestUtils.copyResourceToTempFile("guardianproject_index-v1.json")));
+        Set<String> antiFeatures = new HashSet<>();
+        for (List<Apk> apksForApp : writers.apks.values()) {
+            for (Apk apk : apksForApp) {
+                if (apk.antiFeatures != null) {
+                    antiFeatures.addAll(Arrays.asList(apk.antiFeatures));
+                }
+            }
+        }
+
+        for (int i = 0; i < 2; i++) {
+            writers.initTempTables();
+            writers.writeWithBulkWriter();
+            assertEquals(writers.apps.size(), countRows(PackageTable.NAME));
+            assertEquals(antiFeatures.size(), countRows(AntiFeatureTable.NAME));
+        }
+    }
+
+    /**
+     * Installing an app adds its package too, which can happen at any time
+     * during an import, after the package IDs were loaded.
+     */
+    @Test
+    public void packageAddedDuringImportIsReused() throws Exception {
+        TempTableWriters writers = new TempTableWriters(context, repo.getId(),
+                new FileInputStream(TestUtils.copyResourceToTempFile("guardianproject_index-v1.json")));
+        String packageName = writers.apps.get(0).packageName;
+        writers.initTempTables();
+        TempTableBulkWriter writer = new TempTableBulkWriter(context);
+        try {
+            long packageId = PackageProvider.Helper.ensureExists(context, packageName);
+            Map<String, Long> appIds = writer.insertAppsAndApks(writers.apps, writers.apks);
+            assertEquals(writers.apps.size(), countRows(PackageTable.NAME));
+            assertEquals(packageId, PackageProvider.Helper.getPackageId(context, packageName));
+            SQLiteDatabase db = getWritableDatabase();
+            assertEquals(packageId, DatabaseUtils.longForQuery(db, "SELECT " + AppMetadataTable.Cols.PACKAGE_ID
+                    + " FROM " + TEMP_APP + " WHERE rowid = ?", new String[]{appIds.get(packageName).toString()}));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void packageIsOnlyInsertedOnce() {
+        ContentValues values = new ContentValues(1);
+        values.put(PackageTable.Cols.PACKAGE_NAME, "org.example.twice");
+        Uri first = context.getContentResolver().insert(PackageProvider.getContentUri(), values);
+        Uri second = context.getContentResolver().insert(PackageProvider.getContentUri(), values);
+        assertNotNull(first);
+        assertEquals(first, second);
+        assertEquals(1, countRows(PackageTable.NAME));
+    }
+
+    /**
+     * Write the same index with both, each time starting from empty tables, and
+     * compare every row they wrote, including the IDs.  {@link TempTableBulkWriter}
+     * adds the new package names and anti-features of each batch in sorted order,
+     * so those are the only IDs that can differ, and rows pointing at them are
+     * compared by name instead.
+     */
+    private void compareWriters(TempTableWriters writers) throws Exception {
+        resetTables();
+        writers.initTempTables();
+        writers.writeWithContentProviderOperations();
+        List<String> expected = dumpImportedRows();
+
+        resetTables();
+        writers.initTempTables();
+        writers.writeWithBulkWriter();
+        List<String> actual = dumpImportedRows();
+
+        assertEquals(writers.apps.size(), countRows(TEMP_APP));
+        assertEquals(writers.getRows() - writers.apps.size(), countRows(TEMP_APK));
+        assertTrue(countRows(TEMP_CAT_JOIN) > 0);
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+            assertEquals("row " + i, expected.get(i), actual.get(i));
+        }
+        assertEquals(expected.size(), actual.size());
+    }
+
+    /**
+     * @return every row written by an import, each table in the order of its IDs
+     */
+    private List<String> dumpImportedRows() {
+        List<String> rows = new ArrayList<>();
+        dumpRows(rows, "SELECT app.rowid, pkg." + PackageTable.Cols.PACKAGE_NAME + ", app.* FROM " + TEMP_APP
+                + " AS app LEFT JOIN " + PackageTable.NAME + " AS pkg"
+                + " ON (app." + AppMetadataTable.Cols.PACKAGE_ID + " = pkg." + PackageTable.Cols.ROW_ID + ")"
+                + " ORDER BY app.rowid", AppMetadataTable.Cols.PACKAGE_ID);
+        dumpRows(rows, "SELECT rowid, * FROM " + TEMP_APK + " ORDER BY rowid", null);
+        dumpRows(rows, "SELECT j.rowid, j.*, cat." + CategoryTable.Cols.NAME + " FROM " + TEMP_CAT_JOIN + " AS j"
+                + " LEFT JOIN " + CategoryTable.NAME + " AS cat"
+                + " ON (j." + CatJoinTable.Cols.CATEGORY_ID + " = cat." + CategoryTable.Cols.ROW_ID + ")"
+                + " ORDER BY j.rowid", null);
+        dumpRows(rows, "SELECT j.rowid, j." + ApkAntiFeatureJoinTable.Cols.APK_ID
+                + ", af." + AntiFeatureTable.Cols.NAME
+                + " FROM " + TEMP_ANTI_FEATURE_JOIN + " AS j LEFT JOIN " + AntiFeatureTable.NAME + " AS af"
+                + " ON (j." + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + " = af." + AntiFeatureTable.Cols.ROW_ID
+                + ") ORDER BY j.rowid", null);
+        dumpRows(rows, "SELECT * FROM " + PackageTable.NAME + " ORDER BY " + PackageTable.Cols.PACKAGE_NAME, null);
+        dumpRows(rows, "SELECT * FROM " + AntiFeatureTable.NAME + " ORDER BY " + AntiFeatureTable.Cols.NAME, null);
+        dumpRows(rows, "SELECT rowid, * FROM " + CategoryTable.NAME + " ORDER BY rowid", null);
+        return rows;
+    }
+}
@@ -0,0 +1,120 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The two ways of filling the temp tables with the apps and apks of one
+ * {@code index-v1.json}: what {@link RepoPersister} did before, and
+ * {@link TempTableBulkWriter}.  {@link TempTableBulkWriterTest} checks that
+ * they write the same rows, and {@code TempTableBulkWriterBenchmark} times them.
+ */
+public final class TempTableWriters {
+
+    /**
+     * The same as {@link RepoPersister}'s buffer, so both approaches write the same size batches.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    private final Context context;
+    private final long repoId;
+    final List<App> apps;
+    final Map<String, List<Apk>> apks;
+
+    public TempTableWriters(Context context, long repoId, InputStream indexInputStream) throws IOException {
+        this.context = context;
+        this.repoId = repoId;
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(repoId);
+        try {
+            JsonNode root = mapper.readTree(indexInputStream);
+            apps = Arrays.asList(mapper.readValue(mapper.treeAsTokens(root.get("apps")), App[].class));
+            apks = mapper.readValue(mapper.treeAsTokens(root.get("packages")),
+                    new TypeReference<HashMap<String, List<Apk>>>() {
+                    });
+        } finally {
+            IOUtils.closeQuietly(indexInputStream);
+        }
+    }
+
+    /**
+     * @return how many app and apk rows one write adds to the temp tables
+     */
+    public int getRows() {
+        int rows = apps.size();
+        for (App app : apps) {
+            List<Apk> apksForApp = apks.get(app.packageName);
+            rows += apksForApp == null ? 0 : apksForApp.size();
+        }
+        return rows;
+    }
+
+    /**
+     * Set up empty temp tables for the next write.
+     */
+    public void initTempTables() {
+        TempAppProvider.Helper.init(context, repoId);
+    }
+
+    /**
+     * What {@link RepoPersister} did before {@link TempTableBulkWriter}: one
+     * {@link ContentProviderOperation} per row, then a query to find the app IDs.
+     */
+    public void writeWithContentProviderOperations() throws Exception {
+        String[] projection = {Cols.ROW_ID, Cols.Package.PACKAGE_NAME};
+        for (int i = 0; i < apps.size(); i += BATCH_SIZE) {
+            List<App> batch = apps.subList(i, Math.min(i + BATCH_SIZE, apps.size()));
+            ArrayList<ContentProviderOperation> appOperations = new ArrayList<>(batch.size());
+            List<String> packageNames = new ArrayList<>(batch.size());
+            for (App app : batch) {
+                appOperations.add(ContentProviderOperation.newInsert(TempAppProvider.getContentUri())
+                        .withValues(app.toContentValues()).build());
+                packageNames.add(app.packageName);
+            }
+            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
+
+            Map<String, Long> appIds = new HashMap<>(batch.size());
+            for (App app : TempAppProvider.Helper.findByPackageNames(context, packageNames, repoId, projection)) {
+                appIds.put(app.packageName, app.getId());
+            }
+
+            ArrayList<ContentProviderOperation> apkOperations = new ArrayList<>();
+            for (App app : batch) {
+                List<Apk> apksForApp = apks.get(app.packageName);
+                if (apksForApp == null) {
+                    continue;
+                }
+                for (Apk apk : apksForApp) {
+                    apk.appId = appIds.get(app.packageName);
+                    apkOperations.add(ContentProviderOperation.newInsert(TempApkProvider.getContentUri())
+                            .withValues(apk.toContentValues()).build());
+                }
+            }
+            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
+        }
+    }
+
+    public void writeWithBulkWriter() {
+        TempTableBulkWriter writer = new TempTableBulkWriter(context);
+        try {
+            for (int i = 0; i < apps.size(); i += BATCH_SIZE) {
+                writer.insertAppsAndApks(apps.subList(i, Math.min(i + BATCH_SIZE, apps.size())), apks);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
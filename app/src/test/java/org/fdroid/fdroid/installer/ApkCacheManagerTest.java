@@ -0,0 +1,123 @@
+package org.fdroid.fdroid.installer;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Hasher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ApkCacheManagerTest {
+
+    private static final long NOW = 1500000000000L;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final Set<String> NOTHING_PINNED = Collections.emptySet();
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile("apks-", "");
+        cacheDir.delete();
+        cacheDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+    @Test
+    public void leastRecentlyUsedAreDeletedFirst() throws IOException {
+        File oldest = createApk("mirror-443", "oldest.apk", 100, NOW - 3 * HOUR);
+        File middle = createApk("mirror-443", "middle.apk", 100, NOW - 2 * HOUR);
+        File newest = createApk("other-80", "newest.apk", 100, NOW - HOUR);
+
+        assertEquals(100, ApkCacheManager.trim(cacheDir, NOTHING_PINNED, 250, Long.MAX_VALUE, NOW));
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+
+        assertEquals(0, ApkCacheManager.trim(cacheDir, NOTHING_PINNED, 250, Long.MAX_VALUE, NOW));
+        assertEquals(200, ApkCacheManager.trim(cacheDir, NOTHING_PINNED, 0, Long.MAX_VALUE, NOW));
+        assertFalse(new File(cacheDir, "mirror-443").exists());
+        assertFalse(new File(cacheDir, "other-80").exists());
+    }
+
+    @Test
+    public void pinnedFilesAreKept() throws IOException {
+        File oldest = createApk("mirror-443", "oldest.apk", 100, NOW - 3 * HOUR);
+        File newest = createApk("mirror-443", "newest.apk", 100, NOW - HOUR);
+
+        Set<String> pinned = Collections.singleton(oldest.getAbsolutePath());
+        assertEquals(100, ApkCacheManager.trim(cacheDir, pinned, 150, Long.MAX_VALUE, NOW));
+        assertTrue(oldest.exists());
+        assertFalse(newest.exists());
+    }
+
+    @Test
+    public void expiredFilesAreDeletedWithinBudget() throws IOException {
+        File expired = createApk("mirror-443", "expired.apk", 100, NOW - 3 * HOUR);
+        File fresh = createApk("mirror-443", "fresh.apk", 100, NOW - HOUR);
+
+        assertEquals(100, ApkCacheManager.trim(cacheDir, NOTHING_PINNED, Long.MAX_VALUE, 2 * HOUR, NOW));
+        assertFalse(expired.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void sidecarCountsAsUseAndIsDeletedWithItsFile() throws IOException {
+        File used = createApk("mirror-443", "used.apk", 100, NOW - 3 * HOUR);
+        File unused = createApk("mirror-443", "unused.apk", 100, NOW - 2 * HOUR);
+        Hasher.writeSidecar(used, "sha256", "00112233445566778899aabbccddeeff");
+        Hasher.writeSidecar(unused, "sha256", "00112233445566778899aabbccddeeff");
+        File usedSidecar = Hasher.getSidecarFile(used, "sha256");
+        File unusedSidecar = Hasher.getSidecarFile(unused, "sha256");
+        assertTrue(usedSidecar.setLastModified(NOW - HOUR));
+        assertTrue(unusedSidecar.setLastModified(NOW - 2 * HOUR));
+
+        ApkCacheManager.trim(cacheDir, NOTHING_PINNED, 200, Long.MAX_VALUE, NOW);
+        assertTrue(used.exists());
+        assertTrue(usedSidecar.exists());
+        assertFalse(unused.exists());
+        assertFalse(unusedSidecar.exists());
+    }
+
+    @Test
+    public void orphanedSidecarsAreDeleted() throws IOException {
+        File apk = createApk("mirror-443", "gone.apk", 100, NOW);
+        Hasher.writeSidecar(apk, "sha256", "00112233445566778899aabbccddeeff");
+        apk.delete();
+
+        ApkCacheManager.trim(cacheDir, NOTHING_PINNED, Long.MAX_VALUE, Long.MAX_VALUE, NOW);
+        assertFalse(Hasher.getSidecarFile(apk, "sha256").exists());
+    }
+
+    @Test
+    public void budgetIsLimited() {
+        long budget = ApkCacheManager.getBudget(cacheDir);
+        assertTrue(budget >= ApkCacheManager.MIN_BUDGET_BYTES);
+        assertTrue(budget <= ApkCacheManager.MAX_BUDGET_BYTES);
+    }
+
+    private File createApk(String dirName, String name, int size, long lastModified) throws IOException {
+        File file = new File(new File(cacheDir, dirName), name);
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+}
@@ -1,25 +1,52 @@
 package org.fdroid.fdroid.net;
 
 import android.net.Uri;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.net.util.SubnetUtils;
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @Config(constants = BuildConfig.class)
 @RunWith(RobolectricTestRunner.class)
 @SuppressWarnings("LineLength")
 public class HttpDownloaderTest {
 
+    private static final long LAST_MODIFIED = StandInHttpServer.LAST_MODIFIED;
+    private static final String CONTENT = "index-v1.jar contents";
+    private static final String CALCED_ETAG = String.format("\"%x-%x\"", LAST_MODIFIED / 1000, CONTENT.length());
+
+    private StandInHttpServer server;
+    private File destFile;
+
+    @Before
+    public void setUp() throws IOException {
+        FDroidApp.subnetInfo = new SubnetUtils("127.0.0.1/8").getInfo();
+        server = new StandInHttpServer(CONTENT.getBytes("UTF-8"));
+        destFile = File.createTempFile("dl-", "");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        FileUtils.deleteQuietly(destFile);
+    }
+
     @Test
     public void testIsSwapUri() throws MalformedURLException {
         FDroidApp.subnetInfo = new SubnetUtils("192.168.0.112/24").getInfo();
@@ -33,4 +60,138 @@ public class HttpDownloaderTest {
         assertFalse(HttpDownloader.isSwapUrl(Uri.parse("https://malware.com:8888")));
         assertFalse(HttpDownloader.isSwapUrl(new URL("https://www.google.com")));
     }
+
+    @Test
+    public void testConditionalGetNotModified() throws Exception {
+        server.honourConditionalGet = true;
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag(CALCED_ETAG);
+        downloader.download();
+
+        assertFalse(downloader.hasChanged());
+        assertEquals(1, server.requests.size());
+        assertEquals("GET", server.requests.get(0).method);
+        assertEquals(CALCED_ETAG, server.requests.get(0).headers.get("if-none-match"));
+        assertEquals(0, destFile.length());
+    }
+
+    @Test
+    public void testConditionalGetModified() throws Exception {
+        server.honourConditionalGet = true;
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag(String.format("\"%x-%x\"", LAST_MODIFIED / 1000 - 60, CONTENT.length()));
+        downloader.download();
+
+        assertTrue(downloader.hasChanged());
+        assertEquals(1, server.requests.size());
+        assertEquals("GET", server.requests.get(0).method);
+        assertEquals(CONTENT, FileUtils.readFileToString(destFile));
+        assertEquals(CALCED_ETAG, downloader.getCacheTag());
+    }
+
+    /**
+     * A mirror that ignores the conditional headers should not cause the same file
+     * to be processed again.
+     */
+    @Test
+    public void testConditionalGetIgnoredButUnchanged() throws Exception {
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag(CALCED_ETAG);
+        downloader.download();
+
+        assertFalse(downloader.hasChanged());
+        assertEquals(1, server.requests.size());
+        assertEquals("GET", server.requests.get(0).method);
+    }
+
+    @Test
+    public void testConditionalGetFallsBackToHead() throws Exception {
+        server.rejectConditionalGet = true;
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag(String.format("\"%x-%x\"", LAST_MODIFIED / 1000 - 60, CONTENT.length()));
+        downloader.download();
+
+        assertTrue(downloader.hasChanged());
+        assertEquals(3, server.requests.size());
+        assertEquals("GET", server.requests.get(0).method);
+        assertEquals("HEAD", server.requests.get(1).method);
+        assertEquals("GET", server.requests.get(2).method);
+        assertNull(server.requests.get(2).headers.get("if-none-match"));
+        assertEquals(CONTENT, FileUtils.readFileToString(destFile));
+    }
+
+    /**
+     * An {@code ETag} that is not in the calculated format could be a tracking
+     * cookie, so it must never be sent back to the server.
+     */
+    @Test
+    public void testConditionalGetNeverSendsOpaqueETag() throws Exception {
+        server.honourConditionalGet = true;
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag("\"5a7f-tracking-cookie\"");
+        downloader.download();
+
+        assertTrue(downloader.hasChanged());
+        assertEquals(2, server.requests.size());
+        assertEquals("HEAD", server.requests.get(0).method);
+        for (StandInHttpServer.Request request : server.requests) {
+            assertNull(request.headers.get("if-none-match"));
+            assertNull(request.headers.get("if-modified-since"));
+        }
+    }
+
+    @Test
+    public void testHeadThenGetWithoutConditionalGet() throws Exception {
+        server.honourConditionalGet = true;
+        HttpDownloader downloader = createDownloader(false);
+        downloader.setCacheTag(CALCED_ETAG);
+        downloader.download();
+
+        assertFalse(downloader.hasChanged());
+        assertEquals(1, server.requests.size());
+        assertEquals("HEAD", server.requests.get(0).method);
+    }
+
+    @Test
+    public void testCheckIfChangedNotChanged() throws Exception {
+        server.honourConditionalGet = true;
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag(CALCED_ETAG);
+
+        assertFalse(downloader.checkIfChanged());
+        assertFalse(downloader.hasChanged());
+        assertEquals(1, server.requests.size());
+        assertEquals("HEAD", server.requests.get(0).method);
+        assertEquals(0, destFile.length());
+    }
+
+    /**
+     * Once {@link HttpDownloader#checkIfChanged()} found a new file, downloading
+     * it must not ask the server again.
+     */
+    @Test
+    public void testCheckIfChangedThenDownload() throws Exception {
+        server.honourConditionalGet = true;
+        HttpDownloader downloader = createDownloader(true);
+        downloader.setCacheTag(String.format("\"%x-%x\"", LAST_MODIFIED / 1000 - 60, CONTENT.length()));
+
+        assertTrue(downloader.checkIfChanged());
+        assertEquals(CALCED_ETAG, downloader.getHeadCacheTag());
+        assertEquals(1, server.requests.size());
+        downloader.download();
+
+        assertTrue(downloader.hasChanged());
+        assertEquals(2, server.requests.size());
+        assertEquals("HEAD", server.requests.get(0).method);
+        assertEquals("GET", server.requests.get(1).method);
+        assertNull(server.requests.get(1).headers.get("if-none-match"));
+        assertEquals(CONTENT, FileUtils.readFileToString(destFile));
+        assertEquals(CALCED_ETAG, downloader.getCacheTag());
+    }
+
+    private HttpDownloader createDownloader(boolean conditionalGet) throws IOException {
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(server.getUrl() + "/index-v1.jar"), destFile);
+        downloader.setConditionalGet(conditionalGet);
+        return downloader;
+    }
 }
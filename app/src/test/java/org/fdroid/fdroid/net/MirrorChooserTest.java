@@ -0,0 +1,235 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import org.apache.commons.net.util.SubnetUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.data.DBHelper;
+import org.fdroid.fdroid.data.MirrorStats;
+import org.fdroid.fdroid.data.Repo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class MirrorChooserTest {
+
+    private static final String CANONICAL = "https://f-droid.org/repo";
+    private static final String FAST = "https://fast.example.com/fdroid/repo";
+    private static final String SLOW = "https://slow.example.org/fdroid/repo";
+    private static final String FLAKY = "https://flaky.example.net/fdroid/repo";
+    private static final String ONION =
+            "http://fdroidorg6cooksyluodepej4erfctzk7rrjpjbbr6wx24jh3lqyfwyd.onion/fdroid/repo";
+
+    private static final long NOW = 1500000000000L;
+
+    /**
+     * A made up mirror, which fails every {@code failEvery}th download.
+     */
+    private static class Profile {
+        final long connectMs;
+        final long ttfbMs;
+        final long bytesPerSecond;
+        final int failEvery;
+
+        Profile(long connectMs, long ttfbMs, long bytesPerSecond, int failEvery) {
+            this.connectMs = connectMs;
+            this.ttfbMs = ttfbMs;
+            this.bytesPerSecond = bytesPerSecond;
+            this.failEvery = failEvery;
+        }
+    }
+
+    private static final Profile FAST_PROFILE = new Profile(40, 60, 4 * 1024 * 1024, 0);
+    private static final Profile SLOW_PROFILE = new Profile(300, 800, 150 * 1024, 0);
+    private static final Profile FLAKY_PROFILE = new Profile(40, 60, 3 * 1024 * 1024, 2);
+
+    /**
+     * Never explores, and always picks the first item when choosing at random.
+     */
+    private static class NoExploration extends Random {
+        @Override
+        public double nextDouble() {
+            return 1;
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return 0;
+        }
+    }
+
+    private Repo repo;
+
+    @Before
+    public void setUp() {
+        MirrorChooser.reset();
+        repo = new Repo();
+        repo.address = CANONICAL;
+        repo.mirrors = new String[]{CANONICAL, FAST, SLOW, FLAKY, ONION};
+    }
+
+    @After
+    public void tearDown() {
+        MirrorChooser.reset();
+        DBHelper.clearDbHelperSingleton();
+    }
+
+    @Test
+    public void testUnmeasuredMirrorsAreTriedFirst() {
+        simulate(FAST, FAST_PROFILE, 10, NOW);
+        simulate(FLAKY, FLAKY_PROFILE, 10, NOW);
+        assertEquals(SLOW, choose(CANONICAL, NOW));
+    }
+
+    @Test
+    public void testFastestMirrorIsChosen() {
+        simulateAll(NOW);
+        assertEquals(FAST, choose(CANONICAL, NOW));
+        assertEquals(FAST, choose(SLOW, NOW));
+        assertNotEquals(FAST, choose(FAST, NOW));
+    }
+
+    @Test
+    public void testFlakyMirrorRanksBelowFastOne() {
+        simulateAll(NOW);
+        long now = NOW + MirrorStats.STALE_AGE_MS / 2;
+        List<String> sorted = MirrorChooser.sortByScore(MirrorChooser.getUsableMirrors(repo, false), now);
+        assertEquals(FAST, sorted.get(0));
+        assertTrue(sorted.indexOf(FLAKY) < sorted.indexOf(SLOW));
+    }
+
+    @Test
+    public void testRecentlyFailedMirrorIsSkipped() {
+        simulateAll(NOW);
+        MirrorChooser.getStats(FAST).addFailure(NOW);
+        assertNotEquals(FAST, choose(CANONICAL, NOW + 1000));
+        assertEquals(FAST, choose(CANONICAL, NOW + DateUtils.HOUR_IN_MILLIS));
+    }
+
+    @Test
+    public void testOnlyFailedMirrorsLeft() {
+        repo.mirrors = new String[]{CANONICAL, FAST};
+        simulate(FAST, FAST_PROFILE, 1, NOW);
+        MirrorChooser.getStats(FAST).addFailure(NOW);
+        assertEquals(FAST, choose(CANONICAL, NOW + 1000));
+        assertEquals(CANONICAL, choose(FAST, NOW + 1000));
+    }
+
+    @Test
+    public void testErrorsAreForgivenOverTime() {
+        simulateAll(NOW);
+        for (int i = 0; i < 5; i++) {
+            MirrorChooser.getStats(FAST).addFailure(NOW);
+        }
+        List<String> mirrors = MirrorChooser.getUsableMirrors(repo, false);
+        assertEquals(FLAKY, MirrorChooser.sortByScore(mirrors, NOW).get(0));
+        assertEquals(FAST, MirrorChooser.sortByScore(mirrors, NOW + DateUtils.DAY_IN_MILLIS).get(0));
+    }
+
+    @Test
+    public void testStaleMirrorsAreTriedAgain() {
+        simulateAll(NOW);
+        long later = NOW + MirrorStats.STALE_AGE_MS / 2;
+        simulate(FAST, FAST_PROFILE, 1, later);
+        simulate(FLAKY, FLAKY_PROFILE, 1, later);
+        assertEquals(FAST, choose(CANONICAL, later));
+        assertEquals(SLOW, choose(CANONICAL, NOW + MirrorStats.STALE_AGE_MS + 1));
+    }
+
+    @Test
+    public void testExploration() {
+        simulateAll(NOW);
+        Random random = new Random(42);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String mirror = MirrorChooser.chooseMirror(repo, CANONICAL, false, random, NOW);
+            Integer count = counts.get(mirror);
+            counts.put(mirror, count == null ? 1 : count + 1);
+        }
+        assertTrue(counts.get(FAST) > 850);
+        assertTrue(counts.get(SLOW) > 0);
+        assertTrue(counts.get(FLAKY) > 0);
+        assertFalse(counts.containsKey(CANONICAL));
+        assertFalse(counts.containsKey(ONION));
+    }
+
+    @Test
+    public void testOnionMirrorsOnlyWithTor() {
+        assertFalse(MirrorChooser.getUsableMirrors(repo, false).contains(ONION));
+        assertTrue(MirrorChooser.getUsableMirrors(repo, true).contains(ONION));
+
+        simulate(FAST, FAST_PROFILE, 1, NOW);
+        simulate(SLOW, SLOW_PROFILE, 1, NOW);
+        simulate(FLAKY, FLAKY_PROFILE, 1, NOW);
+        assertEquals(ONION, MirrorChooser.chooseMirror(repo, CANONICAL, true, new NoExploration(), NOW));
+    }
+
+    @Test
+    public void testSwapReposAreNotTracked() {
+        FDroidApp.subnetInfo = new SubnetUtils("192.168.1.0/24").getInfo();
+        assertNull(MirrorChooser.getStats("http://192.168.1.2:8888/fdroid/repo"));
+    }
+
+    @Test
+    public void testStatsArePersisted() {
+        Context context = RuntimeEnvironment.application;
+        MirrorChooser.init(context);
+        MirrorChooser.recordSuccess(FAST + "/index-v1.jar", 40, 60, 1024 * 1024, 250);
+        MirrorChooser.recordFailure(SLOW + "/index-v1.jar");
+
+        Map<String, MirrorStats> all = MirrorStats.Helper.findAll(context, System.currentTimeMillis());
+        assertEquals(2, all.size());
+        assertFalse(all.get("fast.example.com").isBackingOff(System.currentTimeMillis()));
+        assertTrue(all.get("slow.example.org").isBackingOff(System.currentTimeMillis()));
+
+        MirrorChooser.reset();
+        MirrorChooser.init(context);
+        assertEquals(FAST, MirrorChooser.sortByScore(
+                MirrorChooser.getUsableMirrors(repo, false), System.currentTimeMillis()).get(0));
+
+        all = MirrorStats.Helper.findAll(context, System.currentTimeMillis() + 2 * MirrorStats.STALE_AGE_MS);
+        assertTrue(all.isEmpty());
+    }
+
+    private String choose(String mirrorToSkip, long now) {
+        return MirrorChooser.chooseMirror(repo, mirrorToSkip, false, new NoExploration(), now);
+    }
+
+    private void simulateAll(long now) {
+        simulate(CANONICAL, SLOW_PROFILE, 10, now);
+        simulate(FAST, FAST_PROFILE, 10, now);
+        simulate(SLOW, SLOW_PROFILE, 10, now);
+        simulate(FLAKY, FLAKY_PROFILE, 10, now);
+    }
+
+    private static void simulate(String mirror, Profile profile, int downloads, long now) {
+        MirrorStats stats = MirrorChooser.getStats(mirror);
+        long bytes = 3 * 1024 * 1024;
+        for (int i = 1; i <= downloads; i++) {
+            if (profile.failEvery > 0 && i % profile.failEvery == 0) {
+                stats.addFailure(now - DateUtils.HOUR_IN_MILLIS);
+            } else {
+                stats.addSuccess(profile.connectMs, profile.ttfbMs, bytes, bytes * 1000 / profile.bytesPerSecond,
+                        now);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.net.util.SubnetUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedDownloaderTest {
+
+    private static final int LARGE_SIZE = (int) SegmentedDownloader.MIN_SEGMENTED_SIZE + 12345;
+
+    private final List<StandInHttpServer> servers = new ArrayList<>();
+    private File destFile;
+
+    @Before
+    public void setUp() throws IOException {
+        FDroidApp.subnetInfo = new SubnetUtils("127.0.0.1/8").getInfo();
+        destFile = File.createTempFile("dl-", "");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (StandInHttpServer server : servers) {
+            server.close();
+        }
+        FileUtils.deleteQuietly(destFile);
+        Hasher.deleteSidecar(destFile, "sha256");
+    }
+
+    @Test
+    public void testDownloadFromSeveralMirrors() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 3, content.length, sha256(content));
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        int gets = 0;
+        for (StandInHttpServer server : servers) {
+            gets += server.countRequests("GET");
+        }
+        assertEquals(getSegmentCount(content.length), gets);
+    }
+
+    @Test
+    public void testSizeIsFetchedWhenUnknown() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 2, 0, sha256(content));
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(1, servers.get(0).countRequests("HEAD"));
+    }
+
+    @Test
+    public void testBrokenMirrorIsDropped() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 3, content.length, sha256(content));
+        servers.get(1).broken = true;
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(1, servers.get(1).requests.size());
+    }
+
+    @Test
+    public void testMirrorWithoutRangeSupportIsDropped() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 2, content.length, sha256(content));
+        servers.get(0).supportRange = false;
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(1, servers.get(0).requests.size());
+    }
+
+    @Test
+    public void testAllMirrorsBroken() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 2, content.length, sha256(content));
+        for (StandInHttpServer server : servers) {
+            server.broken = true;
+        }
+        try {
+            downloader.download();
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(destFile.exists());
+    }
+
+    /**
+     * A file assembled from several servers must never be kept if it does not
+     * match the hash from the signed index.
+     */
+    @Test
+    public void testHashMismatchDeletesFile() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 2, content.length,
+                "0000000000000000000000000000000000000000000000000000000000000000");
+        try {
+            downloader.download();
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(destFile.exists());
+    }
+
+    @Test
+    public void testSmallFileIsNotSegmented() throws Exception {
+        byte[] content = createContent(12345);
+        SegmentedDownloader downloader = createDownloader(content, 3, content.length, sha256(content));
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(1, servers.get(0).countRequests("GET"));
+        assertTrue(servers.get(1).requests.isEmpty());
+        assertTrue(servers.get(2).requests.isEmpty());
+    }
+
+    @Test
+    public void testHashIsRecordedWhileDownloading() throws Exception {
+        byte[] content = createContent(12345);
+        SegmentedDownloader downloader = createDownloader(content, 2, content.length, sha256(content));
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertEquals(sha256(content), Hasher.readSidecar(destFile, "sha256"));
+    }
+
+    @Test
+    public void testHashIsRecordedForSegments() throws Exception {
+        byte[] content = createContent(LARGE_SIZE);
+        SegmentedDownloader downloader = createDownloader(content, 3, content.length, sha256(content));
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertEquals(sha256(content), Hasher.readSidecar(destFile, "sha256"));
+    }
+
+    /**
+     * The part that was downloaded before the interruption has to be part of the hash too.
+     */
+    @Test
+    public void testHashIsRecordedWhenResuming() throws Exception {
+        byte[] content = createContent(12345);
+        FileUtils.writeByteArrayToFile(destFile, Arrays.copyOf(content, 5000));
+        SegmentedDownloader downloader = createDownloader(content, 1, content.length, sha256(content));
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        assertEquals("bytes=5000-", servers.get(0).requests.get(1).headers.get("range"));
+        assertEquals(sha256(content), Hasher.readSidecar(destFile, "sha256"));
+    }
+
+    @Test
+    public void testChangedFileIgnoresRecordedHash() throws Exception {
+        byte[] content = createContent(12345);
+        SegmentedDownloader downloader = createDownloader(content, 1, content.length, sha256(content));
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertTrue(destFile.setLastModified(destFile.lastModified() - 10000));
+        assertNull(Hasher.readSidecar(destFile, "sha256"));
+    }
+
+    @Test
+    public void testGetMirrorUris() {
+        Repo repo = new Repo();
+        repo.address = "https://f-droid.org/repo";
+        repo.mirrors = new String[]{
+                "https://f-droid.org/repo",
+                "https://mirror.example.com/fdroid/repo",
+                "http://fdroidorg6cooksyluodepej4erfctzk7rrjpjbbr6wx24jh3lqyfwyd.onion/fdroid/repo",
+        };
+        String canonicalUrl = "https://f-droid.org/repo/org.example_1.apk";
+
+        List<Uri> uris = SegmentedDownloader.getMirrorUris(repo, canonicalUrl, canonicalUrl, false);
+        assertEquals(2, uris.size());
+        assertEquals(Uri.parse(canonicalUrl), uris.get(0));
+        assertEquals(Uri.parse("https://mirror.example.com/fdroid/repo/org.example_1.apk"), uris.get(1));
+
+        assertEquals(3, SegmentedDownloader.getMirrorUris(repo, canonicalUrl, canonicalUrl, true).size());
+    }
+
+    private SegmentedDownloader createDownloader(byte[] content, int mirrorCount, long size, String sha256)
+            throws IOException {
+        List<Uri> uris = new ArrayList<>(mirrorCount);
+        for (int i = 0; i < mirrorCount; i++) {
+            StandInHttpServer server = new StandInHttpServer(content);
+            servers.add(server);
+            uris.add(Uri.parse(server.getUrl() + "/repo/org.example_1.apk"));
+        }
+        return new SegmentedDownloader(uris, destFile, size, sha256, null, null);
+    }
+
+    private static int getSegmentCount(long size) {
+        return (int) ((size + SegmentedDownloader.SEGMENT_SIZE - 1) / SegmentedDownloader.SEGMENT_SIZE);
+    }
+
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private String sha256(byte[] content) throws IOException {
+        File file = File.createTempFile("content-", "");
+        try {
+            FileUtils.writeByteArrayToFile(file, content);
+            return Utils.getBinaryHash(file, "sha256");
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
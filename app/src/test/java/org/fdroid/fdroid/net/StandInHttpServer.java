@@ -0,0 +1,163 @@
+package org.fdroid.fdroid.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A tiny local HTTP server, standing in for a repo or one of its mirrors, which
+ * serves the same file for every path and records each request it gets.
+ */
+class StandInHttpServer implements Runnable {
+
+    static final long LAST_MODIFIED = 1500000000000L;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=([0-9]+)-([0-9]*)");
+
+    static class Request {
+        String method;
+        final Map<String, String> headers = new HashMap<>();
+    }
+
+    final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    volatile boolean honourConditionalGet;
+    volatile boolean rejectConditionalGet;
+    volatile boolean supportRange = true;
+    volatile boolean broken;
+
+    private final byte[] content;
+    private final String calcedETag;
+    private final ServerSocket serverSocket;
+
+    StandInHttpServer(byte[] content) throws IOException {
+        this.content = content;
+        calcedETag = String.format("\"%x-%x\"", LAST_MODIFIED / 1000, content.length);
+        serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        new Thread(this).start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    String getCalcedETag() {
+        return calcedETag;
+    }
+
+    int countRequests(String method) {
+        int count = 0;
+        synchronized (requests) {
+            for (Request request : requests) {
+                if (method.equals(request.method)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            respond(socket);
+                        } catch (IOException e) {
+                            // the client went away
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // already closed
+                            }
+                        }
+                    }
+                }).start();
+            } catch (IOException e) {
+                // the server was closed
+            }
+        }
+    }
+
+    private void respond(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        Request request = new Request();
+        request.method = reader.readLine().split(" ")[0];
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                    line.substring(colon + 1).trim());
+        }
+        requests.add(request);
+
+        String status = "200 OK";
+        String contentRange = null;
+        int offset = 0;
+        int length = content.length;
+        String range = request.headers.get("range");
+        if (broken) {
+            status = "500 Internal Server Error";
+            length = 0;
+        } else if (request.headers.containsKey("if-none-match")) {
+            if (rejectConditionalGet) {
+                status = "412 Precondition Failed";
+                length = 0;
+            } else if (honourConditionalGet && calcedETag.equals(request.headers.get("if-none-match"))) {
+                status = "304 Not Modified";
+                length = 0;
+            }
+        } else if (range != null && supportRange) {
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            if (matcher.matches()) {
+                offset = Integer.parseInt(matcher.group(1));
+                int last = matcher.group(2).isEmpty() ? content.length - 1
+                        : Math.min(Integer.parseInt(matcher.group(2)), content.length - 1);
+                length = last - offset + 1;
+                status = "206 Partial Content";
+                contentRange = "bytes " + offset + "-" + last + "/" + content.length;
+            }
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        StringBuilder headers = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Last-Modified: ").append(format.format(new Date(LAST_MODIFIED))).append("\r\n")
+                .append("ETag: ").append(calcedETag).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(headers.toString().getBytes("UTF-8"));
+        if (!"HEAD".equals(request.method)) {
+            outputStream.write(content, offset, length);
+        }
+        outputStream.flush();
+    }
+}
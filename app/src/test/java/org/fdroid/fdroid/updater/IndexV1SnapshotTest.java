@@ -0,0 +1,223 @@
+package org.fdroid.fdroid.updater;
+
+import android.database.Cursor;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.ApkProvider;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.FDroidProviderTest;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.data.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link IndexV1Updater#update()} against fake repos in a local directory,
+ * made up of the jars in the test resources.  {@code index-v1-snapshot.jar} is
+ * described in {@code README.md} there.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class IndexV1SnapshotTest extends FDroidProviderTest {
+
+    private static final String SNAPSHOT_JAR = "index-v1-snapshot.jar";
+    private static final String SNAPSHOT_INDEX_JAR = "index-v1-snapshot_index-v1.jar";
+    private static final String TESTY_JAR = "testy.at.or.at_index-v1.jar";
+    private static final String SNAPSHOT_CERT = "308202e8308201d0a003020102020900ee2c64880051f1e4300d06092a864886f70d01010b05003021311f301d06035504031316696e6465782d76312d736e617073686f7420746573743020170d3236313031383139303433365a180f32313236303932343139303433365a3021311f301d06035504031316696e6465782d76312d736e617073686f74207465737430820122300d06092a864886f70d01010105000382010f003082010a02820101008d20c958d865b400f38340c83bc9f2bd17d943f9b506cdd0cb94488d5fdfc14880d7ae2c7378fa682eb5a6df26cdb069679a437ba84d109ced120c6b7b4678d30fa0e2a821cc5ccd56680bfd6e8b67011acc8802f395a5d613be7d209e78eab1c7de6a3ade0089491ce3fce9e286aaaf6e8d38d9019150c219cba35775f5eec2a3cb898ae779b1bf0e18eed4ccfea809a246d340b41d2a4132a545daf6b938ad31919a221582c2c04a8af5bd2955d7dba8df228fa653882cfbf286a7fcc2f7f666c4a408e14cd731f6d2e2290de49dd5e0638bf1edb19edd428428cc1be5d7a1e1155a61722d75d4d2e92c7c90c9b6db1710fa5fab06d0b0cd02d26528ba74ff0203010001a321301f301d0603551d0e04160414be43703c2fa685b4fed596105e5c5c2d47d280e6300d06092a864886f70d01010b0500038201010082a4cc60b9812e13db5b54f88a92cd22cca25d7318b54e19c5a2d247001885a77a402f2636228c0e5fa874195ab3219d7a6ee3e6f0dfe68966aa962aed1fc7a3831a899478fc418edc2e5d696fd11d76b587bc89fb34a915c8da98c0c6ce15c170f97e076c15c08a751daa0a10e9aefcc737061144173a0530b6b839011029e50b3081268785f0145624165f2c0f2199c5bb2937fe16a05584f856aeb04c7224811d8311552905ede23d68ab62125ff0ac71941b23fc77d068a3ec884c9747674267ad90f8fa62e058c440d8eb756aae7306baf8777ac59c3d2335c81cefb900278e16babdf4cdb9617fdb775c73163e68d79809b0d824e7ca86770015cf267a"; // NOCHECKSTYLE LineLength
+
+    private final Locale defaultLocale = Locale.getDefault();
+    private File repoDir;
+
+    @Before
+    public void setup() throws IOException {
+        Preferences.setupForTests(context);
+        Locale.setDefault(new Locale("de", "AT"));
+        repoDir = new File(context.getCacheDir(), "fake-repo");
+        FileUtils.deleteDirectory(repoDir);
+        assertTrue(repoDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Locale.setDefault(defaultLocale);
+        FileUtils.deleteDirectory(repoDir);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException, IndexUpdater.UpdateException {
+        addToRepo(SNAPSHOT_JAR, IndexV1Updater.SNAPSHOT_FILE_NAME);
+        Repo repo = createFakeRepo(SNAPSHOT_CERT);
+        assertTrue(new IndexV1Updater(context, repo).update());
+
+        // there is no index-v1.jar in this repo, so this can only have come from the snapshot
+        assertEquals(2, AppProvider.Helper.all(context.getContentResolver()).size());
+        Repo repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        assertEquals(1500000000, repoFromDb.timestamp);
+        assertEquals("Snapshot test repo", repoFromDb.name);
+        assertEquals(19, repoFromDb.version);
+        assertEquals("fdroid-icon.png", repoFromDb.icon);
+        assertEquals(repo.address, repoFromDb.mirrors[0]);
+        assertEquals("http://mirror.example.com/fdroid/repo", repoFromDb.mirrors[1]);
+        assertEquals("", repoFromDb.lastetag);
+
+        App one = AppProvider.Helper.findSpecificApp(context.getContentResolver(),
+                "org.example.snapshot.one", repo.getId());
+        assertNotNull(one);
+        assertEquals("Snapshot Eins", one.name);
+        assertEquals("Die erste App", one.summary);
+        assertEquals("GPL-3.0-or-later", one.license);
+        assertEquals("https://example.com/one/source", one.sourceCode);
+        assertTrue(one.description.contains("The first app, in a snapshot."));
+        assertEquals(2, one.suggestedVersionCode);
+        assertTrue(Arrays.asList(one.antiFeatures).contains("Tracking"));
+        assertEquals(1, countAppsInCategory("Security"));
+        assertEquals(2, countAppsInCategory("Internet"));
+
+        List<Apk> apks = ApkProvider.Helper.findByPackageName(context, "org.example.snapshot.one");
+        assertEquals(2, apks.size());
+        for (Apk apk : apks) {
+            if (apk.versionCode == 2) {
+                assertTrue(apk.compatible);
+                assertEquals(Apk.SDK_VERSION_MAX_VALUE, apk.maxSdkVersion);
+                assertTrue(Arrays.asList(apk.requestedPermissions).contains(android.Manifest.permission.INTERNET));
+            } else {
+                assertFalse("minSdkVersion 1000 is not compatible", apk.compatible);
+            }
+        }
+        assertEquals(1, ApkProvider.Helper.findByPackageName(context, "org.example.snapshot.two").size());
+        assertEquals(0, ApkProvider.Helper.findByPackageName(context, "org.example.orphan").size());
+    }
+
+    /**
+     * After a snapshot, the next update downloads {@link IndexV1Updater#SIGNED_FILE_NAME}
+     * since there is no ETag for it yet, but must not import it again when it is
+     * at the same timestamp.  This one has an extra app, so that would show.
+     */
+    @Test
+    public void testIndexAtSnapshotTimestampIsNotImportedAgain() throws IOException, IndexUpdater.UpdateException {
+        addToRepo(SNAPSHOT_JAR, IndexV1Updater.SNAPSHOT_FILE_NAME);
+        addToRepo(SNAPSHOT_INDEX_JAR, IndexV1Updater.SIGNED_FILE_NAME);
+        Repo repo = createFakeRepo(SNAPSHOT_CERT);
+        assertTrue(new IndexV1Updater(context, repo).update());
+        assertEquals(2, AppProvider.Helper.all(context.getContentResolver()).size());
+
+        repo = RepoProvider.Helper.findById(context, repo.getId());
+        assertTrue(repo.hasBeenUpdated());
+        assertTrue(new IndexV1Updater(context, repo).update());
+        assertEquals(2, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertNull(AppProvider.Helper.findSpecificApp(context.getContentResolver(),
+                "org.example.json.only", repo.getId()));
+        assertEquals(1500000000, RepoProvider.Helper.findById(context, repo.getId()).timestamp);
+    }
+
+    /**
+     * Once the repo was imported, it has an ETag, and the snapshot is not asked
+     * for any more, even if the repo has no apps.
+     */
+    @Test
+    public void testSnapshotIsNotUsedOnceImported() throws IOException, IndexUpdater.UpdateException {
+        addToRepo(SNAPSHOT_JAR, IndexV1Updater.SNAPSHOT_FILE_NAME);
+        addToRepo(SNAPSHOT_INDEX_JAR, IndexV1Updater.SIGNED_FILE_NAME);
+        Repo repo = createFakeRepo(SNAPSHOT_CERT);
+        repo.lastetag = "\"5a7f-1234\"";
+        assertTrue(new IndexV1Updater(context, repo).update());
+
+        // org.example.json.only is not in the snapshot
+        assertEquals(3, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertNotNull(AppProvider.Helper.findSpecificApp(context.getContentResolver(),
+                "org.example.json.only", repo.getId()));
+    }
+
+    @Test
+    public void testFallBackToJsonWithoutSnapshot() throws IOException, IndexUpdater.UpdateException {
+        addToRepo(TESTY_JAR, IndexV1Updater.SIGNED_FILE_NAME);
+        Repo repo = createFakeRepo(TestUtils.UPSTREAM_CERT);
+        assertTrue(new IndexV1Updater(context, repo).update());
+        assertEquals(63, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertEquals(1497639511, RepoProvider.Helper.findById(context, repo.getId()).timestamp);
+    }
+
+    /**
+     * A snapshot that is not signed by the repo's key must neither be used,
+     * nor silently replaced by the JSON.
+     */
+    @Test
+    public void testUnsignedSnapshot() throws IOException, IndexUpdater.UpdateException {
+        writeUnsignedSnapshot(new File(repoDir, IndexV1Updater.SNAPSHOT_FILE_NAME));
+        addToRepo(TESTY_JAR, IndexV1Updater.SIGNED_FILE_NAME);
+        Repo repo = createFakeRepo(TestUtils.UPSTREAM_CERT);
+        try {
+            new IndexV1Updater(context, repo).update();
+            fail();
+        } catch (IndexUpdater.SigningException e) {
+            // expected
+        }
+        assertEquals(0, AppProvider.Helper.all(context.getContentResolver()).size());
+    }
+
+    private Repo createFakeRepo(String signingCert) {
+        return MultiIndexUpdaterTest.createRepo("Fake", "file://" + repoDir.getAbsolutePath(), context, signingCert);
+    }
+
+    private void addToRepo(String resourceName, String fileName) throws IOException {
+        File file = TestUtils.copyResourceToTempFile(resourceName);
+        FileUtils.moveFile(file, new File(repoDir, fileName));
+    }
+
+    /**
+     * Copy the database out of {@link #SNAPSHOT_JAR} into a new jar without any signature.
+     */
+    private void writeUnsignedSnapshot(File outputFile) throws IOException {
+        JarFile signed = new JarFile(TestUtils.copyResourceToTempFile(SNAPSHOT_JAR), false);
+        JarOutputStream output = new JarOutputStream(new FileOutputStream(outputFile));
+        InputStream input = signed.getInputStream(signed.getEntry(IndexV1Updater.SNAPSHOT_DATA_FILE_NAME));
+        try {
+            output.putNextEntry(new JarEntry(IndexV1Updater.SNAPSHOT_DATA_FILE_NAME));
+            IOUtils.copy(input, output);
+            output.closeEntry();
+        } finally {
+            IOUtils.closeQuietly(input);
+            output.close();
+            signed.close();
+        }
+    }
+
+    private int countAppsInCategory(String category) {
+        Cursor cursor = context.getContentResolver().query(AppProvider.getCategoryUri(category),
+                Schema.AppMetadataTable.Cols.ALL, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -1,9 +1,12 @@
 package org.fdroid.fdroid.updater;
 
+import android.content.ContentValues;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -16,17 +19,21 @@ import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.IndexUpdater;
 import org.fdroid.fdroid.IndexV1Updater;
 import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.RetainedIndex;
 import org.fdroid.fdroid.TestUtils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.ApkProvider;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.DBHelper;
 import org.fdroid.fdroid.data.FDroidProviderTest;
 import org.fdroid.fdroid.data.InstalledAppTestUtils;
 import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.RepoPushRequest;
 import org.fdroid.fdroid.data.RepoXMLHandlerTest;
+import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.mock.RepoDetails;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,6 +41,9 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
@@ -145,6 +155,215 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
         assertFalse(requestedPermissions.contains(android.Manifest.permission.READ_CALENDAR));
     }
 
+    @Test
+    public void testIndexV1DiffReplacesOnlyChangedPackages() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        JarFile jarFile = new JarFile(TestUtils.copyResourceToTempFile(TESTY_JAR), true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+        InputStream indexInputStream = jarFile.getInputStream(indexEntry);
+        updater.processIndexV1(indexInputStream, indexEntry, "fakeEtag");
+        IOUtils.closeQuietly(indexInputStream);
+        assertEquals(63, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertEquals(2, ApkProvider.Helper.findByPackageName(context, "de.danoeh.antennapod").size());
+        assertEquals(3, ApkProvider.Helper.findByPackageName(context, "info.guardianproject.checkey").size());
+
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(repo.getId());
+        App checkey = mapper.readValue("{\"packageName\": \"info.guardianproject.checkey\", "
+                + "\"name\": \"Checkey Updated\"}", App.class);
+        List<Apk> apks = mapper.readValue("[{\"added\": 1493313987936, \"apkName\": \"Checkey-0.2.apk\", "
+                + "\"hash\": \"2d81f339bb69626af42e8868dc6928c9072ebcbae76e1ff5ac8172e78ebe9cdd\", "
+                + "\"hashType\": \"sha256\", \"minSdkVersion\": \"8\", "
+                + "\"packageName\": \"info.guardianproject.checkey\", "
+                + "\"sig\": \"d70ac6a02b53ebdd1354ea7af7b9ceee\", \"size\": 967083, "
+                + "\"targetSdkVersion\": \"21\", \"versionCode\": 200, \"versionName\": \"0.2\"}]",
+                new TypeReference<List<Apk>>() {
+                });
+
+        // checkey changed, minimap was removed, everything else is left as it is
+        RepoPersister persister = new RepoPersister(context, repo,
+                Arrays.asList("info.guardianproject.checkey", "com.autonavi.minimap"));
+        persister.saveToDb(checkey, apks);
+        ContentValues values = new ContentValues(1);
+        values.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp + 1);
+        persister.commit(values, repo.getId());
+
+        assertEquals(62, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertNull(AppProvider.Helper.findSpecificApp(context.getContentResolver(),
+                "com.autonavi.minimap", repo.getId()));
+        assertEquals(0, ApkProvider.Helper.findByPackageName(context, "com.autonavi.minimap").size());
+
+        App checkeyFromDb = AppProvider.Helper.findSpecificApp(context.getContentResolver(),
+                "info.guardianproject.checkey", repo.getId());
+        assertNotNull(checkeyFromDb);
+        assertEquals("Checkey Updated", checkeyFromDb.name);
+        List<Apk> checkeyApks = ApkProvider.Helper.findByPackageName(context, "info.guardianproject.checkey");
+        assertEquals(1, checkeyApks.size());
+        assertEquals(200, checkeyApks.get(0).versionCode);
+
+        assertEquals("AntennaPod", AppProvider.Helper.findSpecificApp(context.getContentResolver(),
+                "de.danoeh.antennapod", repo.getId()).name);
+        assertEquals(2, ApkProvider.Helper.findByPackageName(context, "de.danoeh.antennapod").size());
+    }
+
+    @Test(expected = IndexUpdater.UpdateException.class)
+    public void testIndexV1DiffForDifferentIndex() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1497639511;
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        String diff = "{\"since\": 1481222110000, \"repo\": {\"timestamp\": 1497639611000}, "
+                + "\"apps\": [], \"packages\": {}, \"removed\": [\"org.adaway\"]}";
+        try {
+            updater.processIndexV1Diff(new ByteArrayInputStream(diff.getBytes()),
+                    new JarEntry(IndexV1Updater.DIFF_DATA_FILE_NAME), null);
+        } catch (IndexUpdater.SigningException e) {
+            fail("the timestamp should be checked before the signature");
+        }
+    }
+
+    @Test(expected = IndexUpdater.UpdateException.class)
+    public void testIndexV1DiffWithUnsafePackageName() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1497639511;
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        String diff = "{\"since\": 1497639511000, \"repo\": {\"timestamp\": 1497639611000}, "
+                + "\"apps\": [], \"packages\": {\"org.adaway,org.fdroid.fdroid\": []}, \"removed\": []}";
+        try {
+            updater.processIndexV1Diff(new ByteArrayInputStream(diff.getBytes()),
+                    new JarEntry(IndexV1Updater.DIFF_DATA_FILE_NAME), null);
+        } catch (IndexUpdater.SigningException e) {
+            fail("the package names should be checked before the signature");
+        }
+    }
+
+    /**
+     * Only the apps of a diff are saved, so a package without its app would be
+     * lost while the timestamp moves on.  Such a diff has to be refused, so that
+     * {@link IndexV1Updater#update()} falls back to the whole index.
+     */
+    @Test(expected = IndexUpdater.UpdateException.class)
+    public void testIndexV1DiffWithPackageButNoApp() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1497639511;
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        String diff = "{\"since\": 1497639511000, \"repo\": {\"timestamp\": 1497639611000}, "
+                + "\"apps\": [], \"packages\": {\"org.adaway\": []}, \"removed\": []}";
+        try {
+            updater.processIndexV1Diff(new ByteArrayInputStream(diff.getBytes()),
+                    new JarEntry(IndexV1Updater.DIFF_DATA_FILE_NAME), null);
+        } catch (IndexUpdater.SigningException e) {
+            fail("the packages should be checked before the signature");
+        }
+    }
+
+    /**
+     * After a diff, the ETag of {@code index-v1.jar} is usually not known, so it
+     * is downloaded again, but it is the same index that is already there.
+     */
+    @Test
+    public void testIndexV1WithSameTimestampIsNotImportedAgain() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        processTestyJar(new IndexV1Updater(context, repo), "fakeEtag");
+        removeApp(repo, "com.autonavi.minimap");
+        assertEquals(62, AppProvider.Helper.all(context.getContentResolver()).size());
+
+        IndexV1Updater updater = new IndexV1Updater(context, RepoProvider.Helper.findById(context, repo.getId()));
+        processTestyJar(updater, "newEtag");
+        assertEquals(62, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertEquals("newEtag", RepoProvider.Helper.findById(context, repo.getId()).lastetag);
+
+        // without an ETag, the whole index was asked for, e.g. after changing the language
+        RepoProvider.Helper.clearEtags(context);
+        updater = new IndexV1Updater(context, RepoProvider.Helper.findById(context, repo.getId()));
+        processTestyJar(updater, "newEtag");
+        assertEquals(63, AppProvider.Helper.all(context.getContentResolver()).size());
+    }
+
+    private void processTestyJar(IndexV1Updater updater, String etag)
+            throws IOException, IndexUpdater.UpdateException {
+        JarFile jarFile = new JarFile(TestUtils.copyResourceToTempFile(TESTY_JAR), true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+        InputStream indexInputStream = jarFile.getInputStream(indexEntry);
+        updater.processIndexV1(indexInputStream, indexEntry, etag);
+        IOUtils.closeQuietly(indexInputStream);
+        jarFile.close();
+    }
+
+    /**
+     * Drop one app without changing the timestamp, so that it is only back if
+     * the whole index is imported again.
+     */
+    private void removeApp(Repo repo, String packageName) throws IndexUpdater.UpdateException {
+        RepoPersister persister = new RepoPersister(context, repo, Arrays.asList(packageName));
+        ContentValues values = new ContentValues(1);
+        values.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp);
+        persister.commit(values, repo.getId());
+    }
+
+    @Test
+    public void testRebuildFromRetainedIndex() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        IndexV1Updater updater = new IndexV1Updater(context, repo);
+        File jar = TestUtils.copyResourceToTempFile(TESTY_JAR);
+        JarFile jarFile = new JarFile(jar, true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexV1Updater.DATA_FILE_NAME);
+        InputStream indexInputStream = jarFile.getInputStream(indexEntry);
+        updater.processIndexV1(indexInputStream, indexEntry, "fakeEtag");
+        IOUtils.closeQuietly(indexInputStream);
+        jarFile.close();
+        new RetainedIndex(context, repo.getId()).retainIndex(jar, repo);
+        assertFalse(jar.exists());
+
+        DBHelper.resetTransient(context);
+        assertTrue(Preferences.get().isIndexRebuildPending());
+        assertEquals(0, AppProvider.Helper.all(context.getContentResolver()).size());
+        Repo repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        assertNull(repoFromDb.lastetag);
+
+        assertTrue(new IndexV1Updater(context, repoFromDb).rebuildFromRetainedIndex());
+        assertEquals(63, AppProvider.Helper.all(context.getContentResolver()).size());
+        repoFromDb = RepoProvider.Helper.findById(context, repo.getId());
+        assertEquals("fakeEtag", repoFromDb.lastetag);
+        assertEquals(1497639511, repoFromDb.timestamp);
+    }
+
+    @Test
+    public void testRetainedIndexForOtherTimestampIsNotUsed() throws IOException, IndexUpdater.UpdateException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        repo.timestamp = 1497639511;
+        RetainedIndex retainedIndex = new RetainedIndex(context, repo.getId());
+        retainedIndex.retainIndex(TestUtils.copyResourceToTempFile(TESTY_JAR), repo);
+
+        repo.timestamp = 1497639611;
+        assertFalse(new IndexV1Updater(context, repo).rebuildFromRetainedIndex());
+        assertNull(retainedIndex.getIndex());
+        assertEquals(0, AppProvider.Helper.all(context.getContentResolver()).size());
+    }
+
+    /**
+     * The retained files claim to lead to a later timestamp than the index alone is
+     * at, but there is no diff to get there, so none of it may be saved.
+     */
+    @Test
+    public void testIncompleteRetainedChainIsNotSaved() throws IOException {
+        Repo repo = MultiIndexUpdaterTest.createRepo("Testy", TESTY_CANONICAL_URL, context, TESTY_CERT);
+        long timestampInDb = RepoProvider.Helper.findById(context, repo.getId()).timestamp;
+        repo.timestamp = 1497639611;
+        RetainedIndex retainedIndex = new RetainedIndex(context, repo.getId());
+        retainedIndex.retainIndex(TestUtils.copyResourceToTempFile(TESTY_JAR), repo);
+
+        try {
+            new IndexV1Updater(context, repo).rebuildFromRetainedIndex();
+            fail();
+        } catch (IndexUpdater.UpdateException e) {
+            // expected
+        }
+        assertEquals(1497639611, repo.timestamp);
+        assertNull(retainedIndex.getIndex());
+        assertEquals(0, AppProvider.Helper.all(context.getContentResolver()).size());
+        assertEquals(timestampInDb, RepoProvider.Helper.findById(context, repo.getId()).timestamp);
+    }
+
     @Test(expected = IndexUpdater.SigningException.class)
     public void testIndexV1WithWrongCert() throws IOException, IndexUpdater.UpdateException {
         String badCert = "308202ed308201d5a003020102020426ffa009300d06092a864886f70d01010b05003027310b300906035504061302444531183016060355040a130f4e4f47415050532050726f6a656374301e170d3132313030363132303533325a170d3337303933303132303533325a3027310b300906035504061302444531183016060355040a130f4e4f47415050532050726f6a65637430820122300d06092a864886f70d01010105000382010f003082010a02820101009a8d2a5336b0eaaad89ce447828c7753b157459b79e3215dc962ca48f58c2cd7650df67d2dd7bda0880c682791f32b35c504e43e77b43c3e4e541f86e35a8293a54fb46e6b16af54d3a4eda458f1a7c8bc1b7479861ca7043337180e40079d9cdccb7e051ada9b6c88c9ec635541e2ebf0842521c3024c826f6fd6db6fd117c74e859d5af4db04448965ab5469b71ce719939a06ef30580f50febf96c474a7d265bb63f86a822ff7b643de6b76e966a18553c2858416cf3309dd24278374bdd82b4404ef6f7f122cec93859351fc6e5ea947e3ceb9d67374fe970e593e5cd05c905e1d24f5a5484f4aadef766e498adf64f7cf04bddd602ae8137b6eea40722d0203010001a321301f301d0603551d0e04160414110b7aa9ebc840b20399f69a431f4dba6ac42a64300d06092a864886f70d01010b0500038201010007c32ad893349cf86952fb5a49cfdc9b13f5e3c800aece77b2e7e0e9c83e34052f140f357ec7e6f4b432dc1ed542218a14835acd2df2deea7efd3fd5e8f1c34e1fb39ec6a427c6e6f4178b609b369040ac1f8844b789f3694dc640de06e44b247afed11637173f36f5886170fafd74954049858c6096308fc93c1bc4dd5685fa7a1f982a422f2a3b36baa8c9500474cf2af91c39cbec1bc898d10194d368aa5e91f1137ec115087c31962d8f76cd120d28c249cf76f4c70f5baa08c70a7234ce4123be080cee789477401965cfe537b924ef36747e8caca62dfefdd1a6288dcb1c4fd2aaa6131a7ad254e9742022cfd597d2ca5c660ce9e41ff537e5a4041e37"; // NOCHECKSTYLE LineLength
@@ -221,6 +440,106 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
         fail(); // it should never reach here, it should throw a SigningException
     }
 
+    /**
+     * {@link IndexV1Updater#processIndexV1(InputStream, JarEntry, String)} streams
+     * the index into {@link org.fdroid.fdroid.data.RepoPersister} in batches, so the
+     * peak heap usage while processing must not grow with the number of apps in
+     * the index.  The generated index is not signed, so this expects the
+     * {@link IndexUpdater.SigningException} that comes after all of the apps
+     * have been processed.
+     */
+    @Test
+    public void testIndexV1StreamingHeapIsFlat() throws IOException, IndexUpdater.UpdateException {
+        long smallPeak = measurePeakHeapWhileProcessing(500);
+        long largePeak = measurePeakHeapWhileProcessing(4000);
+        Log.i(TAG, "peak heap for 500 apps: " + smallPeak + " 4000 apps: " + largePeak);
+        assertTrue("peak heap grew from " + smallPeak + " to " + largePeak,
+                largePeak - smallPeak < 8 * 1024 * 1024);
+    }
+
+    private long measurePeakHeapWhileProcessing(int appCount) throws IOException, IndexUpdater.UpdateException {
+        File indexFile = writeGeneratedIndexV1(appCount);
+        Repo repo = MultiIndexUpdaterTest.createRepo("Generated" + appCount, TESTY_CANONICAL_URL + appCount,
+                context, TESTY_CERT);
+        final long[] peak = new long[1];
+        IndexV1Updater updater = new IndexV1Updater(context, repo) {
+            @Override
+            protected void notifyProcessingApps(int appsSaved, int totalApps) {
+                System.gc();
+                Runtime runtime = Runtime.getRuntime();
+                peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory());
+            }
+        };
+        InputStream indexInputStream = new FileInputStream(indexFile);
+        try {
+            updater.processIndexV1(indexInputStream, new JarEntry(IndexV1Updater.DATA_FILE_NAME), "fakeEtag");
+            fail(); // the generated index is not signed
+        } catch (IndexUpdater.SigningException e) {
+            // expected, all apps were already processed at this point
+        } finally {
+            IOUtils.closeQuietly(indexInputStream);
+            assertTrue(indexFile.delete());
+        }
+        assertTrue(peak[0] > 0);
+        return peak[0];
+    }
+
+    /**
+     * Generate an {@code index-v1.json} with {@code appCount} apps, each with a
+     * few kilobytes of description and two packages.
+     */
+    private File writeGeneratedIndexV1(int appCount) throws IOException {
+        File indexFile = File.createTempFile("generated-index-v1-", ".json");
+        JsonGenerator generator = new JsonFactory().createGenerator(indexFile, JsonEncoding.UTF8);
+        StringBuilder description = new StringBuilder();
+        while (description.length() < 4096) {
+            description.append("This is a long description of a generated app. ");
+        }
+
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("repo");
+        generator.writeNumberField("timestamp", System.currentTimeMillis());
+        generator.writeNumberField("version", 18);
+        generator.writeStringField("name", "Generated repo");
+        generator.writeEndObject();
+
+        generator.writeArrayFieldStart("apps");
+        for (int i = 0; i < appCount; i++) {
+            generator.writeStartObject();
+            generator.writeStringField("packageName", "org.example.generated" + i);
+            generator.writeStringField("name", "Generated " + i);
+            generator.writeStringField("summary", "Generated app number " + i);
+            generator.writeStringField("description", i + " " + description);
+            generator.writeStringField("license", "GPL-3.0-or-later");
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        generator.writeObjectFieldStart("packages");
+        for (int i = 0; i < appCount; i++) {
+            generator.writeArrayFieldStart("org.example.generated" + i);
+            for (int versionCode = 2; versionCode > 0; versionCode--) {
+                generator.writeStartObject();
+                generator.writeStringField("packageName", "org.example.generated" + i);
+                generator.writeNumberField("versionCode", versionCode);
+                generator.writeStringField("versionName", "1." + versionCode);
+                generator.writeStringField("apkName", "org.example.generated" + i + "_" + versionCode + ".apk");
+                generator.writeStringField("hash", String.format("%064x", i * 10 + versionCode));
+                generator.writeStringField("hashType", "sha256");
+                generator.writeStringField("sig", String.format("%032x", i));
+                generator.writeNumberField("size", 1234567);
+                generator.writeNumberField("minSdkVersion", 14);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+
+        generator.writeEndObject();
+        generator.close();
+        return indexFile;
+    }
+
     @Test
     public void testJacksonParsing() throws IOException {
         ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(FAKE_REPO_ID);
@@ -3,12 +3,14 @@ package org.fdroid.fdroid.mock;
 import android.support.annotation.NonNull;
 
 import org.fdroid.fdroid.data.RepoXMLHandler;
+import org.fdroid.fdroid.data.RepoXMLPullParser;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.RepoPushRequest;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
@@ -86,5 +88,22 @@ public class RepoDetails implements RepoXMLHandler.IndexReceiver {
         }
     }
 
+    /**
+     * The same as {@link #getFromFile(InputStream, int)}, but read with {@link RepoXMLPullParser}.
+     */
+    @NonNull
+    public static RepoDetails getFromFileWithPullParser(InputStream inputStream, int pushRequests) {
+        try {
+            RepoDetails repoDetails = new RepoDetails();
+            MockRepo mockRepo = new MockRepo(100, pushRequests);
+            new RepoXMLPullParser(mockRepo, repoDetails).parse(new BufferedInputStream(inputStream));
+            return repoDetails;
+        } catch (XmlPullParserException | IOException e) {
+            e.printStackTrace();
+            fail();
+            return null;
+        }
+    }
+
 }
 